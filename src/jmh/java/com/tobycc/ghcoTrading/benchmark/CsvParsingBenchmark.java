@@ -0,0 +1,65 @@
+package com.tobycc.ghcoTrading.benchmark;
+
+import com.opencsv.bean.CsvToBeanBuilder;
+import com.tobycc.ghcoTrading.file.StreamingTradeCsvParser;
+import com.tobycc.ghcoTrading.model.Trade;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a trade csv with the OpenCSV reflection binding (header check on one open, parse on a second, as
+ * CSVParser originally did) against the single pass {@link StreamingTradeCsvParser}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CsvParsingBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int trades;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+        file = SyntheticTrades.writeCsv(Files.createTempFile("csv-parsing-benchmark", ".csv"),
+                SyntheticTrades.generate(trades, 42));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public List<Trade> openCsv() throws IOException {
+        try(BufferedReader in = new BufferedReader(new FileReader(file.toFile()))) {
+            if(!in.readLine().equals(SyntheticTrades.HEADERS)) {
+                throw new IllegalStateException("Unexpected headers");
+            }
+        }
+        try(FileReader in = new FileReader(file.toFile())) {
+            return new CsvToBeanBuilder<Trade>(in)
+                    .withType(Trade.class)
+                    .withOrderedResults(false)
+                    .withSkipLines(1)
+                    .build()
+                    .parse();
+        }
+    }
+
+    @Benchmark
+    public List<Trade> streaming() throws IOException {
+        return new StreamingTradeCsvParser().readTrades(file).orElseThrow();
+    }
+}
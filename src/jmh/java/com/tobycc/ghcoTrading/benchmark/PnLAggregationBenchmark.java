@@ -0,0 +1,84 @@
+package com.tobycc.ghcoTrading.benchmark;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.service.TradeAggregationService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per trade cost of the cumulative pnl series with BigDecimal arithmetic against the fixed point mode, including
+ * reading every position back out as the response would, sequentially and across an aggregation pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PnLAggregationBenchmark {
+
+    private static final int TRADES = 1_000_000;
+
+    @Param({"false", "true"})
+    public boolean fixedPoint;
+
+    @Param({"", "USD"})
+    public String convertInto;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private TradeAggregationService tradeAggregationService;
+    private PnLAggregationRequest request;
+    private Map<String, Trade> trades;
+    private Map<String, List<Trade>> groupedTrades;
+
+    @Setup(Level.Trial)
+    public void groupTrades() {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(fixedPoint);
+        aggregationProps.setFixedPointScale(8);
+        aggregationProps.setParallelism(parallelism);
+        aggregationProps.setResultCache(false);
+        tradeAggregationService = new TradeAggregationService(aggregationProps, null, null, null, null);
+
+        trades = new HashMap<>();
+        SyntheticTrades.generate(TRADES, 42).forEach(t -> trades.put(t.getTradeId(), t));
+        request = new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))),
+                convertInto.isEmpty() ? Optional.empty() : Optional.of(Currency.valueOf(convertInto)), Optional.empty());
+        groupedTrades = tradeAggregationService.groupTrades(trades, request);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRADES)
+    public void processPnlAggregation(Blackhole blackhole) {
+        tradeAggregationService.processPnlAggregation(groupedTrades, request).values()
+                .forEach(positions -> {
+                    for(PnLPosition position: positions) {
+                        blackhole.consume(position);
+                    }
+                });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRADES)
+    public Map<String, List<PnLPosition>> groupAndProcessPnlAggregation() {
+        return tradeAggregationService.processPnlAggregation(tradeAggregationService.groupTrades(trades, request), request);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        tradeAggregationService.shutdownAggregationPool();
+    }
+}
@@ -0,0 +1,100 @@
+package com.tobycc.ghcoTrading.benchmark;
+
+import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.TradeCheckpointStore;
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import com.tobycc.ghcoTrading.service.TradeCheckpointService;
+import com.tobycc.ghcoTrading.service.TradeLoadingService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Reports how long a restart takes to load a large history of trades by parsing every input file, against loading the
+ * checkpoint of them ("file.checkpoint") with one new file added since it was taken, along with how long the
+ * checkpoint takes to write.
+ *
+ * Run with `mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=com.tobycc.ghcoTrading.benchmark.RestartTimeReport -Dbenchmark=5000000`
+ */
+public final class RestartTimeReport {
+
+    private static final int FILES = 20;
+
+    private RestartTimeReport() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 && !args[0].equals(".*") ? Integer.parseInt(args[0]) : 5_000_000;
+        Path baseDirectory = Files.createTempDirectory("restart-time-report");
+        try {
+            Path inputDirectory = Files.createDirectory(baseDirectory.resolve("input"));
+            List<Trade> trades = SyntheticTrades.generate(count, 42);
+            int perFile = (count + FILES - 1) / FILES;
+            for(int i = 0; i < FILES; i++) {
+                SyntheticTrades.writeCsv(inputDirectory.resolve(String.format("history_%02d.csv", i)),
+                        trades.subList(Math.min(count, i * perFile), Math.min(count, (i + 1) * perFile)));
+            }
+            trades = null;
+
+            FileProps fileProps = fileProps(baseDirectory);
+            fileProps.setCheckpoint(false);
+            TradeFileOffsets tradeFileOffsets = new TradeFileOffsets();
+            TradeCheckpointStore tradeCheckpointStore = new TradeCheckpointStore(fileProps);
+            long start = System.nanoTime();
+            TradeLoadingService fullLoad = start(fileProps, tradeFileOffsets, tradeCheckpointStore);
+            report("Full parse of " + FILES + " files", fullLoad, System.nanoTime() - start);
+
+            fileProps.setCheckpoint(true);
+            start = System.nanoTime();
+            new TradeCheckpointService(fullLoad, tradeCheckpointStore, tradeFileOffsets, fileProps).checkpoint();
+            System.out.printf("Checkpoint written in %.0f ms, %.1f MB%n", (System.nanoTime() - start) / 1e6,
+                    Files.size(baseDirectory.resolve(fileProps.getCheckpointFile())) / 1e6);
+            fullLoad = null;
+
+            SyntheticTrades.writeCsv(inputDirectory.resolve("new.csv"), SyntheticTrades.generate(count / 100, 43));
+            start = System.nanoTime();
+            TradeLoadingService restored = start(fileProps, new TradeFileOffsets(), new TradeCheckpointStore(fileProps));
+            report("Checkpoint plus one new file", restored, System.nanoTime() - start);
+        } finally {
+            try (Stream<Path> paths = Files.walk(baseDirectory)) {
+                for(Path path: paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static TradeLoadingService start(FileProps fileProps, TradeFileOffsets tradeFileOffsets,
+                                             TradeCheckpointStore tradeCheckpointStore) {
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(new CSVParser(fileProps), fileProps, storeProps,
+                List.of(), tradeFileOffsets, tradeCheckpointStore);
+        tradeLoadingService.loadInitialTrades();
+        return tradeLoadingService;
+    }
+
+    private static FileProps fileProps(Path baseDirectory) {
+        FileProps fileProps = new FileProps();
+        fileProps.setBaseDirectory(baseDirectory.toString());
+        fileProps.setInputDirectory("input");
+        fileProps.setParallelLoad(true);
+        fileProps.setLoadThreads(Runtime.getRuntime().availableProcessors());
+        fileProps.setTailMode(false);
+        fileProps.setCheckpointFile("trades.checkpoint");
+        fileProps.setJournalFile("trades.journal");
+        fileProps.setCheckpointIntervalSeconds(60);
+        return fileProps;
+    }
+
+    private static void report(String name, TradeLoadingService tradeLoadingService, long nanos) {
+        System.out.printf("%s: %d trades in %.0f ms%n", name, tradeLoadingService.getLoadedTrades().size(), nanos / 1e6);
+    }
+}
@@ -0,0 +1,85 @@
+package com.tobycc.ghcoTrading.benchmark;
+
+import com.tobycc.ghcoTrading.config.DateUtils;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible books of trades with realistic dimension cardinalities for the benchmarks
+ */
+public final class SyntheticTrades {
+
+    public static final String HEADERS =
+            "TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate";
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T00:00:00");
+    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern(DateUtils.DATETIME_FORMAT);
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(DateUtils.DATE_FORMAT);
+
+    private SyntheticTrades() {
+    }
+
+    /**
+     * @param count: number of trades
+     * @param seed: random seed, the same seed always gives the same trades
+     * @return NEW trades with distinct TradeIDs spread over one day
+     */
+    public static List<Trade> generate(int count, long seed) {
+        Random random = new Random(seed);
+        Currency[] currencies = Currency.values();
+        List<Trade> trades = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            trades.add(new Trade(
+                    String.format("%032x", i + seed * 1_000_000_000L),
+                    "BBG" + random.nextInt(500) + " US Equity",
+                    currencies[random.nextInt(currencies.length)],
+                    random.nextBoolean() ? Side.B : Side.S,
+                    BigDecimal.valueOf(100 + random.nextInt(1_000_000), 2),
+                    1 + random.nextInt(10_000),
+                    "portfolio" + random.nextInt(20),
+                    Action.NEW,
+                    "Account" + random.nextInt(10),
+                    "Strategy" + random.nextInt(10),
+                    "User" + random.nextInt(50),
+                    START.plusNanos(random.nextInt(86_400_000) * 1_000_000L + random.nextInt(1000) * 1000L),
+                    LocalDate.of(2010, 1, 1)
+            ));
+        }
+        return trades;
+    }
+
+    /**
+     * Writes the trades in the input csv layout
+     * @param file
+     * @param trades
+     * @return the file
+     */
+    public static Path writeCsv(Path file, List<Trade> trades) throws IOException {
+        try(BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write(HEADERS);
+            writer.newLine();
+            for(Trade t: trades) {
+                writer.write(String.join(",", t.getTradeId(), t.getBbgCode(), t.getCcy().name(), t.getSide().name(),
+                        t.getPrice().toPlainString(), t.getVolume().toString(), t.getPortfolio(), t.getAction().name(),
+                        t.getAccount(), t.getStrategy(), t.getUser(), DATETIME_FORMATTER.format(t.getDateTime()),
+                        DATE_FORMATTER.format(t.getDate())));
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+}
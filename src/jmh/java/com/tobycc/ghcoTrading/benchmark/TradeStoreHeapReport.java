@@ -0,0 +1,64 @@
+package com.tobycc.ghcoTrading.benchmark;
+
+import com.tobycc.ghcoTrading.file.StreamingTradeCsvParser;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the heap used per trade by the loaded trades held as a HashMap of Trades and as a {@link ColumnarTradeStore},
+ * both filled from the same csv file through the production parser. Heap is measured after a full GC either side of
+ * building each, with only that one reachable.
+ *
+ * Run with `mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=com.tobycc.ghcoTrading.benchmark.TradeStoreHeapReport -Dbenchmark=1000000`
+ */
+public final class TradeStoreHeapReport {
+
+    private TradeStoreHeapReport() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 && !args[0].equals(".*") ? Integer.parseInt(args[0]) : 1_000_000;
+        Path file = SyntheticTrades.writeCsv(Files.createTempFile("trade-store-heap-report", ".csv"),
+                SyntheticTrades.generate(count, 42));
+        try {
+            long before = usedHeap();
+            Map<String, Trade> objects = load(file, new HashMap<>());
+            long objectBytes = usedHeap() - before;
+            report("HashMap<String, Trade>", objects.size(), objectBytes);
+            objects = null;
+
+            before = usedHeap();
+            ColumnarTradeStore columnar = (ColumnarTradeStore) load(file, new ColumnarTradeStore());
+            long columnarBytes = usedHeap() - before;
+            report("ColumnarTradeStore", columnar.size(), columnarBytes);
+            System.out.printf("ColumnarTradeStore estimate: %d bytes per trade%n", columnar.estimatedHeapBytes() / columnar.size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static Map<String, Trade> load(Path file, Map<String, Trade> trades) throws IOException {
+        //Trades are added one at a time as they are parsed, so the parsed list never has to be held at once
+        new StreamingTradeCsvParser().readTrades(file, t -> trades.put(t.getTradeId(), t));
+        return trades;
+    }
+
+    private static void report(String name, int trades, long bytes) {
+        System.out.printf("%s: %d trades in %.1f MB, %d bytes per trade%n", name, trades, bytes / 1e6, bytes / trades);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
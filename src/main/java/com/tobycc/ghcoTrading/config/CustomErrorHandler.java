@@ -1,5 +1,6 @@
 package com.tobycc.ghcoTrading.config;
 
+import com.tobycc.ghcoTrading.file.TradeInputException;
 import jakarta.validation.ConstraintViolation;
 import jakarta.validation.ConstraintViolationException;
 import org.hibernate.validator.internal.engine.path.PathImpl;
@@ -23,4 +24,13 @@ public class CustomErrorHandler {
         }
         return ResponseEntity.badRequest().body(errors);
     }
+
+    /**
+     * Trades that cannot be taken as they are, e.g. with a time finer than the microseconds the journal holds, or a bulk
+     * csv without the expected headers
+     */
+    @ExceptionHandler(TradeInputException.class)
+    public ResponseEntity<Map<String, String>> handleTradeInputException(TradeInputException ex) {
+        return ResponseEntity.badRequest().body(Map.of("error", ex.getMessage()));
+    }
 }
\ No newline at end of file
@@ -1,25 +1,43 @@
 package com.tobycc.ghcoTrading.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.FileWatcherService;
+import com.tobycc.ghcoTrading.model.AggregationOutputJob;
+import com.tobycc.ghcoTrading.model.BulkIngestResult;
+import com.tobycc.ghcoTrading.model.FileIngestionStatus;
 import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLAggregationResult;
 import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLRollupRequest;
+import com.tobycc.ghcoTrading.model.PnLSeries;
 import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.service.AggregationOutputService;
+import com.tobycc.ghcoTrading.service.BulkIngestService;
+import com.tobycc.ghcoTrading.service.RollupService;
 import com.tobycc.ghcoTrading.service.TradeAggregationService;
+import com.tobycc.ghcoTrading.service.TradeJournalService;
 import com.tobycc.ghcoTrading.service.TradeLoadingService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 
@@ -31,14 +49,34 @@ public class TradeController {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TradeController.class);
 
+    public static final String OUTPUT_JOB_HEADER = "X-Output-Job-Id";
+    public static final String NDJSON_VALUE = "application/x-ndjson";
+    public static final String CSV_VALUE = "text/csv";
+
     private final CSVParser csvParser;
     private final TradeAggregationService tradeAggregationService;
     private final TradeLoadingService tradeLoadingService;
+    private final AggregationOutputService aggregationOutputService;
+    private final TradeJournalService tradeJournalService;
+    private final BulkIngestService bulkIngestService;
+    private final RollupService rollupService;
+    private final ObjectWriter seriesWriter;
+    //Not present when file watching is disabled, i.e. under the test profile
+    private final Optional<FileWatcherService> fileWatcherService;
 
-    public TradeController(CSVParser csvParser, TradeLoadingService tradeLoadingService, TradeAggregationService tradeAggregationService) {
+    public TradeController(CSVParser csvParser, TradeLoadingService tradeLoadingService, TradeAggregationService tradeAggregationService,
+                           AggregationOutputService aggregationOutputService, TradeJournalService tradeJournalService,
+                           BulkIngestService bulkIngestService, RollupService rollupService, ObjectMapper objectMapper,
+                           Optional<FileWatcherService> fileWatcherService) {
         this.csvParser = csvParser;
         this.tradeLoadingService = tradeLoadingService;
         this.tradeAggregationService = tradeAggregationService;
+        this.aggregationOutputService = aggregationOutputService;
+        this.tradeJournalService = tradeJournalService;
+        this.bulkIngestService = bulkIngestService;
+        this.rollupService = rollupService;
+        this.seriesWriter = objectMapper.writerFor(PnLSeries.class);
+        this.fileWatcherService = fileWatcherService;
     }
 
     @PostMapping(produces = APPLICATION_JSON_VALUE)
@@ -46,14 +84,84 @@ public class TradeController {
     public List<String> postNewTrades(@RequestBody List<@Valid Trade> newTrades) {
         if(newTrades.isEmpty()) return Collections.emptyList();
 
+        if(tradeJournalService.isEnabled()) {
+            LOGGER.info("Trades (" + newTrades.size() + ") inputted from REST call. Appending to the journal and loading");
+            return tradeJournalService.appendTrades(newTrades);
+        }
         LOGGER.info("Trades (" + newTrades.size() + ") inputted from REST call. Persisting to input csv file, which will" +
                 " then be picked up from file watcher and loaded");
         return csvParser.writeTradesIntoCsv(newTrades);
     }
 
+    @PostMapping(value = "bulk", consumes = NDJSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Load a large number of new trades streamed as newline delimited JSON, one trade a line, in " +
+            "batches. Lines that cannot be loaded are rejected by line number without stopping the rest")
+    public BulkIngestResult bulkIngestNdjson(InputStream body) throws IOException {
+        return bulkIngestService.ingestNdjson(body);
+    }
+
+    @PostMapping(value = "bulk", consumes = CSV_VALUE, produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Load a large number of new trades streamed as a csv in the input file layout, in batches. " +
+            "Rows that cannot be loaded are rejected by line number without stopping the rest")
+    public BulkIngestResult bulkIngestCsv(InputStream body) throws IOException {
+        return bulkIngestService.ingestCsv(body);
+    }
+
+    @GetMapping(value = "ingestion", produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get the queue depth and lag of files dropped into the input directory")
+    public ResponseEntity<FileIngestionStatus> ingestionStatus() {
+        return ResponseEntity.of(fileWatcherService.map(FileWatcherService::getStatus));
+    }
+
     @PostMapping(value = "aggregate", produces = APPLICATION_JSON_VALUE)
-    @Operation(summary = "Get a PnL aggregation result based on input parameters")
-    public Map<String, List<PnLPosition>> pnlAggregation(@RequestBody PnLAggregationRequest request) {
-        return tradeAggregationService.aggregateTrades(tradeLoadingService.getLoadedTrades(), request);
+    @Operation(summary = "Get a PnL aggregation result based on input parameters. Any console/csv output is written in " +
+            "the background, by the job in the " + OUTPUT_JOB_HEADER + " header")
+    public ResponseEntity<Map<String, List<PnLPosition>>> pnlAggregation(@RequestBody PnLAggregationRequest request) {
+        PnLAggregationResult result = tradeAggregationService.aggregateTradesWithOutput(tradeLoadingService.getLoadedTrades(), request);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        result.outputJobId().ifPresent(jobId -> response.header(OUTPUT_JOB_HEADER, jobId));
+        return response.body(result.positions());
+    }
+
+    @PostMapping(value = "aggregate/currencies", produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get a PnL aggregation result converted into each of the given currencies, from one pass over " +
+            "the trades rather than one per currency. Not written to the console/csv outputs")
+    public ResponseEntity<Map<Currency, Map<String, List<PnLPosition>>>> pnlAggregationInCurrencies(
+            @RequestBody PnLAggregationRequest request, @RequestParam Set<Currency> currencies) {
+        return ResponseEntity.ok(tradeAggregationService.aggregateTradesInCurrencies(tradeLoadingService.getLoadedTrades(),
+                request, currencies));
+    }
+
+    @PostMapping(value = "aggregate/batch", produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get the PnL aggregation results of several requests, in the order given, from one pass over the " +
+            "trades rather than one per request. Not written to the console/csv outputs")
+    public ResponseEntity<List<Map<String, List<PnLPosition>>>> pnlAggregationBatch(@RequestBody List<PnLAggregationRequest> requests) {
+        return ResponseEntity.ok(tradeAggregationService.aggregateTradesBatch(tradeLoadingService.getLoadedTrades(), requests));
+    }
+
+    @PostMapping(value = "aggregate/rollup", produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get PnL aggregation results at several levels of grouping together, each merged from the series " +
+            "of the trades grouped on every field rather than grouping the trades again. Not written to the console/csv outputs")
+    public ResponseEntity<Map<String, Map<String, List<PnLPosition>>>> pnlAggregationRollup(@RequestBody PnLRollupRequest request) {
+        return ResponseEntity.ok(rollupService.aggregateRollup(tradeLoadingService.getLoadedTrades(), request.request(),
+                request.levels()));
+    }
+
+    @PostMapping(value = "aggregate/stream", produces = NDJSON_VALUE)
+    @Operation(summary = "Get a PnL aggregation result as newline delimited JSON, one group's series a line, each written " +
+            "as soon as it is computed rather than once the whole result is. Not written to the console/csv outputs")
+    public ResponseEntity<StreamingResponseBody> pnlAggregationStream(@RequestBody PnLAggregationRequest request) {
+        Map<String, Trade> trades = tradeLoadingService.getLoadedTrades();
+        StreamingResponseBody body = out -> tradeAggregationService.streamAggregation(trades, request, (key, positions) -> {
+            out.write(seriesWriter.writeValueAsBytes(new PnLSeries(key, positions)));
+            out.write('\n');
+        });
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
+    }
+
+    @GetMapping(value = "aggregate/output/{jobId}", produces = APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get the status of the job writing an aggregation to the console/csv outputs")
+    public ResponseEntity<AggregationOutputJob> pnlAggregationOutputStatus(@PathVariable String jobId) {
+        return ResponseEntity.of(aggregationOutputService.getJob(jobId));
     }
 }
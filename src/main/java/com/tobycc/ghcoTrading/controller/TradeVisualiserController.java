@@ -1,45 +1,57 @@
 package com.tobycc.ghcoTrading.controller;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
-import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.VisualisationPage;
 import com.tobycc.ghcoTrading.service.TradeAggregationService;
 import com.tobycc.ghcoTrading.service.TradeLoadingService;
+import com.tobycc.ghcoTrading.service.VisualisationService;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.util.UriUtils;
 
-import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
 @Controller
 @RequestMapping(path = {"/api/v1/trade"})
 public class TradeVisualiserController {
 
     private final TradeAggregationService tradeAggregationService;
     private final TradeLoadingService tradeLoadingService;
-    private final ObjectMapper objectMapper;
+    private final VisualisationService visualisationService;
 
-    public TradeVisualiserController(TradeAggregationService tradeAggregationService, ObjectMapper objectMapper, TradeLoadingService tradeLoadingService) {
+    public TradeVisualiserController(TradeAggregationService tradeAggregationService, TradeLoadingService tradeLoadingService,
+                                     VisualisationService visualisationService) {
         this.tradeAggregationService = tradeAggregationService;
-        this.objectMapper = objectMapper;
         this.tradeLoadingService = tradeLoadingService;
+        this.visualisationService = visualisationService;
     }
 
     @PostMapping(value = "aggregateAndVisualise")
     public String pnlAggregationAndVisualisation(@RequestBody PnLAggregationRequest request) {
-        tradeAggregationService.aggregateTrades(tradeLoadingService.getLoadedTrades(), request);
-        return "redirect:/api/v1/trade/visualise?title=" + UriUtils.encode(request.convertForTitle(), "UTF-8");
+        String id = visualisationService.put(tradeAggregationService.aggregateTrades(tradeLoadingService.getLoadedTrades(), request));
+        return "redirect:/api/v1/trade/visualise?id=" + id + "&title=" + UriUtils.encode(request.convertForTitle(), "UTF-8");
     }
 
+    /**
+     * The page only holds the id of the aggregation, its series are fetched a page at a time from visualise/{id}/data
+     */
     @GetMapping(value = "visualise")
-    public String index(Model model, @RequestParam String title) throws JsonProcessingException {
-        Map<String, List<PnLPosition>> aggregatedTrades = tradeAggregationService.getAggregatedTrades();
-        model.addAttribute("chartData", objectMapper.writeValueAsString(aggregatedTrades));
+    public String index(Model model, @RequestParam String id, @RequestParam String title) {
+        model.addAttribute("visualisationId", id);
         model.addAttribute("title", Objects.requireNonNullElse(title,""));
         return "visualiser";
     }
-}
\ No newline at end of file
+
+    @GetMapping(value = "visualise/{id}/data", produces = APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<VisualisationPage> visualisationData(@PathVariable String id,
+                                                               @RequestParam(defaultValue = "0") int page,
+                                                               @RequestParam(defaultValue = "20") int size,
+                                                               @RequestParam(defaultValue = "1000") int points) {
+        return ResponseEntity.of(visualisationService.getPage(id, page, size, points));
+    }
+}
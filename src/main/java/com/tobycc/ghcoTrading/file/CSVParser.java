@@ -6,6 +6,7 @@ import com.opencsv.exceptions.CsvRequiredFieldEmptyException;
 import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
 import com.tobycc.ghcoTrading.model.PnLPosition;
 import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFileRead;
 import com.tobycc.ghcoTrading.props.FileProps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,8 +16,10 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -27,7 +30,7 @@ public class CSVParser {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CSVParser.class);
 
-    private static final String EXPECTED_HEADERS =
+    static final String EXPECTED_HEADERS =
             "TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate";
     private static final String[] HEADERS =
             new String[]{"TradeID","BBGCode","Currency","Side","Price","Volume","Portfolio","Action","Account", "Strategy","User","TradeTimeUTC","ValueDate"};
@@ -39,10 +42,9 @@ public class CSVParser {
     }
 
     /**
-     * Small robustness checks on file (ensure it is a csv and the headers are as expected - rest left to the csv to bean parser)
+     * Small robustness checks on file (ensure it is a csv - the headers are checked as part of reading it)
      * @param file
      * @return
-     * @throws IOException
      */
     public Optional<List<Trade>> checkFileAndReadTrades(String file) {
         if (Files.isDirectory(Paths.get(file))) {
@@ -54,34 +56,55 @@ public class CSVParser {
             return Optional.empty();
         }
 
-        try(BufferedReader in = new BufferedReader(new FileReader(file))) {
-            if(!in.readLine().equals(EXPECTED_HEADERS)) {
+        return readTradesFromCsv(file);
+    }
+
+    /**
+     * Reads the trades in a single pass over the file with {@link StreamingTradeCsvParser}, which validates the headers
+     * as the first row
+     * @param file
+     * @return the trades, or empty if the headers are unexpected or any row could not be parsed
+     */
+    public Optional<List<Trade>> readTradesFromCsv(String file) {
+        LOGGER.info("Reading trades from file: "  + file);
+        try {
+            Optional<List<Trade>> trades = new StreamingTradeCsvParser().readTrades(Path.of(file));
+            if(trades.isEmpty()) {
                 LOGGER.info("File: " + file + ". Csv has unexpected headers, will not be parsed");
-                return Optional.empty();
+                return trades;
             }
-
-            return readTradesFromCsv(file);
-        } catch(IOException e) {
-            LOGGER.error("Error reading from file: " + e.getMessage());
+            LOGGER.info("Completed read of trades from file: " + file);
+            return trades;
+        } catch (IOException e) {
+            LOGGER.error("Trades could not be read in due to: " + e.getMessage());
             return Optional.empty();
         }
     }
 
-    public Optional<List<Trade>> readTradesFromCsv(String file) {
-        LOGGER.info("Reading trades from file: "  + file);
+    /**
+     * Reads the trades in the rows of the file from a byte offset onwards, for following a file that is appended to
+     * @param file
+     * @param offset: where the last read of the file stopped, 0 for the start of the file
+     * @param completeRowsOnly: whether to leave a last row without a line ending for a later read
+     * @return the trades and where to carry on from, or empty if the file is not a csv with the expected headers or
+     * any row could not be parsed
+     */
+    public Optional<TradeFileRead> readTradesFromOffset(String file, long offset, boolean completeRowsOnly) {
+        if(!file.endsWith(".csv") || Files.isDirectory(Paths.get(file))) {
+            LOGGER.info("File: " + file + ". File is not a csv, will not be parsed");
+            return Optional.empty();
+        }
+
+        LOGGER.info("Reading trades from file: " + file + " from offset " + offset);
         try {
-            FileReader in = new FileReader(file);
-            CsvToBean<Trade> csvToBean = new CsvToBeanBuilder<Trade>(in)
-                    .withType(Trade.class)
-                    //The initial file is in no logical order, and we sort later anyway when aggregating, this speeds up read
-                    .withOrderedResults(false)
-                    .withSkipLines(1)
-                    .build();
-            List<Trade> trades = csvToBean.parse();
-            in.close();
-            LOGGER.info("Completed read of trades from file: " + file);
-            return Optional.of(trades);
-        } catch (Exception e) {
+            List<Trade> trades = new ArrayList<>();
+            long nextOffset = new StreamingTradeCsvParser().readTrades(Path.of(file), offset, completeRowsOnly, trades::add);
+            if(nextOffset == StreamingTradeCsvParser.MISSING_HEADERS) {
+                LOGGER.info("File: " + file + ". Csv has unexpected headers, will not be parsed");
+                return Optional.empty();
+            }
+            return Optional.of(new TradeFileRead(trades, nextOffset));
+        } catch (IOException e) {
             LOGGER.error("Trades could not be read in due to: " + e.getMessage());
             return Optional.empty();
         }
@@ -89,16 +112,18 @@ public class CSVParser {
 
     /**
      * Write trades coming in via REST call to new csv files. Place these in the input directory, so they are loaded in
-     * on next startup too.
+     * on next startup too. The file is written under a temporary name and then renamed into place, so the file watcher
+     * never sees it half written.
      * @param rawTrades
      */
     public List<String> writeTradesIntoCsv(List<Trade> rawTrades) {
         String inputDirectory = fileProps.getBaseDirectory() + "/" + fileProps.getInputDirectory();
         String outputFile = inputDirectory + "/" +
                 "trades_via_api_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HH:mm:ss")) + ".csv";
+        Path partFile = Path.of(outputFile + FileWatcherService.PART_FILE_SUFFIX);
         try {
             Files.createDirectories(Path.of(inputDirectory));
-            Writer writer = new FileWriter(outputFile);
+            Writer writer = new BufferedWriter(new FileWriter(partFile.toFile()));
 
             ColumnPositionMappingStrategy<Trade> mappingStrategy = new ColumnPositionMappingStrategy<>() {
                 @Override
@@ -116,6 +141,7 @@ public class CSVParser {
             LOGGER.info("Writing trades into csv file " + outputFile);
             beanToCsv.write(rawTrades);
             writer.close();
+            Files.move(partFile, Path.of(outputFile), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
             return rawTrades.stream().map(Trade::getTradeId).toList();
         }  catch (IOException | CsvRequiredFieldEmptyException | CsvDataTypeMismatchException e) {
             LOGGER.error("Failed to create csv file " + outputFile + ": " + e.getMessage());
@@ -132,8 +158,8 @@ public class CSVParser {
 
             pnlAggregated.forEach((key,value) -> {
                 String outputFile = outputDirectory + "/" + key + request.convertForTitle() + ".csv";
-                try {
-                    Writer writer = new FileWriter(outputFile);
+                //Buffered, as the bean writer makes many small writes per position
+                try (Writer writer = new BufferedWriter(new FileWriter(outputFile))) {
                     HeaderColumnNameMappingStrategy<PnLPosition> mappingStrategy = new HeaderColumnNameMappingStrategy<>(){
                         @Override
                         public String[] generateHeader(PnLPosition bean) throws CsvRequiredFieldEmptyException {
@@ -149,7 +175,6 @@ public class CSVParser {
                             .build();
                     LOGGER.info("Writing csv file for " + outputFile);
                     beanToCsv.write(value);
-                    writer.close();
                 }  catch (IOException | CsvRequiredFieldEmptyException | CsvDataTypeMismatchException e) {
                     LOGGER.error("Failed to create csv file " + outputFile + ": " + e.getMessage());
                 }
@@ -21,8 +21,8 @@ public class FileWatcherConfig {
     private FileProps fileProps;
 
     /**
-     * This is an oversimplified version where we only check new files being added with minimal robustness checks
-     * In reality would need checks for different modify/delete actions as well as ensuring no concurrency issues
+     * Watches for files being created in, or written to, the input directory. {@link FileWatcherService} waits for each
+     * file to stop changing before loading it.
      */
     @Bean
     public WatchService watchService() {
@@ -37,7 +37,7 @@ public class FileWatcherConfig {
                 throw new RuntimeException("This is not a directory to be monitored: " + path);
             }
 
-            path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
             LOGGER.info("Starting listening for files added to " + inputDir);
         } catch (IOException e) {
             LOGGER.error("Could not begin the file watcher");
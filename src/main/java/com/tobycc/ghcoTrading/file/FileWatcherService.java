@@ -1,8 +1,9 @@
 package com.tobycc.ghcoTrading.file;
 
-import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.FileIngestionStatus;
 import com.tobycc.ghcoTrading.props.FileProps;
 import com.tobycc.ghcoTrading.service.TradeLoadingService;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Profile;
@@ -11,38 +12,252 @@ import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.util.Map;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+/**
+ * Loads files dropped into the input directory while the application is running.
+ *
+ * A watcher thread collects create/modify events, coalescing any burst of events for the same file, and holds each
+ * file back until its size and modified time have not changed for "file.stableMillis", so half written files are never
+ * read. Files with a temporary name (".part" or ".tmp") are ignored, so writers can instead write under one and rename
+ * the file into place. Complete files are then loaded in turn on a separate ingest thread, so a slow load never holds
+ * up watching, and the Spring context thread is never blocked.
+ *
+ * In "file.tailMode" a file is also read while it is still being written: every change queues a read of the complete
+ * rows appended since the last read, and once the file settles any last row without a line ending is read too.
+ */
 @Service
 @Profile("!(test)")
 public class FileWatcherService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileWatcherService.class);
 
+    public static final String PART_FILE_SUFFIX = ".part";
+    private static final List<String> TEMPORARY_SUFFIXES = List.of(PART_FILE_SUFFIX, ".tmp");
+
     private final TradeLoadingService tradeService;
+    private final TradeFileOffsets tradeFileOffsets;
     private final FileProps fileProps;
     private final WatchService watchService;
+    private final Path inputDirectory;
+
+    private final ExecutorService watcher = Executors.newSingleThreadExecutor(named("file-watcher"));
+    private final ExecutorService ingester = Executors.newSingleThreadExecutor(named("file-ingest"));
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    //Only used by the watcher thread: files still being written, and the version of each file last queued
+    private final Map<Path, PendingFile> pendingFiles = new HashMap<>();
+    private final Map<Path, FileVersion> queuedVersions = new HashMap<>();
 
-    public FileWatcherService(TradeLoadingService tradeService, FileProps fileProps, WatchService watchService) {
+    //Files waiting to be loaded, with when each was first seen
+    private final Map<Path, QueuedFile> queuedFiles = new ConcurrentHashMap<>();
+    private volatile int pendingFileCount;
+    private volatile long lastIngestLagMillis;
+    private final AtomicLong filesIngested = new AtomicLong();
+
+    public FileWatcherService(TradeLoadingService tradeService, TradeFileOffsets tradeFileOffsets, FileProps fileProps,
+                              WatchService watchService) {
         this.tradeService = tradeService;
+        this.tradeFileOffsets = tradeFileOffsets;
         this.fileProps = fileProps;
         this.watchService = watchService;
+        this.inputDirectory = Path.of(fileProps.getBaseDirectory(), fileProps.getInputDirectory());
     }
 
+    /**
+     * Starts watching once the context is up, by which point the files present on startup have been loaded
+     */
     @EventListener(ContextRefreshedEvent.class)
-    public void watcher() throws InterruptedException, IOException {
-        WatchKey key;
-        while ((key = watchService.take()) != null) {
-            for (WatchEvent<?> event : key.pollEvents()) {
-                String fullPath = fileProps.getBaseDirectory() + "/" + fileProps.getInputDirectory() + "/" + event.context();
-                LOGGER.info("File added: " + fullPath);
-                tradeService.loadNewTradesFromFile(fullPath);
+    public void startWatching() {
+        if(!started.compareAndSet(false, true)) {
+            return;
+        }
+        //Files read to the end on startup are only loaded again if they change. Any other file, e.g. one dropped after
+        //the startup load listed the directory, is loaded once complete, as if it had just been dropped.
+        Map<String, Long> offsets = tradeFileOffsets.getOffsets();
+        for(Path path: listInputDirectory()) {
+            Optional<FileVersion> version = version(path);
+            Long offset = offsets.get(TradeFileOffsets.fileKey(path.toString()));
+            if(version.isPresent() && offset != null && offset == version.get().size()) {
+                queuedVersions.put(path, version.get());
+            } else {
+                track(path);
+            }
+        }
+        watcher.execute(this::watch);
+    }
+
+    @PreDestroy
+    public void stopWatching() {
+        watcher.shutdownNow();
+        ingester.shutdownNow();
+    }
+
+    public FileIngestionStatus getStatus() {
+        long now = System.nanoTime();
+        long oldestQueuedLagMillis = queuedFiles.values().stream()
+                .mapToLong(queued -> TimeUnit.NANOSECONDS.toMillis(now - queued.firstSeen()))
+                .max().orElse(0);
+        return new FileIngestionStatus(pendingFileCount, queuedFiles.size(), oldestQueuedLagMillis, lastIngestLagMillis,
+                filesIngested.get());
+    }
+
+    private void watch() {
+        LOGGER.info("Watching " + inputDirectory + " for new trade files");
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.poll(fileProps.getWatchPollMillis(), TimeUnit.MILLISECONDS);
+                if(key != null) {
+                    for(WatchEvent<?> event: key.pollEvents()) {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            //Events were lost, so check every file in the directory
+                            LOGGER.warn("File watcher overflowed, rescanning " + inputDirectory);
+                            listInputDirectory().forEach(this::track);
+                        } else {
+                            track(inputDirectory.resolve((Path) event.context()));
+                        }
+                    }
+                    if(!key.reset()) {
+                        LOGGER.error("Input directory " + inputDirectory + " can no longer be watched");
+                        return;
+                    }
+                }
+                queueStableFiles();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("Stopped watching " + inputDirectory);
+    }
+
+    private void track(Path path) {
+        String fileName = path.getFileName().toString();
+        if(TEMPORARY_SUFFIXES.stream().anyMatch(fileName::endsWith)) {
+            return;
+        }
+        pendingFiles.computeIfAbsent(path, p -> new PendingFile(System.nanoTime()));
+        pendingFileCount = pendingFiles.size();
+    }
+
+    /**
+     * Queues each pending file that has gone unchanged for long enough, unless that version of it is already queued
+     * or loaded. In tail mode, files that have changed since the last poll are queued to have their new rows read.
+     */
+    private void queueStableFiles() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Path, PendingFile> entry = iterator.next();
+            Path path = entry.getKey();
+            PendingFile pending = entry.getValue();
+            Optional<FileVersion> version = version(path);
+            if(version.isEmpty()) {
+                //Deleted or renamed away before it was complete
+                iterator.remove();
+                continue;
+            }
+
+            if(!version.get().equals(pending.version)) {
+                pending.version = version.get();
+                pending.unchangedSince = now;
+                if(fileProps.isTailMode()) {
+                    queue(path, pending.firstSeen, false);
+                }
+            } else if(TimeUnit.NANOSECONDS.toMillis(now - pending.unchangedSince) >= fileProps.getStableMillis()) {
+                iterator.remove();
+                if(!version.get().equals(queuedVersions.put(path, version.get()))) {
+                    queue(path, pending.firstSeen, true);
+                }
             }
-            key.reset();
         }
+        pendingFileCount = pendingFiles.size();
     }
 
-}
\ No newline at end of file
+    /**
+     * Queues a read of the file unless one is already queued, which then reads the whole file if either asked to
+     */
+    private void queue(Path path, long firstSeen, boolean complete) {
+        boolean[] added = new boolean[1];
+        queuedFiles.compute(path, (p, queued) -> {
+            added[0] = queued == null;
+            return queued == null ? new QueuedFile(firstSeen, complete) : new QueuedFile(queued.firstSeen(), queued.complete() || complete);
+        });
+        if(added[0]) {
+            ingester.execute(() -> ingest(path));
+        }
+    }
+
+    private void ingest(Path path) {
+        QueuedFile queued = queuedFiles.remove(path);
+        try {
+            if(queued.complete()) {
+                LOGGER.info("File added: " + path);
+                tradeService.loadNewTradesFromFile(path.toString());
+                filesIngested.incrementAndGet();
+            } else {
+                tradeService.loadAppendedTradesFromFile(path.toString());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to load file " + path + ": " + e.getMessage());
+        }
+        lastIngestLagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued.firstSeen());
+        LOGGER.info("Ingested " + path + " " + lastIngestLagMillis + " ms after it was first seen, " + queuedFiles.size() +
+                " files queued and " + pendingFileCount + " still being written");
+    }
+
+    private List<Path> listInputDirectory() {
+        try (Stream<Path> paths = Files.list(inputDirectory)) {
+            return paths.filter(Files::isRegularFile).toList();
+        } catch (IOException e) {
+            LOGGER.error("Could not list input directory " + inputDirectory + ": " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private static Optional<FileVersion> version(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return Optional.of(new FileVersion(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static ThreadFactory named(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param complete: whether the file has settled, so a last row without a line ending is read too
+     */
+    private record QueuedFile(
+            long firstSeen,
+            boolean complete
+    ) { }
+
+    private record FileVersion(
+            long size,
+            long lastModifiedMillis
+    ) { }
+
+    private static final class PendingFile {
+
+        private final long firstSeen;
+        private FileVersion version;
+        private long unchangedSince;
+
+        private PendingFile(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package com.tobycc.ghcoTrading.file;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Hand-written, single pass parser for trade csv files in the fixed 13 column layout of {@link CSVParser#EXPECTED_HEADERS}.
+ *
+ * The file is read through a reusable byte buffer and each row is split and decoded straight from the bytes: prices,
+ * volumes, TradeTimeUTC (yyyy-MM-dd'T'HH:mm:ss.SSSSSS) and ValueDate (yyyyMMdd) are parsed without creating intermediate
+ * Strings, enums are matched on their bytes, and repeating dimension values (BBGCode, Portfolio, Account, Strategy,
+ * User) share one String instance each. The header is validated as the first row of the same pass.
+ *
+ * Fields may be quoted as written by OpenCSV (quotes doubled inside a quoted field). Any row that cannot be parsed
+ * fails the whole file, as the OpenCSV binding did.
+ *
+ * A file can also be read from a byte offset, so a file that is appended to can be followed by only reading what was
+ * added since the last read. A csv can also be read from any stream, with malformed rows rejected one by one rather than
+ * failing the whole csv.
+ *
+ * Not thread safe, use one instance per thread.
+ */
+public class StreamingTradeCsvParser {
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    //Returned instead of an offset when the file does not start with the expected headers
+    public static final long MISSING_HEADERS = -1;
+
+    private static final int COLUMNS = 13;
+    private static final String[] COLUMN_NAMES = CSVParser.EXPECTED_HEADERS.split(",");
+    private static final byte[] EXPECTED_HEADER_BYTES = CSVParser.EXPECTED_HEADERS.getBytes(StandardCharsets.US_ASCII);
+    private static final int DATETIME_LENGTH = "yyyy-MM-ddTHH:mm:ss.SSSSSS".length();
+    private static final int DATE_LENGTH = "yyyyMMdd".length();
+
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final Side[] SIDES = Side.values();
+    private static final Action[] ACTIONS = Action.values();
+    private static final byte[][] CURRENCY_NAMES = enumNames(CURRENCIES);
+    private static final byte[][] SIDE_NAMES = enumNames(SIDES);
+    private static final byte[][] ACTION_NAMES = enumNames(ACTIONS);
+
+    private final int initialBufferSize;
+    private final StringInterner interner = new StringInterner();
+
+    private final int[] fieldStarts = new int[COLUMNS];
+    private final int[] fieldEnds = new int[COLUMNS];
+    private final boolean[] fieldEscaped = new boolean[COLUMNS];
+
+    //Current position while reading a file
+    private byte[] bytes;
+    private long lineNumber;
+
+    public StreamingTradeCsvParser() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    StreamingTradeCsvParser(int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
+    }
+
+    /**
+     * @return line number of the row last read, counting the header as line 1
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Reads all trades in the file
+     * @param file
+     * @return the trades, or empty if the file does not start with the expected headers
+     * @throws TradeCsvFormatException if any row is malformed
+     * @throws IOException if the file cannot be read
+     */
+    public Optional<List<Trade>> readTrades(Path file) throws IOException {
+        List<Trade> trades = new ArrayList<>();
+        return readTrades(file, trades::add) ? Optional.of(trades) : Optional.empty();
+    }
+
+    /**
+     * Reads the file, passing each trade to the consumer as soon as its row is parsed
+     * @param file
+     * @param consumer
+     * @return false, without reading any trades, if the file does not start with the expected headers
+     * @throws TradeCsvFormatException if any row is malformed
+     * @throws IOException if the file cannot be read
+     */
+    public boolean readTrades(Path file, Consumer<Trade> consumer) throws IOException {
+        return readTrades(file, 0, false, consumer) != MISSING_HEADERS;
+    }
+
+    /**
+     * Reads the rows from a byte offset of the file onwards, i.e. the ones appended since an earlier read stopped there.
+     * The headers are only expected at offset 0.
+     * @param file
+     * @param offset: where an earlier read stopped, 0 for the start of the file
+     * @param completeRowsOnly: whether to leave a last row without a line ending for a later read, as it may still
+     *                        be being written
+     * @param consumer
+     * @return the offset just past the last row read, to carry on from next time, or {@link #MISSING_HEADERS} if the
+     * file does not start with the expected headers
+     * @throws TradeCsvFormatException if any row is malformed, with the line number counted from the offset
+     * @throws IOException if the file cannot be read
+     */
+    public long readTrades(Path file, long offset, boolean completeRowsOnly, Consumer<Trade> consumer) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(offset);
+            return read(channel, offset, completeRowsOnly, consumer, null);
+        }
+    }
+
+    /**
+     * Reads a whole csv from a stream, e.g. a request body, passing each trade to the consumer as soon as its row is
+     * parsed. Rows that cannot be parsed are passed to rejected, and reading carries on past them.
+     * @param channel
+     * @param consumer
+     * @param rejected: the reason each malformed row was rejected, with its line number
+     * @return false, without reading any trades, if the csv does not start with the expected headers
+     * @throws IOException if the stream cannot be read
+     */
+    public boolean readTrades(ReadableByteChannel channel, Consumer<Trade> consumer,
+                              Consumer<TradeCsvFormatException> rejected) throws IOException {
+        return read(channel, 0, false, consumer, Objects.requireNonNull(rejected)) != MISSING_HEADERS;
+    }
+
+    /**
+     * @param rejected: null to fail on the first malformed row
+     */
+    private long read(ReadableByteChannel channel, long offset, boolean completeRowsOnly, Consumer<Trade> consumer,
+                      Consumer<TradeCsvFormatException> rejected) throws IOException {
+        bytes = new byte[initialBufferSize];
+        lineNumber = 0;
+        //Offset in the stream of the start of the buffer
+        long bufferOffset = offset;
+        int position = 0;
+        int limit = 0;
+        boolean endOfFile = false;
+        boolean headerRead = offset > 0;
+
+        while(true) {
+            int recordEnd = findRecordEnd(position, limit);
+
+            if(recordEnd < 0 && !endOfFile) {
+                //Record runs past what has been read, so shift it to the front of the buffer and read more
+                limit -= position;
+                System.arraycopy(bytes, position, bytes, 0, limit);
+                bufferOffset += position;
+                position = 0;
+                if(limit == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                int read = channel.read(ByteBuffer.wrap(bytes, limit, bytes.length - limit));
+                if(read < 0) {
+                    endOfFile = true;
+                } else {
+                    limit += read;
+                }
+                continue;
+            }
+
+            //At the end of the file the last record may have no line ending
+            int end = recordEnd < 0 ? limit : recordEnd;
+            if(recordEnd < 0 && (end == position || completeRowsOnly)) {
+                //Nothing left, or only a row still being written, headers included
+                return headerRead || completeRowsOnly ? bufferOffset + position : MISSING_HEADERS;
+            }
+
+            lineNumber++;
+            int contentEnd = end > position && bytes[end - 1] == '\r' ? end - 1 : end;
+            if(!headerRead) {
+                if(!Arrays.equals(bytes, position, contentEnd, EXPECTED_HEADER_BYTES, 0, EXPECTED_HEADER_BYTES.length)) {
+                    return MISSING_HEADERS;
+                }
+                headerRead = true;
+            } else if(contentEnd > position) {
+                try {
+                    consumer.accept(parseRecord(position, contentEnd));
+                } catch (TradeCsvFormatException e) {
+                    if(rejected == null) {
+                        throw e;
+                    }
+                    rejected.accept(e);
+                }
+            }
+
+            if(recordEnd < 0) {
+                return bufferOffset + limit;
+            }
+            position = recordEnd + 1;
+        }
+    }
+
+    /**
+     * @return index of the newline ending the record starting at position, ignoring newlines inside quotes, or -1 if
+     * the record is not complete before limit
+     */
+    private int findRecordEnd(int position, int limit) {
+        boolean inQuotes = false;
+        for(int i = position; i < limit; i++) {
+            byte b = bytes[i];
+            if(b == '"') {
+                inQuotes = !inQuotes;
+            } else if(b == '\n' && !inQuotes) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Trade parseRecord(int start, int end) throws TradeCsvFormatException {
+        splitFields(start, end);
+        return new Trade(
+                requiredString(0, false),
+                requiredString(1, true),
+                matchEnum(2, CURRENCIES, CURRENCY_NAMES),
+                matchEnum(3, SIDES, SIDE_NAMES),
+                parseDecimal(4),
+                parseInt(5),
+                requiredString(6, true),
+                matchEnum(7, ACTIONS, ACTION_NAMES),
+                requiredString(8, true),
+                requiredString(9, true),
+                requiredString(10, true),
+                parseDateTime(11),
+                parseDate(12)
+        );
+    }
+
+    private void splitFields(int start, int end) throws TradeCsvFormatException {
+        int field = 0;
+        int i = start;
+        while(true) {
+            if(field == COLUMNS) {
+                throw error("More than " + COLUMNS + " columns");
+            }
+
+            if(i < end && bytes[i] == '"') {
+                boolean escaped = false;
+                int fieldStart = ++i;
+                while(true) {
+                    if(i >= end) {
+                        throw error("Unterminated quoted field in column " + COLUMN_NAMES[field]);
+                    }
+                    if(bytes[i] == '"') {
+                        if(i + 1 < end && bytes[i + 1] == '"') {
+                            escaped = true;
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                fieldStarts[field] = fieldStart;
+                fieldEnds[field] = i++;
+                fieldEscaped[field] = escaped;
+                if(i < end && bytes[i] != ',') {
+                    throw error("Unexpected character after quoted field in column " + COLUMN_NAMES[field]);
+                }
+            } else {
+                fieldStarts[field] = i;
+                while(i < end && bytes[i] != ',') {
+                    i++;
+                }
+                fieldEnds[field] = i;
+                fieldEscaped[field] = false;
+            }
+            field++;
+
+            if(i >= end) {
+                break;
+            }
+            //Skip the separator, a trailing one leaves an empty last field
+            if(++i == end) {
+                if(field == COLUMNS) {
+                    throw error("More than " + COLUMNS + " columns");
+                }
+                fieldStarts[field] = end;
+                fieldEnds[field] = end;
+                fieldEscaped[field] = false;
+                field++;
+                break;
+            }
+        }
+
+        if(field != COLUMNS) {
+            throw error("Expected " + COLUMNS + " columns but found " + field);
+        }
+    }
+
+    private String requiredString(int field, boolean intern) throws TradeCsvFormatException {
+        int start = requireNonEmpty(field);
+        int end = fieldEnds[field];
+        if(fieldEscaped[field]) {
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8).replace("\"\"", "\"");
+        }
+        return intern ? interner.intern(bytes, start, end) : new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private <E extends Enum<E>> E matchEnum(int field, E[] values, byte[][] names) throws TradeCsvFormatException {
+        int start = requireNonEmpty(field);
+        int end = fieldEnds[field];
+        for(int i = 0; i < names.length; i++) {
+            if(Arrays.equals(bytes, start, end, names[i], 0, names[i].length)) {
+                return values[i];
+            }
+        }
+        throw error("Unknown value '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+    }
+
+    /**
+     * Decimals of up to 18 digits are built straight from an unscaled long, giving the same value and scale as
+     * new BigDecimal(String). Anything longer or more unusual (e.g. exponents) is handed to BigDecimal itself.
+     */
+    private BigDecimal parseDecimal(int field) throws TradeCsvFormatException {
+        int i = requireNonEmpty(field);
+        int end = fieldEnds[field];
+        boolean negative = bytes[i] == '-';
+        if(negative || bytes[i] == '+') {
+            i++;
+        }
+
+        long unscaled = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean decimalPoint = false;
+        for(; i < end; i++) {
+            byte b = bytes[i];
+            if(b >= '0' && b <= '9') {
+                if(++digits > 18) {
+                    return parseDecimalSlow(field);
+                }
+                unscaled = unscaled * 10 + (b - '0');
+                if(decimalPoint) {
+                    scale++;
+                }
+            } else if(b == '.' && !decimalPoint) {
+                decimalPoint = true;
+            } else {
+                return parseDecimalSlow(field);
+            }
+        }
+
+        if(digits == 0) {
+            throw error("Invalid number '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+    }
+
+    private BigDecimal parseDecimalSlow(int field) throws TradeCsvFormatException {
+        try {
+            return new BigDecimal(text(field));
+        } catch(NumberFormatException e) {
+            throw error("Invalid number '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+    }
+
+    private Integer parseInt(int field) throws TradeCsvFormatException {
+        int i = requireNonEmpty(field);
+        int end = fieldEnds[field];
+        boolean negative = bytes[i] == '-';
+        if(negative || bytes[i] == '+') {
+            i++;
+        }
+        if(i == end) {
+            throw error("Invalid integer '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+
+        long value = 0;
+        for(; i < end; i++) {
+            byte b = bytes[i];
+            if(b < '0' || b > '9') {
+                throw error("Invalid integer '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+            }
+            value = value * 10 + (b - '0');
+            if(value > (long) Integer.MAX_VALUE + 1) {
+                throw error("Integer out of range '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+            }
+        }
+        value = negative ? -value : value;
+        if(value > Integer.MAX_VALUE) {
+            throw error("Integer out of range '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+        return (int) value;
+    }
+
+    /**
+     * yyyy-MM-dd'T'HH:mm:ss.SSSSSS
+     */
+    private LocalDateTime parseDateTime(int field) throws TradeCsvFormatException {
+        int s = requireNonEmpty(field);
+        if(fieldEnds[field] - s != DATETIME_LENGTH || bytes[s + 4] != '-' || bytes[s + 7] != '-' || bytes[s + 10] != 'T'
+                || bytes[s + 13] != ':' || bytes[s + 16] != ':' || bytes[s + 19] != '.') {
+            throw error("Invalid date time '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+        try {
+            return LocalDateTime.of(
+                    digits(field, s, 4), digits(field, s + 5, 2), digits(field, s + 8, 2),
+                    digits(field, s + 11, 2), digits(field, s + 14, 2), digits(field, s + 17, 2),
+                    digits(field, s + 20, 6) * 1000);
+        } catch(DateTimeException e) {
+            throw error("Invalid date time '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+    }
+
+    /**
+     * yyyyMMdd
+     */
+    private LocalDate parseDate(int field) throws TradeCsvFormatException {
+        int s = requireNonEmpty(field);
+        if(fieldEnds[field] - s != DATE_LENGTH) {
+            throw error("Invalid date '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+        try {
+            return LocalDate.of(digits(field, s, 4), digits(field, s + 4, 2), digits(field, s + 6, 2));
+        } catch(DateTimeException e) {
+            throw error("Invalid date '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+        }
+    }
+
+    private int digits(int field, int start, int count) throws TradeCsvFormatException {
+        int value = 0;
+        for(int i = start; i < start + count; i++) {
+            byte b = bytes[i];
+            if(b < '0' || b > '9') {
+                throw error("Invalid digit in '" + text(field) + "' in column " + COLUMN_NAMES[field]);
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private int requireNonEmpty(int field) throws TradeCsvFormatException {
+        if(fieldStarts[field] == fieldEnds[field]) {
+            throw error("Field " + COLUMN_NAMES[field] + " must not be empty");
+        }
+        return fieldStarts[field];
+    }
+
+    private String text(int field) {
+        return new String(bytes, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.UTF_8);
+    }
+
+    private TradeCsvFormatException error(String message) {
+        return new TradeCsvFormatException(lineNumber, message);
+    }
+
+    private static byte[][] enumNames(Enum<?>[] values) {
+        byte[][] names = new byte[values.length][];
+        for(int i = 0; i < values.length; i++) {
+            names[i] = values[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+
+    /**
+     * Fixed size cache from raw bytes to String, so that dimension values repeated across millions of rows are only
+     * decoded once and share a single instance. Collisions simply replace the cached entry.
+     */
+    private static final class StringInterner {
+
+        private static final int SIZE = 4096;
+
+        private final byte[][] keys = new byte[SIZE][];
+        private final String[] values = new String[SIZE];
+
+        private String intern(byte[] bytes, int start, int end) {
+            int hash = 1;
+            for(int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+            byte[] key = keys[slot];
+            if(key != null && Arrays.equals(key, 0, key.length, bytes, start, end)) {
+                return values[slot];
+            }
+
+            String value = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            keys[slot] = Arrays.copyOfRange(bytes, start, end);
+            values[slot] = value;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.tobycc.ghcoTrading.file;
+
+import com.tobycc.ghcoTrading.model.IngestedFile;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeCheckpoint;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.FileProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and writes the binary checkpoint of the cleaned trades at "file.checkpointFile" in the base directory, so a
+ * restart can load it instead of parsing every input file again.
+ *
+ * The checkpoint holds the manifest of input files read, a table of the distinct BBGCode, Portfolio, Account, Strategy
+ * and User values, and then every trade as fixed width fields with its dimensions as indexes into that table. It ends
+ * with a CRC32C of everything before it, and a checkpoint that fails it, or is of another format version, is ignored.
+ * Checkpoints are written under a temporary name and renamed into place, so a crash never leaves half of one.
+ */
+@Component
+public class TradeCheckpointStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TradeCheckpointStore.class);
+
+    private static final int MAGIC = 0x47484350;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    //Bytes of a trade's fixed width fields, besides its TradeID and the bytes of its unscaled price
+    private static final int TRADE_BYTES = 4 + 1 + 1 + 2 + 4 + 4 + 4 + 1 + 4 + 4 + 4 + 8 + 4 + 4;
+    //Of those, the bytes up to and including the unscaled price's length
+    private static final int PRICE_END = 4 + 1 + 1 + 2;
+    //Bytes checksummed from each end of an input file, so checking a large file that has only grown stays cheap
+    private static final int CHECKSUM_SAMPLE_BYTES = 64 * 1024;
+
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final Side[] SIDES = Side.values();
+    private static final Action[] ACTIONS = Action.values();
+
+    private final Path checkpointFile;
+    //Version of the loaded trades the checkpoint on disk holds, -1 if there is none
+    private volatile long checkpointedVersion = -1;
+
+    public TradeCheckpointStore(FileProps fileProps) {
+        this.checkpointFile = Path.of(fileProps.getBaseDirectory(), fileProps.getCheckpointFile());
+    }
+
+    public long getCheckpointedVersion() {
+        return checkpointedVersion;
+    }
+
+    /**
+     * Records that the checkpoint on disk already holds this version of the loaded trades, e.g. when it has just been
+     * restored with nothing loaded on top of it
+     */
+    public void setCheckpointedVersion(long checkpointedVersion) {
+        this.checkpointedVersion = checkpointedVersion;
+    }
+
+    public void write(long version, List<IngestedFile> files, Collection<Trade> trades) throws IOException {
+        long start = System.nanoTime();
+        Path partFile = Path.of(checkpointFile + FileWatcherService.PART_FILE_SUFFIX);
+        try (CheckpointWriter out = new CheckpointWriter(FileChannel.open(partFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            out.buffer(Integer.BYTES * 2 + Long.BYTES).putInt(MAGIC).putInt(FORMAT_VERSION).putLong(version);
+
+            out.buffer(Integer.BYTES).putInt(files.size());
+            for(IngestedFile file: files) {
+                out.putString(file.file());
+                out.buffer(Long.BYTES * 4).putLong(file.size()).putLong(file.lastModifiedMillis()).putLong(file.offset())
+                        .putLong(file.checksum());
+            }
+
+            Map<String, Integer> dimensions = new HashMap<>();
+            List<String> dimensionValues = new ArrayList<>();
+            for(Trade t: trades) {
+                for(String value: List.of(t.getBbgCode(), t.getPortfolio(), t.getAccount(), t.getStrategy(), t.getUser())) {
+                    dimensions.computeIfAbsent(value, v -> {
+                        dimensionValues.add(v);
+                        return dimensionValues.size() - 1;
+                    });
+                }
+            }
+            out.buffer(Integer.BYTES).putInt(dimensionValues.size());
+            for(String value: dimensionValues) {
+                out.putString(value);
+            }
+
+            out.buffer(Integer.BYTES).putInt(trades.size());
+            for(Trade t: trades) {
+                out.putString(t.getTradeId());
+                byte[] unscaledPrice = t.getPrice().unscaledValue().toByteArray();
+                out.buffer(TRADE_BYTES + unscaledPrice.length)
+                        .putInt(dimensions.get(t.getBbgCode()))
+                        .put((byte) t.getCcy().ordinal())
+                        .put((byte) t.getSide().ordinal())
+                        .putShort((short) unscaledPrice.length)
+                        .put(unscaledPrice)
+                        .putInt(t.getPrice().scale())
+                        .putInt(t.getVolume())
+                        .putInt(dimensions.get(t.getPortfolio()))
+                        .put((byte) t.getAction().ordinal())
+                        .putInt(dimensions.get(t.getAccount()))
+                        .putInt(dimensions.get(t.getStrategy()))
+                        .putInt(dimensions.get(t.getUser()))
+                        .putLong(t.getDateTime().toEpochSecond(ZoneOffset.UTC))
+                        .putInt(t.getDateTime().getNano())
+                        .putInt((int) t.getDate().toEpochDay());
+            }
+            out.writeChecksum();
+        }
+        Files.move(partFile, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        checkpointedVersion = version;
+        LOGGER.info("Checkpointed " + trades.size() + " trades from " + files.size() + " files at version " + version + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms, " + Files.size(checkpointFile) / 1_000_000 + " MB");
+    }
+
+    /**
+     * @return the checkpoint, or empty if there is none or it cannot be used
+     */
+    public Optional<TradeCheckpoint> read() {
+        if(!Files.exists(checkpointFile)) {
+            return Optional.empty();
+        }
+        long start = System.nanoTime();
+        try (CheckpointReader in = new CheckpointReader(FileChannel.open(checkpointFile, StandardOpenOption.READ))) {
+            ByteBuffer header = in.buffer(Integer.BYTES * 2 + Long.BYTES);
+            if(header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                LOGGER.warn("Ignoring checkpoint " + checkpointFile + " of an unknown format");
+                return Optional.empty();
+            }
+            long version = header.getLong();
+
+            int fileCount = in.buffer(Integer.BYTES).getInt();
+            List<IngestedFile> files = new ArrayList<>(fileCount);
+            for(int i = 0; i < fileCount; i++) {
+                String file = in.getString();
+                ByteBuffer fields = in.buffer(Long.BYTES * 4);
+                files.add(new IngestedFile(file, fields.getLong(), fields.getLong(), fields.getLong(), fields.getLong()));
+            }
+
+            String[] dimensionValues = new String[in.buffer(Integer.BYTES).getInt()];
+            for(int i = 0; i < dimensionValues.length; i++) {
+                dimensionValues[i] = in.getString();
+            }
+
+            int tradeCount = in.buffer(Integer.BYTES).getInt();
+            List<Trade> trades = new ArrayList<>(tradeCount);
+            for(int i = 0; i < tradeCount; i++) {
+                String tradeId = in.getString();
+                ByteBuffer fields = in.buffer(TRADE_BYTES);
+                String bbgCode = dimensionValues[fields.getInt()];
+                Currency currency = CURRENCIES[fields.get()];
+                Side side = SIDES[fields.get()];
+                byte[] unscaledPrice = new byte[fields.getShort()];
+                //The fields after the price are read once the buffer holds the price as well
+                fields = in.buffer(unscaledPrice.length + TRADE_BYTES - PRICE_END).get(unscaledPrice);
+                BigDecimal price = new BigDecimal(new BigInteger(unscaledPrice), fields.getInt());
+                int volume = fields.getInt();
+                String portfolio = dimensionValues[fields.getInt()];
+                Action action = ACTIONS[fields.get()];
+                String account = dimensionValues[fields.getInt()];
+                String strategy = dimensionValues[fields.getInt()];
+                String user = dimensionValues[fields.getInt()];
+                LocalDateTime dateTime = LocalDateTime.ofEpochSecond(fields.getLong(), fields.getInt(), ZoneOffset.UTC);
+                LocalDate valueDate = LocalDate.ofEpochDay(fields.getInt());
+                trades.add(new Trade(tradeId, bbgCode, currency, side, price, volume, portfolio, action, account, strategy,
+                        user, dateTime, valueDate));
+            }
+
+            if(!in.checksumMatches()) {
+                LOGGER.warn("Ignoring checkpoint " + checkpointFile + " as it fails its checksum");
+                return Optional.empty();
+            }
+            LOGGER.info("Read checkpoint of " + trades.size() + " trades from " + files.size() + " files at version "
+                    + version + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return Optional.of(new TradeCheckpoint(version, files, trades));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Ignoring checkpoint " + checkpointFile + " that could not be read: " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Checksum of the first length bytes of a file, sampling up to {@link #CHECKSUM_SAMPLE_BYTES} from each end of them
+     * along with the length itself
+     */
+    public static long checksum(Path file, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, length));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long headLength = Math.min(length, CHECKSUM_SAMPLE_BYTES);
+            update(crc, channel, 0, headLength);
+            long tailStart = Math.max(headLength, length - CHECKSUM_SAMPLE_BYTES);
+            update(crc, channel, tailStart, length - tailStart);
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32C crc, FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File is shorter than " + (position + length) + " bytes");
+            }
+        }
+        crc.update(buffer.flip());
+    }
+
+    /**
+     * Writes through one reused buffer, checksumming each full buffer as it is flushed rather than every field as it
+     * is written
+     */
+    private static final class CheckpointWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32C crc = new CRC32C();
+
+        private CheckpointWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return the buffer, with room for at least the given number of bytes
+         */
+        private ByteBuffer buffer(int bytes) throws IOException {
+            if(buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        private void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if(bytes.length > Short.MAX_VALUE) {
+                throw new IOException("Cannot checkpoint a value of " + bytes.length + " bytes");
+            }
+            buffer(Short.BYTES + bytes.length).putShort((short) bytes.length).put(bytes);
+        }
+
+        private void writeChecksum() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads through one reused buffer, checksumming everything before the trailing checksum as it is read into the
+     * buffer
+     */
+    private static final class CheckpointReader implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+        private final CRC32C crc = new CRC32C();
+        //Bytes left to checksum before the trailing checksum is reached
+        private long unchecked;
+
+        private CheckpointReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.unchecked = channel.size() - Long.BYTES;
+        }
+
+        /**
+         * @return the buffer, with at least the given number of bytes left to read in it
+         */
+        private ByteBuffer buffer(int bytes) throws IOException {
+            if(buffer.remaining() < bytes) {
+                buffer.compact();
+                while(buffer.position() < bytes) {
+                    int start = buffer.position();
+                    if(channel.read(buffer) < 0) {
+                        throw new EOFException("Checkpoint ends part way through");
+                    }
+                    int checked = (int) Math.min(unchecked, buffer.position() - start);
+                    crc.update(buffer.duplicate().position(start).limit(start + checked));
+                    unchecked -= checked;
+                }
+                buffer.flip();
+            }
+            return buffer;
+        }
+
+        private String getString() throws IOException {
+            int length = buffer(Short.BYTES).getShort();
+            ByteBuffer bytes = buffer(length);
+            String value = new String(bytes.array(), bytes.position(), length, StandardCharsets.UTF_8);
+            bytes.position(bytes.position() + length);
+            return value;
+        }
+
+        /**
+         * @return whether everything read matches the trailing checksum, which must be all that is left
+         */
+        private boolean checksumMatches() throws IOException {
+            long expected = buffer(Long.BYTES).getLong();
+            return unchecked == 0 && !buffer.hasRemaining() && channel.position() == channel.size() && crc.getValue() == expected;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.tobycc.ghcoTrading.file;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a row of a trade csv cannot be parsed into a trade
+ */
+public class TradeCsvFormatException extends IOException {
+
+    private final long lineNumber;
+
+    public TradeCsvFormatException(long lineNumber, String message) {
+        super("Line " + lineNumber + ": " + message);
+        this.lineNumber = lineNumber;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+}
@@ -0,0 +1,110 @@
+package com.tobycc.ghcoTrading.file;
+
+import com.tobycc.ghcoTrading.model.IngestedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How far into each input file its trades have been read, so a file that is appended to is only read from where the
+ * last read stopped, and a checkpoint can record which parts of which files its trades came from.
+ *
+ * Along with each offset a checksum of the bytes read is kept, so a file replaced by one of the same size or larger is
+ * noticed and read from the start, as well as one that has become shorter.
+ *
+ * The offsets are only held in memory. The loaded trades do not outlive the application either, so a restart reads
+ * every input file from the start anyway; with "file.checkpoint" the offsets its trades were read to are kept in the
+ * checkpoint's manifest instead.
+ */
+@Component
+public class TradeFileOffsets {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TradeFileOffsets.class);
+
+    private final Map<String, FileRead> reads = new ConcurrentHashMap<>();
+
+    /**
+     * @return the offset the next read of the file should start from: 0 if it has not been read, or if it no longer
+     * starts with the bytes that were read from it, as it has then been replaced
+     */
+    public long get(String file) {
+        FileRead read = reads.get(fileKey(file));
+        if(read == null || read.offset() == 0) {
+            return 0;
+        }
+        try {
+            if(Files.size(Path.of(file)) < read.offset()) {
+                LOGGER.warn("File " + file + " is shorter than the " + read.offset() + " bytes already read, so has been replaced. Reading it from the start");
+                return 0;
+            }
+            if(TradeCheckpointStore.checksum(Path.of(file), read.offset()) != read.checksum()) {
+                LOGGER.warn("File " + file + " no longer starts with the " + read.offset() + " bytes already read, so has been replaced. Reading it from the start");
+                return 0;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not check " + file + " against the bytes already read, reading it from the start: " + e.getMessage());
+            return 0;
+        }
+        return read.offset();
+    }
+
+    /**
+     * Records that the file has been read up to the offset
+     */
+    public void put(String file, long offset) {
+        try {
+            reads.put(fileKey(file), new FileRead(offset, TradeCheckpointStore.checksum(Path.of(file), offset)));
+        } catch (IOException e) {
+            //Without a checksum the next read starts from the beginning, which only costs re-reading the file
+            LOGGER.warn("Could not checksum the " + offset + " bytes read from " + file + ": " + e.getMessage());
+            reads.remove(fileKey(file));
+        }
+    }
+
+    /**
+     * Records the offset a checkpoint's trades were read to, with the checksum taken then, so a file changed since the
+     * checkpoint is read from the start
+     */
+    public void put(IngestedFile ingested) {
+        reads.put(ingested.file(), new FileRead(ingested.offset(), ingested.checksum()));
+    }
+
+    /**
+     * As put for each file, e.g. after reading all input files on startup. Files not given keep their offsets.
+     */
+    public void putAll(Map<String, Long> fileOffsets) {
+        fileOffsets.forEach(this::put);
+    }
+
+    /**
+     * @return the offset of each file read, keyed by {@link #fileKey}
+     */
+    public Map<String, Long> getOffsets() {
+        Map<String, Long> offsets = new HashMap<>();
+        reads.forEach((file, read) -> offsets.put(file, read.offset()));
+        return offsets;
+    }
+
+    /**
+     * @return the file as it is keyed in the offsets, and in the manifest of a checkpoint
+     */
+    public static String fileKey(String file) {
+        return Path.of(file).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * @param offset: bytes of the file read
+     * @param checksum: TradeCheckpointStore.checksum of those bytes
+     */
+    private record FileRead(
+            long offset,
+            long checksum
+    ) { }
+}
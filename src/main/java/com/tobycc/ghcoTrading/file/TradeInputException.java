@@ -0,0 +1,12 @@
+package com.tobycc.ghcoTrading.file;
+
+/**
+ * Thrown when trades sent in cannot be taken as they are, e.g. a trade the journal cannot hold or a bulk csv without the
+ * expected headers, so the request is rejected as a bad request
+ */
+public class TradeInputException extends IllegalArgumentException {
+
+    public TradeInputException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,181 @@
+package com.tobycc.ghcoTrading.file;
+
+import com.tobycc.ghcoTrading.config.DateUtils;
+import com.tobycc.ghcoTrading.model.IngestedFile;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.props.FileProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of the trades posted to the API, at "file.journalFile" in the base directory (outside the
+ * watched input directory), so they are durable without a new csv being written for every post.
+ *
+ * The journal is a trade csv in the input layout, so it is replayed by {@link StreamingTradeCsvParser}. Appending and
+ * syncing are separate calls so that any number of appends can share one sync. A last row left part written by a crash
+ * is cut off when the journal is next opened, as it was never synced, so never acknowledged.
+ *
+ * The journal is never truncated. Besides a checkpoint, it is the only record of the trades posted to the API, and a
+ * checkpoint is set aside whenever an input file in it has changed, so dropping what a checkpoint holds could lose
+ * trades. Instead a checkpoint records how far into the journal its trades go, and a restart from it only replays the
+ * rows after that.
+ */
+@Component
+public class TradeJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TradeJournal.class);
+
+    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern(DateUtils.DATETIME_FORMAT);
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(DateUtils.DATE_FORMAT);
+
+    private final Path journalFile;
+    private FileChannel channel;
+
+    public TradeJournal(FileProps fileProps) {
+        this.journalFile = journalFile(fileProps);
+    }
+
+    /**
+     * @return the journal file, as it is keyed in the manifest of a checkpoint by {@link IngestedFile#file()}
+     */
+    public static Path journalFile(FileProps fileProps) {
+        return Path.of(TradeFileOffsets.fileKey(Path.of(fileProps.getBaseDirectory(), fileProps.getJournalFile()).toString()));
+    }
+
+    /**
+     * Opens the journal for appending, creating it if there is none
+     * @param fromOffset: where the trades already loaded were journaled up to, e.g. by a checkpoint, 0 for none
+     * @return the trades in the journal after the offset, in the order they were appended
+     * @throws TradeCsvFormatException if a row of the journal cannot be parsed
+     * @throws IOException if the journal cannot be read, or is not a trade csv
+     */
+    public synchronized List<Trade> open(long fromOffset) throws IOException {
+        List<Trade> trades = new ArrayList<>();
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = new StreamingTradeCsvParser().readTrades(journalFile, fromOffset, true, trades::add);
+            if(end == StreamingTradeCsvParser.MISSING_HEADERS) {
+                throw new IOException("Journal " + journalFile + " does not start with the expected headers");
+            }
+            if(end < channel.size()) {
+                LOGGER.warn("Cutting off the last " + (channel.size() - end) + " bytes of journal " + journalFile
+                        + ", left part written when it was last closed");
+                channel.truncate(end);
+            }
+            channel.position(end);
+            if(end == 0) {
+                write((CSVParser.EXPECTED_HEADERS + "\n").getBytes(StandardCharsets.UTF_8));
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        LOGGER.info("Opened journal " + journalFile + " holding " + trades.size() + " trades after offset " + fromOffset);
+        return trades;
+    }
+
+    /**
+     * @return bytes of the journal written, the offset the next append starts at
+     */
+    public synchronized long position() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * Appends the trades, which are only durable once {@link #sync} has returned. If the append fails, nothing of it is
+     * left in the journal.
+     */
+    public synchronized void append(List<Trade> trades) throws IOException {
+        StringBuilder rows = new StringBuilder(trades.size() * 160);
+        trades.forEach(t -> appendRow(rows, t));
+        long start = channel.position();
+        try {
+            write(rows.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        if(channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Checks the trade can be written to the journal and read back unchanged, as the input csv layout only holds
+     * trade times to the microsecond and years of up to four digits
+     * @throws TradeInputException if it cannot
+     */
+    public static void checkJournalable(Trade trade) {
+        if(trade.getDateTime().getNano() % 1_000 != 0) {
+            throw new TradeInputException("Trade " + trade.getTradeId() + " time " + trade.getDateTime()
+                    + " is not a whole number of microseconds");
+        }
+        if(outOfRange(trade.getDateTime().getYear()) || outOfRange(trade.getDate().getYear())) {
+            throw new TradeInputException("Trade " + trade.getTradeId() + " dates must be in years 1 to 9999");
+        }
+    }
+
+    private static boolean outOfRange(int year) {
+        return year < 1 || year > 9999;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void appendRow(StringBuilder rows, Trade t) {
+        appendField(rows, t.getTradeId()).append(',');
+        appendField(rows, t.getBbgCode()).append(',');
+        rows.append(t.getCcy().name()).append(',')
+                .append(t.getSide().name()).append(',')
+                .append(t.getPrice().toPlainString()).append(',')
+                .append(t.getVolume()).append(',');
+        appendField(rows, t.getPortfolio()).append(',');
+        rows.append(t.getAction().name()).append(',');
+        appendField(rows, t.getAccount()).append(',');
+        appendField(rows, t.getStrategy()).append(',');
+        appendField(rows, t.getUser()).append(',');
+        DATETIME_FORMATTER.formatTo(t.getDateTime(), rows);
+        rows.append(',');
+        DATE_FORMATTER.formatTo(t.getDate(), rows);
+        rows.append('\n');
+    }
+
+    /**
+     * Quotes the value if it holds a separator, quote or line ending, doubling any quotes, as OpenCSV would
+     */
+    private static StringBuilder appendField(StringBuilder rows, String value) {
+        if(value.chars().noneMatch(c -> c == ',' || c == '"' || c == '\n' || c == '\r')) {
+            return rows.append(value);
+        }
+        return rows.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
@@ -0,0 +1,29 @@
+package com.tobycc.ghcoTrading.model;
+
+import com.tobycc.ghcoTrading.model.enums.OutputJobStatus;
+
+import java.time.LocalDateTime;
+
+/**
+ * State of a background job writing a completed aggregation to the console and/or csv sinks
+ * @param jobId
+ * @param status
+ * @param groups: number of aggregation groups being output
+ * @param submitted: when the job was queued
+ * @param finished: when the job reached its final status, null until then
+ * @param error: why the job failed or was dropped, null otherwise
+ */
+public record AggregationOutputJob(
+        String jobId,
+        OutputJobStatus status,
+        int groups,
+        LocalDateTime submitted,
+        LocalDateTime finished,
+        String error
+) {
+
+    public AggregationOutputJob withStatus(OutputJobStatus status, String error) {
+        return new AggregationOutputJob(jobId, status, groups, submitted,
+                status == OutputJobStatus.QUEUED || status == OutputJobStatus.RUNNING ? null : LocalDateTime.now(), error);
+    }
+}
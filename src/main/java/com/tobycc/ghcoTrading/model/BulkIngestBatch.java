@@ -0,0 +1,18 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+
+/**
+ * One batch of the records of a bulk ingest, loaded together
+ * @param batch: position of the batch in the request, counting from 1
+ * @param accepted: trades loaded
+ * @param rejected: records that could not be parsed or failed validation
+ * @param rejectedRows: each rejected record, in order, until "file.bulkMaxRejectedRows" of the request have been listed
+ */
+public record BulkIngestBatch(
+        int batch,
+        int accepted,
+        int rejected,
+        List<RejectedRow> rejectedRows
+) {
+}
@@ -0,0 +1,19 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+
+/**
+ * Outcome of a bulk ingest
+ * @param accepted: trades loaded across all batches
+ * @param rejected: records rejected across all batches, including those past the ones listed in the batches
+ * @param journaled: whether the accepted trades were journaled, so outlive a restart. Without "file.journal" they are
+ *                 only held in memory, and lost on restart.
+ * @param batches: each batch, in order
+ */
+public record BulkIngestResult(
+        long accepted,
+        long rejected,
+        boolean journaled,
+        List<BulkIngestBatch> batches
+) {
+}
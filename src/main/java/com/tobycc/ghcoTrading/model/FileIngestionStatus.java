@@ -0,0 +1,18 @@
+package com.tobycc.ghcoTrading.model;
+
+/**
+ * Progress of files dropped into the input directory through the ingestion pipeline
+ * @param pendingFiles: files seen but still being written, i.e. not yet unchanged for "file.stableMillis"
+ * @param queuedFiles: complete files waiting to be loaded
+ * @param oldestQueuedLagMillis: how long ago the oldest queued file was first seen, 0 if none are queued
+ * @param lastIngestLagMillis: from first seeing the last loaded file to it being loaded
+ * @param filesIngested: files loaded since startup
+ */
+public record FileIngestionStatus(
+        int pendingFiles,
+        int queuedFiles,
+        long oldestQueuedLagMillis,
+        long lastIngestLagMillis,
+        long filesIngested
+) {
+}
@@ -0,0 +1,117 @@
+package com.tobycc.ghcoTrading.model;
+
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.model.enums.FilterOperator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A boolean filter over trades, e.g. {"op": "AND", "terms": [{"op": "IN", "field": "PORTFOLIO", "values": ["portfolio1",
+ * "portfolio2"]}, {"op": "NOT", "terms": [{"op": "EQ", "field": "USER", "values": ["User1"]}]}, {"op": "RANGE", "field":
+ * "PRICE", "from": "100"}]}. Compiled once per request before it is evaluated, see FilterExpressionCompiler.
+ * @param op: the operator
+ * @param field: the field tested, for EQ, IN and RANGE
+ * @param values: the single value for EQ, or the values for IN
+ * @param from: the inclusive lower bound for RANGE
+ * @param to: the exclusive upper bound for RANGE
+ * @param terms: the terms of AND and OR, or the single term for NOT
+ */
+public record FilterExpression(
+        FilterOperator op,
+        Optional<FilterField> field,
+        Optional<List<String>> values,
+        Optional<String> from,
+        Optional<String> to,
+        Optional<List<FilterExpression>> terms
+) {
+
+    public FilterExpression {
+        if(op == null) {
+            throw new IllegalArgumentException("Filter expression has no op");
+        }
+        switch (op) {
+            case AND, OR -> {
+                if(terms.isEmpty() || terms.get().isEmpty()) {
+                    throw new IllegalArgumentException(op + " filter needs at least one term");
+                }
+            }
+            case NOT -> {
+                if(terms.isEmpty() || terms.get().size() != 1) {
+                    throw new IllegalArgumentException("NOT filter needs exactly one term");
+                }
+            }
+            case EQ, IN -> {
+                if(field.isEmpty() || values.isEmpty() || values.get().isEmpty() || (op == FilterOperator.EQ && values.get().size() != 1)) {
+                    throw new IllegalArgumentException(op + " filter needs a field and " + (op == FilterOperator.EQ ? "one value" : "values"));
+                }
+                values.get().forEach(value -> {
+                    if(value == null) {
+                        throw new IllegalArgumentException(op + " filter values cannot be null");
+                    }
+                    field.get().parse(value);
+                });
+            }
+            case RANGE -> {
+                if(field.isEmpty() || !field.get().isOrdered() || (from.isEmpty() && to.isEmpty())) {
+                    throw new IllegalArgumentException("RANGE filter needs one of PRICE, VOLUME or DATE_TIME and a from or to");
+                }
+                from.ifPresent(field.get()::parse);
+                to.ifPresent(field.get()::parse);
+            }
+        }
+        terms.ifPresent(t -> t.forEach(term -> {
+            if(term == null) {
+                throw new IllegalArgumentException(op + " filter terms cannot be null");
+            }
+        }));
+    }
+
+    public static FilterExpression and(FilterExpression... terms) {
+        return new FilterExpression(FilterOperator.AND, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                Optional.of(List.of(terms)));
+    }
+
+    public static FilterExpression or(FilterExpression... terms) {
+        return new FilterExpression(FilterOperator.OR, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                Optional.of(List.of(terms)));
+    }
+
+    public static FilterExpression not(FilterExpression term) {
+        return new FilterExpression(FilterOperator.NOT, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                Optional.of(List.of(term)));
+    }
+
+    public static FilterExpression eq(FilterField field, String value) {
+        return new FilterExpression(FilterOperator.EQ, Optional.of(field), Optional.of(List.of(value)), Optional.empty(),
+                Optional.empty(), Optional.empty());
+    }
+
+    public static FilterExpression in(FilterField field, String... values) {
+        return new FilterExpression(FilterOperator.IN, Optional.of(field), Optional.of(Arrays.asList(values)), Optional.empty(),
+                Optional.empty(), Optional.empty());
+    }
+
+    /**
+     * @param field: PRICE, VOLUME or DATE_TIME
+     * @param from: inclusive, or null if open
+     * @param to: exclusive, or null if open
+     */
+    public static FilterExpression range(FilterField field, String from, String to) {
+        return new FilterExpression(FilterOperator.RANGE, Optional.of(field), Optional.empty(), Optional.ofNullable(from),
+                Optional.ofNullable(to), Optional.empty());
+    }
+
+    @Override
+    public String toString() {
+        return switch (op) {
+            case AND, OR -> terms.get().stream().map(FilterExpression::toString).collect(Collectors.joining(" " + op + " ", "(", ")"));
+            case NOT -> "NOT " + terms.get().get(0);
+            case EQ -> field.get() + "=" + values.get().get(0);
+            case IN -> field.get() + " IN " + values.get();
+            case RANGE -> field.get() + " IN [" + from.orElse("") + ", " + to.orElse("") + ")";
+        };
+    }
+}
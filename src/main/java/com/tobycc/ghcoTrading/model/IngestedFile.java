@@ -0,0 +1,18 @@
+package com.tobycc.ghcoTrading.model;
+
+/**
+ * Manifest entry of an input file whose trades are in a checkpoint
+ * @param file: absolute path of the file
+ * @param size: size of the file when the checkpoint was taken
+ * @param lastModifiedMillis: modified time of the file when the checkpoint was taken
+ * @param offset: bytes of the file whose trades are in the checkpoint
+ * @param checksum: checksum of the first offset bytes, to tell a file that has only been appended to from a replaced one
+ */
+public record IngestedFile(
+        String file,
+        long size,
+        long lastModifiedMillis,
+        long offset,
+        long checksum
+) {
+}
@@ -3,27 +3,142 @@ package com.tobycc.ghcoTrading.model;
 import com.tobycc.ghcoTrading.model.enums.AggregateField;
 import com.tobycc.ghcoTrading.model.enums.Currency;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.CURRENCY;
+
 /**
  * When actioning an aggregation of pnl positions for trades, we can dial it in by specifying some parameters
  * @param aggregationFields: the fields to aggregate on
  * @param convertIntoCurrency: a currency to convert into (if not set, CURRENCY will be added as an aggregation field)
  * @param filters: define trade information that we wish to filter on
+ * @param bucket: a whole number of seconds, as ISO-8601 e.g. "PT1S", "PT1M" or "PT1H", to summarise each series into
+ *              buckets of, rather than returning a position per trade
+ * @param where: a filter expression trades must also pass, for conditions the filters cannot express
+ * @param window: a point in time or window of time to narrow each group's series to
  */
 public record PnLAggregationRequest(
         Optional<TreeSet<AggregateField>> aggregationFields,
         Optional<Currency> convertIntoCurrency,
-        Optional<Set<TradeFilter>> filters
+        Optional<Set<TradeFilter>> filters,
+        Optional<Duration> bucket,
+        Optional<FilterExpression> where,
+        Optional<PnLWindow> window
 ) {
 
+    public PnLAggregationRequest {
+        bucket.ifPresent(b -> {
+            if(b.getSeconds() < 1 || b.getNano() != 0) {
+                throw new IllegalArgumentException("Bucket " + b + " must be a whole number of seconds");
+            }
+        });
+    }
+
+    public PnLAggregationRequest(Optional<TreeSet<AggregateField>> aggregationFields, Optional<Currency> convertIntoCurrency,
+                                 Optional<Set<TradeFilter>> filters) {
+        this(aggregationFields, convertIntoCurrency, filters, Optional.empty());
+    }
+
+    public PnLAggregationRequest(Optional<TreeSet<AggregateField>> aggregationFields, Optional<Currency> convertIntoCurrency,
+                                 Optional<Set<TradeFilter>> filters, Optional<Duration> bucket) {
+        this(aggregationFields, convertIntoCurrency, filters, bucket, Optional.empty());
+    }
+
+    public PnLAggregationRequest(Optional<TreeSet<AggregateField>> aggregationFields, Optional<Currency> convertIntoCurrency,
+                                 Optional<Set<TradeFilter>> filters, Optional<Duration> bucket, Optional<FilterExpression> where) {
+        this(aggregationFields, convertIntoCurrency, filters, bucket, where, Optional.empty());
+    }
+
+    /**
+     * @return the request for the whole per trade series a windowed request is narrowed from, i.e. without the window or
+     * bucket
+     */
+    public PnLAggregationRequest fullSeries() {
+        return new PnLAggregationRequest(this.aggregationFields(), this.convertIntoCurrency(), this.filters(),
+                Optional.empty(), this.where(), Optional.empty());
+    }
+
+    /**
+     * @return the same request grouped on the given fields, in place of any it has
+     */
+    public PnLAggregationRequest groupedOn(TreeSet<AggregateField> fields) {
+        return new PnLAggregationRequest(Optional.of(fields), this.convertIntoCurrency(), this.filters(), this.bucket(),
+                this.where(), this.window());
+    }
+
+    /**
+     * @return the same request converting into the given currency, in place of any it has
+     */
+    public PnLAggregationRequest convertedInto(Currency currency) {
+        return new PnLAggregationRequest(this.aggregationFields(), Optional.of(currency), this.filters(), this.bucket(),
+                this.where(), this.window());
+    }
+
+    /**
+     * The filters, ORed together, ANDed with the where expression
+     * @return the expression trades must pass, or empty if every trade passes
+     */
+    public Optional<FilterExpression> filterExpression() {
+        Optional<FilterExpression> filtersExpression = Optional.empty();
+        if(this.filters().isPresent() && !this.filters().get().isEmpty()) {
+            List<Optional<FilterExpression>> terms = this.filters().get().stream().map(TradeFilter::toExpression).toList();
+            //A filter that constrains nothing lets every trade through
+            if(terms.stream().allMatch(Optional::isPresent)) {
+                filtersExpression = Optional.of(FilterExpression.or(terms.stream().map(Optional::get).toArray(FilterExpression[]::new)));
+            }
+        }
+        if(filtersExpression.isEmpty() || this.where().isEmpty()) {
+            return filtersExpression.isPresent() ? filtersExpression : this.where();
+        }
+        return Optional.of(FilterExpression.and(filtersExpression.get(), this.where().get()));
+    }
+
+    /**
+     * The fields trades are actually grouped on: all fields if none are given, plus CURRENCY when no conversion
+     * currency is set. Always a new set, so the request itself is never modified.
+     * @return
+     */
+    public TreeSet<AggregateField> effectiveAggregationFields() {
+        TreeSet<AggregateField> fields = this.aggregationFields().filter(f -> !f.isEmpty())
+                .map(TreeSet::new)
+                .orElseGet(() -> new TreeSet<>(Arrays.asList(AggregateField.values())));
+
+        //If we do not specify a currency to convert the trades into, we have to include CURRENCY as a grouping field
+        //(ignored if already included) so that the positions are split by currency to make the numbers make sense
+        if(this.convertIntoCurrency().isEmpty()) {
+            fields.add(CURRENCY);
+        }
+        return fields;
+    }
+
+    /**
+     * Requests that produce the same aggregation normalise to equal records, so this can be used as a lookup key
+     * @return
+     */
+    public PnLAggregationRequest normalise() {
+        return new PnLAggregationRequest(
+                Optional.of(effectiveAggregationFields()),
+                this.convertIntoCurrency(),
+                this.filters().filter(f -> !f.isEmpty()).map(Set::copyOf),
+                this.bucket(),
+                this.where(),
+                this.window()
+        );
+    }
+
     public String convertForTitle() {
         return this.convertIntoCurrency().map(c -> " Currency converted to " + c).orElse("No Currency conversion") + " - " +
                 this.filters().map(filters ->
                         " " + filters.stream().map(TradeFilter::toString).collect(Collectors.joining(", "))
-                ).orElse("No TradeFilters");
+                ).orElse("No TradeFilters") +
+                this.bucket().map(b -> " - " + b + " buckets").orElse("") +
+                this.where().map(w -> " - Where " + w).orElse("") +
+                this.window().map(w -> " - " + w).orElse("");
     }
 }
@@ -0,0 +1,16 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A completed aggregation, along with the background job writing it to the configured sinks
+ * @param positions: the pnl positions of each group
+ * @param outputJobId: the output job, empty if no sink is enabled
+ */
+public record PnLAggregationResult(
+        Map<String, List<PnLPosition>> positions,
+        Optional<String> outputJobId
+) {
+}
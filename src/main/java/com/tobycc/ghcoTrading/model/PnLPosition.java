@@ -1,11 +1,28 @@
 package com.tobycc.ghcoTrading.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
+/**
+ * A point of a cumulative pnl series: either the position after one trade, or with a time bucket set on the request,
+ * the bucket's closing position along with its high, low and trade count
+ * @param dateTime: the time of the trade, or the start of the bucket
+ * @param position: the position after the trade, or at the close of the bucket
+ * @param high: the highest position within the bucket, not set for a single trade
+ * @param low: the lowest position within the bucket, not set for a single trade
+ * @param trades: the number of trades in the bucket, not set for a single trade
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public record PnLPosition(
         LocalDateTime dateTime,
-        BigDecimal position) {
-
+        BigDecimal position,
+        BigDecimal high,
+        BigDecimal low,
+        Integer trades) {
 
+    public PnLPosition(LocalDateTime dateTime, BigDecimal position) {
+        this(dateTime, position, null, null, null);
+    }
 }
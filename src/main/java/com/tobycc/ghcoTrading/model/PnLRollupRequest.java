@@ -0,0 +1,18 @@
+package com.tobycc.ghcoTrading.model;
+
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Several groupings of the same trades, e.g. per BBGCode, per Portfolio and Strategy and per User, answered together
+ * @param request: the currency conversion, filters, bucket and window shared by every level, its aggregation fields are
+ *               ignored
+ * @param levels: the fields of each grouping to return
+ */
+public record PnLRollupRequest(
+        PnLAggregationRequest request,
+        List<TreeSet<AggregateField>> levels
+) {
+}
@@ -0,0 +1,14 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+
+/**
+ * One group of a streamed aggregation, written as a line of its response
+ * @param key: the composite key of the group
+ * @param positions: the cumulative pnl series of the group
+ */
+public record PnLSeries(
+        String key,
+        List<PnLPosition> positions
+) {
+}
@@ -0,0 +1,44 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * Narrows an aggregation to a point in time, or to a window of time, rather than each group's whole series
+ * @param asOf: the time to give each group's position at, which is its position after its last trade at or before then
+ * @param from: the inclusive start of the window to give each group's positions within, open if not set
+ * @param to: the exclusive end of the window, open if not set
+ */
+public record PnLWindow(
+        Optional<LocalDateTime> asOf,
+        Optional<LocalDateTime> from,
+        Optional<LocalDateTime> to
+) {
+
+    public PnLWindow {
+        if(asOf.isPresent() == (from.isPresent() || to.isPresent())) {
+            throw new IllegalArgumentException("Window needs either an asOf time or a from and/or to time");
+        }
+        if(from.isPresent() && to.isPresent() && !from.get().isBefore(to.get())) {
+            throw new IllegalArgumentException("Window from " + from.get() + " must be before to " + to.get());
+        }
+    }
+
+    public static PnLWindow asOf(LocalDateTime asOf) {
+        return new PnLWindow(Optional.of(asOf), Optional.empty(), Optional.empty());
+    }
+
+    /**
+     * @param from: inclusive, or null if open
+     * @param to: exclusive, or null if open
+     */
+    public static PnLWindow between(LocalDateTime from, LocalDateTime to) {
+        return new PnLWindow(Optional.empty(), Optional.ofNullable(from), Optional.ofNullable(to));
+    }
+
+    @Override
+    public String toString() {
+        return asOf.map(t -> "as of " + t)
+                .orElseGet(() -> "from " + from.map(LocalDateTime::toString).orElse("start") + " to " + to.map(LocalDateTime::toString).orElse("end"));
+    }
+}
@@ -0,0 +1,12 @@
+package com.tobycc.ghcoTrading.model;
+
+/**
+ * A record of a bulk ingest that was not loaded
+ * @param row: line number of the record in the request body, counting from 1 (the header line of a csv)
+ * @param reason: why it was rejected
+ */
+public record RejectedRow(
+        long row,
+        String reason
+) {
+}
@@ -13,9 +13,16 @@ import jakarta.validation.constraints.NotNull;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Comparator;
 
 public class Trade{
 
+        /**
+         * The order a group's trades are summed in: by trade time, with TradeID breaking ties so that every way of
+         * aggregating gives trades at the same time the same positions
+         */
+        public static final Comparator<Trade> TIME_ORDER = Comparator.comparing(Trade::getDateTime).thenComparing(Trade::getTradeId);
+
         @NotEmpty
         @CsvBindByName(column = "TradeID", required = true)
         @CsvBindByPosition(position = 0)
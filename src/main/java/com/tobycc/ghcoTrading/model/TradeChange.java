@@ -0,0 +1,18 @@
+package com.tobycc.ghcoTrading.model;
+
+/**
+ * A single effective change made to the cleaned trade book, as produced by
+ * {@link com.tobycc.ghcoTrading.service.TradeLoadingService#cleanTrades}.
+ *
+ * - New trade: previous is null, current is the NEW record
+ * - Amend: previous is the record being replaced, current is the AMEND record
+ * - Cancel: previous is the record being replaced, current is the CANCEL record
+ *
+ * @param previous: the version of the trade held before the change (null if the TradeID was unseen)
+ * @param current: the version of the trade held after the change
+ */
+public record TradeChange(
+        Trade previous,
+        Trade current
+) {
+}
@@ -0,0 +1,16 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+
+/**
+ * The cleaned trades at one version, along with the input files they were read from
+ * @param version: version of the loaded trades checkpointed
+ * @param files: manifest of the input files read into the trades
+ * @param trades: the cleaned trades, cancelled ones included
+ */
+public record TradeCheckpoint(
+        long version,
+        List<IngestedFile> files,
+        List<Trade> trades
+) {
+}
@@ -0,0 +1,14 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+
+/**
+ * Trades read from part of a file
+ * @param trades: the trades in the rows read
+ * @param nextOffset: byte offset just past the last row read, where the next read of the file carries on from
+ */
+public record TradeFileRead(
+        List<Trade> trades,
+        long nextOffset
+) {
+}
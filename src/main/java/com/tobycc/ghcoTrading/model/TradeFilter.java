@@ -1,8 +1,15 @@
 package com.tobycc.ghcoTrading.model;
 
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
 import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import com.tobycc.ghcoTrading.store.StringIntHashMap;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.IntPredicate;
 
 public record TradeFilter(
         Optional<String> bbgCode,
@@ -12,6 +19,9 @@ public record TradeFilter(
         Optional<String> strategy,
         Optional<String> user
 ){
+        //Dimension id standing for a field the filter does not constrain
+        private static final int ANY = -2;
+
         public boolean filter(Trade t) {
                 return (this.bbgCode().isEmpty() || this.bbgCode().get().equals(t.getBbgCode())) &&
                         (this.ccy().isEmpty() || this.ccy().get().equals(t.getCcy())) &&
@@ -21,6 +31,50 @@ public record TradeFilter(
                         (this.user().isEmpty() || this.user().get().equals(t.getUser()));
         }
 
+        /**
+         * Binds the filter to the dictionaries of a columnar store, so its trades can be tested by slot without being built.
+         * Values the store has never seen cannot match any of its trades.
+         * @param store
+         * @return predicate over the store's live slots
+         */
+        public IntPredicate bind(ColumnarTradeStore store) {
+                int bbgCodeId = bindDimension(store, AggregateField.BBG_CODE, bbgCode);
+                int ccyId = ccy.map(Enum::ordinal).orElse(ANY);
+                int portfolioId = bindDimension(store, AggregateField.PORTFOLIO, portfolio);
+                int accountId = bindDimension(store, AggregateField.ACCOUNT, account);
+                int strategyId = bindDimension(store, AggregateField.STRATEGY, strategy);
+                int userId = bindDimension(store, AggregateField.USER, user);
+                if(bbgCodeId == StringIntHashMap.MISSING || portfolioId == StringIntHashMap.MISSING || accountId == StringIntHashMap.MISSING
+                        || strategyId == StringIntHashMap.MISSING || userId == StringIntHashMap.MISSING) {
+                        return slot -> false;
+                }
+
+                return slot -> (bbgCodeId == ANY || store.dimensionId(AggregateField.BBG_CODE, slot) == bbgCodeId) &&
+                        (ccyId == ANY || store.dimensionId(AggregateField.CURRENCY, slot) == ccyId) &&
+                        (portfolioId == ANY || store.dimensionId(AggregateField.PORTFOLIO, slot) == portfolioId) &&
+                        (accountId == ANY || store.dimensionId(AggregateField.ACCOUNT, slot) == accountId) &&
+                        (strategyId == ANY || store.dimensionId(AggregateField.STRATEGY, slot) == strategyId) &&
+                        (userId == ANY || store.dimensionId(AggregateField.USER, slot) == userId);
+        }
+
+        /**
+         * @return the filter as an AND of EQs, or empty if it does not constrain any field so passes every trade
+         */
+        public Optional<FilterExpression> toExpression() {
+                List<FilterExpression> terms = new ArrayList<>();
+                bbgCode.ifPresent(v -> terms.add(FilterExpression.eq(FilterField.BBG_CODE, v)));
+                ccy.ifPresent(v -> terms.add(FilterExpression.eq(FilterField.CURRENCY, v.name())));
+                portfolio.ifPresent(v -> terms.add(FilterExpression.eq(FilterField.PORTFOLIO, v)));
+                account.ifPresent(v -> terms.add(FilterExpression.eq(FilterField.ACCOUNT, v)));
+                strategy.ifPresent(v -> terms.add(FilterExpression.eq(FilterField.STRATEGY, v)));
+                user.ifPresent(v -> terms.add(FilterExpression.eq(FilterField.USER, v)));
+                return terms.isEmpty() ? Optional.empty() : Optional.of(FilterExpression.and(terms.toArray(new FilterExpression[0])));
+        }
+
+        private static int bindDimension(ColumnarTradeStore store, AggregateField field, Optional<String> value) {
+                return value.map(v -> store.dictionary(field).idOf(v)).orElse(ANY);
+        }
+
         @Override
         public String toString() {
                 return "TradeFilter{" +
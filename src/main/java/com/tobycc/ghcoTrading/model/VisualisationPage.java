@@ -0,0 +1,20 @@
+package com.tobycc.ghcoTrading.model;
+
+import java.util.List;
+
+/**
+ * A page of the series of an aggregation kept for the visualiser, in key order
+ * @param id: the id the aggregation is kept under
+ * @param page: the page number, from 0
+ * @param size: the most series a page holds
+ * @param seriesCount: the number of series across all pages
+ * @param series: the series of this page, each downsampled to at most the points asked for
+ */
+public record VisualisationPage(
+        String id,
+        int page,
+        int size,
+        int seriesCount,
+        List<PnLSeries> series
+) {
+}
@@ -12,6 +12,13 @@ public enum AggregateField {
     USER,
     CURRENCY;
 
+    /**
+     * Renders the display key of a group. Grouping itself is done on dimension ids (see TradeGroupIndexer), so this is
+     * only needed once per group that is returned or written out.
+     * @param t: any trade of the group
+     * @param fieldsToGroup
+     * @return comma joined values of the grouped fields
+     */
     public static String getAggregateCompositeKey(Trade t, Set<AggregateField> fieldsToGroup) {
         //Won't happen with current logic but keep in as sanity check
         if(fieldsToGroup.isEmpty()) {
@@ -21,16 +28,24 @@ public enum AggregateField {
 
         StringBuilder keyComp = new StringBuilder();
         for(AggregateField agg: fieldsToGroup) {
-            if(!keyComp.toString().equals("")) keyComp.append(",");
-            keyComp.append(switch (agg) {
-                case BBG_CODE -> t.getBbgCode();
-                case ACCOUNT -> t.getAccount();
-                case PORTFOLIO -> t.getPortfolio();
-                case STRATEGY -> t.getStrategy();
-                case USER -> t.getUser();
-                case CURRENCY -> t.getCcy();
-            });
+            if(keyComp.length() > 0) keyComp.append(",");
+            keyComp.append(agg.fieldValue(t));
         }
         return keyComp.toString();
     }
+
+    /**
+     * @param t
+     * @return the value of this field of the trade
+     */
+    public String fieldValue(Trade t) {
+        return switch (this) {
+            case BBG_CODE -> t.getBbgCode();
+            case ACCOUNT -> t.getAccount();
+            case PORTFOLIO -> t.getPortfolio();
+            case STRATEGY -> t.getStrategy();
+            case USER -> t.getUser();
+            case CURRENCY -> t.getCcy().name();
+        };
+    }
 }
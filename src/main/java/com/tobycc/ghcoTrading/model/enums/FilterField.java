@@ -0,0 +1,63 @@
+package com.tobycc.ghcoTrading.model.enums;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * The trade fields a filter expression can test. Values are given as strings and read as the field's type: prices as
+ * decimals, volumes as ints and trade times as ISO-8601 local date times, e.g. "2010-01-01T09:00:00".
+ */
+public enum FilterField {
+    BBG_CODE,
+    CURRENCY,
+    PORTFOLIO,
+    ACCOUNT,
+    STRATEGY,
+    USER,
+    SIDE,
+    PRICE,
+    VOLUME,
+    DATE_TIME;
+
+    /**
+     * @return whether the field is ordered, so can be given a RANGE
+     */
+    public boolean isOrdered() {
+        return this == PRICE || this == VOLUME || this == DATE_TIME;
+    }
+
+    /**
+     * @return the aggregate field of the same dimension, or null if the field is not one
+     */
+    public AggregateField aggregateField() {
+        return switch (this) {
+            case BBG_CODE -> AggregateField.BBG_CODE;
+            case CURRENCY -> AggregateField.CURRENCY;
+            case PORTFOLIO -> AggregateField.PORTFOLIO;
+            case ACCOUNT -> AggregateField.ACCOUNT;
+            case STRATEGY -> AggregateField.STRATEGY;
+            case USER -> AggregateField.USER;
+            default -> null;
+        };
+    }
+
+    /**
+     * @param value
+     * @return the value read as the field's type
+     * @throws IllegalArgumentException if it is not a value of the field
+     */
+    public Object parse(String value) {
+        try {
+            return switch (this) {
+                case CURRENCY -> Currency.valueOf(value);
+                case SIDE -> Side.valueOf(value);
+                case PRICE -> new BigDecimal(value);
+                case VOLUME -> Integer.valueOf(value);
+                case DATE_TIME -> LocalDateTime.parse(value);
+                default -> value;
+            };
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("\"" + value + "\" is not a valid " + this + " value", e);
+        }
+    }
+}
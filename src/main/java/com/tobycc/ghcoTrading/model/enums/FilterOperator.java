@@ -0,0 +1,19 @@
+package com.tobycc.ghcoTrading.model.enums;
+
+/**
+ * The operator of a node of a filter expression
+ */
+public enum FilterOperator {
+    //All of the terms
+    AND,
+    //Any of the terms
+    OR,
+    //Not the single term
+    NOT,
+    //The field equals the single value
+    EQ,
+    //The field equals any of the values
+    IN,
+    //The field is at least "from" and below "to", either of which can be left open
+    RANGE
+}
@@ -0,0 +1,12 @@
+package com.tobycc.ghcoTrading.model.enums;
+
+public enum OutputJobStatus {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED,
+    //Rejected or pushed out of a full output queue
+    DROPPED,
+    //Skipped because a later job for the same request was in the same batch
+    SUPERSEDED
+}
@@ -0,0 +1,13 @@
+package com.tobycc.ghcoTrading.model.enums;
+
+/**
+ * What to do with a new aggregation output job when the output queue is full
+ */
+public enum OutputOverflowPolicy {
+    //Hold the submitting thread until there is space
+    BLOCK,
+    //Drop the new job
+    DROP_NEWEST,
+    //Drop the oldest queued job to make space
+    DROP_OLDEST
+}
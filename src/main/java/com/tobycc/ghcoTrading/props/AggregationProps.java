@@ -1,5 +1,6 @@
 package com.tobycc.ghcoTrading.props;
 
+import com.tobycc.ghcoTrading.model.enums.OutputOverflowPolicy;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -15,6 +16,56 @@ public class AggregationProps {
     @NotEmpty
     private Boolean outputToConsole;
 
+    //Write aggregation output on a background worker rather than the request thread
+    @NotNull
+    private Boolean asyncOutput;
+
+    @NotNull
+    private Integer outputQueueCapacity;
+
+    @NotNull
+    private Integer outputBatchSize;
+
+    @NotNull
+    private OutputOverflowPolicy outputOverflowPolicy;
+
+    @NotNull
+    private Boolean incremental;
+
+    @NotNull
+    private Integer maxIncrementalAggregations;
+
+    @NotNull
+    private Boolean fixedPoint;
+
+    @NotNull
+    private Integer fixedPointScale;
+
+    @NotNull
+    private Boolean resultCache;
+
+    @NotNull
+    private Integer maxCachedResults;
+
+    @NotNull
+    private Long maxCachedResultBytes;
+
+    //Threads to group and aggregate trades across, 1 to aggregate on the calling thread
+    @NotNull
+    private Integer parallelism;
+
+    //How long an aggregation is kept for the visualiser to page through after it is last read
+    @NotNull
+    private Integer visualisationTtlSeconds;
+
+    //Aggregations kept for the visualiser at once, the least recently read dropped first
+    @NotNull
+    private Integer maxVisualisations;
+
+    //Rollup cubes kept for the requests they serve at once, the least recently used dropped first
+    @NotNull
+    private Integer maxRollupCubes;
+
     public Boolean isOutputToCsv() {
         return outputToCsv;
     }
@@ -30,4 +81,124 @@ public class AggregationProps {
     public void setOutputToConsole(Boolean outputToConsole) {
         this.outputToConsole = outputToConsole;
     }
-}
\ No newline at end of file
+
+    public Boolean isAsyncOutput() {
+        return asyncOutput;
+    }
+
+    public void setAsyncOutput(Boolean asyncOutput) {
+        this.asyncOutput = asyncOutput;
+    }
+
+    public Integer getOutputQueueCapacity() {
+        return outputQueueCapacity;
+    }
+
+    public void setOutputQueueCapacity(Integer outputQueueCapacity) {
+        this.outputQueueCapacity = outputQueueCapacity;
+    }
+
+    public Integer getOutputBatchSize() {
+        return outputBatchSize;
+    }
+
+    public void setOutputBatchSize(Integer outputBatchSize) {
+        this.outputBatchSize = outputBatchSize;
+    }
+
+    public OutputOverflowPolicy getOutputOverflowPolicy() {
+        return outputOverflowPolicy;
+    }
+
+    public void setOutputOverflowPolicy(OutputOverflowPolicy outputOverflowPolicy) {
+        this.outputOverflowPolicy = outputOverflowPolicy;
+    }
+
+    public Boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(Boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public Integer getMaxIncrementalAggregations() {
+        return maxIncrementalAggregations;
+    }
+
+    public void setMaxIncrementalAggregations(Integer maxIncrementalAggregations) {
+        this.maxIncrementalAggregations = maxIncrementalAggregations;
+    }
+
+    public Boolean isFixedPoint() {
+        return fixedPoint;
+    }
+
+    public void setFixedPoint(Boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
+    }
+
+    public Integer getFixedPointScale() {
+        return fixedPointScale;
+    }
+
+    public void setFixedPointScale(Integer fixedPointScale) {
+        this.fixedPointScale = fixedPointScale;
+    }
+
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public Boolean isResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(Boolean resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public Integer getMaxCachedResults() {
+        return maxCachedResults;
+    }
+
+    public void setMaxCachedResults(Integer maxCachedResults) {
+        this.maxCachedResults = maxCachedResults;
+    }
+
+    public Long getMaxCachedResultBytes() {
+        return maxCachedResultBytes;
+    }
+
+    public void setMaxCachedResultBytes(Long maxCachedResultBytes) {
+        this.maxCachedResultBytes = maxCachedResultBytes;
+    }
+
+    public Integer getVisualisationTtlSeconds() {
+        return visualisationTtlSeconds;
+    }
+
+    public void setVisualisationTtlSeconds(Integer visualisationTtlSeconds) {
+        this.visualisationTtlSeconds = visualisationTtlSeconds;
+    }
+
+    public Integer getMaxVisualisations() {
+        return maxVisualisations;
+    }
+
+    public void setMaxVisualisations(Integer maxVisualisations) {
+        this.maxVisualisations = maxVisualisations;
+    }
+
+    public Integer getMaxRollupCubes() {
+        return maxRollupCubes;
+    }
+
+    public void setMaxRollupCubes(Integer maxRollupCubes) {
+        this.maxRollupCubes = maxRollupCubes;
+    }
+}
@@ -21,6 +21,62 @@ public class FileProps{
     @NotNull
     private Integer maxFilesToOutput;
 
+    @NotNull
+    private Boolean parallelLoad;
+
+    @NotNull
+    private Integer loadThreads;
+
+    //How long a dropped file must go unchanged before it is loaded
+    @NotNull
+    private Integer stableMillis;
+
+    @NotNull
+    private Integer watchPollMillis;
+
+    //Whether files in the input directory are followed as they are appended to, rather than only read once complete
+    @NotNull
+    private Boolean tailMode;
+
+    //Whether the loaded trades are checkpointed, so a restart only parses the input files changed since
+    @NotNull
+    private Boolean checkpoint;
+
+    //File in the base directory holding the checkpoint
+    @NotEmpty
+    private String checkpointFile;
+
+    @NotNull
+    private Integer checkpointIntervalSeconds;
+
+    //Whether trades posted to the API are appended to a journal and loaded straight away, rather than written to a new
+    //csv in the input directory
+    @NotNull
+    private Boolean journal;
+
+    //File in the base directory holding the journal
+    @NotEmpty
+    private String journalFile;
+
+    //Records of a bulk ingest loaded at a time
+    @NotNull
+    private Integer bulkBatchSize;
+
+    //Rejected records of a bulk ingest listed in its response, the rest are only counted
+    @NotNull
+    private Integer bulkMaxRejectedRows;
+
+    //Whether FX rates are loaded from a rate history file, rather than the static mock rates
+    @NotNull
+    private Boolean fxRates;
+
+    //File in the base directory holding the rate history, reloaded whenever it changes
+    @NotEmpty
+    private String fxRatesFile;
+
+    @NotNull
+    private Integer fxReloadIntervalSeconds;
+
     public String getBaseDirectory() {
         return baseDirectory;
     }
@@ -52,4 +108,124 @@ public class FileProps{
     public void setMaxFilesToOutput(Integer maxFilesToOutput) {
         this.maxFilesToOutput = maxFilesToOutput;
     }
-}
\ No newline at end of file
+
+    public Boolean isParallelLoad() {
+        return parallelLoad;
+    }
+
+    public void setParallelLoad(Boolean parallelLoad) {
+        this.parallelLoad = parallelLoad;
+    }
+
+    public Integer getLoadThreads() {
+        return loadThreads;
+    }
+
+    public void setLoadThreads(Integer loadThreads) {
+        this.loadThreads = loadThreads;
+    }
+
+    public Integer getStableMillis() {
+        return stableMillis;
+    }
+
+    public void setStableMillis(Integer stableMillis) {
+        this.stableMillis = stableMillis;
+    }
+
+    public Integer getWatchPollMillis() {
+        return watchPollMillis;
+    }
+
+    public void setWatchPollMillis(Integer watchPollMillis) {
+        this.watchPollMillis = watchPollMillis;
+    }
+
+    public Boolean isTailMode() {
+        return tailMode;
+    }
+
+    public void setTailMode(Boolean tailMode) {
+        this.tailMode = tailMode;
+    }
+
+    public Boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(Boolean checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public Integer getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    public void setCheckpointIntervalSeconds(Integer checkpointIntervalSeconds) {
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    public Boolean isJournal() {
+        return journal;
+    }
+
+    public void setJournal(Boolean journal) {
+        this.journal = journal;
+    }
+
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    public void setJournalFile(String journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public Integer getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    public void setBulkBatchSize(Integer bulkBatchSize) {
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    public Integer getBulkMaxRejectedRows() {
+        return bulkMaxRejectedRows;
+    }
+
+    public void setBulkMaxRejectedRows(Integer bulkMaxRejectedRows) {
+        this.bulkMaxRejectedRows = bulkMaxRejectedRows;
+    }
+
+    public Boolean isFxRates() {
+        return fxRates;
+    }
+
+    public void setFxRates(Boolean fxRates) {
+        this.fxRates = fxRates;
+    }
+
+    public String getFxRatesFile() {
+        return fxRatesFile;
+    }
+
+    public void setFxRatesFile(String fxRatesFile) {
+        this.fxRatesFile = fxRatesFile;
+    }
+
+    public Integer getFxReloadIntervalSeconds() {
+        return fxReloadIntervalSeconds;
+    }
+
+    public void setFxReloadIntervalSeconds(Integer fxReloadIntervalSeconds) {
+        this.fxReloadIntervalSeconds = fxReloadIntervalSeconds;
+    }
+}
@@ -0,0 +1,33 @@
+package com.tobycc.ghcoTrading.props;
+
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix="store")
+public class StoreProps {
+
+    @NotNull
+    private Boolean columnar;
+
+    //Keep inverted indexes of the trade dimensions so filtered aggregations touch only the matching trades
+    @NotNull
+    private Boolean dimensionIndex;
+
+    public Boolean isColumnar() {
+        return columnar;
+    }
+
+    public void setColumnar(Boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    public Boolean isDimensionIndex() {
+        return dimensionIndex;
+    }
+
+    public void setDimensionIndex(Boolean dimensionIndex) {
+        this.dimensionIndex = dimensionIndex;
+    }
+}
@@ -0,0 +1,229 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.config.DateUtils;
+import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.model.AggregationOutputJob;
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.enums.OutputJobStatus;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.FileProps;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes completed aggregations to the console and csv sinks off the request thread, so aggregation latency does not
+ * depend on how fast the sinks are.
+ *
+ * Jobs wait in a queue of "aggregation.outputQueueCapacity", with "aggregation.outputOverflowPolicy" deciding whether
+ * a full queue blocks the submitter or drops a job. A single worker takes up to "aggregation.outputBatchSize" jobs at a
+ * time, and only writes the latest job of a batch for any one request, as the earlier ones are already stale.
+ *
+ * With "aggregation.asyncOutput" false, jobs are run on the submitting thread instead.
+ */
+@Service
+public class AggregationOutputService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AggregationOutputService.class);
+
+    //Most recent jobs kept for the status endpoint
+    private static final int MAX_JOB_HISTORY = 1000;
+
+    private final CSVParser csvParser;
+    private final FileProps fileProps;
+    private final AggregationProps aggregationProps;
+
+    private final BlockingQueue<QueuedJob> queue;
+    private final Map<String, AggregationOutputJob> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AggregationOutputJob> eldest) {
+            return size() > MAX_JOB_HISTORY;
+        }
+    };
+    private Thread worker;
+
+    public AggregationOutputService(CSVParser csvParser, FileProps fileProps, AggregationProps aggregationProps) {
+        this.csvParser = csvParser;
+        this.fileProps = fileProps;
+        this.aggregationProps = aggregationProps;
+        this.queue = new ArrayBlockingQueue<>(aggregationProps.getOutputQueueCapacity());
+    }
+
+    @PostConstruct
+    public void startWorker() {
+        if(aggregationProps.isAsyncOutput()) {
+            worker = new Thread(this::runWorker, "aggregation-output");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    @PreDestroy
+    public void stopWorker() {
+        if(worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * @return whether any sink would write the aggregation, i.e. whether {@link #submit} would create a job
+     */
+    public boolean hasSinks(Map<String, List<PnLPosition>> pnlAggregated) {
+        return aggregationProps.isOutputToConsole() || writesCsv(pnlAggregated);
+    }
+
+    /**
+     * Queues the aggregation to be written to the enabled sinks
+     * @param pnlAggregated
+     * @param request
+     * @return the id of the output job, to look up with {@link #getJob}
+     */
+    public String submit(Map<String, List<PnLPosition>> pnlAggregated, PnLAggregationRequest request) {
+        QueuedJob job = new QueuedJob(UUID.randomUUID().toString(), request.normalise(), pnlAggregated, request);
+        update(new AggregationOutputJob(job.jobId(), OutputJobStatus.QUEUED, pnlAggregated.size(), LocalDateTime.now(), null, null));
+
+        if(!aggregationProps.isAsyncOutput()) {
+            run(job);
+            return job.jobId();
+        }
+
+        switch(aggregationProps.getOutputOverflowPolicy()) {
+            case BLOCK -> {
+                try {
+                    queue.put(job);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(job, "Interrupted while waiting for space in the output queue");
+                }
+            }
+            case DROP_NEWEST -> {
+                if(!queue.offer(job)) {
+                    drop(job, "Output queue full");
+                }
+            }
+            case DROP_OLDEST -> {
+                while(!queue.offer(job)) {
+                    QueuedJob oldest = queue.poll();
+                    if(oldest != null) {
+                        drop(oldest, "Pushed out of a full output queue by job " + job.jobId());
+                    }
+                }
+            }
+        }
+        return job.jobId();
+    }
+
+    public Optional<AggregationOutputJob> getJob(String jobId) {
+        synchronized(jobs) {
+            return Optional.ofNullable(jobs.get(jobId));
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void runWorker() {
+        List<QueuedJob> batch = new ArrayList<>();
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            queue.drainTo(batch, aggregationProps.getOutputBatchSize() - 1);
+
+            //Only the latest job for each request is written, earlier ones in the batch are stale outputs of the same request
+            Map<PnLAggregationRequest, QueuedJob> latest = new LinkedHashMap<>();
+            batch.forEach(job -> {
+                QueuedJob superseded = latest.remove(job.normalisedRequest());
+                if(superseded != null) {
+                    transition(superseded.jobId(), OutputJobStatus.SUPERSEDED, "Superseded by job " + job.jobId());
+                }
+                latest.put(job.normalisedRequest(), job);
+            });
+            latest.values().forEach(this::run);
+            batch.clear();
+        }
+        LOGGER.info("Aggregation output worker stopped with " + queue.size() + " jobs queued");
+    }
+
+    private void run(QueuedJob job) {
+        transition(job.jobId(), OutputJobStatus.RUNNING, null);
+        try {
+            if(aggregationProps.isOutputToConsole()) {
+                pnlAggregationPrinter(job.pnlAggregated(), job.request());
+            }
+
+            //We don't want to write this information to files if it goes over a predefined threshold
+            if(writesCsv(job.pnlAggregated())) {
+                csvParser.writeAggregationPositionsIntoCsv(job.pnlAggregated(), job.request());
+            }
+            transition(job.jobId(), OutputJobStatus.COMPLETED, null);
+        } catch (RuntimeException e) {
+            LOGGER.error("Aggregation output job " + job.jobId() + " failed: " + e.getMessage());
+            transition(job.jobId(), OutputJobStatus.FAILED, e.getMessage());
+        }
+    }
+
+    private boolean writesCsv(Map<String, List<PnLPosition>> pnlAggregated) {
+        return aggregationProps.isOutputToCsv() && pnlAggregated.size() <= fileProps.getMaxFilesToOutput();
+    }
+
+    private void drop(QueuedJob job, String reason) {
+        LOGGER.warn("Dropping aggregation output job " + job.jobId() + ": " + reason);
+        transition(job.jobId(), OutputJobStatus.DROPPED, reason);
+    }
+
+    private void update(AggregationOutputJob job) {
+        synchronized(jobs) {
+            jobs.put(job.jobId(), job);
+        }
+    }
+
+    /**
+     * Moves a job on to a new status, unless it has already aged out of the job history
+     */
+    private void transition(String jobId, OutputJobStatus status, String error) {
+        synchronized(jobs) {
+            AggregationOutputJob job = jobs.get(jobId);
+            if(job != null) {
+                jobs.put(jobId, job.withStatus(status, error));
+            }
+        }
+    }
+
+    /**
+     * Prints the output of the aggregations
+     * @param pnlAggregated
+     * @param request
+     */
+    public void pnlAggregationPrinter(Map<String, List<PnLPosition>> pnlAggregated, PnLAggregationRequest request) {
+        //Sort the map keys so output printed is more ordered
+        List<String> keys = pnlAggregated.keySet().stream().sorted().toList();
+
+        keys.forEach(k -> {
+            LOGGER.info("");
+            LOGGER.info("----- " + k + " intraday cash positions" + request.convertForTitle() + " -----");
+            pnlAggregated.get(k).forEach(pos ->
+                    LOGGER.info(pos.dateTime().format(DateTimeFormatter.ofPattern(DateUtils.DATETIME_FORMAT)) + ": " + pos.position().toBigInteger()));
+        });
+    }
+
+    private record QueuedJob(
+            String jobId,
+            PnLAggregationRequest normalisedRequest,
+            Map<String, List<PnLPosition>> pnlAggregated,
+            PnLAggregationRequest request
+    ) { }
+}
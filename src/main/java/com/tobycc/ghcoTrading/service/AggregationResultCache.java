@@ -0,0 +1,163 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Bounded cache of completed aggregations of the live trade book, enabled with "aggregation.resultCache".
+ *
+ * Results are keyed by normalised request and are valid for the book version they were computed at, as bumped by
+ * {@link TradeLoadingService} on each ingest. When an ingest changes trades, only the results whose request could see
+ * one of the changed trades (i.e. the old or new version of the trade passes the request's filters) are dropped; every
+ * other result is carried forward to the new version untouched. This is kept in a {@link VersionedRequestCache}, as
+ * {@link RollupService} keeps its cubes.
+ *
+ * Results are evicted least recently used first to stay within "aggregation.maxCachedResults" entries and roughly
+ * "aggregation.maxCachedResultBytes" of heap.
+ */
+@Service
+public class AggregationResultCache implements TradeChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AggregationResultCache.class);
+
+    //Rough heap cost of one cached PnLPosition (record, LocalDateTime and BigDecimal) and of one group's key and list
+    private static final long BYTES_PER_POSITION = 120;
+    private static final long BYTES_PER_GROUP = 200;
+
+    private final AggregationProps aggregationProps;
+
+    //Cached results keyed by normalised request
+    private final VersionedRequestCache<CachedResult> cachedResults = new VersionedRequestCache<>();
+    private long cachedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public AggregationResultCache(AggregationProps aggregationProps) {
+        this.aggregationProps = aggregationProps;
+    }
+
+    /**
+     * @param trades
+     * @param request
+     * @return the cached aggregation of the request, or empty if there is none for the current version of the trades
+     */
+    public synchronized Optional<Map<String, List<PnLPosition>>> get(Map<String, Trade> trades, PnLAggregationRequest request) {
+        CachedResult cached = cachedResults.get(trades, request.normalise());
+        if(cached == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(cached.result());
+    }
+
+    /**
+     * Read before aggregating, so a result can be offered to {@link #put} along with the version it was computed at
+     * @param trades
+     * @return the version of the trades, or -1 if they are not the book this cache is tracking
+     */
+    public synchronized long versionOf(Map<String, Trade> trades) {
+        return cachedResults.versionOf(trades);
+    }
+
+    /**
+     * Caches a result, unless the trades have been changed since it was computed or it is too large to ever fit
+     * @param version: the version of the trades the result was computed from, as given by {@link #versionOf}
+     * @param request
+     * @param result
+     */
+    public synchronized void put(long version, PnLAggregationRequest request, Map<String, List<PnLPosition>> result) {
+        if(!cachedResults.isCurrent(version)) {
+            return;
+        }
+
+        long bytes = estimateBytes(result);
+        if(bytes > aggregationProps.getMaxCachedResultBytes()) {
+            return;
+        }
+        CachedResult previous = cachedResults.put(version, request.normalise(), new CachedResult(result, bytes));
+        if(previous != null) {
+            cachedBytes -= previous.bytes();
+        }
+        cachedBytes += bytes;
+        evictLeastRecentlyUsed();
+    }
+
+    @Override
+    public synchronized void onTradesChanged(Map<String, Trade> book, long version, List<TradeChange> changes) {
+        List<CachedResult> invalidated = cachedResults.onTradesChanged(book, version, changes);
+        invalidated.forEach(result -> cachedBytes -= result.bytes());
+        invalidations += invalidated.size();
+        if(!invalidated.isEmpty()) {
+            LOGGER.info("Invalidated " + invalidated.size() + " cached aggregations after ingest of version " + version +
+                    ", " + cachedResults.size() + " still cached (" + hits + " hits, " + misses + " misses so far)");
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        while(cachedResults.size() > aggregationProps.getMaxCachedResults() ||
+                cachedBytes > aggregationProps.getMaxCachedResultBytes()) {
+            CachedResult evicted = cachedResults.removeLeastRecentlyUsed();
+            if(evicted == null) {
+                return;
+            }
+            cachedBytes -= evicted.bytes();
+            evictions++;
+        }
+    }
+
+    private static long estimateBytes(Map<String, List<PnLPosition>> result) {
+        long bytes = 0;
+        for(List<PnLPosition> positions: result.values()) {
+            bytes += BYTES_PER_GROUP + positions.size() * BYTES_PER_POSITION;
+        }
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        cachedResults.clear();
+        cachedBytes = 0;
+    }
+
+    public synchronized int getCachedResultCount() {
+        return cachedResults.size();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private record CachedResult(
+            Map<String, List<PnLPosition>> result,
+            long bytes
+    ) { }
+}
@@ -0,0 +1,186 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.tobycc.ghcoTrading.file.StreamingTradeCsvParser;
+import com.tobycc.ghcoTrading.file.TradeInputException;
+import com.tobycc.ghcoTrading.file.TradeJournal;
+import com.tobycc.ghcoTrading.model.BulkIngestBatch;
+import com.tobycc.ghcoTrading.model.BulkIngestResult;
+import com.tobycc.ghcoTrading.model.RejectedRow;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.props.FileProps;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Loads a large number of posted trades as they are read from the request body, rather than binding the whole body
+ * first, so memory stays bounded by "file.bulkBatchSize" however many trades are posted.
+ *
+ * The body is either a csv in the input layout or newline delimited JSON, one trade a line. Each record is parsed and
+ * validated on its own, and one that fails is rejected with its line number without stopping the rest. Every
+ * "file.bulkBatchSize" records, the trades accepted are loaded together, through the journal with "file.journal" so
+ * they are durable, and otherwise straight into the loaded trades, where they are only held in memory and are lost on
+ * restart. Batches already loaded stay loaded if a later one fails.
+ *
+ * Only the first "file.bulkMaxRejectedRows" rejected records of a request are listed in its result, so a body of
+ * nothing but bad records does not build a response as large as itself; the rest are only counted.
+ */
+@Service
+public class BulkIngestService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkIngestService.class);
+
+    private final TradeLoadingService tradeLoadingService;
+    private final TradeJournalService tradeJournalService;
+    private final Validator validator;
+    private final ObjectReader tradeReader;
+    private final FileProps fileProps;
+
+    public BulkIngestService(TradeLoadingService tradeLoadingService, TradeJournalService tradeJournalService,
+                             Validator validator, ObjectMapper objectMapper, FileProps fileProps) {
+        this.tradeLoadingService = tradeLoadingService;
+        this.tradeJournalService = tradeJournalService;
+        this.validator = validator;
+        this.tradeReader = objectMapper.readerFor(Trade.class);
+        this.fileProps = fileProps;
+    }
+
+    /**
+     * @param body: a csv starting with the expected headers
+     * @throws TradeInputException if the body does not start with the expected headers
+     * @throws IOException if the body cannot be read
+     */
+    public BulkIngestResult ingestCsv(InputStream body) throws IOException {
+        Batches batches = new Batches();
+        StreamingTradeCsvParser parser = new StreamingTradeCsvParser();
+        boolean headers = parser.readTrades(Channels.newChannel(body), trade -> batches.accept(parser.getLineNumber(), trade),
+                rejected -> batches.reject(rejected.getLineNumber(), rejected.getMessage()));
+        if(!headers) {
+            throw new TradeInputException("Csv does not start with the expected headers");
+        }
+        return batches.finish();
+    }
+
+    /**
+     * @param body: one JSON trade a line, blank lines are skipped
+     * @throws IOException if the body cannot be read
+     */
+    public BulkIngestResult ingestNdjson(InputStream body) throws IOException {
+        Batches batches = new Batches();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        long row = 0;
+        String line;
+        while((line = reader.readLine()) != null) {
+            row++;
+            if(line.isBlank()) {
+                continue;
+            }
+            try {
+                Trade trade = tradeReader.readValue(line);
+                if(trade == null) {
+                    batches.reject(row, "Not a trade");
+                } else {
+                    batches.accept(row, trade);
+                }
+            } catch (JsonProcessingException e) {
+                batches.reject(row, e.getOriginalMessage());
+            }
+        }
+        return batches.finish();
+    }
+
+    /**
+     * Collects the records of one request into batches, loading each once full
+     */
+    private final class Batches {
+
+        private final int batchSize = fileProps.getBulkBatchSize();
+        private final int maxRejectedRows = fileProps.getBulkMaxRejectedRows();
+        private final boolean journal = tradeJournalService.isEnabled();
+        private final List<BulkIngestBatch> batches = new ArrayList<>();
+        private long accepted;
+        private long rejected;
+
+        private long listedRejectedRows;
+
+        //Current batch
+        private final List<Trade> trades = new ArrayList<>();
+        private final List<RejectedRow> rejectedRows = new ArrayList<>();
+        private int batchRejected;
+
+        private void accept(long row, Trade trade) {
+            Set<ConstraintViolation<Trade>> violations = validator.validate(trade);
+            if(!violations.isEmpty()) {
+                reject(row, violations.stream().map(v -> v.getPropertyPath() + " " + v.getMessage()).sorted()
+                        .collect(Collectors.joining(", ")));
+                return;
+            }
+            if(journal) {
+                try {
+                    TradeJournal.checkJournalable(trade);
+                } catch (TradeInputException e) {
+                    reject(row, e.getMessage());
+                    return;
+                }
+            }
+            trades.add(trade);
+            flushIfFull();
+        }
+
+        private void reject(long row, String reason) {
+            batchRejected++;
+            if(listedRejectedRows < maxRejectedRows) {
+                rejectedRows.add(new RejectedRow(row, reason));
+                listedRejectedRows++;
+            }
+            flushIfFull();
+        }
+
+        private void flushIfFull() {
+            if(trades.size() + batchRejected >= batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if(!trades.isEmpty()) {
+                if(journal) {
+                    tradeJournalService.appendTrades(new ArrayList<>(trades));
+                } else {
+                    tradeLoadingService.loadTrades(new ArrayList<>(trades));
+                }
+            }
+            batches.add(new BulkIngestBatch(batches.size() + 1, trades.size(), batchRejected, List.copyOf(rejectedRows)));
+            accepted += trades.size();
+            rejected += batchRejected;
+            trades.clear();
+            rejectedRows.clear();
+            batchRejected = 0;
+        }
+
+        private BulkIngestResult finish() {
+            if(!trades.isEmpty() || batchRejected > 0) {
+                flush();
+            }
+            LOGGER.info("Bulk ingest of " + accepted + " trades in " + batches.size() + " batches, rejecting " + rejected +
+                    " records" + (journal ? "" : ", not journaled so only held in memory"));
+            return new BulkIngestResult(accepted, rejected, journal, batches);
+        }
+    }
+}
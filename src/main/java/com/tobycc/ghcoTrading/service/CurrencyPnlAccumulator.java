@@ -0,0 +1,168 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Builds one group's cumulative pnl series in several currencies at once from a single pass over its trades.
+ *
+ * For a bucketed series, the trades of each bucket are summed in their native currency, along with the highest and
+ * lowest of those sums, and only the sums are converted into each target currency, at finish, rather than every trade
+ * into every target. As a rate only holds within its {@link FxRates} slice, a bucket crossing into a later slice is
+ * summed as one run of trades per slice. The high and low of a run in more than one currency depend on how the
+ * currencies mix, so cannot be converted afterwards: from its second currency on, a run converts each trade into every
+ * target as it is added.
+ *
+ * A series of one position per trade needs every trade in every target anyway, so each trade is converted as it is
+ * added, costing the same as a request per currency but for the one pass over the trades.
+ *
+ * BigDecimal arithmetic is exact and a rate is positive, so conversion keeps the order of sums, and every series is
+ * equal to converting each trade on its own, as TradeAggregationService.tradePnl does, scale included.
+ *
+ * Trades must be added in time order.
+ */
+public class CurrencyPnlAccumulator {
+
+    private final Currency[] targets;
+    private final FxRates fxRates;
+    private final Optional<Duration> bucket;
+
+    //For a series of one position per trade, each target's position so far and series
+    private final BigDecimal[] positions;
+    private final List<List<PnLPosition>> series;
+
+    //For a bucketed series, the runs of trades closed so far, and the open run
+    private final List<Run> runs = new ArrayList<>();
+    private Run run;
+
+    /**
+     * @param targets: the currencies to build the series in
+     * @param fxRates
+     * @param bucket: a bucket size to summarise the series into, if any
+     */
+    public CurrencyPnlAccumulator(Currency[] targets, FxRates fxRates, Optional<Duration> bucket) {
+        this.targets = targets;
+        this.fxRates = fxRates;
+        this.bucket = bucket;
+        this.positions = new BigDecimal[targets.length];
+        Arrays.fill(positions, BigDecimal.ZERO);
+        this.series = new ArrayList<>(targets.length);
+        for(int t = 0; t < targets.length; t++) {
+            series.add(new ArrayList<>());
+        }
+    }
+
+    public void add(Trade trade) {
+        int slice = fxRates.slice(trade.getDateTime());
+        BigDecimal pnl = TradeAggregationService.tradePnl(trade, Optional.empty());
+        if(bucket.isEmpty()) {
+            for(int t = 0; t < targets.length; t++) {
+                positions[t] = positions[t].add(convert(pnl, trade.getCcy(), t, slice));
+                series.get(t).add(new PnLPosition(trade.getDateTime(), positions[t]));
+            }
+            return;
+        }
+
+        long epochSecond = PnLBuckets.epochSecond(trade.getDateTime());
+        long bucketIndex = Math.floorDiv(epochSecond, bucket.get().getSeconds());
+        if(run == null || run.bucketIndex != bucketIndex || run.slice != slice) {
+            run = new Run(epochSecond, bucketIndex, slice);
+            runs.add(run);
+        }
+        run.add(pnl, trade.getCcy());
+    }
+
+    /**
+     * @return the series in each target currency
+     */
+    public Map<Currency, List<PnLPosition>> finish() {
+        Map<Currency, List<PnLPosition>> finished = new EnumMap<>(Currency.class);
+        for(int t = 0; t < targets.length; t++) {
+            if(bucket.isEmpty()) {
+                finished.put(targets[t], series.get(t));
+                continue;
+            }
+            PnLBuckets buckets = new PnLBuckets(bucket.get());
+            BigDecimal position = BigDecimal.ZERO;
+            for(Run closed: runs) {
+                BigDecimal close = closed.closes != null ? closed.closes[t] : convert(closed.close, closed.ccy, t, closed.slice);
+                BigDecimal high = closed.highs != null ? closed.highs[t] : convert(closed.high, closed.ccy, t, closed.slice);
+                BigDecimal low = closed.lows != null ? closed.lows[t] : convert(closed.low, closed.ccy, t, closed.slice);
+                buckets.add(closed.epochSecond, position.add(close), position.add(high), position.add(low), closed.trades);
+                position = position.add(close);
+            }
+            finished.put(targets[t], buckets.finish());
+        }
+        return finished;
+    }
+
+    private BigDecimal convert(BigDecimal value, Currency from, int target, int slice) {
+        return from == targets[target] ? value : value.multiply(fxRates.rate(slice, from, targets[target]));
+    }
+
+    /**
+     * Trades of one bucket within one slice of rates, summed from the position before them
+     */
+    private final class Run {
+
+        private final long epochSecond;
+        private final long bucketIndex;
+        private final int slice;
+        private int trades;
+
+        //While the run is in one currency, its sum so far and highest and lowest sums in that currency
+        private Currency ccy;
+        private BigDecimal close;
+        private BigDecimal high;
+        private BigDecimal low;
+
+        //Once in more than one currency, the same in each target, null until then
+        private BigDecimal[] closes;
+        private BigDecimal[] highs;
+        private BigDecimal[] lows;
+
+        private Run(long epochSecond, long bucketIndex, int slice) {
+            this.epochSecond = epochSecond;
+            this.bucketIndex = bucketIndex;
+            this.slice = slice;
+        }
+
+        private void add(BigDecimal pnl, Currency tradeCcy) {
+            trades++;
+            if(trades == 1) {
+                ccy = tradeCcy;
+                close = pnl;
+                high = pnl;
+                low = pnl;
+                return;
+            }
+            if(closes == null && tradeCcy == ccy) {
+                close = close.add(pnl);
+                high = high.max(close);
+                low = low.min(close);
+                return;
+            }
+            if(closes == null) {
+                //A second currency, so the sums so far are converted now, and each trade from here on
+                closes = new BigDecimal[targets.length];
+                highs = new BigDecimal[targets.length];
+                lows = new BigDecimal[targets.length];
+                for(int t = 0; t < targets.length; t++) {
+                    closes[t] = convert(close, ccy, t, slice);
+                    highs[t] = convert(high, ccy, t, slice);
+                    lows[t] = convert(low, ccy, t, slice);
+                }
+            }
+            for(int t = 0; t < targets.length; t++) {
+                closes[t] = closes[t].add(convert(pnl, tradeCcy, t, slice));
+                highs[t] = highs[t].max(closes[t]);
+                lows[t] = lows[t].min(closes[t]);
+            }
+        }
+    }
+}
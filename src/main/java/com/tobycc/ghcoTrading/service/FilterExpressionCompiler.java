@@ -0,0 +1,494 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.FilterExpression;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.model.enums.FilterOperator;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import com.tobycc.ghcoTrading.store.DimensionDictionary;
+import com.tobycc.ghcoTrading.store.StringIntHashMap;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compiles a {@link FilterExpression} once per request into a predicate that tests each trade without allocating or
+ * unwrapping Optionals.
+ *
+ * NOTs are pushed down onto the equality and range tests, nested ANDs and ORs are flattened into one array of terms
+ * each, and the INs over one field an OR (or the NOT INs an AND) is made of are merged. Each AND then tests its terms
+ * in the order that rejects a trade for the least expected work, most selective and cheapest first, and each OR in the
+ * order that accepts one soonest, by the selectivities the {@link FilterStatistics} estimate.
+ */
+public final class FilterExpressionCompiler {
+
+    //Range tests are guessed to pass this fraction of trades for each bound they are given
+    private static final double RANGE_BOUND_SELECTIVITY = 0.5;
+    //Offset of a price scale into the bounds precomputed for every scale a columnar store can hold
+    private static final int SCALE_OFFSET = -Byte.MIN_VALUE;
+    private static final int SCALES = Byte.MAX_VALUE - Byte.MIN_VALUE + 1;
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+    //Digits before the point of a value that is too large, or too small but not zero, to be a price a columnar store can
+    //hold, as a long unscaled value at a byte scale is less than 1e147, and is at least 1e-127 unless zero
+    private static final int MAX_PRICE_DIGITS = 148;
+    private static final int MIN_PRICE_DIGITS = -127;
+
+    private FilterExpressionCompiler() {
+    }
+
+    /**
+     * @param expression
+     * @param statistics: to order the terms by
+     * @return predicate over Trades
+     */
+    public static Predicate<Trade> compile(FilterExpression expression, FilterStatistics statistics) {
+        return tradePredicate(plan(expression, false, statistics));
+    }
+
+    /**
+     * Compiles the expression against the dictionaries and columns of a columnar store, so its trades can be tested by
+     * slot without being built. Values the store has never seen cannot match any of its trades.
+     * @param expression
+     * @param store
+     * @param statistics: to order the terms by
+     * @return predicate over the store's live slots
+     */
+    public static IntPredicate bind(FilterExpression expression, ColumnarTradeStore store, FilterStatistics statistics) {
+        return slotPredicate(plan(expression, false, statistics), store);
+    }
+
+    /**
+     * Plans the expression, or its negation, as a tree of ANDs and ORs over possibly negated leaf tests
+     */
+    private static Node plan(FilterExpression expression, boolean negated, FilterStatistics statistics) {
+        switch (expression.op()) {
+            case NOT:
+                return plan(expression.terms().get().get(0), !negated, statistics);
+            case EQ:
+            case IN:
+                return new Leaf(expression.field().get(), negated, new LinkedHashSet<>(expression.values().get()), null, null, statistics);
+            case RANGE:
+                return new Leaf(expression.field().get(), negated, null, expression.from().orElse(null),
+                        expression.to().orElse(null), statistics);
+            default:
+                //NOT (a AND b) is (NOT a) OR (NOT b), and NOT (a OR b) is (NOT a) AND (NOT b)
+                boolean all = (expression.op() == FilterOperator.AND) != negated;
+                List<Node> terms = new ArrayList<>();
+                for(FilterExpression term: expression.terms().get()) {
+                    Node node = plan(term, negated, statistics);
+                    if(node instanceof Junction junction && junction.all == all) {
+                        terms.addAll(junction.terms);
+                    } else {
+                        terms.add(node);
+                    }
+                }
+                terms = mergeIns(terms, all, statistics);
+                return terms.size() == 1 ? terms.get(0) : new Junction(all, terms);
+        }
+    }
+
+    /**
+     * Merges "f IN a OR f IN b" into "f IN a + b", and "NOT f IN a AND NOT f IN b" into "NOT f IN a + b"
+     */
+    private static List<Node> mergeIns(List<Node> terms, boolean all, FilterStatistics statistics) {
+        Map<FilterField, Integer> merged = new EnumMap<>(FilterField.class);
+        List<Node> mergedTerms = new ArrayList<>(terms.size());
+        for(Node term: terms) {
+            if(term instanceof Leaf leaf && leaf.values != null && leaf.negated == all) {
+                Integer index = merged.get(leaf.field);
+                if(index != null) {
+                    Set<String> values = new LinkedHashSet<>(((Leaf) mergedTerms.get(index)).values);
+                    values.addAll(leaf.values);
+                    mergedTerms.set(index, new Leaf(leaf.field, leaf.negated, values, null, null, statistics));
+                    continue;
+                }
+                merged.put(leaf.field, mergedTerms.size());
+            }
+            mergedTerms.add(term);
+        }
+        return mergedTerms;
+    }
+
+    private static Predicate<Trade> tradePredicate(Node node) {
+        if(node instanceof Junction junction) {
+            @SuppressWarnings("unchecked")
+            Predicate<Trade>[] terms = junction.terms.stream().map(FilterExpressionCompiler::tradePredicate).toArray(Predicate[]::new);
+            return junction.all ? new AllOf(terms) : new AnyOf(terms);
+        }
+        Leaf leaf = (Leaf) node;
+        Predicate<Trade> test = leaf.values != null ? inTrades(leaf) : rangeTrades(leaf);
+        return leaf.negated ? test.negate() : test;
+    }
+
+    private static Predicate<Trade> inTrades(Leaf leaf) {
+        switch (leaf.field) {
+            case CURRENCY: {
+                boolean[] in = mask(Currency.values().length, leaf.values, value -> Currency.valueOf(value).ordinal());
+                return t -> t.getCcy() != null && in[t.getCcy().ordinal()];
+            }
+            case SIDE: {
+                boolean[] in = mask(Side.values().length, leaf.values, value -> Side.valueOf(value).ordinal());
+                return t -> t.getSide() != null && in[t.getSide().ordinal()];
+            }
+            case PRICE: {
+                BigDecimal[] prices = leaf.values.stream().map(BigDecimal::new).toArray(BigDecimal[]::new);
+                return t -> {
+                    if(t.getPrice() == null) {
+                        return false;
+                    }
+                    for(BigDecimal price: prices) {
+                        if(price.compareTo(t.getPrice()) == 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            case VOLUME: {
+                int[] volumes = leaf.values.stream().mapToInt(Integer::parseInt).sorted().toArray();
+                return t -> t.getVolume() != null && Arrays.binarySearch(volumes, t.getVolume()) >= 0;
+            }
+            case DATE_TIME: {
+                Set<LocalDateTime> dateTimes = new HashSet<>();
+                leaf.values.forEach(value -> dateTimes.add(LocalDateTime.parse(value)));
+                return t -> dateTimes.contains(t.getDateTime());
+            }
+            default: {
+                Function<Trade, String> getter = switch (leaf.field.aggregateField()) {
+                    case BBG_CODE -> Trade::getBbgCode;
+                    case PORTFOLIO -> Trade::getPortfolio;
+                    case ACCOUNT -> Trade::getAccount;
+                    case STRATEGY -> Trade::getStrategy;
+                    case USER -> Trade::getUser;
+                    case CURRENCY -> throw new IllegalStateException();
+                };
+                if(leaf.values.size() == 1) {
+                    String value = leaf.values.iterator().next();
+                    return t -> value.equals(getter.apply(t));
+                }
+                Set<String> values = new HashSet<>(leaf.values);
+                return t -> values.contains(getter.apply(t));
+            }
+        }
+    }
+
+    private static Predicate<Trade> rangeTrades(Leaf leaf) {
+        switch (leaf.field) {
+            case PRICE: {
+                BigDecimal from = leaf.from != null ? new BigDecimal(leaf.from) : null;
+                BigDecimal to = leaf.to != null ? new BigDecimal(leaf.to) : null;
+                return t -> t.getPrice() != null && (from == null || t.getPrice().compareTo(from) >= 0)
+                        && (to == null || t.getPrice().compareTo(to) < 0);
+            }
+            case VOLUME: {
+                long from = leaf.from != null ? Integer.parseInt(leaf.from) : Long.MIN_VALUE;
+                long to = leaf.to != null ? Integer.parseInt(leaf.to) : Long.MAX_VALUE;
+                return t -> t.getVolume() != null && t.getVolume() >= from && t.getVolume() < to;
+            }
+            default: {
+                LocalDateTime from = leaf.from != null ? LocalDateTime.parse(leaf.from) : null;
+                LocalDateTime to = leaf.to != null ? LocalDateTime.parse(leaf.to) : null;
+                return t -> t.getDateTime() != null && (from == null || !t.getDateTime().isBefore(from))
+                        && (to == null || t.getDateTime().isBefore(to));
+            }
+        }
+    }
+
+    private static IntPredicate slotPredicate(Node node, ColumnarTradeStore store) {
+        if(node instanceof Junction junction) {
+            IntPredicate[] terms = junction.terms.stream().map(term -> slotPredicate(term, store)).toArray(IntPredicate[]::new);
+            return junction.all ? new AllSlots(terms) : new AnySlots(terms);
+        }
+        Leaf leaf = (Leaf) node;
+        IntPredicate test = leaf.values != null ? inSlots(leaf, store) : rangeSlots(leaf, store);
+        return leaf.negated ? test.negate() : test;
+    }
+
+    private static IntPredicate inSlots(Leaf leaf, ColumnarTradeStore store) {
+        switch (leaf.field) {
+            case CURRENCY: {
+                boolean[] in = mask(Currency.values().length, leaf.values, value -> Currency.valueOf(value).ordinal());
+                return slot -> in[store.dimensionId(AggregateField.CURRENCY, slot)];
+            }
+            case SIDE: {
+                boolean[] in = mask(Side.values().length, leaf.values, value -> Side.valueOf(value).ordinal());
+                return slot -> in[store.side(slot).ordinal()];
+            }
+            case PRICE: {
+                //A price equals the value when its unscaled value is both the value rounded up and down to its scale
+                long[][][] ranges = leaf.values.stream().map(BigDecimal::new)
+                        .map(value -> unscaledRanges(scaledBounds(value, RoundingMode.CEILING), scaledBounds(value, RoundingMode.FLOOR)))
+                        .toArray(long[][][]::new);
+                return slot -> {
+                    int scale = store.priceScale(slot) + SCALE_OFFSET;
+                    long unscaled = store.unscaledPrice(slot);
+                    for(long[][] range: ranges) {
+                        if(unscaled >= range[0][scale] && unscaled <= range[1][scale]) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            case VOLUME: {
+                int[] volumes = leaf.values.stream().mapToInt(Integer::parseInt).sorted().toArray();
+                return slot -> Arrays.binarySearch(volumes, store.volume(slot)) >= 0;
+            }
+            case DATE_TIME: {
+                //Trade times are whole microseconds, so no trade is at a time between them
+                long[] micros = leaf.values.stream().map(LocalDateTime::parse)
+                        .filter(dateTime -> dateTime.getNano() % 1000 == 0)
+                        .mapToLong(FilterExpressionCompiler::ceilEpochMicros)
+                        .sorted().toArray();
+                return slot -> Arrays.binarySearch(micros, store.tradeTimeMicros(slot)) >= 0;
+            }
+            default: {
+                AggregateField field = leaf.field.aggregateField();
+                DimensionDictionary dictionary = store.dictionary(field);
+                BitSet ids = new BitSet();
+                leaf.values.stream().mapToInt(dictionary::idOf).filter(id -> id != StringIntHashMap.MISSING).forEach(ids::set);
+                if(ids.isEmpty()) {
+                    return slot -> false;
+                }
+                if(ids.cardinality() == 1) {
+                    int id = ids.nextSetBit(0);
+                    return slot -> store.dimensionId(field, slot) == id;
+                }
+                return slot -> ids.get(store.dimensionId(field, slot));
+            }
+        }
+    }
+
+    private static IntPredicate rangeSlots(Leaf leaf, ColumnarTradeStore store) {
+        switch (leaf.field) {
+            case PRICE: {
+                //Both bounds rounded up, as price >= from is unscaled >= ceil(from), and price < to is unscaled <= ceil(to) - 1
+                BigInteger[] from = leaf.from != null ? scaledBounds(new BigDecimal(leaf.from), RoundingMode.CEILING) : null;
+                BigInteger[] to = leaf.to != null ? Arrays.stream(scaledBounds(new BigDecimal(leaf.to), RoundingMode.CEILING))
+                        .map(bound -> bound.subtract(BigInteger.ONE)).toArray(BigInteger[]::new) : null;
+                long[][] range = unscaledRanges(from, to);
+                return slot -> {
+                    int scale = store.priceScale(slot) + SCALE_OFFSET;
+                    long unscaled = store.unscaledPrice(slot);
+                    return unscaled >= range[0][scale] && unscaled <= range[1][scale];
+                };
+            }
+            case VOLUME: {
+                long from = leaf.from != null ? Integer.parseInt(leaf.from) : Long.MIN_VALUE;
+                long to = leaf.to != null ? Integer.parseInt(leaf.to) : Long.MAX_VALUE;
+                return slot -> store.volume(slot) >= from && store.volume(slot) < to;
+            }
+            default: {
+                long from = leaf.from != null ? ceilEpochMicros(LocalDateTime.parse(leaf.from)) : Long.MIN_VALUE;
+                long to = leaf.to != null ? ceilEpochMicros(LocalDateTime.parse(leaf.to)) : Long.MAX_VALUE;
+                return slot -> store.tradeTimeMicros(slot) >= from && store.tradeTimeMicros(slot) < to;
+            }
+        }
+    }
+
+    private static boolean[] mask(int size, Set<String> values, ToIntFunction<String> ordinal) {
+        boolean[] mask = new boolean[size];
+        values.forEach(value -> mask[ordinal.applyAsInt(value)] = true);
+        return mask;
+    }
+
+    /**
+     * @return the value's unscaled value at every scale a columnar store can hold a price at, rounded by the mode
+     */
+    private static BigInteger[] scaledBounds(BigDecimal value, RoundingMode mode) {
+        //Rescaling a value as far outside the prices a store can hold as e.g. 1e999999999 or 1e-999999999 would need a
+        //power of ten of as many digits, so it is first clamped to just outside them. The bounds are the same, as no
+        //price lies between the value and the clamped value.
+        long digitsBeforePoint = value.precision() - (long) value.scale();
+        if(digitsBeforePoint > MAX_PRICE_DIGITS) {
+            value = BigDecimal.valueOf(value.signum(), -MAX_PRICE_DIGITS);
+        } else if(digitsBeforePoint < MIN_PRICE_DIGITS && value.signum() != 0) {
+            value = BigDecimal.valueOf(value.signum(), 1 - MIN_PRICE_DIGITS);
+        }
+        BigInteger[] bounds = new BigInteger[SCALES];
+        for(int scale = Byte.MIN_VALUE; scale <= Byte.MAX_VALUE; scale++) {
+            bounds[scale + SCALE_OFFSET] = value.setScale(scale, mode).unscaledValue();
+        }
+        return bounds;
+    }
+
+    /**
+     * @param lowest: lowest unscaled value at each scale, inclusive, or null for none
+     * @param highest: highest unscaled value at each scale, inclusive, or null for none
+     * @return the lowest [0] and highest [1] long unscaled value at each scale between the two, or 1 and 0 where no long
+     * is. Clamping each bound to a long on its own would instead let a bound above every long pass Long.MAX_VALUE.
+     */
+    private static long[][] unscaledRanges(BigInteger[] lowest, BigInteger[] highest) {
+        long[][] ranges = new long[2][SCALES];
+        for(int i = 0; i < SCALES; i++) {
+            BigInteger low = lowest != null ? lowest[i].max(LONG_MIN) : LONG_MIN;
+            BigInteger high = highest != null ? highest[i].min(LONG_MAX) : LONG_MAX;
+            if(low.compareTo(high) > 0) {
+                ranges[0][i] = 1;
+                ranges[1][i] = 0;
+            } else {
+                ranges[0][i] = low.longValue();
+                ranges[1][i] = high.longValue();
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return microseconds since the epoch, reading the date time as UTC and rounding up, clamped to a long
+     */
+    private static long ceilEpochMicros(LocalDateTime dateTime) {
+        long seconds = dateTime.toEpochSecond(ZoneOffset.UTC);
+        try {
+            return Math.addExact(Math.multiplyExact(seconds, 1_000_000L), (dateTime.getNano() + 999) / 1000);
+        } catch (ArithmeticException e) {
+            return seconds < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    private abstract static class Node {
+
+        //Estimated fraction of trades passing, and expected cost of testing a trade
+        protected double selectivity;
+        protected double cost;
+    }
+
+    private static final class Junction extends Node {
+
+        //AND if true, otherwise OR
+        private final boolean all;
+        private final List<Node> terms;
+
+        private Junction(boolean all, List<Node> terms) {
+            this.all = all;
+            //An AND stops at the first term a trade fails and an OR at the first it passes, so order the terms by their
+            //cost over the chance of stopping there
+            this.terms = terms.stream()
+                    .sorted(Comparator.comparingDouble(term -> term.cost / (all ? 1 - term.selectivity : term.selectivity)))
+                    .toList();
+
+            double reached = 1;
+            for(Node term: this.terms) {
+                cost += reached * term.cost;
+                reached *= all ? term.selectivity : 1 - term.selectivity;
+            }
+            selectivity = all ? reached : 1 - reached;
+        }
+    }
+
+    private static final class Leaf extends Node {
+
+        private final FilterField field;
+        private final boolean negated;
+        //The values for EQ and IN, otherwise null
+        private final Set<String> values;
+        //The bounds of a RANGE, null where open
+        private final String from;
+        private final String to;
+
+        private Leaf(FilterField field, boolean negated, Set<String> values, String from, String to, FilterStatistics statistics) {
+            this.field = field;
+            this.negated = negated;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+
+            double passing = values != null
+                    ? Math.max(0, Math.min(1, statistics.selectivity(field, values)))
+                    : (from != null ? RANGE_BOUND_SELECTIVITY : 1) * (to != null ? RANGE_BOUND_SELECTIVITY : 1);
+            selectivity = negated ? 1 - passing : passing;
+            //Enums and ints are compared directly, strings and prices take longer, and a set of strings longer still
+            cost = field == FilterField.PRICE ? 2
+                    : field.aggregateField() == null || field == FilterField.CURRENCY ? 1
+                    : values != null && values.size() > 1 ? 3 : 2;
+        }
+    }
+
+    private static final class AllOf implements Predicate<Trade> {
+
+        private final Predicate<Trade>[] terms;
+
+        private AllOf(Predicate<Trade>[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean test(Trade trade) {
+            for(Predicate<Trade> term: terms) {
+                if(!term.test(trade)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class AnyOf implements Predicate<Trade> {
+
+        private final Predicate<Trade>[] terms;
+
+        private AnyOf(Predicate<Trade>[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean test(Trade trade) {
+            for(Predicate<Trade> term: terms) {
+                if(term.test(trade)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class AllSlots implements IntPredicate {
+
+        private final IntPredicate[] terms;
+
+        private AllSlots(IntPredicate[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean test(int slot) {
+            for(IntPredicate term: terms) {
+                if(!term.test(slot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class AnySlots implements IntPredicate {
+
+        private final IntPredicate[] terms;
+
+        private AnySlots(IntPredicate[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean test(int slot) {
+            for(IntPredicate term: terms) {
+                if(term.test(slot)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.model.enums.Side;
+
+import java.util.Collection;
+
+/**
+ * Estimates how many trades an equality test passes, so {@link FilterExpressionCompiler} can order the terms of a
+ * filter expression to reject or accept each trade as early as it can
+ */
+@FunctionalInterface
+public interface FilterStatistics {
+
+    /**
+     * Rough guesses from how many distinct values each field tends to hold, for when nothing better is known
+     */
+    FilterStatistics ESTIMATED = (field, values) -> Math.min(1.0, values.size() * switch (field) {
+        case CURRENCY -> 1.0 / Currency.values().length;
+        case SIDE -> 1.0 / Side.values().length;
+        case PORTFOLIO, ACCOUNT, STRATEGY, USER -> 0.1;
+        default -> 0.01;
+    });
+
+    /**
+     * @param field
+     * @param values
+     * @return the estimated fraction of trades, from 0 to 1, whose field is one of the values
+     */
+    double selectivity(FilterField field, Collection<String> values);
+}
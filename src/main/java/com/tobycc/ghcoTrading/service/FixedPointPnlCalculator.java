@@ -0,0 +1,352 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Optional;
+import java.util.RandomAccess;
+
+/**
+ * Fixed-point alternative to the BigDecimal pnl arithmetic, enabled with "aggregation.fixedPoint".
+ *
+ * Trade pnl is held as a long scaled to "aggregation.fixedPointScale" decimal places, and cumulative positions as 128 bit
+ * integers at that scale, so a position can grow far past a long (about 9.2e10 at scale 8, which a KRW book reaches
+ * routinely) and stay on this path. Only a single trade's pnl has to fit in a long; if one does not, an
+ * ArithmeticException is thrown, on which the caller recomputes that group with BigDecimals. Positions only become
+ * BigDecimals when a {@link FixedPointSeries} is read, i.e. when the response is written.
+ *
+ * Without FX conversion, and with prices of no more decimal places than the scale, results are exact. Each FX
+ * converted trade is rounded half-even to the scale, so a position built from n converted trades is within n/2 units
+ * of the last decimal place of the BigDecimal result. Trades are converted at the unscaled rates of the {@link FxRates}
+ * slice their time falls in.
+ */
+public class FixedPointPnlCalculator {
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final int scale;
+
+    /**
+     * @param scale: decimal places positions are held to, at most 18
+     */
+    public FixedPointPnlCalculator(int scale) {
+        if(scale < 0 || scale >= POWERS_OF_TEN.length) {
+            throw new IllegalArgumentException("Fixed point scale must be between 0 and " + (POWERS_OF_TEN.length - 1));
+        }
+        this.scale = scale;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Cumulative pnl series of trades already sorted by time
+     * @param trades
+     * @param convertIntoCurrency
+     * @param fxRates
+     * @throws ArithmeticException on overflow
+     */
+    public FixedPointSeries aggregate(List<Trade> trades, Optional<Currency> convertIntoCurrency, FxRates fxRates) {
+        LocalDateTime[] times = new LocalDateTime[trades.size()];
+        SeriesBuilder series = new SeriesBuilder(trades.size());
+        for(int i = 0; i < trades.size(); i++) {
+            Trade t = trades.get(i);
+            BigDecimal price = t.getPrice();
+            series.add(tradePnl(price.unscaledValue().longValueExact(), price.scale(), t.getVolume(),
+                    t.getSide(), t.getCcy(), convertIntoCurrency, fxRates, t.getDateTime()));
+            times[i] = t.getDateTime();
+        }
+        return series.build(times, null, scale);
+    }
+
+    /**
+     * Cumulative pnl series of the slots of a columnar store, already sorted by time
+     * @param store
+     * @param slots
+     * @param size: number of slots used
+     * @param convertIntoCurrency
+     * @param fxRates
+     * @throws ArithmeticException on overflow
+     */
+    public FixedPointSeries aggregate(ColumnarTradeStore store, int[] slots, int size, Optional<Currency> convertIntoCurrency,
+                                      FxRates fxRates) {
+        long[] times = new long[size];
+        SeriesBuilder series = new SeriesBuilder(size);
+        for(int i = 0; i < size; i++) {
+            int slot = slots[i];
+            series.add(tradePnl(store.unscaledPrice(slot), store.priceScale(slot), store.volume(slot),
+                    store.side(slot), store.currency(slot), convertIntoCurrency, fxRates, store.tradeTimeMicros(slot)));
+            times[i] = store.tradeTimeMicros(slot);
+        }
+        return series.build(null, times, scale);
+    }
+
+    /**
+     * As aggregate, summarised into buckets of the given size as it is summed
+     * @throws ArithmeticException on overflow
+     */
+    public List<PnLPosition> aggregateBuckets(List<Trade> trades, Optional<Currency> convertIntoCurrency, FxRates fxRates,
+                                              Duration bucket) {
+        PnLBuckets buckets = new PnLBuckets(bucket, scale);
+        Position position = new Position();
+        for(Trade t: trades) {
+            BigDecimal price = t.getPrice();
+            position.add(tradePnl(price.unscaledValue().longValueExact(), price.scale(), t.getVolume(),
+                    t.getSide(), t.getCcy(), convertIntoCurrency, fxRates, t.getDateTime()));
+            buckets.add(PnLBuckets.epochSecond(t.getDateTime()), position.upper, position.lower);
+        }
+        return buckets.finish();
+    }
+
+    /**
+     * As aggregate, for the slots of a columnar store, summarised into buckets of the given size as it is summed
+     * @throws ArithmeticException on overflow
+     */
+    public List<PnLPosition> aggregateBuckets(ColumnarTradeStore store, int[] slots, int size, Optional<Currency> convertIntoCurrency,
+                                              FxRates fxRates, Duration bucket) {
+        PnLBuckets buckets = new PnLBuckets(bucket, scale);
+        Position position = new Position();
+        for(int i = 0; i < size; i++) {
+            int slot = slots[i];
+            position.add(tradePnl(store.unscaledPrice(slot), store.priceScale(slot), store.volume(slot),
+                    store.side(slot), store.currency(slot), convertIntoCurrency, fxRates, store.tradeTimeMicros(slot)));
+            buckets.add(PnLBuckets.epochSecond(store.tradeTimeMicros(slot)), position.upper, position.lower);
+        }
+        return buckets.finish();
+    }
+
+    private long tradePnl(long unscaledPrice, int priceScale, int volume, Side side, Currency ccy, Optional<Currency> convertIntoCurrency,
+                          FxRates fxRates, LocalDateTime dateTime) {
+        long pnl = signedPnl(unscaledPrice, priceScale, volume, side);
+        return convertIntoCurrency.isPresent() && convertIntoCurrency.get() != ccy
+                ? convert(pnl, ccy, convertIntoCurrency.get(), fxRates, fxRates.slice(dateTime)) : pnl;
+    }
+
+    private long tradePnl(long unscaledPrice, int priceScale, int volume, Side side, Currency ccy, Optional<Currency> convertIntoCurrency,
+                          FxRates fxRates, long epochMicros) {
+        long pnl = signedPnl(unscaledPrice, priceScale, volume, side);
+        return convertIntoCurrency.isPresent() && convertIntoCurrency.get() != ccy
+                ? convert(pnl, ccy, convertIntoCurrency.get(), fxRates, fxRates.slice(epochMicros)) : pnl;
+    }
+
+    /**
+     * Signed pnl of one trade before any conversion, as TradeAggregationService.tradePnl
+     * @return pnl scaled to the fixed point scale
+     * @throws ArithmeticException on overflow
+     */
+    private long signedPnl(long unscaledPrice, int priceScale, int volume, Side side) {
+        long pnl = rescale(Math.multiplyExact(unscaledPrice, volume), priceScale);
+        return side == Side.B ? Math.negateExact(pnl) : pnl;
+    }
+
+    private static long convert(long pnl, Currency from, Currency to, FxRates fxRates, int slice) {
+        return multiplyAndRound(pnl, fxRates.unscaledRate(slice, from, to), POWERS_OF_TEN[fxRates.getRateScale()]);
+    }
+
+    private long rescale(long unscaled, int fromScale) {
+        if(fromScale == scale) {
+            return unscaled;
+        }
+        if(fromScale < scale) {
+            int shift = scale - fromScale;
+            if(shift >= POWERS_OF_TEN.length) {
+                throw new ArithmeticException("Scale difference too large");
+            }
+            return Math.multiplyExact(unscaled, POWERS_OF_TEN[shift]);
+        }
+        int shift = fromScale - scale;
+        return shift >= POWERS_OF_TEN.length ? 0 : multiplyAndRound(unscaled, 1, POWERS_OF_TEN[shift]);
+    }
+
+    /**
+     * a * b / divisor, rounded half-even, through a 128 bit product so that no precision is lost before the divide
+     * @throws ArithmeticException if the result does not fit in a long
+     */
+    static long multiplyAndRound(long a, long b, long divisor) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        boolean negative = high < 0;
+        if(negative) {
+            //Two's complement negate of the 128 bit product
+            low = -low;
+            high = low == 0 ? -high : ~high;
+        }
+        if(Long.compareUnsigned(high, divisor) >= 0) {
+            throw new ArithmeticException("Fixed point overflow");
+        }
+
+        long quotient;
+        long remainder;
+        if(high == 0 && low >= 0) {
+            quotient = low / divisor;
+            remainder = low % divisor;
+        } else {
+            quotient = divide(high, low, divisor);
+            //The true remainder is below the divisor, so wrapping arithmetic gives it exactly
+            remainder = low - quotient * divisor;
+        }
+
+        //Round half-even: up if over half, or exactly half and the quotient is odd
+        long twiceRemainder = remainder << 1;
+        int half = Long.compareUnsigned(twiceRemainder, divisor);
+        if(half > 0 || (half == 0 && (quotient & 1) == 1)) {
+            quotient++;
+        }
+        if(quotient < 0) {
+            throw new ArithmeticException("Fixed point overflow");
+        }
+        return negative ? -quotient : quotient;
+    }
+
+    /**
+     * Unsigned division of the 128 bit high:low by the divisor, where high is below the divisor so the quotient fits in
+     * 64 bits. Two steps of long division in base 2^32 on the normalised divisor (Hacker's Delight, divlu).
+     */
+    private static long divide(long high, long low, long divisor) {
+        long base = 1L << 32;
+        int shift = Long.numberOfLeadingZeros(divisor);
+        long v = divisor << shift;
+        long vHigh = v >>> 32;
+        long vLow = v & 0xFFFFFFFFL;
+        long uHigh = (high << shift) | (shift == 0 ? 0 : low >>> (64 - shift));
+        long uLow = low << shift;
+        long uLowHigh = uLow >>> 32;
+        long uLowLow = uLow & 0xFFFFFFFFL;
+
+        long q1 = Long.divideUnsigned(uHigh, vHigh);
+        long rHat = Long.remainderUnsigned(uHigh, vHigh);
+        while(Long.compareUnsigned(q1, base) >= 0 || Long.compareUnsigned(q1 * vLow, base * rHat + uLowHigh) > 0) {
+            q1--;
+            rHat += vHigh;
+            if(Long.compareUnsigned(rHat, base) >= 0) break;
+        }
+
+        long u21 = uHigh * base + uLowHigh - q1 * v;
+        long q0 = Long.divideUnsigned(u21, vHigh);
+        rHat = Long.remainderUnsigned(u21, vHigh);
+        while(Long.compareUnsigned(q0, base) >= 0 || Long.compareUnsigned(q0 * vLow, base * rHat + uLowLow) > 0) {
+            q0--;
+            rHat += vHigh;
+            if(Long.compareUnsigned(rHat, base) >= 0) break;
+        }
+        return q1 * base + q0;
+    }
+
+    /**
+     * Compares two 128 bit integers, each given as its upper and lower longs
+     */
+    static int compare(long upperA, long lowerA, long upperB, long lowerB) {
+        return upperA != upperB ? Long.compare(upperA, upperB) : Long.compareUnsigned(lowerA, lowerB);
+    }
+
+    /**
+     * @return the 128 bit integer given as its upper and lower longs, as a BigDecimal of the scale
+     */
+    static BigDecimal toBigDecimal(long upper, long lower, int scale) {
+        if(upper == lower >> 63) {
+            return BigDecimal.valueOf(lower, scale);
+        }
+        BigInteger unsignedLower = BigInteger.valueOf(lower >>> 1).shiftLeft(1).or(BigInteger.valueOf(lower & 1));
+        return new BigDecimal(BigInteger.valueOf(upper).shiftLeft(64).or(unsignedLower), scale);
+    }
+
+    /**
+     * A cumulative position as a 128 bit integer, held as its upper and lower longs
+     */
+    private static final class Position {
+
+        private long upper;
+        private long lower;
+
+        private void add(long pnl) {
+            long sum = lower + pnl;
+            //Adds the sign extension of the pnl and the carry out of the lower longs
+            upper += (pnl >> 63) + (Long.compareUnsigned(sum, lower) < 0 ? 1 : 0);
+            lower = sum;
+        }
+    }
+
+    /**
+     * Collects the positions of a series, only keeping their upper longs once a position has needed one
+     */
+    private static final class SeriesBuilder {
+
+        private final Position position = new Position();
+        private final long[] lowers;
+        private long[] uppers;
+        private int size;
+
+        private SeriesBuilder(int capacity) {
+            this.lowers = new long[capacity];
+        }
+
+        private void add(long pnl) {
+            position.add(pnl);
+            if(uppers == null && position.upper != position.lower >> 63) {
+                uppers = new long[lowers.length];
+                for(int i = 0; i < size; i++) {
+                    uppers[i] = lowers[i] >> 63;
+                }
+            }
+            if(uppers != null) {
+                uppers[size] = position.upper;
+            }
+            lowers[size++] = position.lower;
+        }
+
+        private FixedPointSeries build(LocalDateTime[] dateTimes, long[] epochMicros, int scale) {
+            return new FixedPointSeries(dateTimes, epochMicros, uppers, lowers, scale);
+        }
+    }
+
+    /**
+     * A cumulative pnl series held as scaled 128 bit integers, building each PnLPosition (and its BigDecimal) only when read
+     */
+    public static final class FixedPointSeries extends AbstractList<PnLPosition> implements RandomAccess {
+
+        //Times are either the trades' own date times or, from a columnar store, epoch micros
+        private final LocalDateTime[] dateTimes;
+        private final long[] epochMicros;
+        //Upper longs of the positions, null if every position fits in its lower long
+        private final long[] uppers;
+        private final long[] lowers;
+        private final int scale;
+
+        private FixedPointSeries(LocalDateTime[] dateTimes, long[] epochMicros, long[] uppers, long[] lowers, int scale) {
+            this.dateTimes = dateTimes;
+            this.epochMicros = epochMicros;
+            this.uppers = uppers;
+            this.lowers = lowers;
+            this.scale = scale;
+        }
+
+        @Override
+        public PnLPosition get(int index) {
+            LocalDateTime dateTime = dateTimes != null ? dateTimes[index] : ColumnarTradeStore.fromEpochMicros(epochMicros[index]);
+            return new PnLPosition(dateTime, uppers == null
+                    ? BigDecimal.valueOf(lowers[index], scale) : toBigDecimal(uppers[index], lowers[index], scale));
+        }
+
+        @Override
+        public int size() {
+            return lowers.length;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.props.FileProps;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * With "file.fxRates", loads the FX rate history from "file.fxRatesFile" on startup, then checks it every
+ * "file.fxReloadIntervalSeconds" and reloads it if it has changed.
+ *
+ * A reload is read in full into a new {@link FxRates} before being swapped in, so aggregations running meanwhile carry
+ * on with the rates they started with and are never paused. Cached results of the old rates are then dropped. A file
+ * that fails to load leaves the rates in use as they were.
+ */
+@Service
+public class FxRateLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FxRateLoader.class);
+
+    private final FileProps fileProps;
+    private final AggregationResultCache aggregationResultCache;
+
+    private ScheduledExecutorService scheduler;
+    //Size and modified time of the file when last loaded, to tell when it has changed
+    private long loadedSize = -1;
+    private long loadedModifiedMillis = -1;
+
+    public FxRateLoader(FileProps fileProps, AggregationResultCache aggregationResultCache) {
+        this.fileProps = fileProps;
+        this.aggregationResultCache = aggregationResultCache;
+    }
+
+    @PostConstruct
+    public void startReloading() {
+        if(fileProps.isFxRates()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fx-rate-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloadQuietly();
+            scheduler.scheduleWithFixedDelay(this::reloadQuietly, fileProps.getFxReloadIntervalSeconds(),
+                    fileProps.getFxReloadIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stopReloading() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the rate file and swaps it in, unless it is unchanged since it was last loaded
+     * @return whether the rates were reloaded
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not a valid rate history
+     */
+    public synchronized boolean reload() throws IOException {
+        Path file = Path.of(fileProps.getBaseDirectory(), fileProps.getFxRatesFile());
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if(attributes.size() == loadedSize && attributes.lastModifiedTime().toMillis() == loadedModifiedMillis) {
+            return false;
+        }
+
+        FxRates fxRates = FxRates.load(file);
+        FxService.setRates(fxRates);
+        //After the swap, so a result of the old rates cached meanwhile is dropped too
+        aggregationResultCache.clear();
+        loadedSize = attributes.size();
+        loadedModifiedMillis = attributes.lastModifiedTime().toMillis();
+        LOGGER.info("Loaded " + fxRates.getSliceCount() + " slices of FX rates from " + file);
+        return true;
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to load FX rates, keeping the rates in use: " + e.getMessage());
+        }
+    }
+}
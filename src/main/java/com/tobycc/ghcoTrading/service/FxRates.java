@@ -0,0 +1,179 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * An immutable history of FX rates, as a dense matrix of every pair indexed by Currency ordinal for each slice of time
+ * the rates held for. A trade is converted at the rate of the slice its time falls in, found by binary search on the
+ * slice start times, so a conversion is two array reads rather than hashing an FxPair. Trades from before the first
+ * slice use its rates.
+ *
+ * Rates are also kept as unscaled longs at one shared scale, for FixedPointPnlCalculator.
+ */
+public final class FxRates {
+
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final int CURRENCY_COUNT = CURRENCIES.length;
+    //Largest scale the fixed point rates can be held at, as powers of ten up to 10^18 fit in a long
+    private static final int MAX_RATE_SCALE = 18;
+
+    //Epoch micros each slice holds from, ascending
+    private final long[] sliceStarts;
+    //Rate of each pair in each slice, indexed by [slice][from * CURRENCY_COUNT + to]
+    private final BigDecimal[][] rates;
+    //As rates, unscaled at rateScale, or null if any rate cannot be held as a long at a scale of at most 18
+    private final long[][] unscaledRates;
+    private final int rateScale;
+
+    private FxRates(long[] sliceStarts, BigDecimal[][] rates) {
+        this.sliceStarts = sliceStarts;
+        this.rates = rates;
+        this.rateScale = Arrays.stream(rates).flatMap(Arrays::stream).mapToInt(BigDecimal::scale).max().orElse(0);
+        this.unscaledRates = rateScale <= MAX_RATE_SCALE ? unscale(rates, rateScale) : null;
+    }
+
+    /**
+     * Rates that hold for all time
+     * @param rates: the rate of every pair of different currencies
+     * @throws IllegalArgumentException if a pair is missing or a rate is not positive
+     */
+    public static FxRates of(Map<FxService.FxPair, BigDecimal> rates) {
+        return new FxRates(new long[]{Long.MIN_VALUE}, new BigDecimal[][]{matrix(null, rates, "the given rates")});
+    }
+
+    /**
+     * Reads a rate history from a csv of validFrom,from,to,rate rows, e.g. 2010-01-01T00:00:00,GBP,USD,1.214049, with
+     * an optional header. The rows of a validFrom give the rates from that time on, and any pair without a row keeps
+     * its rate from the time before, so the earliest time must give every pair.
+     * @param file
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a row is malformed or the earliest time does not give every pair
+     */
+    public static FxRates load(Path file) throws IOException {
+        TreeMap<LocalDateTime, Map<FxService.FxPair, BigDecimal>> changes = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.isBlank() || (lineNumber == 1 && line.startsWith("validFrom"))) {
+                    continue;
+                }
+                String[] columns = line.split(",");
+                if(columns.length != 4) {
+                    throw new IllegalArgumentException("Line " + lineNumber + " of " + file + " should be validFrom,from,to,rate");
+                }
+                try {
+                    BigDecimal rate = new BigDecimal(columns[3].trim());
+                    changes.computeIfAbsent(LocalDateTime.parse(columns[0].trim()), t -> new HashMap<>())
+                            .put(new FxService.FxPair(Currency.valueOf(columns[1].trim()), Currency.valueOf(columns[2].trim())), rate);
+                } catch (DateTimeParseException | IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Line " + lineNumber + " of " + file + " is invalid: " + e.getMessage());
+                }
+            }
+        }
+        if(changes.isEmpty()) {
+            throw new IllegalArgumentException(file + " has no rates");
+        }
+
+        long[] sliceStarts = new long[changes.size()];
+        BigDecimal[][] rates = new BigDecimal[changes.size()][];
+        int slice = 0;
+        for(Map.Entry<LocalDateTime, Map<FxService.FxPair, BigDecimal>> change: changes.entrySet()) {
+            sliceStarts[slice] = ColumnarTradeStore.toEpochMicros(change.getKey());
+            rates[slice] = matrix(slice == 0 ? null : rates[slice - 1], change.getValue(), file + " at " + change.getKey());
+            slice++;
+        }
+        return new FxRates(sliceStarts, rates);
+    }
+
+    /**
+     * @param epochMicros: a trade time, as ColumnarTradeStore.toEpochMicros
+     * @return the slice whose rates hold at that time
+     */
+    public int slice(long epochMicros) {
+        if(sliceStarts.length == 1) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(sliceStarts, epochMicros);
+        return index >= 0 ? index : Math.max(-index - 2, 0);
+    }
+
+    public int slice(LocalDateTime dateTime) {
+        return sliceStarts.length == 1 ? 0 : slice(ColumnarTradeStore.toEpochMicros(dateTime));
+    }
+
+    public BigDecimal rate(int slice, Currency from, Currency to) {
+        return rates[slice][from.ordinal() * CURRENCY_COUNT + to.ordinal()];
+    }
+
+    /**
+     * @return the rate unscaled at getRateScale()
+     * @throws ArithmeticException if the rates cannot be held as longs
+     */
+    public long unscaledRate(int slice, Currency from, Currency to) {
+        if(unscaledRates == null) {
+            throw new ArithmeticException("FX rates have too many decimal places for fixed point");
+        }
+        return unscaledRates[slice][from.ordinal() * CURRENCY_COUNT + to.ordinal()];
+    }
+
+    public int getRateScale() {
+        return rateScale;
+    }
+
+    public int getSliceCount() {
+        return sliceStarts.length;
+    }
+
+    /**
+     * The previous slice's matrix with the given rates in place of its own, or with only the given rates if first
+     */
+    private static BigDecimal[] matrix(BigDecimal[] previous, Map<FxService.FxPair, BigDecimal> rates, String source) {
+        BigDecimal[] matrix = previous != null ? previous.clone() : new BigDecimal[CURRENCY_COUNT * CURRENCY_COUNT];
+        rates.forEach((pair, rate) -> {
+            if(rate.signum() <= 0) {
+                throw new IllegalArgumentException("Rate of " + pair.from() + " to " + pair.to() + " in " + source + " is not positive");
+            }
+            if(pair.from() != pair.to()) {
+                matrix[pair.from().ordinal() * CURRENCY_COUNT + pair.to().ordinal()] = rate;
+            }
+        });
+        for(Currency from: CURRENCIES) {
+            for(Currency to: CURRENCIES) {
+                int index = from.ordinal() * CURRENCY_COUNT + to.ordinal();
+                if(from == to) {
+                    matrix[index] = BigDecimal.ONE;
+                } else if(matrix[index] == null) {
+                    throw new IllegalArgumentException("No rate of " + from + " to " + to + " in " + source);
+                }
+            }
+        }
+        return matrix;
+    }
+
+    private static long[][] unscale(BigDecimal[][] rates, int scale) {
+        long[][] unscaled = new long[rates.length][];
+        for(int slice = 0; slice < rates.length; slice++) {
+            unscaled[slice] = new long[rates[slice].length];
+            for(int i = 0; i < rates[slice].length; i++) {
+                BigDecimal rate = rates[slice][i].setScale(scale);
+                if(rate.unscaledValue().bitLength() > 63) {
+                    return null;
+                }
+                unscaled[slice][i] = rate.unscaledValue().longValue();
+            }
+        }
+        return unscaled;
+    }
+}
@@ -13,6 +13,10 @@ import static com.tobycc.ghcoTrading.model.enums.Currency.*;
  * static mock data.
  *
  * This enables aggregating into a particular currency.
+ *
+ * The static map is the default. With "file.fxRates" a history of rates is loaded from a file instead, see FxRateLoader,
+ * and swapped in whole whenever it is reloaded. Aggregations read the current {@link FxRates} once and convert every
+ * trade with that, so a reload never pauses them or mixes two sets of rates within one.
  */
 public class FxService {
 
@@ -62,6 +66,17 @@ public class FxService {
             getMapEntry(USD, GBP, "1.214049")
     );
 
+    //The rates aggregations convert with, replaced whole on a reload
+    private static volatile FxRates rates = FxRates.of(FX_MAP);
+
+    public static FxRates getRates() {
+        return rates;
+    }
+
+    public static void setRates(FxRates rates) {
+        FxService.rates = rates;
+    }
+
     public static Map.Entry<FxPair, BigDecimal> getMapEntry(Currency to, Currency from, String rate) {
         return Map.entry(new FxPair(to, from), new BigDecimal(rate));
     }
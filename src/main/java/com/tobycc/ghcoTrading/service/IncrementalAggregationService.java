@@ -0,0 +1,291 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.store.TradeGroupIndexer;
+import com.tobycc.ghcoTrading.store.VersionedTradeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Standing aggregation engine. The first time a request shape is aggregated against the live trade book, its grouped
+ * running PnL series are built once and registered. From then on only the changes reported by
+ * {@link TradeLoadingService} (new trade, amend replacing an old version, cancel removing one) are applied, so refreshing
+ * a registered aggregation after an ingest costs O(changed trades) rather than O(book).
+ *
+ * Each group keeps its trades' signed pnl contributions ordered by time. Trades arriving after the current end of a
+ * group's series are appended to the cumulative series directly; anything else (back-dated trades, amends, cancels)
+ * marks only that group's series for a rebuild the next time it is read.
+ *
+ * An aggregation converts every trade with the FX rates current when it was registered, and is built again from the
+ * book the first time it is read after the rates are reloaded.
+ */
+@Service
+public class IncrementalAggregationService implements TradeChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalAggregationService.class);
+
+    private final AggregationProps aggregationProps;
+
+    //The trade book the registered aggregations mirror, i.e. the one the last batch of changes was applied to
+    private Map<String, Trade> trackedBook;
+
+    //Registered aggregations keyed by normalised request, in access order so the least recently used can be evicted
+    private final Map<PnLAggregationRequest, RunningAggregation> registeredAggregations =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    public IncrementalAggregationService(AggregationProps aggregationProps) {
+        this.aggregationProps = aggregationProps;
+    }
+
+    /**
+     * Returns the aggregation of the given request over the live trade book, registering the request shape if this is
+     * the first time it has been seen.
+     * @param trades
+     * @param request
+     * @return the aggregation, or empty if the trades passed in are not the book this engine is tracking, or the request
+     * is bucketed, as the engine keeps every trade's position
+     */
+    public synchronized Optional<Map<String, List<PnLPosition>>> aggregate(Map<String, Trade> trades, PnLAggregationRequest request) {
+        if(trackedBook == null || trackedBook != trades || request.bucket().isPresent()) {
+            return Optional.empty();
+        }
+
+        PnLAggregationRequest normalisedRequest = request.normalise();
+        RunningAggregation aggregation = registeredAggregations.get(normalisedRequest);
+        if(aggregation != null && aggregation.fxRates != FxService.getRates()) {
+            LOGGER.info("FX rates reloaded, rebuilding incremental aggregation for " + normalisedRequest);
+            registeredAggregations.remove(normalisedRequest);
+            aggregation = null;
+        }
+        if(aggregation == null) {
+            LOGGER.info("Registering incremental aggregation for " + normalisedRequest);
+            aggregation = new RunningAggregation(normalisedRequest);
+            register(aggregation, trades);
+            registeredAggregations.put(normalisedRequest, aggregation);
+            evictLeastRecentlyUsed();
+        }
+        return Optional.of(aggregation.currentSeries());
+    }
+
+    @Override
+    public synchronized void onTradesChanged(Map<String, Trade> book, long version, List<TradeChange> changes) {
+        //A different book means all registered state is for data we no longer serve
+        if(trackedBook != book) {
+            trackedBook = book;
+            registeredAggregations.clear();
+            return;
+        }
+
+        for(RunningAggregation aggregation: registeredAggregations.values()) {
+            //Built from a snapshot that already included this batch
+            if(aggregation.builtAtVersion >= version) {
+                continue;
+            }
+            for(TradeChange change: changes) {
+                if(change.previous() != null) {
+                    aggregation.remove(change.previous());
+                }
+                aggregation.add(change.current());
+            }
+        }
+    }
+
+    /**
+     * Builds a newly registered aggregation from the whole book. A versioned book is read through a snapshot, as a batch
+     * can be being loaded into it while we read, and batches up to the snapshot's version are then not applied again.
+     */
+    private static void register(RunningAggregation aggregation, Map<String, Trade> trades) {
+        if(trades instanceof VersionedTradeStore store) {
+            try (VersionedTradeStore.Snapshot snapshot = store.snapshot()) {
+                snapshot.values().forEach(aggregation::add);
+                aggregation.builtAtVersion = snapshot.version();
+            }
+        } else {
+            trades.values().forEach(aggregation::add);
+        }
+    }
+
+    public synchronized int getRegisteredAggregationCount() {
+        return registeredAggregations.size();
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Iterator<PnLAggregationRequest> iterator = registeredAggregations.keySet().iterator();
+        while(registeredAggregations.size() > aggregationProps.getMaxIncrementalAggregations() && iterator.hasNext()) {
+            LOGGER.info("Evicting incremental aggregation for " + iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Running per-group pnl series for one registered request shape
+     */
+    private static final class RunningAggregation {
+
+        private final PnLAggregationRequest request;
+        private final Set<AggregateField> aggregationFields;
+        //Groups by the index of their dimension ids, with each group's key rendered once when it is first seen
+        private final TradeGroupIndexer groupIndexer;
+        //The filters and where expression compiled, or null if every trade contributes
+        private final Predicate<Trade> filter;
+        private final List<GroupSeries> groups = new ArrayList<>();
+        private final List<String> groupKeys = new ArrayList<>();
+        //Version of the trades it was built from, where known, so the batches already in it are skipped
+        private long builtAtVersion = -1;
+        //The rates every trade added is converted with
+        private final FxRates fxRates = FxService.getRates();
+
+        private RunningAggregation(PnLAggregationRequest request) {
+            this.request = request;
+            this.aggregationFields = request.effectiveAggregationFields();
+            this.groupIndexer = new TradeGroupIndexer(aggregationFields);
+            this.filter = request.filterExpression()
+                    .map(expression -> FilterExpressionCompiler.compile(expression, FilterStatistics.ESTIMATED))
+                    .orElse(null);
+        }
+
+        private boolean contributes(Trade t) {
+            return !t.getAction().equals(Action.CANCEL) && (filter == null || filter.test(t));
+        }
+
+        private void add(Trade t) {
+            if(!contributes(t)) return;
+            group(t).add(new SeriesKey(t.getDateTime(), t.getTradeId()),
+                    TradeAggregationService.tradePnl(t, request.convertIntoCurrency(), fxRates));
+        }
+
+        private void remove(Trade t) {
+            if(!contributes(t)) return;
+            group(t).remove(new SeriesKey(t.getDateTime(), t.getTradeId()));
+        }
+
+        private GroupSeries group(Trade t) {
+            int index = groupIndexer.index(t);
+            if(index == groups.size()) {
+                groups.add(new GroupSeries());
+                groupKeys.add(AggregateField.getAggregateCompositeKey(t, aggregationFields));
+            }
+            return groups.get(index);
+        }
+
+        private Map<String, List<PnLPosition>> currentSeries() {
+            Map<String, List<PnLPosition>> series = new HashMap<>(groups.size() * 2);
+            for(int index = 0; index < groups.size(); index++) {
+                if(!groups.get(index).isEmpty()) {
+                    series.put(groupKeys.get(index), groups.get(index).series());
+                }
+            }
+            return series;
+        }
+    }
+
+    /**
+     * Orders a group's trades by time, with TradeID breaking ties so every trade has its own slot, as Trade.TIME_ORDER
+     */
+    private record SeriesKey(
+            LocalDateTime dateTime,
+            String tradeId
+    ) implements Comparable<SeriesKey> {
+
+        @Override
+        public int compareTo(SeriesKey o) {
+            int byTime = dateTime.compareTo(o.dateTime);
+            return byTime != 0 ? byTime : tradeId.compareTo(o.tradeId);
+        }
+    }
+
+    /**
+     * One group's trade contributions and its cumulative pnl series.
+     *
+     * The series lives in an append-only array: positions below a published size are never written again, and a
+     * rebuild always allocates a fresh array. That lets callers hold on to a returned series (e.g. while it is being
+     * serialised) while later trades are appended, without copying it on every read.
+     */
+    private static final class GroupSeries {
+
+        private final TreeMap<SeriesKey, BigDecimal> contributions = new TreeMap<>();
+        private PnLPosition[] positions = new PnLPosition[0];
+        private int size;
+        private boolean valid = true;
+
+        private void add(SeriesKey key, BigDecimal pnl) {
+            boolean appendable = valid && (contributions.isEmpty() || key.compareTo(contributions.lastKey()) > 0);
+            BigDecimal replaced = contributions.put(key, pnl);
+            if(!appendable || replaced != null) {
+                valid = false;
+                return;
+            }
+
+            if(size == positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(8, size * 2));
+            }
+            BigDecimal previous = size == 0 ? BigDecimal.ZERO : positions[size - 1].position();
+            positions[size++] = new PnLPosition(key.dateTime(), previous.add(pnl));
+        }
+
+        private void remove(SeriesKey key) {
+            if(contributions.remove(key) != null) {
+                valid = false;
+            }
+        }
+
+        private boolean isEmpty() {
+            return contributions.isEmpty();
+        }
+
+        private List<PnLPosition> series() {
+            if(!valid) {
+                rebuild();
+            }
+            return new SeriesView(positions, size);
+        }
+
+        private void rebuild() {
+            positions = new PnLPosition[Math.max(8, contributions.size())];
+            size = 0;
+            BigDecimal cumulative = BigDecimal.ZERO;
+            for(Map.Entry<SeriesKey, BigDecimal> contribution: contributions.entrySet()) {
+                cumulative = cumulative.add(contribution.getValue());
+                positions[size++] = new PnLPosition(contribution.getKey().dateTime(), cumulative);
+            }
+            valid = true;
+        }
+    }
+
+    /**
+     * Read-only, fixed-size view over the first size positions of a group's series array
+     */
+    private static final class SeriesView extends AbstractList<PnLPosition> implements RandomAccess {
+
+        private final PnLPosition[] positions;
+        private final int size;
+
+        private SeriesView(PnLPosition[] positions, int size) {
+            this.positions = positions;
+            this.size = size;
+        }
+
+        @Override
+        public PnLPosition get(int index) {
+            Objects.checkIndex(index, size);
+            return positions[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summarises a cumulative pnl series into time buckets while it is being summed, so only one position per bucket is
+ * ever built rather than one per trade.
+ *
+ * Positions must be added in time order. Buckets are aligned to the epoch, reading trade times as UTC, and only
+ * buckets holding trades are included. Positions are either all BigDecimals, or all 128 bit integers scaled to a fixed
+ * point scale, each given as its upper and lower longs.
+ */
+public class PnLBuckets {
+
+    private final long bucketSeconds;
+    private final int scale;
+    private final List<PnLPosition> buckets = new ArrayList<>();
+
+    //The open bucket, if it holds any trades
+    private long bucketStart;
+    private int trades;
+    private BigDecimal close;
+    private BigDecimal high;
+    private BigDecimal low;
+    private long closeUpper;
+    private long closeLower;
+    private long highUpper;
+    private long highLower;
+    private long lowUpper;
+    private long lowLower;
+
+    /**
+     * @param bucket: a whole number of seconds
+     * @param scale: the scale of positions added as longs
+     */
+    public PnLBuckets(Duration bucket, int scale) {
+        this.bucketSeconds = bucket.getSeconds();
+        this.scale = scale;
+    }
+
+    public PnLBuckets(Duration bucket) {
+        this(bucket, 0);
+    }
+
+    /**
+     * @param epochSecond: the trade time, in seconds since the epoch
+     * @param position: the position after the trade
+     */
+    public void add(long epochSecond, BigDecimal position) {
+        next(epochSecond, 1);
+        if(trades == 1) {
+            high = position;
+            low = position;
+        } else {
+            high = high.max(position);
+            low = low.min(position);
+        }
+        close = position;
+    }
+
+    /**
+     * Adds a run of trades falling in one bucket at once
+     * @param epochSecond: the time of a trade of the run, in seconds since the epoch
+     * @param close: the position after the last trade of the run
+     * @param high: the highest position after any trade of the run, the earliest if several are equal
+     * @param low: the lowest, likewise
+     * @param runTrades: trades in the run
+     */
+    public void add(long epochSecond, BigDecimal close, BigDecimal high, BigDecimal low, int runTrades) {
+        next(epochSecond, runTrades);
+        if(trades == runTrades) {
+            this.high = high;
+            this.low = low;
+        } else {
+            this.high = this.high.max(high);
+            this.low = this.low.min(low);
+        }
+        this.close = close;
+    }
+
+    /**
+     * @param epochSecond: the trade time, in seconds since the epoch
+     * @param upper: upper long of the position after the trade, scaled to the fixed point scale
+     * @param lower: lower long of the position
+     */
+    public void add(long epochSecond, long upper, long lower) {
+        next(epochSecond, 1);
+        if(trades == 1 || FixedPointPnlCalculator.compare(upper, lower, highUpper, highLower) > 0) {
+            highUpper = upper;
+            highLower = lower;
+        }
+        if(trades == 1 || FixedPointPnlCalculator.compare(upper, lower, lowUpper, lowLower) < 0) {
+            lowUpper = upper;
+            lowLower = lower;
+        }
+        closeUpper = upper;
+        closeLower = lower;
+    }
+
+    public static long epochSecond(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static long epochSecond(long epochMicros) {
+        return Math.floorDiv(epochMicros, 1_000_000L);
+    }
+
+    /**
+     * @return a position for each bucket holding trades, in time order
+     */
+    public List<PnLPosition> finish() {
+        closeBucket();
+        return buckets;
+    }
+
+    /**
+     * Opens the bucket of the epoch second, closing the open one if it is a different bucket, and counts the trades
+     */
+    private void next(long epochSecond, int count) {
+        long start = Math.floorDiv(epochSecond, bucketSeconds) * bucketSeconds;
+        if(trades > 0 && start != bucketStart) {
+            closeBucket();
+        }
+        bucketStart = start;
+        trades += count;
+    }
+
+    private void closeBucket() {
+        if(trades == 0) {
+            return;
+        }
+        LocalDateTime dateTime = LocalDateTime.ofEpochSecond(bucketStart, 0, ZoneOffset.UTC);
+        buckets.add(close != null
+                ? new PnLPosition(dateTime, close, high, low, trades)
+                : new PnLPosition(dateTime, FixedPointPnlCalculator.toBigDecimal(closeUpper, closeLower, scale),
+                        FixedPointPnlCalculator.toBigDecimal(highUpper, highLower, scale),
+                        FixedPointPnlCalculator.toBigDecimal(lowUpper, lowLower, scale), trades));
+        trades = 0;
+    }
+}
@@ -0,0 +1,19 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Takes the groups of a streamed aggregation one at a time, e.g. writing each to a response as it is computed
+ */
+@FunctionalInterface
+public interface PnLSeriesConsumer {
+
+    /**
+     * @param key: the composite key of the group
+     * @param positions: the cumulative pnl series of the group, in trade time order
+     */
+    void accept(String key, List<PnLPosition> positions) throws IOException;
+}
@@ -0,0 +1,84 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLWindow;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Narrows full per trade series to a request's window. Each series is in time order and each of its positions is the
+ * running sum of the group's pnl up to that trade, so it is already the prefix sums of the group: the position as of a
+ * time is found by binary search in O(log n), and a window is the run of positions between two binary searches,
+ * without summing anything again.
+ */
+public final class PnLWindows {
+
+    private PnLWindows() {
+    }
+
+    /**
+     * @param series: the full per trade series of each group, as aggregated for request.fullSeries()
+     * @param request: with a window
+     * @return each group's series narrowed to the window, leaving out groups with no trades by or within it
+     */
+    public static Map<String, List<PnLPosition>> narrow(Map<String, List<PnLPosition>> series, PnLAggregationRequest request) {
+        Map<String, List<PnLPosition>> narrowed = new HashMap<>(series.size() * 2);
+        series.forEach((key, positions) -> {
+            List<PnLPosition> window = narrow(positions, request.window().get(), request.bucket());
+            if(!window.isEmpty()) {
+                narrowed.put(key, window);
+            }
+        });
+        return narrowed;
+    }
+
+    /**
+     * @param positions: a full per trade series, in time order
+     * @param window
+     * @param bucket: to summarise the positions within the window into
+     * @return the single position as of the window's asOf time, or the positions within the window
+     */
+    public static List<PnLPosition> narrow(List<PnLPosition> positions, PnLWindow window, Optional<Duration> bucket) {
+        if(window.asOf().isPresent()) {
+            int last = firstAfter(positions, window.asOf().get(), true) - 1;
+            return last < 0 ? List.of() : List.of(new PnLPosition(window.asOf().get(), positions.get(last).position()));
+        }
+
+        int from = window.from().map(t -> firstAfter(positions, t, false)).orElse(0);
+        int to = window.to().map(t -> firstAfter(positions, t, false)).orElse(positions.size());
+        List<PnLPosition> within = positions.subList(from, Math.max(from, to));
+        if(bucket.isEmpty()) {
+            return List.copyOf(within);
+        }
+        PnLBuckets buckets = new PnLBuckets(bucket.get());
+        for(PnLPosition position: within) {
+            buckets.add(PnLBuckets.epochSecond(position.dateTime()), position.position());
+        }
+        return buckets.finish();
+    }
+
+    /**
+     * @param inclusive: whether positions at the time count as before it
+     * @return the index of the first position after the time
+     */
+    private static int firstAfter(List<PnLPosition> positions, LocalDateTime time, boolean inclusive) {
+        int low = 0;
+        int high = positions.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            int comparison = positions.get(mid).dateTime().compareTo(time);
+            if(comparison < 0 || (inclusive && comparison == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
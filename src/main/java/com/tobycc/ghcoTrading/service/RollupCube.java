@@ -0,0 +1,120 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.store.TradeGroupIndexer;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * The per trade pnl series of a request grouped on every AggregateField, from which the series of any coarser grouping
+ * is derived without going back to the trades. Each coarse group is the union of the finest groups that share its
+ * values of the coarser fields, so its series is a k-way merge of theirs by time, summing the change each position
+ * makes to its own series.
+ *
+ * Trades at the same time are merged by TradeID, as Trade.TIME_ORDER sorts them when the trades are regrouped, and as
+ * BigDecimal sums are exact every position is equal to a direct aggregation's, scale included.
+ *
+ * Immutable once built.
+ */
+public final class RollupCube {
+
+    //One trade of each finest group, to read its field values from, and the group's trades and series
+    private final Trade[] representatives;
+    private final List<List<Trade>> trades;
+    private final List<List<PnLPosition>> series;
+    //The rates the series were converted with
+    private final FxRates fxRates;
+
+    /**
+     * @param groupedTrades: the trades grouped on every field, each group in Trade.TIME_ORDER
+     * @param groupSeries: the per trade series of each of those groups
+     * @param fxRates: the rates the series were converted with
+     */
+    public RollupCube(Map<String, List<Trade>> groupedTrades, Map<String, List<PnLPosition>> groupSeries, FxRates fxRates) {
+        this.representatives = new Trade[groupSeries.size()];
+        this.trades = new ArrayList<>(groupSeries.size());
+        this.series = new ArrayList<>(groupSeries.size());
+        for(String key: new TreeSet<>(groupSeries.keySet())) {
+            representatives[series.size()] = groupedTrades.get(key).get(0);
+            trades.add(groupedTrades.get(key));
+            series.add(groupSeries.get(key));
+        }
+        this.fxRates = fxRates;
+    }
+
+    /**
+     * @param fields: to group on, a subset of every field
+     * @return the series of each group, keyed as AggregateField.getAggregateCompositeKey
+     */
+    public Map<String, List<PnLPosition>> rollup(Set<AggregateField> fields) {
+        TradeGroupIndexer groupIndexer = new TradeGroupIndexer(fields);
+        List<List<Integer>> children = new ArrayList<>();
+        for(int group = 0; group < representatives.length; group++) {
+            int parent = groupIndexer.index(representatives[group]);
+            if(parent == children.size()) {
+                children.add(new ArrayList<>());
+            }
+            children.get(parent).add(group);
+        }
+
+        Map<String, List<PnLPosition>> rolledUp = new HashMap<>(children.size() * 2);
+        for(List<Integer> parent: children) {
+            rolledUp.put(AggregateField.getAggregateCompositeKey(representatives[parent.get(0)], fields),
+                    parent.size() == 1 ? series.get(parent.get(0)) : merge(parent));
+        }
+        return rolledUp;
+    }
+
+    public FxRates getFxRates() {
+        return fxRates;
+    }
+
+    public int getGroupCount() {
+        return representatives.length;
+    }
+
+    /**
+     * Merges the series of the given finest groups by time, each position adding its change on the one before it in
+     * its own series to the running total
+     */
+    private List<PnLPosition> merge(List<Integer> groups) {
+        int k = groups.size();
+        List<List<PnLPosition>> merging = new ArrayList<>(k);
+        List<List<Trade>> mergingTrades = new ArrayList<>(k);
+        int size = 0;
+        for(int group: groups) {
+            merging.add(series.get(group));
+            mergingTrades.add(trades.get(group));
+            size += series.get(group).size();
+        }
+
+        //Next position of each series, and the series ordered by the trade of their next position
+        int[] cursors = new int[k];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(k, (a, b) ->
+                Trade.TIME_ORDER.compare(mergingTrades.get(a).get(cursors[a]), mergingTrades.get(b).get(cursors[b])));
+        for(int i = 0; i < k; i++) {
+            if(!merging.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+
+        List<PnLPosition> merged = new ArrayList<>(size);
+        BigDecimal position = BigDecimal.ZERO;
+        while(!heads.isEmpty()) {
+            int i = heads.poll();
+            List<PnLPosition> child = merging.get(i);
+            PnLPosition next = child.get(cursors[i]);
+            position = cursors[i] == 0
+                    ? position.add(next.position())
+                    : position.add(next.position().subtract(child.get(cursors[i] - 1).position()));
+            merged.add(new PnLPosition(next.dateTime(), position));
+            if(++cursors[i] < child.size()) {
+                heads.add(i);
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,119 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Answers several groupings of the live trade book at once from a {@link RollupCube}: the trades are grouped and summed
+ * on every field once, and each grouping asked for is merged from those series rather than regrouping the trades.
+ *
+ * Cubes are kept per normalised request (less its fields, bucket and window, which are applied to each level) for the
+ * version of the book they were built from in a {@link VersionedRequestCache}, so are dropped just as
+ * {@link AggregationResultCache} drops results: only when an ingest changes a trade the request can see. A cube built
+ * with FX rates since reloaded is rebuilt. At most "aggregation.maxRollupCubes" are kept, the least recently used
+ * dropped first.
+ */
+@Service
+public class RollupService implements TradeChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RollupService.class);
+
+    private static final TreeSet<AggregateField> ALL_FIELDS = new TreeSet<>(Arrays.asList(AggregateField.values()));
+
+    private final AggregationProps aggregationProps;
+    private final TradeAggregationService tradeAggregationService;
+
+    //Cubes keyed by normalised finest request
+    private final VersionedRequestCache<RollupCube> cubes = new VersionedRequestCache<>();
+
+    public RollupService(AggregationProps aggregationProps, TradeAggregationService tradeAggregationService) {
+        this.aggregationProps = aggregationProps;
+        this.tradeAggregationService = tradeAggregationService;
+    }
+
+    /**
+     * @param trades
+     * @param request: the conversion, filters, bucket and window of every level
+     * @param levels: the fields to group on at each level
+     * @return the aggregation of each level in the order given, keyed by its fields, e.g. "PORTFOLIO,STRATEGY"
+     */
+    public Map<String, Map<String, List<PnLPosition>>> aggregateRollup(Map<String, Trade> trades, PnLAggregationRequest request,
+                                                                       List<TreeSet<AggregateField>> levels) {
+        if(levels.isEmpty()) {
+            throw new IllegalArgumentException("At least one level to aggregate is needed");
+        }
+        RollupCube cube = cube(trades, request);
+
+        Map<String, Map<String, List<PnLPosition>>> rolledUp = new LinkedHashMap<>();
+        for(TreeSet<AggregateField> level: levels) {
+            PnLAggregationRequest levelRequest = request.groupedOn(level);
+            TreeSet<AggregateField> fields = levelRequest.effectiveAggregationFields();
+            Map<String, List<PnLPosition>> series = cube.rollup(fields);
+            if(levelRequest.window().isPresent()) {
+                series = PnLWindows.narrow(series, levelRequest);
+            } else if(levelRequest.bucket().isPresent()) {
+                series.replaceAll((key, positions) -> bucket(positions, levelRequest.bucket().get()));
+            }
+            rolledUp.put(fields.stream().map(AggregateField::name).collect(Collectors.joining(",")), series);
+        }
+        return rolledUp;
+    }
+
+    /**
+     * The cube of the request grouped on every field, built if there is none for the current version of the trades
+     */
+    private RollupCube cube(Map<String, Trade> trades, PnLAggregationRequest request) {
+        PnLAggregationRequest finest = request.groupedOn(ALL_FIELDS).fullSeries().normalise();
+        long version;
+        synchronized (this) {
+            RollupCube cube = cubes.get(trades, finest);
+            if(cube != null && cube.getFxRates() == FxService.getRates()) {
+                return cube;
+            }
+            //Read before building, so a cube racing an ingest is not kept against the newer version
+            version = cubes.versionOf(trades);
+        }
+
+        FxRates fxRates = FxService.getRates();
+        Map<String, List<Trade>> groupedTrades = tradeAggregationService.groupTrades(trades, finest);
+        RollupCube cube = new RollupCube(groupedTrades, tradeAggregationService.aggregateGroups(groupedTrades, finest, fxRates), fxRates);
+        synchronized (this) {
+            if(cubes.isCurrent(version) && FxService.getRates() == fxRates) {
+                LOGGER.info("Built rollup cube of " + cube.getGroupCount() + " groups for " + finest);
+                cubes.put(version, finest, cube);
+                while(cubes.size() > aggregationProps.getMaxRollupCubes()) {
+                    cubes.removeLeastRecentlyUsed();
+                }
+            }
+        }
+        return cube;
+    }
+
+    @Override
+    public synchronized void onTradesChanged(Map<String, Trade> book, long version, List<TradeChange> changes) {
+        cubes.onTradesChanged(book, version, changes);
+    }
+
+    public synchronized int getCubeCount() {
+        return cubes.size();
+    }
+
+    private static List<PnLPosition> bucket(List<PnLPosition> positions, Duration bucket) {
+        PnLBuckets buckets = new PnLBuckets(bucket);
+        for(PnLPosition position: positions) {
+            buckets.add(PnLBuckets.epochSecond(position.dateTime()), position.position());
+        }
+        return buckets.finish();
+    }
+}
@@ -1,8 +1,8 @@
 package com.tobycc.ghcoTrading.service;
 
-import com.tobycc.ghcoTrading.config.DateUtils;
-import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.model.FilterExpression;
 import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLAggregationResult;
 import com.tobycc.ghcoTrading.model.PnLPosition;
 import com.tobycc.ghcoTrading.model.Trade;
 import com.tobycc.ghcoTrading.model.enums.Action;
@@ -10,19 +10,28 @@ import com.tobycc.ghcoTrading.model.enums.AggregateField;
 import com.tobycc.ghcoTrading.model.enums.Currency;
 import com.tobycc.ghcoTrading.model.enums.Side;
 import com.tobycc.ghcoTrading.props.AggregationProps;
-import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import com.tobycc.ghcoTrading.store.VersionedTradeStore;
+import com.tobycc.ghcoTrading.store.GroupIndexer;
+import com.tobycc.ghcoTrading.store.TradeGroupIndexer;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
-import static com.tobycc.ghcoTrading.model.enums.AggregateField.*;
-import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toMap;
 
 @Service
@@ -33,84 +42,775 @@ public class TradeAggregationService {
     //Aggregated trades
     private Map<String, List<PnLPosition>> aggregatedTrades;
 
-    private final CSVParser csvParser;
-    private final FileProps fileProps;
     private final AggregationProps aggregationProps;
+    private final IncrementalAggregationService incrementalAggregationService;
+    private final AggregationResultCache aggregationResultCache;
+    private final AggregationOutputService aggregationOutputService;
+    //Null when filtered trades are found by scanning the book
+    private final TradeDimensionIndex tradeDimensionIndex;
+    //Only set when fixed point pnl arithmetic is enabled
+    private final FixedPointPnlCalculator fixedPointPnlCalculator;
+    //Only set when aggregating in parallel
+    private final ForkJoinPool aggregationPool;
 
-    public TradeAggregationService(CSVParser csvParser, FileProps fileProps, AggregationProps aggregationProps) {
-        this.csvParser = csvParser;
-        this.fileProps = fileProps;
+    public TradeAggregationService(AggregationProps aggregationProps, IncrementalAggregationService incrementalAggregationService,
+                                   AggregationResultCache aggregationResultCache, AggregationOutputService aggregationOutputService,
+                                   TradeDimensionIndex tradeDimensionIndex) {
         this.aggregationProps = aggregationProps;
+        this.incrementalAggregationService = incrementalAggregationService;
+        this.aggregationResultCache = aggregationResultCache;
+        this.aggregationOutputService = aggregationOutputService;
+        this.tradeDimensionIndex = tradeDimensionIndex;
+        this.fixedPointPnlCalculator = aggregationProps.isFixedPoint()
+                ? new FixedPointPnlCalculator(aggregationProps.getFixedPointScale()) : null;
+        this.aggregationPool = aggregationProps.getParallelism() > 1 ? new ForkJoinPool(aggregationProps.getParallelism()) : null;
     }
 
     /**
-     * Entry point to where the cleaned trades can be grouped and then aggregated depending on input criteria
+     * Entry point to where the cleaned trades can be grouped and then aggregated depending on input criteria.
+     * When the result cache is enabled, a result already computed for the current version of the live book is reused.
      * @param trades
      * @param request
      */
     public Map<String, List<PnLPosition>> aggregateTrades(Map<String, Trade> trades, PnLAggregationRequest request) {
+        return aggregateTradesWithOutput(trades, request).positions();
+    }
+
+    /**
+     * As above, also returning the id of the background job writing the aggregation to the configured sinks.
+     * A request with a window is narrowed from the full series (see PnLWindows), so every window over the same series
+     * shares the one cached or incrementally kept result.
+     * @param trades
+     * @param request
+     */
+    public PnLAggregationResult aggregateTradesWithOutput(Map<String, Trade> trades, PnLAggregationRequest request) {
+        Map<String, List<PnLPosition>> pnlAggregated = request.window().isPresent()
+                ? PnLWindows.narrow(aggregation(trades, request.fullSeries()), request)
+                : aggregation(trades, request);
+        return outputPnlAggregation(pnlAggregated, request);
+    }
+
+    private Map<String, List<PnLPosition>> aggregation(Map<String, Trade> trades, PnLAggregationRequest request) {
+        //Every trade of the aggregation is converted with the same rates, however they are reloaded meanwhile
+        FxRates fxRates = FxService.getRates();
+        if(!aggregationProps.isResultCache()) {
+            return computeAggregation(trades, request, fxRates);
+        }
+
+        Optional<Map<String, List<PnLPosition>>> cached = aggregationResultCache.get(trades, request);
+        if(cached.isPresent()) {
+            return cached.get();
+        }
+        //Read before computing, so a result racing an ingest is not cached against the newer version
+        long version = aggregationResultCache.versionOf(trades);
+        Map<String, List<PnLPosition>> pnlAggregated = computeAggregation(trades, request, fxRates);
+        cacheResult(version, fxRates, request, pnlAggregated);
+        return pnlAggregated;
+    }
+
+    /**
+     * Caches a result unless the FX rates it was converted with have since been reloaded. Under the cache's lock, as a
+     * reload swaps the rates then clears the cache, so a result of the old rates is either not cached or cleared.
+     */
+    private void cacheResult(long version, FxRates fxRates, PnLAggregationRequest request, Map<String, List<PnLPosition>> pnlAggregated) {
+        synchronized (aggregationResultCache) {
+            if(FxService.getRates() == fxRates) {
+                aggregationResultCache.put(version, request, pnlAggregated);
+            }
+        }
+    }
+
+    /**
+     * As aggregateTrades, converting into each of several currencies from one grouping of the trades rather than one
+     * per currency. Each group's trades are read once for every currency, and a bucketed series converts each bucket's
+     * sums in native currency rather than each trade, see CurrencyPnlAccumulator, giving the same series as a request
+     * converting into each currency on its own. The request's own conversion currency is ignored.
+     *
+     * Results already in the result cache are reused and the rest are cached. The aggregation is not written to the
+     * console/csv outputs, and is always computed in BigDecimal.
+     * @param trades
+     * @param request
+     * @param currencies: the currencies to convert into
+     * @return each currency's aggregation
+     */
+    public Map<Currency, Map<String, List<PnLPosition>>> aggregateTradesInCurrencies(Map<String, Trade> trades, PnLAggregationRequest request,
+                                                                                      Set<Currency> currencies) {
+        if(currencies.isEmpty()) {
+            throw new IllegalArgumentException("At least one currency to convert into is needed");
+        }
+        if(request.window().isPresent()) {
+            Map<Currency, Map<String, List<PnLPosition>>> fullSeries = aggregateTradesInCurrencies(trades, request.fullSeries(), currencies);
+            fullSeries.replaceAll((ccy, aggregated) -> PnLWindows.narrow(aggregated, request.convertedInto(ccy)));
+            return fullSeries;
+        }
+
+        FxRates fxRates = FxService.getRates();
+        Map<Currency, Map<String, List<PnLPosition>>> pnlAggregated = new EnumMap<>(Currency.class);
+        List<Currency> toCompute = new ArrayList<>();
+        for(Currency ccy: new TreeSet<>(currencies)) {
+            Optional<Map<String, List<PnLPosition>>> cached = aggregationProps.isResultCache()
+                    ? aggregationResultCache.get(trades, request.convertedInto(ccy)) : Optional.empty();
+            cached.ifPresentOrElse(result -> pnlAggregated.put(ccy, result), () -> toCompute.add(ccy));
+        }
+        if(toCompute.isEmpty()) {
+            return pnlAggregated;
+        }
+
+        long version = aggregationProps.isResultCache() ? aggregationResultCache.versionOf(trades) : -1;
+        Currency[] targets = toCompute.toArray(new Currency[0]);
+        //Every target groups the same trades on the same fields, as each converts into a currency
+        List<Map.Entry<String, List<Trade>>> groups = new ArrayList<>(groupTrades(trades, request.convertedInto(targets[0])).entrySet());
+        List<List<Map<String, List<PnLPosition>>>> batches = invokeAll(ranges(groups.size()).stream()
+                .<Callable<List<Map<String, List<PnLPosition>>>>>map(range -> () -> {
+                    List<Map<String, List<PnLPosition>>> batch = new ArrayList<>(targets.length);
+                    for(int t = 0; t < targets.length; t++) {
+                        batch.add(new HashMap<>());
+                    }
+                    for(Map.Entry<String, List<Trade>> group: groups.subList(range[0], range[1])) {
+                        CurrencyPnlAccumulator accumulator = new CurrencyPnlAccumulator(targets, fxRates, request.bucket());
+                        group.getValue().forEach(accumulator::add);
+                        Map<Currency, List<PnLPosition>> series = accumulator.finish();
+                        for(int t = 0; t < targets.length; t++) {
+                            batch.get(t).put(group.getKey(), series.get(targets[t]));
+                        }
+                    }
+                    return batch;
+                })
+                .toList());
+
+        for(int t = 0; t < targets.length; t++) {
+            Map<String, List<PnLPosition>> converted = new HashMap<>(groups.size() * 2);
+            for(List<Map<String, List<PnLPosition>>> batch: batches) {
+                converted.putAll(batch.get(t));
+            }
+            pnlAggregated.put(targets[t], converted);
+            if(aggregationProps.isResultCache()) {
+                cacheResult(version, fxRates, request.convertedInto(targets[t]), converted);
+            }
+        }
+        return pnlAggregated;
+    }
+
+    /**
+     * As aggregateTrades for each of several requests, from one pass over the trades rather than one per request. Each
+     * trade is tested against the filters of every request and added to its group in each request it passes, and
+     * requests with the same filters and fields, e.g. differing only by conversion, bucket or window, share the one
+     * grouping. Windows are narrowed from the full series, so requests differing only by window are computed once.
+     *
+     * Results already in the result cache are reused and the rest are cached. The aggregations are not written to the
+     * console/csv outputs, and are always grouped from the trades rather than by the incremental aggregation engine or
+     * dimension index.
+     * @param trades
+     * @param requests
+     * @return the aggregation of each request, in the order given
+     */
+    public List<Map<String, List<PnLPosition>>> aggregateTradesBatch(Map<String, Trade> trades, List<PnLAggregationRequest> requests) {
+        if(requests.isEmpty()) {
+            throw new IllegalArgumentException("At least one request to aggregate is needed");
+        }
+
+        FxRates fxRates = FxService.getRates();
+        //Read before computing, so results racing an ingest are not cached against the newer version
+        long version = aggregationProps.isResultCache() ? aggregationResultCache.versionOf(trades) : -1;
+        Map<PnLAggregationRequest, Map<String, List<PnLPosition>>> computed = new HashMap<>();
+        Map<TradeRoute, List<PnLAggregationRequest>> routes = new LinkedHashMap<>();
+        for(PnLAggregationRequest request: requests) {
+            PnLAggregationRequest series = (request.window().isPresent() ? request.fullSeries() : request).normalise();
+            if(computed.containsKey(series)) {
+                continue;
+            }
+            Optional<Map<String, List<PnLPosition>>> cached = aggregationProps.isResultCache()
+                    ? aggregationResultCache.get(trades, series) : Optional.empty();
+            computed.put(series, cached.orElse(null));
+            if(cached.isEmpty()) {
+                routes.computeIfAbsent(new TradeRoute(series.filterExpression(), series.effectiveAggregationFields()),
+                        route -> new ArrayList<>()).add(series);
+            }
+        }
+
+        if(!routes.isEmpty()) {
+            List<TradeRoute> routeList = new ArrayList<>(routes.keySet());
+            List<Map<String, List<Trade>>> groupedTrades = groupTradesForRoutes(trades, routeList);
+            for(int r = 0; r < routeList.size(); r++) {
+                for(PnLAggregationRequest series: routes.get(routeList.get(r))) {
+                    Map<String, List<PnLPosition>> pnlAggregated = computePnlAggregation(groupedTrades.get(r), series, fxRates);
+                    computed.put(series, pnlAggregated);
+                    if(aggregationProps.isResultCache()) {
+                        cacheResult(version, fxRates, series, pnlAggregated);
+                    }
+                }
+            }
+        }
+
+        List<Map<String, List<PnLPosition>>> pnlAggregated = new ArrayList<>(requests.size());
+        for(PnLAggregationRequest request: requests) {
+            pnlAggregated.add(request.window().isPresent()
+                    ? PnLWindows.narrow(computed.get(request.fullSeries().normalise()), request)
+                    : computed.get(request.normalise()));
+        }
+        return pnlAggregated;
+    }
+
+    /**
+     * The trades a batch of requests share a grouping of: those passing the filter, grouped on the fields
+     * @param filter: the filter expression, empty if every trade passes
+     * @param fields: the effective fields to group on
+     */
+    private record TradeRoute(Optional<FilterExpression> filter, TreeSet<AggregateField> fields) {}
+
+    /**
+     * Groups the trades for every route in one pass, each trade tested once against each distinct filter and added to
+     * its group in every route whose filter it passes
+     * @param trades
+     * @param routes
+     * @return the grouped trades of each route, in the order given
+     */
+    private List<Map<String, List<Trade>>> groupTradesForRoutes(Map<String, Trade> trades, List<TradeRoute> routes) {
+        FilterStatistics statistics = filterStatistics(trades);
+        //Each distinct filter compiled once, with routes pointing at theirs, or -1 if every trade passes
+        List<Optional<FilterExpression>> distinctFilters = new ArrayList<>();
+        List<Predicate<Trade>> filters = new ArrayList<>();
+        int[] routeFilters = new int[routes.size()];
+        for(int r = 0; r < routes.size(); r++) {
+            Optional<FilterExpression> filter = routes.get(r).filter();
+            int index = distinctFilters.indexOf(filter);
+            if(filter.isPresent() && index < 0) {
+                index = distinctFilters.size();
+                distinctFilters.add(filter);
+                filters.add(FilterExpressionCompiler.compile(filter.get(), statistics));
+            }
+            routeFilters[r] = filter.isPresent() ? index : -1;
+        }
+
+        List<Trade> allTrades = tradesToGroup(trades);
+        List<List<Map<String, List<Trade>>>> chunkGroups = invokeAll(ranges(allTrades.size()).stream()
+                .<Callable<List<Map<String, List<Trade>>>>>map(range ->
+                        () -> groupChunkForRoutes(allTrades.subList(range[0], range[1]), routes, filters, routeFilters))
+                .toList());
+
+        List<Map<String, List<Trade>>> groupedTrades = new ArrayList<>(routes.size());
+        for(int r = 0; r < routes.size(); r++) {
+            int route = r;
+            groupedTrades.add(mergeChunkGroups(chunkGroups.stream().map(chunk -> chunk.get(route)).toList()));
+        }
+        return groupedTrades;
+    }
+
+    /**
+     * When incremental aggregation is enabled and the trades are the live book, the standing aggregation engine answers
+     * instead of regrouping everything. A columnar store is aggregated straight from its columns.
+     * @param trades
+     * @param request
+     * @param fxRates
+     */
+    private Map<String, List<PnLPosition>> computeAggregation(Map<String, Trade> trades, PnLAggregationRequest request, FxRates fxRates) {
+        if(aggregationProps.isIncremental()) {
+            Optional<Map<String, List<PnLPosition>>> incremental = incrementalAggregationService.aggregate(trades, request);
+            if(incremental.isPresent()) {
+                return incremental.get();
+            }
+        }
+
+        if(trades instanceof ColumnarTradeStore store) {
+            return aggregateColumnar(store, request, fxRates);
+        }
+
+        Map<String, List<Trade>> groupedTrades = groupTrades(trades, request);
+        return computePnlAggregation(groupedTrades, request, fxRates);
+    }
+
+    /**
+     * Groups, filters and aggregates the live trades of a columnar store by their slots, giving the same result as
+     * groupTrades then processPnlAggregation would over the equivalent Trades. The only Trade built is one per group,
+     * to render its key. Takes the store's read lock for the whole aggregation.
+     * @param store
+     * @param request
+     */
+    public Map<String, List<PnLPosition>> aggregateColumnar(ColumnarTradeStore store, PnLAggregationRequest request) {
+        return aggregateColumnar(store, request, FxService.getRates());
+    }
+
+    private Map<String, List<PnLPosition>> aggregateColumnar(ColumnarTradeStore store, PnLAggregationRequest request, FxRates fxRates) {
+        try (ColumnarTradeStore.Reader reader = store.read()) {
+            return aggregateColumnarSlots(store, request, fxRates);
+        }
+    }
+
+    private Map<String, List<PnLPosition>> aggregateColumnarSlots(ColumnarTradeStore store, PnLAggregationRequest request, FxRates fxRates) {
+        Set<AggregateField> aggregationFields = request.effectiveAggregationFields();
+        ColumnarGroups groups = groupColumnar(store, aggregationFields, request);
+        LongAdder fixedPointFallbacks = new LongAdder();
+
+        List<Map<String, List<PnLPosition>>> batches = invokeAll(ranges(groups.count).stream()
+                .<Callable<Map<String, List<PnLPosition>>>>map(range -> () -> {
+                    Map<String, List<PnLPosition>> batch = new HashMap<>();
+                    for(int group = range[0]; group < range[1]; group++) {
+                        int[] slots = groups.slots[group];
+                        int size = groups.sizes[group];
+                        store.sortByTradeTime(slots, 0, size);
+                        batch.put(AggregateField.getAggregateCompositeKey(store.trade(slots[0]), aggregationFields),
+                                pnlAggregator(store, slots, size, request, fxRates, fixedPointFallbacks));
+                    }
+                    return batch;
+                })
+                .toList());
+        logFixedPointFallbacks(fixedPointFallbacks, groups.count);
+
+        Map<String, List<PnLPosition>> pnlAggregated = new HashMap<>(groups.count * 2);
+        batches.forEach(pnlAggregated::putAll);
+        return pnlAggregated;
+    }
+
+    /**
+     * As aggregateTrades, but handing each group's series to the consumer as soon as it is computed instead of
+     * collecting them into one map, so only one group's series is held at a time. A result already held by the result
+     * cache or the incremental aggregation engine is handed over from there.
+     *
+     * A columnar store is the exception: every group's series is computed under its read lock and handed over once the
+     * lock is released, as holding it while a slow client reads the response would hold up every ingest.
+     *
+     * Streamed aggregations are not cached, written to the console/csv outputs or kept as the latest aggregation, as
+     * each of those needs the whole result. A request with a window is the exception, as it is narrowed from the whole
+     * series, which is cached to be shared with every other window over it.
+     * @param trades
+     * @param request
+     * @param consumer: called for each group in turn, on this thread
+     * @throws IOException if the consumer fails, in which case no further groups are computed
+     */
+    public void streamAggregation(Map<String, Trade> trades, PnLAggregationRequest request, PnLSeriesConsumer consumer) throws IOException {
+        //Windows are narrowed from the full series, which is held anyway to be shared by every window over it
+        if(request.window().isPresent()) {
+            for(Map.Entry<String, List<PnLPosition>> series: aggregation(trades, request.fullSeries()).entrySet()) {
+                List<PnLPosition> window = PnLWindows.narrow(series.getValue(), request.window().get(), request.bucket());
+                if(!window.isEmpty()) {
+                    consumer.accept(series.getKey(), window);
+                }
+            }
+            return;
+        }
+
+        Optional<Map<String, List<PnLPosition>>> held = aggregationProps.isResultCache()
+                ? aggregationResultCache.get(trades, request) : Optional.empty();
+        if(held.isEmpty() && aggregationProps.isIncremental()) {
+            held = incrementalAggregationService.aggregate(trades, request);
+        }
+        if(held.isPresent()) {
+            for(Map.Entry<String, List<PnLPosition>> series: held.get().entrySet()) {
+                consumer.accept(series.getKey(), series.getValue());
+            }
+            return;
+        }
+
+        FxRates fxRates = FxService.getRates();
+        if(trades instanceof ColumnarTradeStore store) {
+            //Computed under the read lock, which is released before any of it is handed over
+            Map<String, List<PnLPosition>> aggregated = aggregateColumnar(store, request, fxRates);
+            for(Map.Entry<String, List<PnLPosition>> series: aggregated.entrySet()) {
+                consumer.accept(series.getKey(), series.getValue());
+            }
+            return;
+        }
+
+        LongAdder fixedPointFallbacks = new LongAdder();
+
         Map<String, List<Trade>> groupedTrades = groupTrades(trades, request);
-        return processPnlAggregation(groupedTrades, request);
+        for(Map.Entry<String, List<Trade>> group: groupedTrades.entrySet()) {
+            consumer.accept(group.getKey(), pnlAggregator(group.getValue(), request, fxRates, fixedPointFallbacks));
+        }
+        logFixedPointFallbacks(fixedPointFallbacks, groupedTrades.size());
+    }
+
+    /**
+     * Groups the slots of the live trades of a columnar store that pass the request's filters
+     */
+    private ColumnarGroups groupColumnar(ColumnarTradeStore store, Set<AggregateField> aggregationFields, PnLAggregationRequest request) {
+        AggregateField[] fields = aggregationFields.isEmpty()
+                ? AggregateField.values() : aggregationFields.toArray(new AggregateField[0]);
+        IntPredicate filter = request.filterExpression()
+                .map(expression -> FilterExpressionCompiler.bind(expression, store, FilterStatistics.ESTIMATED))
+                .orElse(null);
+
+        //Group each range of slots on its own, then merge the ranges in slot order so each group's slots stay ascending
+        List<int[]> slotRanges = ranges(store.slotLimit());
+        List<ColumnarGroups> rangeGroups = invokeAll(slotRanges.stream()
+                .<Callable<ColumnarGroups>>map(range -> () -> groupColumnar(store, fields, filter, range[0], range[1]))
+                .toList());
+        return rangeGroups.size() == 1 ? rangeGroups.get(0) : ColumnarGroups.merge(rangeGroups, fields.length);
+    }
+
+    private static ColumnarGroups groupColumnar(ColumnarTradeStore store, AggregateField[] fields, IntPredicate filter,
+                                                int fromSlot, int toSlot) {
+        //Slots of each group, indexed by the dense group index of their dimension ids
+        GroupIndexer groupIndexer = new GroupIndexer(fields.length);
+        ColumnarGroups groups = new ColumnarGroups();
+        int[] fieldIds = new int[fields.length];
+        for(int slot = store.nextLiveSlot(fromSlot); slot >= 0 && slot < toSlot; slot = store.nextLiveSlot(slot + 1)) {
+            if(filter != null && !filter.test(slot)) {
+                continue;
+            }
+            for(int f = 0; f < fields.length; f++) {
+                fieldIds[f] = store.dimensionId(fields[f], slot);
+            }
+            int group = groupIndexer.index(fieldIds);
+            if(group == groups.count) {
+                groups.addGroup(fieldIds.clone(), new int[8], 0);
+            }
+            groups.add(group, slot);
+        }
+        return groups;
+    }
+
+    /**
+     * Slots of the live trades in each group of a columnar aggregation, along with the dimension ids of the group
+     */
+    private static final class ColumnarGroups {
+
+        private int[][] fieldIds = new int[16][];
+        private int[][] slots = new int[16][];
+        private int[] sizes = new int[16];
+        private int count;
+
+        private void addGroup(int[] groupFieldIds, int[] groupSlots, int size) {
+            if(count == slots.length) {
+                fieldIds = Arrays.copyOf(fieldIds, count * 2);
+                slots = Arrays.copyOf(slots, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            fieldIds[count] = groupFieldIds;
+            slots[count] = groupSlots;
+            sizes[count++] = size;
+        }
+
+        private void add(int group, int slot) {
+            if(sizes[group] == slots[group].length) {
+                slots[group] = Arrays.copyOf(slots[group], sizes[group] * 2);
+            }
+            slots[group][sizes[group]++] = slot;
+        }
+
+        /**
+         * @param rangeGroups: groups of consecutive slot ranges, in slot order
+         * @param fieldCount
+         * @return the groups of all the ranges, with the slots of each in ascending order
+         */
+        private static ColumnarGroups merge(List<ColumnarGroups> rangeGroups, int fieldCount) {
+            GroupIndexer groupIndexer = new GroupIndexer(fieldCount);
+            ColumnarGroups merged = new ColumnarGroups();
+            for(ColumnarGroups range: rangeGroups) {
+                for(int g = 0; g < range.count; g++) {
+                    int group = groupIndexer.index(range.fieldIds[g]);
+                    if(group == merged.count) {
+                        merged.addGroup(range.fieldIds[g], range.slots[g], range.sizes[g]);
+                    } else {
+                        int size = merged.sizes[group] + range.sizes[g];
+                        if(size > merged.slots[group].length) {
+                            merged.slots[group] = Arrays.copyOf(merged.slots[group], Math.max(size, merged.slots[group].length * 2));
+                        }
+                        System.arraycopy(range.slots[g], 0, merged.slots[group], merged.sizes[group], range.sizes[g]);
+                        merged.sizes[group] = size;
+                    }
+                }
+            }
+            return merged;
+        }
     }
 
     /**
-     * First we have to group trades by the given fields we wish to group them by
+     * As pnlAggregator below, for slots of a columnar store sorted by time
+     */
+    private List<PnLPosition> pnlAggregator(ColumnarTradeStore store, int[] slots, int size, PnLAggregationRequest request,
+                                            FxRates fxRates, LongAdder fixedPointFallbacks) {
+        Optional<Currency> convertIntoCurrency = request.convertIntoCurrency();
+        if(fixedPointPnlCalculator != null) {
+            try {
+                return request.bucket().isPresent()
+                        ? fixedPointPnlCalculator.aggregateBuckets(store, slots, size, convertIntoCurrency, fxRates, request.bucket().get())
+                        : fixedPointPnlCalculator.aggregate(store, slots, size, convertIntoCurrency, fxRates);
+            } catch (ArithmeticException e) {
+                LOGGER.debug("Fixed point pnl aggregation failed, using BigDecimal for this group: " + e.getMessage());
+                fixedPointFallbacks.increment();
+            }
+        }
+
+        PnLBuckets buckets = request.bucket().map(PnLBuckets::new).orElse(null);
+        List<PnLPosition> positions = buckets == null ? new ArrayList<>(size) : null;
+        BigDecimal position = BigDecimal.ZERO;
+        for(int i = 0; i < size; i++) {
+            position = position.add(tradePnl(store, slots[i], convertIntoCurrency, fxRates));
+            if(buckets != null) {
+                buckets.add(PnLBuckets.epochSecond(store.tradeTimeMicros(slots[i])), position);
+            } else {
+                positions.add(new PnLPosition(store.tradeTime(slots[i]), position));
+            }
+        }
+        return buckets != null ? buckets.finish() : positions;
+    }
+
+    /**
+     * First we have to group trades by the given fields we wish to group them by.
+     *
+     * With "aggregation.parallelism" above 1 the trades are split into chunks grouped on the aggregation pool, then the
+     * chunk groups are merged in chunk order, so every group's trades are in the same order as grouping them in one go.
+     * When the request has filters and the trades are the book held by the dimension index, only the trades the index
+     * finds are grouped rather than testing every trade against the filters. Whatever is left to test is compiled into one
+     * predicate for the request, see FilterExpressionCompiler.
      * @param trades
      * @param request
      */
     public Map<String, List<Trade>> groupTrades(Map<String,Trade> trades, PnLAggregationRequest request) {
-        Set<AggregateField> aggregationFields = request.aggregationFields().isEmpty() || request.aggregationFields().get().isEmpty()
-                ? new TreeSet<>(Arrays.asList(BBG_CODE, ACCOUNT, PORTFOLIO, STRATEGY, USER, CURRENCY))
-                : request.aggregationFields().get();
+        //Defaults to all fields, with CURRENCY always included if we are not converting into a single currency
+        Set<AggregateField> aggregationFields = request.effectiveAggregationFields();
+
+        Optional<List<Trade>> filteredTrades = tradeDimensionIndex == null ? Optional.empty() : request.filters()
+                .filter(filters -> !filters.isEmpty())
+                .flatMap(filters -> tradeDimensionIndex.matchingTrades(trades, filters));
+        List<Trade> allTrades = filteredTrades.orElseGet(() -> tradesToGroup(trades));
+        //Compiled once for every chunk, leaving only the where expression to test when the index has applied the filters
+        Predicate<Trade> filter = (filteredTrades.isPresent() ? request.where() : request.filterExpression())
+                .map(expression -> FilterExpressionCompiler.compile(expression, filterStatistics(trades)))
+                .orElse(null);
+        List<Map<String, List<Trade>>> chunkGroups = invokeAll(ranges(allTrades.size()).stream()
+                .<Callable<Map<String, List<Trade>>>>map(range ->
+                        () -> groupChunk(allTrades.subList(range[0], range[1]), aggregationFields, filter))
+                .toList());
+        return mergeChunkGroups(chunkGroups);
+    }
 
-        //If we do not specify a currency to convert the trades into, we have to include CURRENCY as a grouping field
-        //(ignored if already included) so that the positions are split by currency to make the numbers make sense
-        if(request.convertIntoCurrency().isEmpty()) {
-            aggregationFields.add(CURRENCY);
+    /**
+     * Merges the groups of each chunk of the trades into one map, then sorts the dates within each grouping
+     */
+    private Map<String, List<Trade>> mergeChunkGroups(List<Map<String, List<Trade>>> chunkGroups) {
+        Map<String, List<Trade>> groupedTrades = chunkGroups.get(0);
+        for(Map<String, List<Trade>> chunk: chunkGroups.subList(1, chunkGroups.size())) {
+            chunk.forEach((key, group) -> groupedTrades.merge(key, group, (merged, next) -> {
+                merged.addAll(next);
+                return merged;
+            }));
         }
 
+        //Sort the dates within each grouping, TradeID breaking ties so every path orders a group's trades alike
+        List<List<Trade>> groups = new ArrayList<>(groupedTrades.values());
+        invokeAll(ranges(groups.size()).stream()
+                .<Callable<Void>>map(range -> () -> {
+                    groups.subList(range[0], range[1]).forEach(group -> group.sort(Trade.TIME_ORDER));
+                    return null;
+                })
+                .toList());
+        return groupedTrades;
+    }
+
+    /**
+     * Copies out the trades to group, from a snapshot if the trades are a versioned store so that batches loaded while
+     * copying are not half seen
+     */
+    private static List<Trade> tradesToGroup(Map<String, Trade> trades) {
+        if(!(trades instanceof VersionedTradeStore store)) {
+            return new ArrayList<>(trades.values());
+        }
+        List<Trade> allTrades = new ArrayList<>(store.size());
+        try (VersionedTradeStore.Snapshot snapshot = store.snapshot()) {
+            snapshot.values().forEach(allTrades::add);
+        }
+        return allTrades;
+    }
+
+    /**
+     * The dimension index's counts of the trades holding each value when it holds the trades, else rough guesses
+     */
+    private FilterStatistics filterStatistics(Map<String, Trade> trades) {
+        return tradeDimensionIndex == null ? FilterStatistics.ESTIMATED
+                : tradeDimensionIndex.filterStatistics(trades).orElse(FilterStatistics.ESTIMATED);
+    }
+
+    private static Map<String, List<Trade>> groupChunk(List<Trade> trades, Set<AggregateField> aggregationFields, Predicate<Trade> filter) {
         //Split trades into aggregated levels based on the fields provided and filter on the trades we wish to see, else all
-        Stream<Trade> groupedTradesStream = trades.values().stream().filter(trade -> !trade.getAction().equals(Action.CANCEL));
-        //Note: Currently filtering is just ORing on different trade filters, could do NOTs/ANDs/more complex conditions in future
-        //e.g. TradeFilters = [{account="Account1", strategy="Strategy5"}, {strategy="Strategy6"} will return all trades that
-        //are either "Account1" and "Strategy5" or just "Strategy6"
-        if(request.filters().isPresent() && !request.filters().get().isEmpty()) {
-            groupedTradesStream = groupedTradesStream.filter(t -> request.filters().get().stream().anyMatch(tf -> tf.filter(t)));
+        Stream<Trade> groupedTradesStream = trades.stream().filter(trade -> !trade.getAction().equals(Action.CANCEL));
+        //TradeFilters are ORed together, e.g. TradeFilters = [{account="Account1", strategy="Strategy5"}, {strategy="Strategy6"}
+        //will return all trades that are either "Account1" and "Strategy5" or just "Strategy6", and the where expression
+        //of the request can AND, OR and NOT any conditions on top
+        if(filter != null) {
+            groupedTradesStream = groupedTradesStream.filter(filter);
+        }
+
+        //Group on dimension ids rather than a String key per trade, rendering the key once per group
+        TradeGroupIndexer groupIndexer = new TradeGroupIndexer(aggregationFields);
+        List<List<Trade>> groups = new ArrayList<>();
+        groupedTradesStream.forEach(t -> {
+            int group = groupIndexer.index(t);
+            if(group == groups.size()) {
+                groups.add(new ArrayList<>());
+            }
+            groups.get(group).add(t);
+        });
+
+        Map<String, List<Trade>> groupedTrades = new HashMap<>(groups.size() * 2);
+        groups.forEach(group -> groupedTrades.put(AggregateField.getAggregateCompositeKey(group.get(0), aggregationFields), group));
+        return groupedTrades;
+    }
+
+    private static List<Map<String, List<Trade>>> groupChunkForRoutes(List<Trade> trades, List<TradeRoute> routes,
+                                                                     List<Predicate<Trade>> filters, int[] routeFilters) {
+        TradeGroupIndexer[] groupIndexers = new TradeGroupIndexer[routes.size()];
+        List<List<List<Trade>>> routeGroups = new ArrayList<>(routes.size());
+        for(int r = 0; r < routes.size(); r++) {
+            groupIndexers[r] = new TradeGroupIndexer(routes.get(r).fields());
+            routeGroups.add(new ArrayList<>());
         }
 
-        Map<String, List<Trade>> groupedTrades = groupedTradesStream.collect(
-                groupingBy(t -> AggregateField.getAggregateCompositeKey(t, aggregationFields)));
+        boolean[] passed = new boolean[filters.size()];
+        for(Trade t: trades) {
+            if(t.getAction().equals(Action.CANCEL)) {
+                continue;
+            }
+            for(int f = 0; f < filters.size(); f++) {
+                passed[f] = filters.get(f).test(t);
+            }
+            for(int r = 0; r < routes.size(); r++) {
+                if(routeFilters[r] >= 0 && !passed[routeFilters[r]]) {
+                    continue;
+                }
+                List<List<Trade>> groups = routeGroups.get(r);
+                int group = groupIndexers[r].index(t);
+                if(group == groups.size()) {
+                    groups.add(new ArrayList<>());
+                }
+                groups.get(group).add(t);
+            }
+        }
 
-        //Sort the dates within each grouping
-        groupedTrades.values().forEach(t -> t.sort(Comparator.comparing(Trade::getDateTime)));
+        List<Map<String, List<Trade>>> groupedTrades = new ArrayList<>(routes.size());
+        for(int r = 0; r < routes.size(); r++) {
+            Set<AggregateField> aggregationFields = routes.get(r).fields();
+            Map<String, List<Trade>> routeTrades = new HashMap<>(routeGroups.get(r).size() * 2);
+            routeGroups.get(r).forEach(group -> routeTrades.put(AggregateField.getAggregateCompositeKey(group.get(0), aggregationFields), group));
+            groupedTrades.add(routeTrades);
+        }
         return groupedTrades;
     }
 
     /**
-     * Taking in the grouped trades, we then carry out the PnL aggregation and return the results in various ways
+     * Taking in the grouped trades, we then carry out the PnL aggregation and return the results in various ways.
+     * Groups are shared out across the aggregation pool when "aggregation.parallelism" is above 1.
      * @param groupedTrades
      * @param request
      * @return
      */
     public Map<String, List<PnLPosition>> processPnlAggregation(Map<String, List<Trade>> groupedTrades, PnLAggregationRequest request) {
-        Map<String, List<PnLPosition>> pnlAggregated = groupedTrades.entrySet().stream()
-                .collect(toMap(
-                        Map.Entry::getKey,
-                        e -> pnlAggregator(e.getValue(), request.convertIntoCurrency())
-                ));
+        FxRates fxRates = FxService.getRates();
+        Map<String, List<PnLPosition>> pnlAggregated = request.window().isPresent()
+                ? PnLWindows.narrow(computePnlAggregation(groupedTrades, request.fullSeries(), fxRates), request)
+                : computePnlAggregation(groupedTrades, request, fxRates);
+        return outputPnlAggregation(pnlAggregated, request).positions();
+    }
 
-        //TODO following two steps of outputting aggregated data is better done via async job (via ActiveMQ etc) so REST call returns quickly
-        if(aggregationProps.isOutputToConsole()) {
-            pnlAggregationPrinter(pnlAggregated, request);
+    /**
+     * As processPnlAggregation, converting with the given rates and without narrowing to a window or writing the
+     * aggregation to any output
+     * @param groupedTrades
+     * @param request
+     * @param fxRates
+     */
+    public Map<String, List<PnLPosition>> aggregateGroups(Map<String, List<Trade>> groupedTrades, PnLAggregationRequest request,
+                                                          FxRates fxRates) {
+        return computePnlAggregation(groupedTrades, request, fxRates);
+    }
+
+    private Map<String, List<PnLPosition>> computePnlAggregation(Map<String, List<Trade>> groupedTrades, PnLAggregationRequest request,
+                                                                 FxRates fxRates) {
+        List<Map.Entry<String, List<Trade>>> groups = new ArrayList<>(groupedTrades.entrySet());
+        LongAdder fixedPointFallbacks = new LongAdder();
+        List<Map<String, List<PnLPosition>>> batches = invokeAll(ranges(groups.size()).stream()
+                .<Callable<Map<String, List<PnLPosition>>>>map(range -> () -> groups.subList(range[0], range[1]).stream()
+                        .collect(toMap(
+                                Map.Entry::getKey,
+                                e -> pnlAggregator(e.getValue(), request, fxRates, fixedPointFallbacks)
+                        )))
+                .toList());
+        logFixedPointFallbacks(fixedPointFallbacks, groups.size());
+
+        Map<String, List<PnLPosition>> pnlAggregated = new HashMap<>(groups.size() * 2);
+        batches.forEach(pnlAggregated::putAll);
+        return pnlAggregated;
+    }
+
+    /**
+     * Logs the groups of one aggregation that overflowed the fixed point arithmetic once, rather than once per group
+     */
+    private static void logFixedPointFallbacks(LongAdder fixedPointFallbacks, int groups) {
+        if(fixedPointFallbacks.sum() > 0) {
+            LOGGER.info("Fixed point pnl aggregation overflowed for " + fixedPointFallbacks.sum() + " of " + groups
+                    + " groups, which used BigDecimal instead");
+        }
+    }
+
+    /**
+     * Splits [0, size) into consecutive ranges, a few per thread of the aggregation pool so that uneven ranges still
+     * balance, or a single range when aggregating sequentially
+     * @param size
+     * @return [from, to) pairs in order
+     */
+    private List<int[]> ranges(int size) {
+        int chunks = aggregationPool == null ? 1 : Math.max(1, Math.min(size, aggregationPool.getParallelism() * 4));
+        List<int[]> ranges = new ArrayList<>(chunks);
+        for(int chunk = 0; chunk < chunks; chunk++) {
+            ranges.add(new int[]{(int) ((long) size * chunk / chunks), (int) ((long) size * (chunk + 1) / chunks)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Runs the tasks on the aggregation pool, or in turn on this thread when aggregating sequentially
+     * @param tasks
+     * @return the task results in task order
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        try {
+            if(aggregationPool == null || tasks.size() == 1) {
+                List<T> results = new ArrayList<>(tasks.size());
+                for(Callable<T> task: tasks) {
+                    results.add(task.call());
+                }
+                return results;
+            }
+
+            List<T> results = new ArrayList<>(tasks.size());
+            for(Future<T> result: aggregationPool.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while aggregating trades", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtime ? runtime : new IllegalStateException("Failed to aggregate trades", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to aggregate trades", e);
         }
+    }
 
-        //We don't want to write this information to files if it goes over a predefined threshold
-        if(aggregationProps.isOutputToCsv() && pnlAggregated.size() <= fileProps.getMaxFilesToOutput()) {
-            csvParser.writeAggregationPositionsIntoCsv(pnlAggregated, request);
+    @PreDestroy
+    public void shutdownAggregationPool() {
+        if(aggregationPool != null) {
+            aggregationPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Hands a completed aggregation to the output pipeline for any enabled sinks and keeps it as the latest aggregation
+     * @param pnlAggregated
+     * @param request
+     * @return the same aggregation, with its output job if one was created
+     */
+    private PnLAggregationResult outputPnlAggregation(Map<String, List<PnLPosition>> pnlAggregated, PnLAggregationRequest request) {
+        Optional<String> outputJobId = Optional.empty();
+        if((aggregationProps.isOutputToConsole() || aggregationProps.isOutputToCsv()) && aggregationOutputService.hasSinks(pnlAggregated)) {
+            outputJobId = Optional.of(aggregationOutputService.submit(pnlAggregated, request));
         }
 
         setAggregatedTrades(pnlAggregated);
-        return pnlAggregated;
+        return new PnLAggregationResult(pnlAggregated, outputJobId);
     }
 
     /**
@@ -118,28 +818,48 @@ public class TradeAggregationService {
      * Here, we define a currency for the PnL stream to be converted into.
      *
      * Note: this is pnl cash positions only, does not track how much of a stock we hold
+     *
+     * With "aggregation.fixedPoint" the series is accumulated in scaled longs instead, falling back to BigDecimal for
+     * the group if that overflows. With a bucket on the request, positions are summarised into buckets as they are
+     * summed instead of one being kept per trade.
      * @param trades
-     * @param convertIntoCurrency
+     * @param request
+     * @param fxRates: the rates every trade is converted with, at the rate in force at its time
+     * @param fixedPointFallbacks: counts the groups that fell back to BigDecimal, to be logged once per aggregation
      * @return List of date / cumulative pnl pairs
      */
-    private List<PnLPosition> pnlAggregator(List<Trade> trades, Optional<Currency> convertIntoCurrency) {
+    private List<PnLPosition> pnlAggregator(List<Trade> trades, PnLAggregationRequest request, FxRates fxRates,
+                                            LongAdder fixedPointFallbacks) {
+        Optional<Currency> convertIntoCurrency = request.convertIntoCurrency();
+        if(fixedPointPnlCalculator != null) {
+            try {
+                return request.bucket().isPresent()
+                        ? fixedPointPnlCalculator.aggregateBuckets(trades, convertIntoCurrency, fxRates, request.bucket().get())
+                        : fixedPointPnlCalculator.aggregate(trades, convertIntoCurrency, fxRates);
+            } catch (ArithmeticException e) {
+                LOGGER.debug("Fixed point pnl aggregation failed, using BigDecimal for this group: " + e.getMessage());
+                fixedPointFallbacks.increment();
+            }
+        }
+
+        if(request.bucket().isPresent()) {
+            PnLBuckets buckets = new PnLBuckets(request.bucket().get());
+            BigDecimal position = BigDecimal.ZERO;
+            for(Trade t: trades) {
+                position = position.add(tradePnl(t, convertIntoCurrency, fxRates));
+                buckets.add(PnLBuckets.epochSecond(t.getDateTime()), position);
+            }
+            return buckets.finish();
+        }
+
         List<PnLPosition> timeAggregate = new ArrayList<>(List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ZERO)));
 
         //For each trade we work out its profit or loss, then sum this with the previous to get cumulative pnl aggregation at a give time
         for(int index=0; index < trades.size(); index++) {
             Trade t = trades.get(index);
-            BigDecimal val = t.getPrice().multiply(new BigDecimal(t.getVolume()));
-            if(t.getSide().equals(Side.B)) {
-                val = val.multiply(new BigDecimal(-1));
-            }
-
-            //If we are converting into a specific currency, we may need to do FX conversion
-            if(convertIntoCurrency.isPresent() && !convertIntoCurrency.get().equals(t.getCcy())) {
-                val = val.multiply(FxService.FX_MAP.get(new FxService.FxPair(t.getCcy(), convertIntoCurrency.get())));
-            }
 
             //We sum with previous pnl cumulative to get new pnl cumulative val for this datetime
-            timeAggregate.add(new PnLPosition(t.getDateTime(), timeAggregate.get(index).position().add(val)));
+            timeAggregate.add(new PnLPosition(t.getDateTime(), timeAggregate.get(index).position().add(tradePnl(t, convertIntoCurrency, fxRates))));
         }
 
         timeAggregate.remove(0);
@@ -147,20 +867,52 @@ public class TradeAggregationService {
     }
 
     /**
-     * Prints the output of the aggregations
-     * @param pnlAggregated
-     * @param request
+     * The profit or loss of a single trade: its value is a loss when Bought and a profit when Sold, converted into the
+     * given currency if one is set, at the current rates
+     * @param t
+     * @param convertIntoCurrency
+     * @return signed pnl of the trade
      */
-    public void pnlAggregationPrinter(Map<String, List<PnLPosition>> pnlAggregated, PnLAggregationRequest request) {
-        //Sort the map keys so output printed is more ordered
-        List<String> keys = pnlAggregated.keySet().stream().sorted().toList();
+    public static BigDecimal tradePnl(Trade t, Optional<Currency> convertIntoCurrency) {
+        return tradePnl(t, convertIntoCurrency, FxService.getRates());
+    }
 
-        keys.forEach(k -> {
-            LOGGER.info("");
-            LOGGER.info("----- " + k + " intraday cash positions" + request.convertForTitle() + " -----");
-            pnlAggregated.get(k).forEach(pos ->
-                    LOGGER.info(pos.dateTime().format(DateTimeFormatter.ofPattern(DateUtils.DATETIME_FORMAT)) + ": " + pos.position().toBigInteger()));
-        });
+    /**
+     * As above, converting at the rate the given rates held at the time of the trade
+     * @param t
+     * @param convertIntoCurrency
+     * @param fxRates
+     * @return signed pnl of the trade
+     */
+    public static BigDecimal tradePnl(Trade t, Optional<Currency> convertIntoCurrency, FxRates fxRates) {
+        BigDecimal val = signedPnl(t.getPrice().multiply(new BigDecimal(t.getVolume())), t.getSide());
+
+        //If we are converting into a specific currency, we may need to do FX conversion
+        if(convertIntoCurrency.isPresent() && !convertIntoCurrency.get().equals(t.getCcy())) {
+            val = val.multiply(fxRates.rate(fxRates.slice(t.getDateTime()), t.getCcy(), convertIntoCurrency.get()));
+        }
+        return val;
+    }
+
+    /**
+     * As above, for the trade in a slot of a columnar store
+     * @param store
+     * @param slot
+     * @param convertIntoCurrency
+     * @param fxRates
+     * @return signed pnl of the trade
+     */
+    public static BigDecimal tradePnl(ColumnarTradeStore store, int slot, Optional<Currency> convertIntoCurrency, FxRates fxRates) {
+        BigDecimal val = signedPnl(store.notional(slot), store.side(slot));
+        Currency ccy = store.currency(slot);
+        if(convertIntoCurrency.isPresent() && !convertIntoCurrency.get().equals(ccy)) {
+            val = val.multiply(fxRates.rate(fxRates.slice(store.tradeTimeMicros(slot)), ccy, convertIntoCurrency.get()));
+        }
+        return val;
+    }
+
+    private static BigDecimal signedPnl(BigDecimal val, Side side) {
+        return side.equals(Side.B) ? val.multiply(new BigDecimal(-1)) : val;
     }
 
     public void setAggregatedTrades(Map<String, List<PnLPosition>> aggregatedTrades) {
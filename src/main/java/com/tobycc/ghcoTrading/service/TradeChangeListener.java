@@ -0,0 +1,23 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implemented by components that keep derived state over the cleaned trade book, so they can apply only what an
+ * ingest changed instead of rescanning the whole book.
+ */
+public interface TradeChangeListener {
+
+    /**
+     * Called by {@link TradeLoadingService} after each batch of trades has been cleaned into the book, in the order
+     * the batches were applied
+     * @param book: the trade book the changes were applied to
+     * @param version: the version of the book after the changes, increasing with every batch
+     * @param changes: the effective changes, in the order they were made
+     */
+    void onTradesChanged(Map<String, Trade> book, long version, List<TradeChange> changes);
+}
@@ -0,0 +1,110 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.file.TradeCheckpointStore;
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
+import com.tobycc.ghcoTrading.model.IngestedFile;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.props.FileProps;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * With "file.checkpoint", checkpoints the loaded trades every "file.checkpointIntervalSeconds" if they have changed
+ * since the last checkpoint, and once more on shutdown, so a restart only has to parse what was added after it.
+ *
+ * The offsets of the files read are taken before the trades, so a checkpoint never claims rows its trades do not have.
+ * It can have trades from rows after its offsets, which are then read again on restart, and as loading the same trade
+ * again never changes which version of it wins, that makes no difference.
+ */
+@Service
+public class TradeCheckpointService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TradeCheckpointService.class);
+
+    private final TradeLoadingService tradeLoadingService;
+    private final TradeCheckpointStore tradeCheckpointStore;
+    private final TradeFileOffsets tradeFileOffsets;
+    private final FileProps fileProps;
+
+    private ScheduledExecutorService scheduler;
+
+    public TradeCheckpointService(TradeLoadingService tradeLoadingService, TradeCheckpointStore tradeCheckpointStore,
+                                  TradeFileOffsets tradeFileOffsets, FileProps fileProps) {
+        this.tradeLoadingService = tradeLoadingService;
+        this.tradeCheckpointStore = tradeCheckpointStore;
+        this.tradeFileOffsets = tradeFileOffsets;
+        this.fileProps = fileProps;
+    }
+
+    @PostConstruct
+    public void startCheckpointing() {
+        if(fileProps.isCheckpoint()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "trade-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            //The first runs straight away, so the trades loaded on startup are checkpointed
+            scheduler.scheduleWithFixedDelay(this::checkpointQuietly, 0, fileProps.getCheckpointIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stopCheckpointing() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+            checkpointQuietly();
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the loaded trades, unless the last one already has this version of them
+     * @return whether a checkpoint was written
+     */
+    public synchronized boolean checkpoint() throws IOException {
+        long version = tradeLoadingService.getVersion();
+        if(version == tradeCheckpointStore.getCheckpointedVersion()) {
+            return false;
+        }
+        Map<String, Long> offsets = tradeFileOffsets.getOffsets();
+        List<Trade> trades = tradeLoadingService.copyLoadedTrades();
+
+        List<IngestedFile> files = new ArrayList<>();
+        for(Map.Entry<String, Long> offset: offsets.entrySet()) {
+            Path file = Path.of(offset.getKey());
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                files.add(new IngestedFile(offset.getKey(), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                        offset.getValue(), TradeCheckpointStore.checksum(file, offset.getValue())));
+            } catch (NoSuchFileException e) {
+                //Its trades are still loaded, so stay in the checkpoint, just no longer tied to a file
+                LOGGER.info("Input file " + file + " has been removed, leaving it out of the checkpoint manifest");
+            }
+        }
+        tradeCheckpointStore.write(version, files, trades);
+        return true;
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to checkpoint the loaded trades: " + e.getMessage());
+        }
+    }
+}
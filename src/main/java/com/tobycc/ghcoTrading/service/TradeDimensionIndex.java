@@ -0,0 +1,253 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import com.tobycc.ghcoTrading.store.SlotBitmap;
+import com.tobycc.ghcoTrading.store.StringIntHashMap;
+import com.tobycc.ghcoTrading.store.VersionedTradeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Inverted indexes of the live trade book, enabled with "store.dimensionIndex": each trade is given a slot, and each
+ * value of BBGCode, Currency, Portfolio, Account, Strategy and User maps to a {@link SlotBitmap} of the slots of the
+ * live trades holding it. A filter is answered by intersecting the bitmaps of the values it constrains, smallest
+ * first, and a set of filters by the union of those, so a filtered aggregation only touches the trades that match.
+ *
+ * Kept up to date from the changes {@link TradeLoadingService} applies on each ingest, and rebuilt whenever a
+ * different book is loaded. A columnar book is not indexed, as its filters are already bound to its dictionaries.
+ * The counts of its bitmaps also serve as the statistics filter expressions are compiled with.
+ */
+@Service
+public class TradeDimensionIndex implements TradeChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TradeDimensionIndex.class);
+
+    private static final SlotBitmap EMPTY = new SlotBitmap();
+
+    private final StoreProps storeProps;
+
+    //The trade book indexed
+    private Map<String, Trade> trackedBook;
+
+    //Slot of each live trade by trade id, the trade in each slot, and the slots freed to be reused
+    private final StringIntHashMap slots = new StringIntHashMap();
+    private Trade[] trades = new Trade[1024];
+    private int slotLimit;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    //Slots of all live trades, and of the live trades holding each value of each dimension
+    private final SlotBitmap live = new SlotBitmap();
+    private final Map<String, SlotBitmap> bbgCodes = new HashMap<>();
+    private final SlotBitmap[] currencies = new SlotBitmap[Currency.values().length];
+    private final Map<String, SlotBitmap> portfolios = new HashMap<>();
+    private final Map<String, SlotBitmap> accounts = new HashMap<>();
+    private final Map<String, SlotBitmap> strategies = new HashMap<>();
+    private final Map<String, SlotBitmap> users = new HashMap<>();
+
+    public TradeDimensionIndex(StoreProps storeProps) {
+        this.storeProps = storeProps;
+    }
+
+    /**
+     * @param book
+     * @param filters: ORed together, as in {@link TradeAggregationService#groupTrades}
+     * @return the live trades passing any of the filters, in slot order, or empty if the book is not the one indexed
+     */
+    public synchronized Optional<List<Trade>> matchingTrades(Map<String, Trade> book, Set<TradeFilter> filters) {
+        if(!storeProps.isDimensionIndex() || trackedBook != book) {
+            return Optional.empty();
+        }
+
+        SlotBitmap matching = new SlotBitmap();
+        for(TradeFilter filter: filters) {
+            matching = matching.or(matching(filter));
+        }
+        List<Trade> matchingTrades = new ArrayList<>(matching.cardinality());
+        matching.forEach(slot -> matchingTrades.add(trades[slot]));
+        return Optional.of(matchingTrades);
+    }
+
+    @Override
+    public synchronized void onTradesChanged(Map<String, Trade> book, long version, List<TradeChange> changes) {
+        if(!storeProps.isDimensionIndex() || book instanceof ColumnarTradeStore) {
+            return;
+        }
+        //Called after the changes are applied, so a rebuilt index already holds them
+        if(trackedBook != book) {
+            rebuild(book);
+            return;
+        }
+        changes.forEach(change -> apply(change.current()));
+    }
+
+    /**
+     * @param book
+     * @return the fraction of the live trades holding each dimension value, or empty if the book is not the one indexed
+     */
+    public synchronized Optional<FilterStatistics> filterStatistics(Map<String, Trade> book) {
+        if(!storeProps.isDimensionIndex() || trackedBook != book) {
+            return Optional.empty();
+        }
+        return Optional.of((field, values) -> {
+            if(field == FilterField.CURRENCY) {
+                return selectivity(values, value -> currencies[Currency.valueOf(value).ordinal()]);
+            }
+            Map<String, SlotBitmap> index = switch (field) {
+                case BBG_CODE -> bbgCodes;
+                case PORTFOLIO -> portfolios;
+                case ACCOUNT -> accounts;
+                case STRATEGY -> strategies;
+                case USER -> users;
+                default -> null;
+            };
+            return index != null ? selectivity(values, index::get) : FilterStatistics.ESTIMATED.selectivity(field, values);
+        });
+    }
+
+    private synchronized double selectivity(Collection<String> values, Function<String, SlotBitmap> bitmap) {
+        if(live.isEmpty()) {
+            return 0;
+        }
+        long holding = 0;
+        for(String value: values) {
+            SlotBitmap slots = bitmap.apply(value);
+            holding += slots != null ? slots.cardinality() : 0;
+        }
+        return (double) holding / live.cardinality();
+    }
+
+    public synchronized int getIndexedTradeCount() {
+        return live.cardinality();
+    }
+
+    /**
+     * Slots of the live trades passing the filter, intersecting the bitmaps of its values from the smallest up
+     */
+    private SlotBitmap matching(TradeFilter filter) {
+        List<SlotBitmap> bitmaps = new ArrayList<>();
+        filter.bbgCode().ifPresent(bbgCode -> bitmaps.add(bbgCodes.getOrDefault(bbgCode, EMPTY)));
+        filter.ccy().ifPresent(ccy -> bitmaps.add(Objects.requireNonNullElse(currencies[ccy.ordinal()], EMPTY)));
+        filter.portfolio().ifPresent(portfolio -> bitmaps.add(portfolios.getOrDefault(portfolio, EMPTY)));
+        filter.account().ifPresent(account -> bitmaps.add(accounts.getOrDefault(account, EMPTY)));
+        filter.strategy().ifPresent(strategy -> bitmaps.add(strategies.getOrDefault(strategy, EMPTY)));
+        filter.user().ifPresent(user -> bitmaps.add(users.getOrDefault(user, EMPTY)));
+        if(bitmaps.isEmpty()) {
+            return live;
+        }
+
+        bitmaps.sort(Comparator.comparingInt(SlotBitmap::cardinality));
+        SlotBitmap matching = bitmaps.get(0);
+        for(int i = 1; i < bitmaps.size() && !matching.isEmpty(); i++) {
+            matching = matching.and(bitmaps.get(i));
+        }
+        return matching;
+    }
+
+    private void rebuild(Map<String, Trade> book) {
+        trackedBook = book;
+        slots.clear();
+        trades = new Trade[1024];
+        slotLimit = 0;
+        freeSlots.clear();
+        live.clear();
+        clearBitmaps();
+
+        if(book instanceof VersionedTradeStore store) {
+            try (VersionedTradeStore.Snapshot snapshot = store.snapshot()) {
+                snapshot.values().forEach(this::apply);
+            }
+        } else {
+            book.values().forEach(this::apply);
+        }
+        LOGGER.info("Built dimension index over " + live.cardinality() + " live trades");
+    }
+
+    /**
+     * Indexes the latest version of a trade in place of any earlier version, dropping it if it has been cancelled
+     */
+    private void apply(Trade trade) {
+        int slot = slots.get(trade.getTradeId());
+        if(slot != StringIntHashMap.MISSING) {
+            unindex(slot);
+        }
+
+        if(trade.getAction().equals(Action.CANCEL)) {
+            if(slot != StringIntHashMap.MISSING) {
+                slots.remove(trade.getTradeId());
+                trades[slot] = null;
+                freeSlots.push(slot);
+            }
+            return;
+        }
+
+        if(slot == StringIntHashMap.MISSING) {
+            slot = allocateSlot();
+            slots.put(trade.getTradeId(), slot);
+        }
+        trades[slot] = trade;
+        live.add(slot);
+        add(bbgCodes, trade.getBbgCode(), slot);
+        if(trade.getCcy() != null) {
+            if(currencies[trade.getCcy().ordinal()] == null) {
+                currencies[trade.getCcy().ordinal()] = new SlotBitmap();
+            }
+            currencies[trade.getCcy().ordinal()].add(slot);
+        }
+        add(portfolios, trade.getPortfolio(), slot);
+        add(accounts, trade.getAccount(), slot);
+        add(strategies, trade.getStrategy(), slot);
+        add(users, trade.getUser(), slot);
+    }
+
+    private void unindex(int slot) {
+        Trade trade = trades[slot];
+        live.remove(slot);
+        remove(bbgCodes, trade.getBbgCode(), slot);
+        if(trade.getCcy() != null && currencies[trade.getCcy().ordinal()] != null) {
+            currencies[trade.getCcy().ordinal()].remove(slot);
+        }
+        remove(portfolios, trade.getPortfolio(), slot);
+        remove(accounts, trade.getAccount(), slot);
+        remove(strategies, trade.getStrategy(), slot);
+        remove(users, trade.getUser(), slot);
+    }
+
+    private int allocateSlot() {
+        if(!freeSlots.isEmpty()) {
+            return freeSlots.pop();
+        }
+        if(slotLimit == trades.length) {
+            trades = Arrays.copyOf(trades, slotLimit * 2);
+        }
+        return slotLimit++;
+    }
+
+    private static void add(Map<String, SlotBitmap> index, String value, int slot) {
+        if(value != null) {
+            index.computeIfAbsent(value, v -> new SlotBitmap()).add(slot);
+        }
+    }
+
+    private static void remove(Map<String, SlotBitmap> index, String value, int slot) {
+        SlotBitmap bitmap = value != null ? index.get(value) : null;
+        if(bitmap != null && bitmap.remove(slot) && bitmap.isEmpty()) {
+            index.remove(value);
+        }
+    }
+
+    private void clearBitmaps() {
+        List.of(bbgCodes, portfolios, accounts, strategies, users).forEach(Map::clear);
+        Arrays.fill(currencies, null);
+    }
+}
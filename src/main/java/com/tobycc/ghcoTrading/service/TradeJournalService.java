@@ -0,0 +1,165 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
+import com.tobycc.ghcoTrading.file.TradeInputException;
+import com.tobycc.ghcoTrading.file.TradeJournal;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.props.FileProps;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * With "file.journal", takes the trades posted to the API: each post is appended to the {@link TradeJournal} and
+ * loaded into the trades as soon as it is durable, and the journal is replayed on startup after the input files.
+ *
+ * Posts are queued for a single journal thread, which appends every post waiting, syncs them all at once (group
+ * commit) and loads them as one batch, in the order they were appended, before any of the posts return. Posts that
+ * arrive while a sync is under way wait for the next one, so the more posts there are at once, the fewer syncs each.
+ *
+ * How far into the journal the loaded trades go is kept with the input file offsets, so a checkpoint records it in its
+ * manifest, and a restart from that checkpoint only replays the journal from there.
+ */
+@Service
+public class TradeJournalService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TradeJournalService.class);
+
+    private final TradeJournal tradeJournal;
+    private final TradeLoadingService tradeLoadingService;
+    private final TradeFileOffsets tradeFileOffsets;
+    private final FileProps fileProps;
+
+    private final BlockingQueue<JournalAppend> appends = new LinkedBlockingQueue<>();
+    private ExecutorService journalThread;
+    //Stops the journal thread between groups, as interrupting it part way through a write would close the journal
+    private volatile boolean stopping;
+
+    public TradeJournalService(TradeJournal tradeJournal, TradeLoadingService tradeLoadingService,
+                               TradeFileOffsets tradeFileOffsets, FileProps fileProps) {
+        this.tradeJournal = tradeJournal;
+        this.tradeLoadingService = tradeLoadingService;
+        this.tradeFileOffsets = tradeFileOffsets;
+        this.fileProps = fileProps;
+    }
+
+    /**
+     * Replays the journal into the trades loaded from the input files, from where any checkpoint they were loaded from
+     * left off, and starts taking posts
+     */
+    @PostConstruct
+    public void replayJournal() throws IOException {
+        if(!isEnabled()) {
+            return;
+        }
+        String journalFile = TradeJournal.journalFile(fileProps).toString();
+        List<Trade> trades = tradeJournal.open(tradeFileOffsets.get(journalFile));
+        if(!trades.isEmpty()) {
+            tradeLoadingService.loadTrades(trades);
+        }
+        tradeFileOffsets.put(journalFile, tradeJournal.position());
+        journalThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trade-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        journalThread.execute(this::commitGroups);
+    }
+
+    @PreDestroy
+    public void stopJournal() throws IOException {
+        if(journalThread != null) {
+            stopping = true;
+            journalThread.shutdown();
+            try {
+                journalThread.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            tradeJournal.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return fileProps.isJournal();
+    }
+
+    /**
+     * Journals the trades and loads them, returning once both are done
+     * @param trades
+     * @return the TradeIDs of the trades
+     * @throws TradeInputException if any of the trades cannot be journaled, in which case none are
+     * @throws IllegalStateException if the trades could not be journaled, in which case they are not loaded, or the
+     * journal is not enabled or has been stopped
+     */
+    public List<String> appendTrades(List<Trade> trades) {
+        if(journalThread == null || stopping) {
+            throw new IllegalStateException("The journal is not taking trades");
+        }
+        trades.forEach(TradeJournal::checkJournalable);
+        JournalAppend append = new JournalAppend(trades, new CompletableFuture<>());
+        appends.add(append);
+        try {
+            append.done().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while journaling trades", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to journal trades", e.getCause());
+        }
+        return trades.stream().map(Trade::getTradeId).toList();
+    }
+
+    private void commitGroups() {
+        List<JournalAppend> group = new ArrayList<>();
+        while(!stopping) {
+            try {
+                JournalAppend first = appends.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                group.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            appends.drainTo(group);
+            commit(group);
+            group.clear();
+        }
+        //Posts left waiting once stopped are failed rather than left hanging
+        appends.drainTo(group);
+        group.forEach(append -> append.done().completeExceptionally(new IllegalStateException("Journal stopped")));
+    }
+
+    private void commit(List<JournalAppend> group) {
+        List<Trade> trades = new ArrayList<>();
+        group.forEach(append -> trades.addAll(append.trades()));
+        try {
+            tradeJournal.append(trades);
+            tradeJournal.sync();
+            tradeLoadingService.loadTrades(trades);
+            //Only once loaded, so a checkpoint never claims journaled trades it does not have
+            tradeFileOffsets.put(TradeJournal.journalFile(fileProps).toString(), tradeJournal.position());
+            LOGGER.debug("Journaled " + trades.size() + " trades from " + group.size() + " posts in one sync");
+            group.forEach(append -> append.done().complete(null));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to journal " + trades.size() + " trades: " + e.getMessage());
+            group.forEach(append -> append.done().completeExceptionally(e));
+        }
+    }
+
+    /**
+     * One post waiting to be journaled, completed once its trades are durable and loaded
+     */
+    private record JournalAppend(
+            List<Trade> trades,
+            CompletableFuture<Void> done
+    ) { }
+}
@@ -1,16 +1,35 @@
 package com.tobycc.ghcoTrading.service;
 
 import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.TradeCheckpointStore;
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
+import com.tobycc.ghcoTrading.file.TradeJournal;
+import com.tobycc.ghcoTrading.model.IngestedFile;
 import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+import com.tobycc.ghcoTrading.model.TradeCheckpoint;
+import com.tobycc.ghcoTrading.model.TradeFileRead;
 import com.tobycc.ghcoTrading.model.enums.Action;
 import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import com.tobycc.ghcoTrading.store.VersionedTradeStore;
 import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 @Service
 public class TradeLoadingService {
@@ -18,33 +37,281 @@ public class TradeLoadingService {
     private static final Logger LOGGER = LoggerFactory.getLogger(TradeLoadingService.class);
 
     //Loaded trades
-    private Map<String,Trade> loadedTrades = new HashMap<>();
+    private Map<String,Trade> loadedTrades;
+    //Bumped on every batch of trades loaded, so derived state can tell which version of the trades it reflects
+    private volatile long version;
 
     private final CSVParser csvParser;
     private final FileProps fileProps;
+    private final List<TradeChangeListener> tradeChangeListeners;
+    private final TradeFileOffsets tradeFileOffsets;
+    private final TradeCheckpointStore tradeCheckpointStore;
 
-    public TradeLoadingService(CSVParser csvParser, FileProps fileProps) {
+    public TradeLoadingService(CSVParser csvParser, FileProps fileProps, StoreProps storeProps,
+                               List<TradeChangeListener> tradeChangeListeners, TradeFileOffsets tradeFileOffsets,
+                               TradeCheckpointStore tradeCheckpointStore) {
         this.csvParser = csvParser;
         this.fileProps = fileProps;
+        this.tradeChangeListeners = tradeChangeListeners;
+        this.tradeFileOffsets = tradeFileOffsets;
+        this.tradeCheckpointStore = tradeCheckpointStore;
+        this.loadedTrades = storeProps.isColumnar() ? new ColumnarTradeStore() : new VersionedTradeStore();
     }
 
+    /**
+     * Loads the trades in the input directory. With "file.checkpoint" the last checkpoint is loaded instead, if every
+     * file in it is still there and has at most been appended to, and then only what has been added to the input
+     * directory since is parsed.
+     */
     @PostConstruct
     public void loadInitialTrades() {
         LOGGER.info("Beginning load of initial sample of trades");
         String inputDir = fileProps.getBaseDirectory() + "/" + fileProps.getInputDirectory();
         File directoryPath = new File(inputDir);
 
-        //List of all files
-        String[] contents = directoryPath.list();
-        for(int i=0; i < Objects.requireNonNull(contents).length; i++) {
-            loadNewTradesFromFile(inputDir + "/" + contents[i]);
+        //List of all files, sorted so the resulting trades do not depend on the order the file system lists them in
+        String[] contents = Objects.requireNonNull(directoryPath.list());
+        Arrays.sort(contents);
+
+        long start = System.nanoTime();
+        int sizeBefore = getLoadedTrades().size();
+        Map<String, Long> fileOffsets = new HashMap<>();
+        Optional<TradeCheckpoint> checkpoint = fileProps.isCheckpoint() ? tradeCheckpointStore.read() : Optional.empty();
+        Optional<Map<String, Long>> checkpointedOffsets = checkpoint.flatMap(c -> checkpointedOffsets(c, inputDir, contents));
+        if(checkpointedOffsets.isPresent()) {
+            loadTrades(checkpoint.get().trades());
+            long restoredVersion = version;
+            for (String file : contents) {
+                String path = inputDir + "/" + file;
+                long offset = checkpointedOffsets.get().getOrDefault(path, 0L);
+                fileOffsets.put(path, offset);
+                if(offset != new File(path).length()) {
+                    readTradesFromOffset(path, offset, false).ifPresent(read -> fileOffsets.put(path, read.nextOffset()));
+                }
+            }
+            if(version == restoredVersion) {
+                tradeCheckpointStore.setCheckpointedVersion(version);
+            }
+        } else if(fileProps.isParallelLoad()) {
+            loadFilesInParallel(inputDir, contents, fileOffsets);
+        } else {
+            for (String file : contents) {
+                readTradesFromOffset(inputDir + "/" + file, 0, false)
+                        .ifPresent(read -> fileOffsets.put(inputDir + "/" + file, read.nextOffset()));
+            }
+        }
+        tradeFileOffsets.putAll(fileOffsets);
+        //The journal, replayed later, carries on from where the checkpoint's trades were journaled to
+        if(checkpointedOffsets.isPresent()) {
+            String journalFile = TradeJournal.journalFile(fileProps).toString();
+            checkpoint.get().files().stream().filter(file -> file.file().equals(journalFile)).findFirst()
+                    .ifPresent(tradeFileOffsets::put);
+        }
+        logThroughput("Initial load of " + contents.length + " files", getLoadedTrades().size() - sizeBefore,
+                directorySize(inputDir, contents), System.nanoTime() - start);
+        if(getLoadedTrades() instanceof ColumnarTradeStore store && !store.isEmpty()) {
+            LOGGER.info("Columnar trade store holds " + store.size() + " trades in roughly " + store.estimatedHeapBytes() / 1_000_000
+                    + " MB, " + store.estimatedHeapBytes() / store.size() + " bytes per trade");
+        }
+    }
+
+    /**
+     * Checks the files in a checkpoint's manifest against the input directory
+     * @param checkpoint
+     * @param inputDir
+     * @param files
+     * @return the offset to carry on reading each checkpointed file from, or empty if any has been removed or changed
+     * other than by appending to it since, as the checkpointed trades then no longer match the files. The journal is
+     * left out, as it is checked when it is replayed.
+     */
+    private Optional<Map<String, Long>> checkpointedOffsets(TradeCheckpoint checkpoint, String inputDir, String[] files) {
+        Map<String, String> paths = new HashMap<>();
+        Arrays.stream(files).forEach(file -> paths.put(TradeFileOffsets.fileKey(inputDir + "/" + file), inputDir + "/" + file));
+        String journalFile = TradeJournal.journalFile(fileProps).toString();
+
+        Map<String, Long> offsets = new HashMap<>();
+        for(IngestedFile ingested: checkpoint.files()) {
+            if(ingested.file().equals(journalFile)) {
+                continue;
+            }
+            String path = paths.get(ingested.file());
+            if(path == null) {
+                LOGGER.info("Not using checkpoint, as " + ingested.file() + " has been removed since it was taken");
+                return Optional.empty();
+            }
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+                boolean unchanged = attributes.size() == ingested.size() && attributes.lastModifiedTime().toMillis() == ingested.lastModifiedMillis();
+                if(!unchanged && (attributes.size() < ingested.offset() ||
+                        TradeCheckpointStore.checksum(Path.of(path), ingested.offset()) != ingested.checksum())) {
+                    LOGGER.info("Not using checkpoint, as " + path + " has been changed other than by appending to it since it was taken");
+                    return Optional.empty();
+                }
+            } catch (IOException e) {
+                LOGGER.info("Not using checkpoint, as " + path + " could not be checked: " + e.getMessage());
+                return Optional.empty();
+            }
+            offsets.put(path, ingested.offset());
         }
+        LOGGER.info("Loading checkpoint of " + checkpoint.trades().size() + " trades from " + offsets.size() + " files");
+        return Optional.of(offsets);
     }
 
+    /**
+     * Loads a complete file. In "file.tailMode" only the part of it after the rows already read is loaded.
+     * @param file
+     */
     public void loadNewTradesFromFile(String file) {
+        if(fileProps.isTailMode()) {
+            loadTradesFromSavedOffset(file, false);
+            return;
+        }
         LOGGER.info("Loading in from file: " + file);
-        Optional<List<Trade>> rawTrades = csvParser.checkFileAndReadTrades(file);
-        rawTrades.ifPresent(trades -> setLoadedTrades(cleanTrades(trades, getLoadedTrades())));
+        readTradesFromOffset(file, 0, false).ifPresent(read -> tradeFileOffsets.put(file, read.nextOffset()));
+    }
+
+    /**
+     * Loads the rows appended to a file that is still being written since it was last read. A last row without a line
+     * ending is left for the next read, as it may only be partly written.
+     * @param file
+     */
+    public void loadAppendedTradesFromFile(String file) {
+        loadTradesFromSavedOffset(file, true);
+    }
+
+    private void loadTradesFromSavedOffset(String file, boolean completeRowsOnly) {
+        long offset = tradeFileOffsets.get(file);
+        if(new File(file).length() == offset) {
+            return;
+        }
+        readTradesFromOffset(file, offset, completeRowsOnly).ifPresent(read -> tradeFileOffsets.put(file, read.nextOffset()));
+    }
+
+    private Optional<TradeFileRead> readTradesFromOffset(String file, long offset, boolean completeRowsOnly) {
+        long start = System.nanoTime();
+        Optional<TradeFileRead> read = csvParser.readTradesFromOffset(file, offset, completeRowsOnly);
+        read.ifPresent(r -> {
+            if(!r.trades().isEmpty()) {
+                loadTrades(r.trades());
+            }
+            logThroughput("File " + file + " from offset " + offset, r.trades().size(), r.nextOffset() - offset, System.nanoTime() - start);
+        });
+        return read;
+    }
+
+    /**
+     * Parses and cleans each file on its own thread of a pool of "file.loadThreads", then merges the per file results
+     * into the loaded trades in file name order.
+     *
+     * This gives the same trades as loading the files one after another in that order: cleaning keeps the highest
+     * priority version of each trade (CANCEL, then the latest AMEND, then NEW), with the later of two equal versions
+     * winning, so cleaning each file first and then cleaning the per file winners together picks the same version.
+     * @param inputDir
+     * @param files
+     * @param fileOffsets: filled with how far each file was read
+     */
+    private void loadFilesInParallel(String inputDir, String[] files, Map<String, Long> fileOffsets) {
+        int threads = Math.max(1, Math.min(fileProps.getLoadThreads(), files.length));
+        LOGGER.info("Loading " + files.length + " files in parallel on " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Optional<FileLoad>>> fileLoads = Arrays.stream(files)
+                    .map(file -> executor.submit(() -> readAndCleanFile(inputDir + "/" + file)))
+                    .toList();
+
+            //Merging in submission order, while later files are still being parsed
+            for(Future<Optional<FileLoad>> fileLoad: fileLoads) {
+                fileLoad.get().ifPresent(load -> {
+                    loadTrades(new ArrayList<>(load.cleanedTrades().values()));
+                    fileOffsets.put(load.file(), load.nextOffset());
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading initial trades", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load initial trades", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Optional<FileLoad> readAndCleanFile(String file) {
+        long start = System.nanoTime();
+        Optional<TradeFileRead> read = csvParser.readTradesFromOffset(file, 0, false);
+        return read.map(r -> {
+            Map<String, Trade> cleanedTrades = cleanTrades(r.trades(), new HashMap<>());
+            logThroughput("File " + file, r.trades().size(), r.nextOffset(), System.nanoTime() - start);
+            return new FileLoad(file, cleanedTrades, r.nextOffset());
+        });
+    }
+
+    private record FileLoad(
+            String file,
+            Map<String, Trade> cleanedTrades,
+            long nextOffset
+    ) { }
+
+    private static long directorySize(String inputDir, String[] files) {
+        return Arrays.stream(files).mapToLong(file -> new File(inputDir + "/" + file).length()).sum();
+    }
+
+    private static void logThroughput(String loaded, long trades, long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        LOGGER.info(String.format("%s: %d trades, %.1f MB in %.0f ms (%.0f trades/s, %.1f MB/s)", loaded, trades,
+                bytes / 1e6, seconds * 1e3, trades / seconds, bytes / 1e6 / seconds));
+    }
+
+    /**
+     * Cleans the raw trades into the loaded trades and passes the resulting changes on to any listeners keeping
+     * derived state over them, along with the new version of the loaded trades. Synchronized so listeners see batches
+     * in the order they were applied. With a versioned or columnar store the batch is committed as a whole, so
+     * aggregations reading a snapshot, or holding the columnar store, never see it half applied.
+     * @param rawTrades
+     */
+    public synchronized void loadTrades(List<Trade> rawTrades) {
+        List<TradeChange> changes = new ArrayList<>();
+        long newVersion = version + 1;
+        if(getLoadedTrades() instanceof VersionedTradeStore store) {
+            store.beginBatch(newVersion);
+            try {
+                cleanTrades(rawTrades, store, changes::add);
+            } finally {
+                //Anything written is committed even if cleaning fails, so the store and version stay in step
+                store.commit();
+                version = newVersion;
+            }
+        } else if(getLoadedTrades() instanceof ColumnarTradeStore store) {
+            List<Trade> holdableTrades = holdableTrades(rawTrades);
+            store.beginBatch();
+            try {
+                cleanTrades(holdableTrades, store, changes::add);
+            } finally {
+                store.commit();
+                version = newVersion;
+            }
+        } else {
+            setLoadedTrades(cleanTrades(rawTrades, getLoadedTrades(), changes::add));
+            version = newVersion;
+        }
+        tradeChangeListeners.forEach(listener -> listener.onTradesChanged(getLoadedTrades(), newVersion, changes));
+    }
+
+    /**
+     * Trades the columnar store cannot hold, e.g. with a time finer than a microsecond, are left out of the batch before
+     * it begins, so one of them cannot stop the batch part way through and have the rest committed without it
+     */
+    private static List<Trade> holdableTrades(List<Trade> rawTrades) {
+        List<Trade> holdableTrades = new ArrayList<>(rawTrades.size());
+        for(Trade trade: rawTrades) {
+            try {
+                ColumnarTradeStore.checkHoldable(trade);
+                holdableTrades.add(trade);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Trade " + trade.getTradeId() + " cannot be loaded into the columnar store: " + e.getMessage());
+            }
+        }
+        return holdableTrades;
     }
 
     /**
@@ -61,10 +328,23 @@ public class TradeLoadingService {
      * @return filtered Map of trades
      */
     public Map<String,Trade> cleanTrades(List<Trade> rawTrades, Map<String,Trade> cleanedTrades) {
+        return cleanTrades(rawTrades, cleanedTrades, change -> {});
+    }
+
+    /**
+     * As above, additionally reporting every effective change made to the cleaned trades (a raw trade that loses to the
+     * version already held is not a change)
+     * @param rawTrades
+     * @param cleanedTrades
+     * @param changeConsumer
+     * @return filtered Map of trades
+     */
+    public Map<String,Trade> cleanTrades(List<Trade> rawTrades, Map<String,Trade> cleanedTrades, Consumer<TradeChange> changeConsumer) {
         LOGGER.info("Cleaning new raw trades to remove redundant action variants that have been replaced, size: " + rawTrades.size());
-        rawTrades.forEach(t ->
+        rawTrades.forEach(t -> {
+                Trade previous = cleanedTrades.get(t.getTradeId());
                 //We filter the trades into a map
-                cleanedTrades.merge(
+                Trade current = cleanedTrades.merge(
                     t.getTradeId(),
                     t,
                     //The following remapping could be replaced by calling `robustFiltering(currTrade, newTrade)`
@@ -86,7 +366,13 @@ public class TradeLoadingService {
                         return newTrade.getAction().equals(Action.NEW) || newTrade.getDateTime().isBefore(currTrade.getDateTime())
                                 ? currTrade : newTrade;
                     }
-            )
+                );
+
+                //The raw trade won if it is what is now held, checked by identity as a columnar store builds a new Trade on every get
+                if(current == t && previous != t) {
+                    changeConsumer.accept(new TradeChange(previous, current));
+                }
+            }
         );
 
         LOGGER.info("Total cleaned trades now: " + cleanedTrades.size());
@@ -168,10 +454,31 @@ public class TradeLoadingService {
         return newTrade.getDateTime().isBefore(currTrade.getDateTime()) ? currTrade : newTrade;
     }
 
+    /**
+     * @return a copy of the loaded trades as of one version, from a snapshot where the store has them so loading is not
+     * held up while copying
+     */
+    public List<Trade> copyLoadedTrades() {
+        if(getLoadedTrades() instanceof VersionedTradeStore store) {
+            List<Trade> trades = new ArrayList<>(store.size());
+            try (VersionedTradeStore.Snapshot snapshot = store.snapshot()) {
+                snapshot.values().forEach(trades::add);
+            }
+            return trades;
+        }
+        synchronized(this) {
+            return new ArrayList<>(getLoadedTrades().values());
+        }
+    }
+
     public Map<String, Trade> getLoadedTrades() {
         return loadedTrades;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     public void setLoadedTrades(Map<String, Trade> loadedTrades) {
         this.loadedTrades = loadedTrades;
     }
@@ -0,0 +1,128 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Values derived from the live trade book per normalised request, e.g. aggregation results or rollup cubes, kept for as
+ * long as no ingest changes a trade the request can see. Shared by {@link AggregationResultCache} and
+ * {@link RollupService}, which hold one each and guard it with their own lock, as it is not thread safe itself.
+ *
+ * Each value is only offered for the version of the book it was computed from, as bumped by {@link TradeLoadingService}
+ * on each ingest. When an ingest changes trades, only the values whose request could see one of the changed trades
+ * (i.e. the old or new version of the trade passes the request's filters and where expression) are dropped, and every
+ * other value is carried forward to the new version. A different book drops them all.
+ *
+ * Values are kept in access order, so the least recently used can be evicted first.
+ */
+final class VersionedRequestCache<V> {
+
+    //The trade book the values were computed from, and its version as of the last ingest
+    private Map<String, Trade> trackedBook;
+    private long trackedVersion = -1;
+
+    private final Map<PnLAggregationRequest, V> values = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param trades
+     * @param request: a normalised request
+     * @return the value of the request, or null if there is none for the current version of the trades
+     */
+    V get(Map<String, Trade> trades, PnLAggregationRequest request) {
+        return trackedBook == trades ? values.get(request) : null;
+    }
+
+    /**
+     * Read before computing a value, so it can be offered to {@link #put} along with the version it was computed at
+     * @param trades
+     * @return the version of the trades, or -1 if they are not the book being tracked
+     */
+    long versionOf(Map<String, Trade> trades) {
+        return trackedBook == trades ? trackedVersion : -1;
+    }
+
+    /**
+     * Keeps the value, unless the trades have been changed since it was computed
+     * @param version: the version of the trades the value was computed from, as given by {@link #versionOf}
+     * @param request: a normalised request
+     * @param value
+     * @return the value it replaced, which is no longer kept, or null if none
+     * @throws IllegalStateException if the version is not current, see {@link #isCurrent}
+     */
+    V put(long version, PnLAggregationRequest request, V value) {
+        if(!isCurrent(version)) {
+            throw new IllegalStateException("Version " + version + " is not the current version " + trackedVersion);
+        }
+        return values.put(request, value);
+    }
+
+    boolean isCurrent(long version) {
+        return version >= 0 && version == trackedVersion;
+    }
+
+    /**
+     * Tracks the book at the version, dropping the values the changes could affect
+     * @return the values dropped
+     */
+    List<V> onTradesChanged(Map<String, Trade> book, long version, List<TradeChange> changes) {
+        List<V> dropped = new ArrayList<>();
+        if(trackedBook != book) {
+            trackedBook = book;
+            dropped.addAll(values.values());
+            values.clear();
+        }
+        trackedVersion = version;
+        if(changes.isEmpty() || values.isEmpty()) {
+            return dropped;
+        }
+
+        Iterator<Map.Entry<PnLAggregationRequest, V>> iterator = values.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<PnLAggregationRequest, V> entry = iterator.next();
+            Predicate<Trade> filter = entry.getKey().filterExpression()
+                    .map(expression -> FilterExpressionCompiler.compile(expression, FilterStatistics.ESTIMATED))
+                    .orElse(null);
+            if(changes.stream().anyMatch(change -> overlaps(filter, change))) {
+                dropped.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * A change can only affect a request's value if the old or new version of the trade passes its filters and where
+     * expression, compiled into the filter. A cancel or amend is caught through the version it replaced.
+     */
+    private static boolean overlaps(Predicate<Trade> filter, TradeChange change) {
+        if(filter == null) {
+            return true;
+        }
+        return (change.previous() != null && filter.test(change.previous())) || filter.test(change.current());
+    }
+
+    /**
+     * @return the least recently used value, which is no longer kept, or null if there are none
+     */
+    V removeLeastRecentlyUsed() {
+        Iterator<V> iterator = values.values().iterator();
+        if(!iterator.hasNext()) {
+            return null;
+        }
+        V value = iterator.next();
+        iterator.remove();
+        return value;
+    }
+
+    void clear() {
+        values.clear();
+    }
+
+    int size() {
+        return values.size();
+    }
+}
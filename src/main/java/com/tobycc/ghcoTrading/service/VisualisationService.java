@@ -0,0 +1,177 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLSeries;
+import com.tobycc.ghcoTrading.model.VisualisationPage;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Keeps the aggregations requested for the visualiser, each under its own id, so that concurrent users each page
+ * through their own result rather than whichever aggregation ran last.
+ *
+ * An aggregation is dropped once it has not been read for "aggregation.visualisationTtlSeconds", and the least
+ * recently read is dropped first to keep at most "aggregation.maxVisualisations". Series are downsampled per page to
+ * the points the chart can show, with largest-triangle-three-buckets so the shape of each series is kept.
+ */
+@Service
+public class VisualisationService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VisualisationService.class);
+
+    public static final int MAX_PAGE_SIZE = 100;
+    //Fewest points to downsample to, the first, last and one between
+    public static final int MIN_POINTS = 3;
+
+    private final AggregationProps aggregationProps;
+
+    //Kept aggregations by id, in access order so the least recently read can be dropped
+    private final Map<String, Visualisation> visualisations = new LinkedHashMap<>(16, 0.75f, true);
+
+    public VisualisationService(AggregationProps aggregationProps) {
+        this.aggregationProps = aggregationProps;
+    }
+
+    /**
+     * @param aggregation
+     * @return the id the aggregation is kept under
+     */
+    public synchronized String put(Map<String, List<PnLPosition>> aggregation) {
+        evictExpired();
+        String id = UUID.randomUUID().toString();
+        visualisations.put(id, new Visualisation(aggregation, new ArrayList<>(new TreeSet<>(aggregation.keySet())), expiry()));
+        Iterator<Visualisation> iterator = visualisations.values().iterator();
+        while(visualisations.size() > aggregationProps.getMaxVisualisations() && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return id;
+    }
+
+    /**
+     * @param id
+     * @param page: from 0
+     * @param size: series a page, at most MAX_PAGE_SIZE
+     * @param points: points to downsample each series to, at least MIN_POINTS
+     * @return the page, or empty if there is no aggregation kept under the id, e.g. as it has expired
+     */
+    public Optional<VisualisationPage> getPage(String id, int page, int size, int points) {
+        Visualisation visualisation;
+        synchronized(this) {
+            evictExpired();
+            visualisation = visualisations.get(id);
+            if(visualisation == null) {
+                return Optional.empty();
+            }
+            visualisation.expiresAt = expiry();
+        }
+
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        int maxPoints = Math.max(points, MIN_POINTS);
+        List<String> keys = visualisation.keys;
+        int from = (int) Math.min((long) Math.max(page, 0) * pageSize, keys.size());
+        List<PnLSeries> series = keys.subList(from, Math.min(from + pageSize, keys.size())).stream()
+                .map(key -> new PnLSeries(key, downsample(visualisation.aggregation.get(key), maxPoints)))
+                .toList();
+        return Optional.of(new VisualisationPage(id, Math.max(page, 0), pageSize, keys.size(), series));
+    }
+
+    /**
+     * Largest-triangle-three-buckets: keeps the first and last positions, and from each of the buckets between them the
+     * position forming the largest triangle with the position kept from the bucket before and the average of the
+     * bucket after
+     * @param positions: in time order
+     * @param points: at least MIN_POINTS
+     * @return the positions kept, in time order, or all of them if there are no more than the points
+     */
+    static List<PnLPosition> downsample(List<PnLPosition> positions, int points) {
+        int size = positions.size();
+        if(size <= points) {
+            return positions;
+        }
+
+        double[] x = new double[size];
+        double[] y = new double[size];
+        for(int i = 0; i < size; i++) {
+            LocalDateTime dateTime = positions.get(i).dateTime();
+            x[i] = dateTime.toEpochSecond(ZoneOffset.UTC) * 1e6 + dateTime.getNano() / 1e3;
+            y[i] = positions.get(i).position().doubleValue();
+        }
+
+        List<PnLPosition> sampled = new ArrayList<>(points);
+        sampled.add(positions.get(0));
+        double bucketSize = (double) (size - 2) / (points - 2);
+        int previous = 0;
+        for(int bucket = 0; bucket < points - 2; bucket++) {
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, size);
+
+            double averageX = 0;
+            double averageY = 0;
+            for(int i = end; i < nextEnd; i++) {
+                averageX += x[i];
+                averageY += y[i];
+            }
+            averageX /= nextEnd - end;
+            averageY /= nextEnd - end;
+
+            int chosen = start;
+            double largestArea = -1;
+            for(int i = start; i < end; i++) {
+                double area = Math.abs((x[previous] - averageX) * (y[i] - y[previous]) - (x[previous] - x[i]) * (averageY - y[previous]));
+                if(area > largestArea) {
+                    largestArea = area;
+                    chosen = i;
+                }
+            }
+            sampled.add(positions.get(chosen));
+            previous = chosen;
+        }
+        sampled.add(positions.get(size - 1));
+        return sampled;
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        Iterator<Visualisation> iterator = visualisations.values().iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().expiresAt <= now) {
+                iterator.remove();
+                evicted++;
+            }
+        }
+        if(evicted > 0) {
+            LOGGER.debug("Dropped " + evicted + " expired visualisations, " + visualisations.size() + " still kept");
+        }
+    }
+
+    private long expiry() {
+        return System.currentTimeMillis() + aggregationProps.getVisualisationTtlSeconds() * 1000L;
+    }
+
+    public synchronized int getVisualisationCount() {
+        return visualisations.size();
+    }
+
+    private static final class Visualisation {
+
+        private final Map<String, List<PnLPosition>> aggregation;
+        //Keys of the aggregation in order, the order it is paged in
+        private final List<String> keys;
+        private long expiresAt;
+
+        private Visualisation(Map<String, List<PnLPosition>> aggregation, List<String> keys, long expiresAt) {
+            this.aggregation = aggregation;
+            this.keys = keys;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,614 @@
+package com.tobycc.ghcoTrading.store;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * Columnar alternative to a HashMap of TradeID to Trade for the loaded trades, enabled with "store.columnar".
+ *
+ * Each live (NEW or AMEND) trade takes a slot across primitive columns: dictionary encoded ids for BBGCode, Portfolio,
+ * Account, Strategy and User, enum ordinals for Currency, Side and Action, epoch micros (UTC) for TradeTimeUTC, the
+ * unscaled long and scale of the price, the volume and the epoch day of ValueDate. This is a few tens of bytes per
+ * trade against several hundred for a Trade object with its Strings, BigDecimal, boxed Integer and java.time objects.
+ *
+ * Cancelled trades are never aggregated and are only held so later versions of them lose, so they are kept as they are.
+ *
+ * As a Map, Trades are built on the fly by get and iteration, so anything written against the loaded trades Map keeps
+ * working. The aggregation and filtering code reads the columns directly instead, through the slot accessors.
+ *
+ * Prices must have an unscaled value that fits in a long and trade times must be whole microseconds, as every trade
+ * read from our csv files is. Anything else is rejected with an IllegalArgumentException before the store is changed, and
+ * checkHoldable lets a whole batch be checked before it begins.
+ *
+ * Safe for one writer alongside any number of readers. Every Map method takes the store's lock itself, a batch of writes
+ * between beginBatch and commit is never seen half applied, and reading the columns through the slot accessors must be
+ * done while holding a Reader, so no slot changes under them. Iteration is weakly consistent, as a ConcurrentHashMap's.
+ */
+public class ColumnarTradeStore extends AbstractMap<String, Trade> {
+
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final Side[] SIDES = Side.values();
+    private static final Action[] ACTIONS = Action.values();
+
+    //Rough size of a Trade object graph plus its HashMap node, for the cancelled trades held as they are
+    private static final long CANCELLED_TRADE_BYTES = 400;
+
+    private final DimensionDictionary bbgCodes = new DimensionDictionary();
+    private final DimensionDictionary portfolios = new DimensionDictionary();
+    private final DimensionDictionary accounts = new DimensionDictionary();
+    private final DimensionDictionary strategies = new DimensionDictionary();
+    private final DimensionDictionary users = new DimensionDictionary();
+
+    //TradeID to slot of each live trade
+    private final StringIntHashMap slots = new StringIntHashMap();
+    private final Map<String, Trade> cancelledTrades = new ConcurrentHashMap<>();
+
+    //Held for reading around every read of the columns and for writing around every change to them
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] tradeIds;
+    private int[] bbgCodeIds;
+    private int[] portfolioIds;
+    private int[] accountIds;
+    private int[] strategyIds;
+    private int[] userIds;
+    private byte[] currencies;
+    private byte[] sides;
+    private byte[] actions;
+    private long[] unscaledPrices;
+    private byte[] priceScales;
+    private int[] volumes;
+    private long[] tradeTimes;
+    private int[] valueDates;
+
+    private final BitSet live = new BitSet();
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount;
+    private int slotCount;
+    private int liveCount;
+
+    public ColumnarTradeStore() {
+        this(1024);
+    }
+
+    public ColumnarTradeStore(int initialCapacity) {
+        allocate(Math.max(16, initialCapacity));
+    }
+
+    /**
+     * Holds off every other writer until commit, so readers see the batch's writes all at once. Must be followed by
+     * commit on the same thread.
+     */
+    public void beginBatch() {
+        lock.writeLock().lock();
+    }
+
+    /**
+     * Ends the batch begun by beginBatch
+     */
+    public void commit() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * @return a hold on the store as it is, with no writes made until it is closed, for reading the columns through the
+     * slot accessors. Must be closed on the thread that took it, and no write may be made on that thread until it is.
+     * Other threads given work by that thread may read the columns while it is held.
+     */
+    public Reader read() {
+        lock.readLock().lock();
+        return new Reader();
+    }
+
+    @Override
+    public int size() {
+        try (Reader reader = read()) {
+            return liveCount + cancelledTrades.size();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if(!(key instanceof String tradeId)) {
+            return false;
+        }
+        try (Reader reader = read()) {
+            return slots.get(tradeId) != StringIntHashMap.MISSING || cancelledTrades.containsKey(tradeId);
+        }
+    }
+
+    @Override
+    public Trade get(Object key) {
+        if(!(key instanceof String tradeId)) {
+            return null;
+        }
+        try (Reader reader = read()) {
+            int slot = slots.get(tradeId);
+            return slot != StringIntHashMap.MISSING ? trade(slot) : cancelledTrades.get(tradeId);
+        }
+    }
+
+    @Override
+    public Trade put(String tradeId, Trade trade) {
+        beginBatch();
+        try {
+            return write(tradeId, trade);
+        } finally {
+            commit();
+        }
+    }
+
+    private Trade write(String tradeId, Trade trade) {
+        if(trade.getAction() == Action.CANCEL) {
+            Trade previous = delete(tradeId);
+            cancelledTrades.put(tradeId, trade);
+            return previous;
+        }
+
+        //Encode everything that can be rejected before touching the columns
+        long tradeTime = toEpochMicros(trade.getDateTime());
+        BigDecimal price = trade.getPrice();
+        BigInteger unscaledPrice = price.unscaledValue();
+        checkPrice(tradeId, price);
+        int volume = trade.getVolume();
+        int valueDate = toEpochDay(trade.getDate());
+
+        Trade previous = cancelledTrades.remove(tradeId);
+        int slot = slots.get(tradeId);
+        if(slot == StringIntHashMap.MISSING) {
+            slot = allocateSlot();
+            slots.put(tradeId, slot);
+            live.set(slot);
+            liveCount++;
+        } else {
+            previous = trade(slot);
+        }
+
+        tradeIds[slot] = tradeId;
+        bbgCodeIds[slot] = bbgCodes.encode(trade.getBbgCode());
+        portfolioIds[slot] = portfolios.encode(trade.getPortfolio());
+        accountIds[slot] = accounts.encode(trade.getAccount());
+        strategyIds[slot] = strategies.encode(trade.getStrategy());
+        userIds[slot] = users.encode(trade.getUser());
+        currencies[slot] = (byte) trade.getCcy().ordinal();
+        sides[slot] = (byte) trade.getSide().ordinal();
+        actions[slot] = (byte) trade.getAction().ordinal();
+        unscaledPrices[slot] = unscaledPrice.longValue();
+        priceScales[slot] = (byte) price.scale();
+        volumes[slot] = volume;
+        tradeTimes[slot] = tradeTime;
+        valueDates[slot] = valueDate;
+        return previous;
+    }
+
+    /**
+     * Checks the store can hold the trade, so a batch can be checked before it begins rather than failing part way
+     * through once some of it is written
+     * @throws IllegalArgumentException if it cannot
+     */
+    public static void checkHoldable(Trade trade) {
+        if(trade.getAction() == Action.CANCEL) {
+            return;
+        }
+        toEpochMicros(trade.getDateTime());
+        checkPrice(trade.getTradeId(), trade.getPrice());
+        toEpochDay(trade.getDate());
+    }
+
+    private static void checkPrice(String tradeId, BigDecimal price) {
+        if(price.unscaledValue().bitLength() > 63 || price.scale() < Byte.MIN_VALUE || price.scale() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Trade " + tradeId + " price " + price + " cannot be held as a scaled long");
+        }
+    }
+
+    private static int toEpochDay(LocalDate date) {
+        try {
+            return Math.toIntExact(date.toEpochDay());
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Value date " + date + " is out of range", e);
+        }
+    }
+
+    /**
+     * As Map.merge, but only building the held trade once and not rewriting it when it wins
+     */
+    @Override
+    public Trade merge(String tradeId, Trade trade, BiFunction<? super Trade, ? super Trade, ? extends Trade> remapping) {
+        beginBatch();
+        try {
+            Trade current = get(tradeId);
+            Trade merged = current == null ? trade : remapping.apply(current, trade);
+            if(merged == null) {
+                delete(tradeId);
+            } else if(merged != current) {
+                write(tradeId, merged);
+            }
+            return merged;
+        } finally {
+            commit();
+        }
+    }
+
+    @Override
+    public Trade remove(Object key) {
+        if(!(key instanceof String tradeId)) {
+            return null;
+        }
+        beginBatch();
+        try {
+            return delete(tradeId);
+        } finally {
+            commit();
+        }
+    }
+
+    private Trade delete(String tradeId) {
+        int slot = slots.remove(tradeId);
+        if(slot == StringIntHashMap.MISSING) {
+            return cancelledTrades.remove(tradeId);
+        }
+
+        Trade removed = trade(slot);
+        tradeIds[slot] = null;
+        live.clear(slot);
+        liveCount--;
+        if(freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        beginBatch();
+        try {
+            slots.clear();
+            cancelledTrades.clear();
+            live.clear();
+            Arrays.fill(tradeIds, null);
+            freeSlotCount = 0;
+            slotCount = 0;
+            liveCount = 0;
+        } finally {
+            commit();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Trade>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return ColumnarTradeStore.this.size();
+            }
+
+            @Override
+            public Iterator<Entry<String, Trade>> iterator() {
+                Iterator<Entry<String, Trade>> cancelled = cancelledTrades.entrySet().iterator();
+                //Each step reads under the lock on its own, reading the next live slot at or after the last one read
+                return new Iterator<>() {
+                    private int fromSlot = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        try (Reader reader = read()) {
+                            return nextLiveSlot(fromSlot) >= 0 || cancelled.hasNext();
+                        }
+                    }
+
+                    @Override
+                    public Entry<String, Trade> next() {
+                        try (Reader reader = read()) {
+                            int slot = nextLiveSlot(fromSlot);
+                            if(slot < 0) {
+                                fromSlot = Integer.MAX_VALUE;
+                                return cancelled.next();
+                            }
+                            fromSlot = slot + 1;
+                            return new SimpleImmutableEntry<>(tradeIds[slot], trade(slot));
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterate the live trades with {@code for(int s = store.nextLiveSlot(0); s >= 0; s = store.nextLiveSlot(s + 1))}
+     * @param fromSlot
+     * @return the first live slot at or after fromSlot, or -1 if there are none
+     */
+    public int nextLiveSlot(int fromSlot) {
+        return fromSlot >= slotCount ? -1 : live.nextSetBit(fromSlot);
+    }
+
+    /**
+     * @return one past the highest slot that has been used, bounding every live slot
+     */
+    public int slotLimit() {
+        return slotCount;
+    }
+
+    public int liveCount() {
+        return liveCount;
+    }
+
+    /**
+     * @param field
+     * @param slot
+     * @return the dictionary id of the field of the trade in the slot, or the Currency ordinal for CURRENCY
+     */
+    public int dimensionId(AggregateField field, int slot) {
+        return switch (field) {
+            case BBG_CODE -> bbgCodeIds[slot];
+            case ACCOUNT -> accountIds[slot];
+            case PORTFOLIO -> portfolioIds[slot];
+            case STRATEGY -> strategyIds[slot];
+            case USER -> userIds[slot];
+            case CURRENCY -> currencies[slot];
+        };
+    }
+
+    /**
+     * @param field: any field but CURRENCY, which is encoded by its ordinal
+     * @return the dictionary the field is encoded with
+     */
+    public DimensionDictionary dictionary(AggregateField field) {
+        return switch (field) {
+            case BBG_CODE -> bbgCodes;
+            case ACCOUNT -> accounts;
+            case PORTFOLIO -> portfolios;
+            case STRATEGY -> strategies;
+            case USER -> users;
+            case CURRENCY -> throw new IllegalArgumentException("Currency is not dictionary encoded");
+        };
+    }
+
+    public String tradeId(int slot) {
+        return tradeIds[slot];
+    }
+
+    public Currency currency(int slot) {
+        return CURRENCIES[currencies[slot]];
+    }
+
+    public Side side(int slot) {
+        return SIDES[sides[slot]];
+    }
+
+    public long unscaledPrice(int slot) {
+        return unscaledPrices[slot];
+    }
+
+    public int priceScale(int slot) {
+        return priceScales[slot];
+    }
+
+    public int volume(int slot) {
+        return volumes[slot];
+    }
+
+    public long tradeTimeMicros(int slot) {
+        return tradeTimes[slot];
+    }
+
+    public LocalDateTime tradeTime(int slot) {
+        return fromEpochMicros(tradeTimes[slot]);
+    }
+
+    /**
+     * Sorts slots by trade time then TradeID, the order Trade.TIME_ORDER gives the equivalent Trades
+     * @param slots
+     * @param from: inclusive
+     * @param to: exclusive
+     */
+    public void sortByTradeTime(int[] slots, int from, int to) {
+        int length = to - from;
+        long[] times = new long[length];
+        boolean sorted = true;
+        for(int i = 0; i < length; i++) {
+            times[i] = tradeTimes[slots[from + i]];
+            sorted &= i == 0 || !before(times[i], slots[from + i], times[i - 1], slots[from + i - 1]);
+        }
+        //Trades mostly arrive in time order, so a group is often already sorted
+        if(sorted) {
+            return;
+        }
+
+        int[] sortedSlots = Arrays.copyOfRange(slots, from, to);
+        mergeSort(times.clone(), sortedSlots.clone(), times, sortedSlots, 0, length);
+        System.arraycopy(sortedSlots, 0, slots, from, length);
+    }
+
+    //Whether the trade in slot a, at time a, comes strictly before the trade in slot b
+    private boolean before(long timeA, int slotA, long timeB, int slotB) {
+        return timeA != timeB ? timeA < timeB : tradeIds[slotA].compareTo(tradeIds[slotB]) < 0;
+    }
+
+    //Sorts src[from, to) into dst[from, to), both pairs of arrays starting with the same contents
+    private void mergeSort(long[] srcTimes, int[] srcSlots, long[] dstTimes, int[] dstSlots, int from, int to) {
+        if(to - from < 16) {
+            for(int i = from + 1; i < to; i++) {
+                long time = dstTimes[i];
+                int slot = dstSlots[i];
+                int j = i - 1;
+                for(; j >= from && before(time, slot, dstTimes[j], dstSlots[j]); j--) {
+                    dstTimes[j + 1] = dstTimes[j];
+                    dstSlots[j + 1] = dstSlots[j];
+                }
+                dstTimes[j + 1] = time;
+                dstSlots[j + 1] = slot;
+            }
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        mergeSort(dstTimes, dstSlots, srcTimes, srcSlots, from, mid);
+        mergeSort(dstTimes, dstSlots, srcTimes, srcSlots, mid, to);
+        for(int i = from, left = from, right = mid; i < to; i++) {
+            if(right >= to || (left < mid && !before(srcTimes[right], srcSlots[right], srcTimes[left], srcSlots[left]))) {
+                dstTimes[i] = srcTimes[left];
+                dstSlots[i] = srcSlots[left++];
+            } else {
+                dstTimes[i] = srcTimes[right];
+                dstSlots[i] = srcSlots[right++];
+            }
+        }
+    }
+
+    /**
+     * @param slot
+     * @return price multiplied by volume, with the scale of the price, as Trade.getPrice().multiply(volume) would give
+     */
+    public BigDecimal notional(int slot) {
+        try {
+            return BigDecimal.valueOf(Math.multiplyExact(unscaledPrices[slot], volumes[slot]), priceScales[slot]);
+        } catch (ArithmeticException e) {
+            return BigDecimal.valueOf(unscaledPrices[slot], priceScales[slot]).multiply(BigDecimal.valueOf(volumes[slot]));
+        }
+    }
+
+    /**
+     * @param slot
+     * @return a Trade rebuilt from the columns of the slot, sharing the dictionary's String instances
+     */
+    public Trade trade(int slot) {
+        return new Trade(
+                tradeIds[slot],
+                bbgCodes.decode(bbgCodeIds[slot]),
+                CURRENCIES[currencies[slot]],
+                SIDES[sides[slot]],
+                BigDecimal.valueOf(unscaledPrices[slot], priceScales[slot]),
+                volumes[slot],
+                portfolios.decode(portfolioIds[slot]),
+                ACTIONS[actions[slot]],
+                accounts.decode(accountIds[slot]),
+                strategies.decode(strategyIds[slot]),
+                users.decode(userIds[slot]),
+                fromEpochMicros(tradeTimes[slot]),
+                LocalDate.ofEpochDay(valueDates[slot])
+        );
+    }
+
+    /**
+     * @return rough heap used by the store, including the TradeID Strings and dictionaries
+     */
+    public long estimatedHeapBytes() {
+        try (Reader reader = read()) {
+            return heapBytes();
+        }
+    }
+
+    private long heapBytes() {
+        int capacity = tradeIds.length;
+        //Two long columns, seven int columns (incl. references to the TradeIDs) and four byte columns
+        long columns = (long) capacity * (2 * 8 + 7 * 4 + 4);
+        long tradeIdStrings = 0;
+        for(int s = nextLiveSlot(0); s >= 0; s = nextLiveSlot(s + 1)) {
+            tradeIdStrings += 24 + 16 + tradeIds[s].length();
+        }
+        return columns + tradeIdStrings + capacity / 8 + (long) freeSlots.length * 4 + slots.estimatedHeapBytes()
+                + bbgCodes.estimatedHeapBytes() + portfolios.estimatedHeapBytes() + accounts.estimatedHeapBytes()
+                + strategies.estimatedHeapBytes() + users.estimatedHeapBytes()
+                + cancelledTrades.size() * CANCELLED_TRADE_BYTES;
+    }
+
+    private int allocateSlot() {
+        if(freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if(slotCount == tradeIds.length) {
+            allocate(slotCount + (slotCount >> 1));
+        }
+        return slotCount++;
+    }
+
+    private void allocate(int capacity) {
+        int copied = slotCount;
+        tradeIds = tradeIds == null ? new String[capacity] : Arrays.copyOf(tradeIds, capacity);
+        bbgCodeIds = grow(bbgCodeIds, capacity, copied);
+        portfolioIds = grow(portfolioIds, capacity, copied);
+        accountIds = grow(accountIds, capacity, copied);
+        strategyIds = grow(strategyIds, capacity, copied);
+        userIds = grow(userIds, capacity, copied);
+        currencies = grow(currencies, capacity, copied);
+        sides = grow(sides, capacity, copied);
+        actions = grow(actions, capacity, copied);
+        unscaledPrices = grow(unscaledPrices, capacity, copied);
+        priceScales = grow(priceScales, capacity, copied);
+        volumes = grow(volumes, capacity, copied);
+        tradeTimes = grow(tradeTimes, capacity, copied);
+        valueDates = grow(valueDates, capacity, copied);
+    }
+
+    private static int[] grow(int[] column, int capacity, int copied) {
+        int[] grown = new int[capacity];
+        if(column != null) System.arraycopy(column, 0, grown, 0, copied);
+        return grown;
+    }
+
+    private static long[] grow(long[] column, int capacity, int copied) {
+        long[] grown = new long[capacity];
+        if(column != null) System.arraycopy(column, 0, grown, 0, copied);
+        return grown;
+    }
+
+    private static byte[] grow(byte[] column, int capacity, int copied) {
+        byte[] grown = new byte[capacity];
+        if(column != null) System.arraycopy(column, 0, grown, 0, copied);
+        return grown;
+    }
+
+    /**
+     * @param dateTime
+     * @return microseconds since the epoch, reading the date time as UTC
+     */
+    public static long toEpochMicros(LocalDateTime dateTime) {
+        if(dateTime.getNano() % 1000 != 0) {
+            throw new IllegalArgumentException("Trade time " + dateTime + " is not a whole number of microseconds");
+        }
+        try {
+            return Math.addExact(Math.multiplyExact(dateTime.toEpochSecond(ZoneOffset.UTC), 1_000_000L), dateTime.getNano() / 1000);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Trade time " + dateTime + " is out of range", e);
+        }
+    }
+
+    public static LocalDateTime fromEpochMicros(long epochMicros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(epochMicros, 1_000_000L),
+                (int) Math.floorMod(epochMicros, 1_000_000L) * 1000, ZoneOffset.UTC);
+    }
+
+    /**
+     * A hold on the store for reading, releasing it when closed
+     */
+    public final class Reader implements AutoCloseable {
+
+        private boolean closed;
+
+        private Reader() {
+        }
+
+        @Override
+        public void close() {
+            if(!closed) {
+                closed = true;
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.tobycc.ghcoTrading.store;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary encoding of a String dimension (BBGCode, Portfolio, ...) into dense int ids, starting at 0 in the order
+ * values are first seen. Ids are never reused, so an id handed out stays valid for the life of the dictionary.
+ *
+ * Not thread safe.
+ */
+public final class DimensionDictionary {
+
+    private final StringIntHashMap ids = new StringIntHashMap();
+    private String[] values = new String[16];
+    private int size;
+
+    /**
+     * @param value
+     * @return the id of the value, adding it to the dictionary if not yet present
+     */
+    public int encode(String value) {
+        int id = ids.get(value);
+        if(id == StringIntHashMap.MISSING) {
+            id = size++;
+            if(id == values.length) {
+                values = Arrays.copyOf(values, id + (id >> 1));
+            }
+            values[id] = value;
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param value
+     * @return the id of the value, or {@link StringIntHashMap#MISSING} if it has never been encoded
+     */
+    public int idOf(String value) {
+        return ids.get(value);
+    }
+
+    /**
+     * @param id
+     * @return the value of the id, always the same instance
+     */
+    public String decode(int id) {
+        return values[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long estimatedHeapBytes() {
+        //Each distinct value is held once, roughly a String plus its Latin-1 byte array
+        long valueBytes = 0;
+        for(int i = 0; i < size; i++) {
+            valueBytes += 24 + 16 + values[i].length();
+        }
+        return 16L + (long) values.length * 4 + valueBytes + ids.estimatedHeapBytes();
+    }
+}
@@ -0,0 +1,39 @@
+package com.tobycc.ghcoTrading.store;
+
+/**
+ * Assigns dense group indexes (0, 1, 2, ...) to tuples of dimension ids, so grouping can be done with int arrays
+ * rather than a map keyed by a String or Object per trade.
+ *
+ * A tuple is resolved one field at a time: each level packs the id reached so far with the next field's id into a long
+ * and looks that up in its own {@link LongIntHashMap}, so any number of fields is handled with no allocation per
+ * lookup.
+ *
+ * Not thread safe.
+ */
+public final class GroupIndexer {
+
+    private final LongIntHashMap[] levels;
+
+    /**
+     * @param fieldCount: number of ids in each tuple
+     */
+    public GroupIndexer(int fieldCount) {
+        levels = new LongIntHashMap[fieldCount];
+        for(int i = 0; i < fieldCount; i++) {
+            levels[i] = new LongIntHashMap();
+        }
+    }
+
+    /**
+     * @param fieldIds: non-negative ids, one per field
+     * @return the index of the tuple, adding it as the next index if not yet seen
+     */
+    public int index(int[] fieldIds) {
+        int id = 0;
+        for(int level = 0; level < levels.length; level++) {
+            LongIntHashMap ids = levels[level];
+            id = ids.putIfAbsent(((long) id << 32) | fieldIds[level], ids.size());
+        }
+        return id;
+    }
+}
@@ -0,0 +1,96 @@
+package com.tobycc.ghcoTrading.store;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) map from a primitive long to a primitive int, with no boxing and no node per entry.
+ * Only supports adding, which is all the grouping code needs.
+ *
+ * Not thread safe.
+ */
+public final class LongIntHashMap {
+
+    public static final int MISSING = -1;
+
+    //Marks a free slot, so it cannot be used as a key
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @param key: must not be Long.MIN_VALUE
+     * @return the value held for the key, or {@link #MISSING}
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for(int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                return values[i];
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * @param key: must not be Long.MIN_VALUE
+     * @param value: the value to add if the key is not yet present
+     * @return the value now held for the key
+     */
+    public int putIfAbsent(long key, int value) {
+        if((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for(; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                return values[i];
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] != EMPTY) {
+                int i = slot(oldKeys[j], mask);
+                while(keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        //Fibonacci hashing spreads the packed ids, whose low bits are usually small and dense
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
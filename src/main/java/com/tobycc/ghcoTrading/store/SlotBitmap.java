@@ -0,0 +1,394 @@
+package com.tobycc.ghcoTrading.store;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative ints, such as the slots of the trades holding one dimension value, laid out as a
+ * roaring bitmap: values are split by their high 16 bits into chunks, each holding its low 16 bits as a sorted array
+ * while sparse and as a 65536 bit bitmap once dense. A value held by few trades then costs a couple of bytes a trade
+ * rather than a bit for every slot in the book, and intersections skip the chunks either side does not have.
+ *
+ * Not thread safe.
+ */
+public final class SlotBitmap {
+
+    //Above this many values a chunk is held as a bitmap, which is then the smaller of the two
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    //High 16 bits of each chunk, ascending
+    private char[] keys = new char[4];
+    private Chunk[] chunks = new Chunk[4];
+    private int chunkCount;
+    private int cardinality;
+
+    public boolean add(int value) {
+        checkValue(value);
+        char key = (char) (value >>> 16);
+        int index = indexOf(key);
+        if(index < 0) {
+            index = -index - 1;
+            insertChunk(index, key, new Chunk(new char[4], null, 0));
+        }
+        boolean added = chunks[index].add((char) value);
+        if(added) {
+            cardinality++;
+        }
+        return added;
+    }
+
+    public boolean remove(int value) {
+        checkValue(value);
+        int index = indexOf((char) (value >>> 16));
+        if(index < 0 || !chunks[index].remove((char) value)) {
+            return false;
+        }
+        cardinality--;
+        if(chunks[index].size == 0) {
+            removeChunk(index);
+        }
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if(value < 0) {
+            return false;
+        }
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && chunks[index].contains((char) value);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * @return a new bitmap of the values in both this and the other
+     */
+    public SlotBitmap and(SlotBitmap other) {
+        SlotBitmap result = new SlotBitmap();
+        int i = 0;
+        int j = 0;
+        while(i < chunkCount && j < other.chunkCount) {
+            if(keys[i] < other.keys[j]) {
+                i++;
+            } else if(keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Chunk chunk = chunks[i].and(other.chunks[j]);
+                if(chunk.size > 0) {
+                    result.appendChunk(keys[i], chunk);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap of the values in either this or the other
+     */
+    public SlotBitmap or(SlotBitmap other) {
+        SlotBitmap result = new SlotBitmap();
+        int i = 0;
+        int j = 0;
+        while(i < chunkCount || j < other.chunkCount) {
+            if(j == other.chunkCount || (i < chunkCount && keys[i] < other.keys[j])) {
+                result.appendChunk(keys[i], chunks[i].copy());
+                i++;
+            } else if(i == chunkCount || keys[i] > other.keys[j]) {
+                result.appendChunk(other.keys[j], other.chunks[j].copy());
+                j++;
+            } else {
+                result.appendChunk(keys[i], chunks[i].or(other.chunks[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        keys = new char[4];
+        chunks = new Chunk[4];
+        chunkCount = 0;
+        cardinality = 0;
+    }
+
+    public SlotBitmap copy() {
+        SlotBitmap copy = new SlotBitmap();
+        for(int i = 0; i < chunkCount; i++) {
+            copy.appendChunk(keys[i], chunks[i].copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Passes each value to the consumer, in ascending order
+     */
+    public void forEach(IntConsumer consumer) {
+        for(int i = 0; i < chunkCount; i++) {
+            chunks[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    public int[] toArray() {
+        int[] values = new int[cardinality];
+        int[] count = new int[1];
+        forEach(value -> values[count[0]++] = value);
+        return values;
+    }
+
+    public long estimatedHeapBytes() {
+        long bytes = 64 + keys.length * 2L + chunks.length * 8L;
+        for(int i = 0; i < chunkCount; i++) {
+            bytes += 32 + (chunks[i].words != null ? BITMAP_WORDS * 8L : chunks[i].values.length * 2L);
+        }
+        return bytes;
+    }
+
+    private static void checkValue(int value) {
+        if(value < 0) {
+            throw new IllegalArgumentException("Slot bitmaps only hold non-negative values, not " + value);
+        }
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, key);
+    }
+
+    private void insertChunk(int index, char key, Chunk chunk) {
+        if(chunkCount == keys.length) {
+            keys = Arrays.copyOf(keys, chunkCount * 2);
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+        System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        chunkCount++;
+    }
+
+    private void removeChunk(int index) {
+        System.arraycopy(keys, index + 1, keys, index, chunkCount - index - 1);
+        System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+        chunks[--chunkCount] = null;
+    }
+
+    /**
+     * Adds a chunk above every chunk already held
+     */
+    private void appendChunk(char key, Chunk chunk) {
+        insertChunk(chunkCount, key, chunk);
+        cardinality += chunk.size;
+    }
+
+    /**
+     * The low 16 bits of the values sharing one high 16 bits, as either a sorted array or a bitmap
+     */
+    private static final class Chunk {
+
+        //Sorted values while sparse, otherwise null
+        private char[] values;
+        //Bitmap of the values once dense, otherwise null
+        private long[] words;
+        private int size;
+
+        private Chunk(char[] values, long[] words, int size) {
+            this.values = values;
+            this.words = words;
+            this.size = size;
+        }
+
+        private boolean contains(char value) {
+            return words != null
+                    ? (words[value >>> 6] & (1L << value)) != 0
+                    : Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        private boolean add(char value) {
+            if(words != null) {
+                long word = words[value >>> 6];
+                words[value >>> 6] = word | (1L << value);
+                if(word == words[value >>> 6]) {
+                    return false;
+                }
+                size++;
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if(index >= 0) {
+                return false;
+            }
+            if(size == MAX_ARRAY_SIZE) {
+                toBitmap();
+                return add(value);
+            }
+            index = -index - 1;
+            if(size == values.length) {
+                values = Arrays.copyOf(values, Math.min(size * 2, MAX_ARRAY_SIZE));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        private boolean remove(char value) {
+            if(words != null) {
+                long word = words[value >>> 6];
+                words[value >>> 6] = word & ~(1L << value);
+                if(word == words[value >>> 6]) {
+                    return false;
+                }
+                if(--size <= MAX_ARRAY_SIZE) {
+                    toArray();
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if(index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        private Chunk and(Chunk other) {
+            if(words != null && other.words != null) {
+                long[] result = new long[BITMAP_WORDS];
+                int count = 0;
+                for(int w = 0; w < BITMAP_WORDS; w++) {
+                    result[w] = words[w] & other.words[w];
+                    count += Long.bitCount(result[w]);
+                }
+                Chunk chunk = new Chunk(null, result, count);
+                if(count <= MAX_ARRAY_SIZE) {
+                    chunk.toArray();
+                }
+                return chunk;
+            }
+
+            Chunk sparse = words == null ? this : other;
+            Chunk dense = sparse == this ? other : this;
+            char[] result = new char[Math.min(size, other.size)];
+            int count = 0;
+            if(dense.words != null) {
+                for(int i = 0; i < sparse.size; i++) {
+                    if(dense.contains(sparse.values[i])) {
+                        result[count++] = sparse.values[i];
+                    }
+                }
+            } else {
+                int i = 0;
+                int j = 0;
+                while(i < size && j < other.size) {
+                    if(values[i] < other.values[j]) {
+                        i++;
+                    } else if(values[i] > other.values[j]) {
+                        j++;
+                    } else {
+                        result[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return new Chunk(result, null, count);
+        }
+
+        private Chunk or(Chunk other) {
+            if(words == null && other.words == null && size + other.size <= MAX_ARRAY_SIZE) {
+                char[] result = new char[size + other.size];
+                int count = 0;
+                int i = 0;
+                int j = 0;
+                while(i < size || j < other.size) {
+                    if(j == other.size || (i < size && values[i] < other.values[j])) {
+                        result[count++] = values[i++];
+                    } else if(i == size || values[i] > other.values[j]) {
+                        result[count++] = other.values[j++];
+                    } else {
+                        result[count++] = values[i++];
+                        j++;
+                    }
+                }
+                return new Chunk(result, null, count);
+            }
+
+            long[] result = new long[BITMAP_WORDS];
+            orInto(result);
+            other.orInto(result);
+            int count = 0;
+            for(long word: result) {
+                count += Long.bitCount(word);
+            }
+            Chunk chunk = new Chunk(null, result, count);
+            if(count <= MAX_ARRAY_SIZE) {
+                chunk.toArray();
+            }
+            return chunk;
+        }
+
+        private void orInto(long[] result) {
+            if(words != null) {
+                for(int w = 0; w < BITMAP_WORDS; w++) {
+                    result[w] |= words[w];
+                }
+            } else {
+                for(int i = 0; i < size; i++) {
+                    result[values[i] >>> 6] |= 1L << values[i];
+                }
+            }
+        }
+
+        private void forEach(int high, IntConsumer consumer) {
+            if(words == null) {
+                for(int i = 0; i < size; i++) {
+                    consumer.accept(high | values[i]);
+                }
+                return;
+            }
+            for(int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while(word != 0) {
+                    consumer.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        private Chunk copy() {
+            return new Chunk(values != null ? Arrays.copyOf(values, Math.max(size, 1)) : null,
+                    words != null ? words.clone() : null, size);
+        }
+
+        private void toBitmap() {
+            long[] dense = new long[BITMAP_WORDS];
+            orInto(dense);
+            words = dense;
+            values = null;
+        }
+
+        private void toArray() {
+            char[] sparse = new char[Math.max(size, 1)];
+            int count = 0;
+            for(int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while(word != 0) {
+                    sparse[count++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            values = sparse;
+            words = null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.tobycc.ghcoTrading.store;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) map from String to a primitive int, so lookups neither box the value nor allocate a
+ * node per entry. Removal shifts later entries of the probe run back rather than leaving tombstones.
+ *
+ * Not thread safe.
+ */
+public final class StringIntHashMap {
+
+    public static final int MISSING = -1;
+
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    public StringIntHashMap() {
+        this(16);
+    }
+
+    public StringIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+        keys = new String[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @param key
+     * @return the value held for the key, or {@link #MISSING}
+     */
+    public int get(String key) {
+        int mask = keys.length - 1;
+        for(int i = slot(key, mask); keys[i] != null; i = (i + 1) & mask) {
+            if(keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * @param key
+     * @param value: must not be {@link #MISSING}
+     */
+    public void put(String key, int value) {
+        if((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for(; keys[i] != null; i = (i + 1) & mask) {
+            if(keys[i].equals(key)) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * @param key
+     * @return the value that was held for the key, or {@link #MISSING}
+     */
+    public int remove(String key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for(; keys[i] != null; i = (i + 1) & mask) {
+            if(keys[i].equals(key)) {
+                break;
+            }
+        }
+        if(keys[i] == null) {
+            return MISSING;
+        }
+
+        int removed = values[i];
+        size--;
+        //Shift back any later entry in the run that would no longer be reachable from its home slot
+        int gap = i;
+        for(int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if(((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = null;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    public long estimatedHeapBytes() {
+        return 16L + (long) keys.length * 4 + 16L + (long) values.length * 4;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] != null) {
+                int i = slot(oldKeys[j], mask);
+                while(keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(String key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,51 @@
+package com.tobycc.ghcoTrading.store;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+
+import java.util.Set;
+
+/**
+ * Groups Trades by the fields of an aggregation without building a String key per trade: each field value is
+ * dictionary encoded (Currency by its ordinal) and the resulting ids are resolved to a dense group index by a
+ * {@link GroupIndexer}. The display key is then rendered once per group with AggregateField.getAggregateCompositeKey.
+ *
+ * Ids are only meaningful to this indexer, so one is made per aggregation (or kept for the life of a standing one).
+ *
+ * Not thread safe.
+ */
+public final class TradeGroupIndexer {
+
+    private final AggregateField[] fields;
+    private final DimensionDictionary[] dictionaries;
+    private final GroupIndexer groupIndexer;
+    private final int[] fieldIds;
+
+    /**
+     * @param aggregationFields: fields to group by, all of them if empty as with getAggregateCompositeKey
+     */
+    public TradeGroupIndexer(Set<AggregateField> aggregationFields) {
+        fields = aggregationFields.isEmpty() ? AggregateField.values() : aggregationFields.toArray(new AggregateField[0]);
+        dictionaries = new DimensionDictionary[fields.length];
+        for(int f = 0; f < fields.length; f++) {
+            if(fields[f] != AggregateField.CURRENCY) {
+                dictionaries[f] = new DimensionDictionary();
+            }
+        }
+        groupIndexer = new GroupIndexer(fields.length);
+        fieldIds = new int[fields.length];
+    }
+
+    /**
+     * @param t
+     * @return the group index of the trade, the next unused index if its group has not been seen yet
+     */
+    public int index(Trade t) {
+        for(int f = 0; f < fields.length; f++) {
+            fieldIds[f] = fields[f] == AggregateField.CURRENCY
+                    ? t.getCcy().ordinal()
+                    : dictionaries[f].encode(fields[f].fieldValue(t));
+        }
+        return groupIndexer.index(fieldIds);
+    }
+}
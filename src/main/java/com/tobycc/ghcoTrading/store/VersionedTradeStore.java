@@ -0,0 +1,349 @@
+package com.tobycc.ghcoTrading.store;
+
+import com.tobycc.ghcoTrading.model.Trade;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-version alternative to a HashMap of TradeID to Trade for the loaded trades, so aggregations can read a
+ * consistent version of the trades while new files are still being loaded into them.
+ *
+ * Each TradeID maps to a short chain of immutable versions, newest first, held in a ConcurrentHashMap so writes to
+ * different trades never contend on a lock. Writes are grouped into batches with {@link #beginBatch} and
+ * {@link #commit}, and a {@link #snapshot} sees exactly the batches committed when it was taken: for each trade, the
+ * newest version no later than the snapshot's. Taking a snapshot is O(1) and neither readers nor the writer ever wait
+ * on each other beyond registering the snapshot.
+ *
+ * As a Map, this is the writer's view: it sees every write as soon as it is made, committed or not. Only one batch can
+ * be written at a time, which TradeLoadingService.loadTrades already guarantees. A put or remove outside a batch is
+ * committed on its own.
+ *
+ * Versions older than the oldest open snapshot are dropped when a trade is next written, or at the start of the next
+ * batch for trades written while snapshots were open, so a snapshot must be closed once it has been read.
+ */
+public class VersionedTradeStore extends AbstractMap<String, Trade> {
+
+    private final Map<String, TradeVersion> chains = new ConcurrentHashMap<>();
+    private final AtomicInteger liveSize = new AtomicInteger();
+    //Trades holding more than one version, to prune once the snapshots that need them are closed
+    private final Set<String> keysWithHistory = ConcurrentHashMap.newKeySet();
+
+    //Guards the open snapshots and the committed version against each other, so no snapshot is registered below the floor
+    private final Object snapshotLock = new Object();
+    //Version of each open snapshot, with how many are open at it
+    private final NavigableMap<Long, Integer> openSnapshots = new TreeMap<>();
+    private volatile long committedVersion;
+
+    //Only used by the writer
+    private long batchVersion;
+    private boolean inBatch;
+    //Oldest version any open or future snapshot can read, so anything superseded at or below it can go
+    private long floor;
+
+    /**
+     * Starts a batch of writes, none of which are seen by snapshots until it is committed
+     * @param version must be greater than the last committed version
+     */
+    public void beginBatch(long version) {
+        if(inBatch) {
+            throw new IllegalStateException("Batch " + batchVersion + " has not been committed");
+        }
+        if(version <= committedVersion) {
+            throw new IllegalArgumentException("Version " + version + " is not after committed version " + committedVersion);
+        }
+        batchVersion = version;
+        inBatch = true;
+        synchronized(snapshotLock) {
+            floor = openSnapshots.isEmpty() ? committedVersion : Math.min(openSnapshots.firstKey(), committedVersion);
+        }
+        pruneHistory();
+    }
+
+    /**
+     * Publishes the current batch to snapshots taken from now on
+     */
+    public void commit() {
+        if(!inBatch) {
+            throw new IllegalStateException("No batch to commit");
+        }
+        synchronized(snapshotLock) {
+            committedVersion = batchVersion;
+        }
+        inBatch = false;
+    }
+
+    public long getCommittedVersion() {
+        return committedVersion;
+    }
+
+    /**
+     * @return a read only view of the trades as of the last commit, to close once read
+     */
+    public Snapshot snapshot() {
+        long version;
+        synchronized(snapshotLock) {
+            version = committedVersion;
+            openSnapshots.merge(version, 1, Integer::sum);
+        }
+        return new Snapshot(version);
+    }
+
+    @Override
+    public Trade get(Object key) {
+        TradeVersion head = chains.get(key);
+        return head == null ? null : head.trade();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return liveSize.get();
+    }
+
+    @Override
+    public Trade put(String tradeId, Trade trade) {
+        return write(Objects.requireNonNull(tradeId), Objects.requireNonNull(trade));
+    }
+
+    @Override
+    public Trade remove(Object key) {
+        return key instanceof String tradeId && containsKey(tradeId) ? write(tradeId, null) : null;
+    }
+
+    @Override
+    public void clear() {
+        boolean autoCommit = !inBatch;
+        if(autoCommit) {
+            beginBatch(committedVersion + 1);
+        }
+        chains.keySet().forEach(this::remove);
+        if(autoCommit) {
+            commit();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Trade>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return VersionedTradeStore.this.size();
+            }
+
+            @Override
+            public Iterator<Entry<String, Trade>> iterator() {
+                return new VersionIterator(Long.MAX_VALUE);
+            }
+        };
+    }
+
+    /**
+     * @return how many versions are held across all trades, including deleted ones, which is what pruning bounds
+     */
+    public int retainedVersionCount() {
+        int count = 0;
+        for(TradeVersion head: chains.values()) {
+            for(TradeVersion node = head; node != null; node = node.older()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Trade write(String tradeId, Trade trade) {
+        boolean autoCommit = !inBatch;
+        if(autoCommit) {
+            beginBatch(committedVersion + 1);
+        }
+        Trade[] previous = new Trade[1];
+        chains.compute(tradeId, (id, head) -> {
+            previous[0] = head == null ? null : head.trade();
+            //A second write to the same trade in a batch replaces the first, which no snapshot can have seen
+            TradeVersion older = head != null && head.version() == batchVersion ? head.older() : head;
+            older = trim(older, floor);
+            if(trade == null && (older == null || older.trade() == null && older.older() == null)) {
+                //Nothing left for any snapshot to read
+                keysWithHistory.remove(id);
+                return null;
+            }
+            if(older != null) {
+                keysWithHistory.add(id);
+            }
+            return new TradeVersion(batchVersion, trade, older);
+        });
+        if(previous[0] == null && trade != null) {
+            liveSize.incrementAndGet();
+        } else if(previous[0] != null && trade == null) {
+            liveSize.decrementAndGet();
+        }
+        if(autoCommit) {
+            commit();
+        }
+        return previous[0];
+    }
+
+    /**
+     * Drops versions no snapshot can read any more from trades that have not been written since they were superseded
+     */
+    private void pruneHistory() {
+        Iterator<String> iterator = keysWithHistory.iterator();
+        while(iterator.hasNext()) {
+            TradeVersion head = chains.computeIfPresent(iterator.next(), (id, chain) -> {
+                TradeVersion trimmed = trim(chain, floor);
+                //A deleted trade whose live versions are all gone
+                return trimmed.trade() == null && trimmed.older() == null ? null : trimmed;
+            });
+            if(head == null || head.older() == null) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Keeps every version after the floor and the newest one at or before it, copying only the nodes that change
+     */
+    private static TradeVersion trim(TradeVersion node, long floor) {
+        if(node == null) {
+            return null;
+        }
+        if(node.version() <= floor) {
+            return node.older() == null ? node : new TradeVersion(node.version(), node.trade(), null);
+        }
+        TradeVersion older = trim(node.older(), floor);
+        return older == node.older() ? node : new TradeVersion(node.version(), node.trade(), older);
+    }
+
+    private static Trade resolve(TradeVersion head, long version) {
+        TradeVersion node = head;
+        while(node != null && node.version() > version) {
+            node = node.older();
+        }
+        return node == null ? null : node.trade();
+    }
+
+    private void release(long version) {
+        synchronized(snapshotLock) {
+            openSnapshots.computeIfPresent(version, (v, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * One version of a trade, with a null trade marking its removal
+     */
+    private record TradeVersion(
+            long version,
+            Trade trade,
+            TradeVersion older
+    ) { }
+
+    /**
+     * Iterates the trades as of a version, skipping any not present at it
+     */
+    private final class VersionIterator implements Iterator<Entry<String, Trade>> {
+
+        private final Iterator<Entry<String, TradeVersion>> chainIterator = chains.entrySet().iterator();
+        private final long version;
+        private Entry<String, Trade> next;
+
+        private VersionIterator(long version) {
+            this.version = version;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while(next == null && chainIterator.hasNext()) {
+                Entry<String, TradeVersion> chain = chainIterator.next();
+                Trade trade = resolve(chain.getValue(), version);
+                if(trade != null) {
+                    next = new SimpleImmutableEntry<>(chain.getKey(), trade);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, Trade> next() {
+            if(next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Trade> current = next;
+            advance();
+            return current;
+        }
+    }
+
+    /**
+     * Read only view of the trades at one committed version, unaffected by any batch written after it was taken
+     */
+    public final class Snapshot extends AbstractMap<String, Trade> implements AutoCloseable {
+
+        private final long version;
+        private boolean closed;
+        //Counted on first use, as most readers only iterate
+        private int size = -1;
+
+        private Snapshot(long version) {
+            this.version = version;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        @Override
+        public Trade get(Object key) {
+            return resolve(chains.get(key), version);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            if(size < 0) {
+                int count = 0;
+                for(Iterator<Entry<String, Trade>> iterator = new VersionIterator(version); iterator.hasNext(); iterator.next()) {
+                    count++;
+                }
+                size = count;
+            }
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, Trade>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return Snapshot.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Trade>> iterator() {
+                    return new VersionIterator(version);
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            if(!closed) {
+                closed = true;
+                release(version);
+            }
+        }
+    }
+}
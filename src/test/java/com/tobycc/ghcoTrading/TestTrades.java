@@ -0,0 +1,144 @@
+package com.tobycc.ghcoTrading;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/**
+ * Builds Trades for tests. Every field has a default, so a test only sets the fields it is about, e.g.
+ * {@code trade("T1").portfolio("portfolio2").minutes(5).build()}
+ */
+public final class TestTrades {
+
+    public static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000000");
+    public static final LocalDate VALUE_DATE = LocalDate.of(2010, 1, 1);
+
+    private TestTrades() {
+    }
+
+    /**
+     * @param tradeId
+     * @return a NEW buy of 10 AAPL US Equity in USD at 10, by User1 in portfolio1, at START
+     */
+    public static Builder trade(String tradeId) {
+        return new Builder(tradeId);
+    }
+
+    /**
+     * @param random
+     * @param tradeId
+     * @return as trade, with a random BBGCode of BBG0 to BBG4, currency, side, price of up to 1000 with up to 3 decimal
+     * places and volume of 1 to 500
+     */
+    public static Builder randomTrade(Random random, String tradeId) {
+        Currency[] currencies = Currency.values();
+        return new Builder(tradeId)
+                .bbgCode("BBG" + random.nextInt(5))
+                .ccy(currencies[random.nextInt(currencies.length)])
+                .side(random.nextBoolean() ? Side.B : Side.S)
+                .price(new BigDecimal(random.nextInt(1_000_000)).movePointLeft(random.nextInt(4)))
+                .volume(1 + random.nextInt(500));
+    }
+
+    public static final class Builder {
+
+        private final String tradeId;
+        private String bbgCode = "AAPL US Equity";
+        private Currency ccy = Currency.USD;
+        private Side side = Side.B;
+        private BigDecimal price = BigDecimal.TEN;
+        private int volume = 10;
+        private String portfolio = "portfolio1";
+        private Action action = Action.NEW;
+        private String account = "Account1";
+        private String strategy = "Strategy1";
+        private String user = "User1";
+        private LocalDateTime dateTime = START;
+        private LocalDate date = VALUE_DATE;
+
+        private Builder(String tradeId) {
+            this.tradeId = tradeId;
+        }
+
+        public Builder bbgCode(String bbgCode) {
+            this.bbgCode = bbgCode;
+            return this;
+        }
+
+        public Builder ccy(Currency ccy) {
+            this.ccy = ccy;
+            return this;
+        }
+
+        public Builder side(Side side) {
+            this.side = side;
+            return this;
+        }
+
+        public Builder price(BigDecimal price) {
+            this.price = price;
+            return this;
+        }
+
+        public Builder price(String price) {
+            return price(new BigDecimal(price));
+        }
+
+        public Builder volume(int volume) {
+            this.volume = volume;
+            return this;
+        }
+
+        public Builder portfolio(String portfolio) {
+            this.portfolio = portfolio;
+            return this;
+        }
+
+        public Builder action(Action action) {
+            this.action = action;
+            return this;
+        }
+
+        public Builder account(String account) {
+            this.account = account;
+            return this;
+        }
+
+        public Builder strategy(String strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        public Builder user(String user) {
+            this.user = user;
+            return this;
+        }
+
+        public Builder at(LocalDateTime dateTime) {
+            this.dateTime = dateTime;
+            return this;
+        }
+
+        /**
+         * @param minutes: after START
+         */
+        public Builder minutes(int minutes) {
+            return at(START.plusMinutes(minutes));
+        }
+
+        public Builder date(LocalDate date) {
+            this.date = date;
+            return this;
+        }
+
+        public Trade build() {
+            return new Trade(tradeId, bbgCode, ccy, side, price, volume, portfolio, action, account, strategy, user, dateTime, date);
+        }
+    }
+}
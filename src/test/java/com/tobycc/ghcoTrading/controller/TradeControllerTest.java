@@ -2,13 +2,29 @@ package com.tobycc.ghcoTrading.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.FileWatcherService;
+import com.tobycc.ghcoTrading.file.TradeInputException;
+import com.tobycc.ghcoTrading.model.AggregationOutputJob;
+import com.tobycc.ghcoTrading.model.BulkIngestBatch;
+import com.tobycc.ghcoTrading.model.BulkIngestResult;
+import com.tobycc.ghcoTrading.model.FileIngestionStatus;
 import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLAggregationResult;
 import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLRollupRequest;
+import com.tobycc.ghcoTrading.model.RejectedRow;
 import com.tobycc.ghcoTrading.model.Trade;
 import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
 import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.OutputJobStatus;
 import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.service.AggregationOutputService;
+import com.tobycc.ghcoTrading.service.BulkIngestService;
+import com.tobycc.ghcoTrading.service.PnLSeriesConsumer;
+import com.tobycc.ghcoTrading.service.RollupService;
 import com.tobycc.ghcoTrading.service.TradeAggregationService;
+import com.tobycc.ghcoTrading.service.TradeJournalService;
 import com.tobycc.ghcoTrading.service.TradeLoadingService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +32,7 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 import java.math.BigDecimal;
@@ -27,7 +44,10 @@ import static com.tobycc.ghcoTrading.model.enums.AggregateField.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(controllers = { TradeController.class })
@@ -48,6 +68,21 @@ public class TradeControllerTest {
     @MockBean
     private TradeLoadingService tradeLoadingService;
 
+    @MockBean
+    private AggregationOutputService aggregationOutputService;
+
+    @MockBean
+    private FileWatcherService fileWatcherService;
+
+    @MockBean
+    private TradeJournalService tradeJournalService;
+
+    @MockBean
+    private BulkIngestService bulkIngestService;
+
+    @MockBean
+    private RollupService rollupService;
+
     @Test
     public void postNewTrades_emptySuccess() throws Exception {
         List<Trade> newTrades = Collections.emptyList();
@@ -80,6 +115,69 @@ public class TradeControllerTest {
         verify(csvParser).writeTradesIntoCsv(any());
     }
 
+    @Test
+    public void postNewTrades_JournalSuccess() throws Exception {
+        List<Trade> newTrades = List.of(
+                new Trade("Test", "TestBBGCode", Currency.USD, Side.B, BigDecimal.valueOf(1000), 1000,
+                        "portfolio1", Action.NEW, "Account1", "Strategy1", "User1", LocalDateTime.MIN, LocalDate.MIN)
+        );
+
+        doReturn(true).when(tradeJournalService).isEnabled();
+        doReturn(List.of("Test"))
+                .when(tradeJournalService).appendTrades(any());
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(newTrades)))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[\"Test\"]"));
+
+        verify(tradeJournalService).appendTrades(any());
+        verify(csvParser, times(0)).writeTradesIntoCsv(any());
+    }
+
+    @Test
+    public void postNewTrades_JournalRejectsTrades() throws Exception {
+        List<Trade> newTrades = List.of(
+                new Trade("Test", "TestBBGCode", Currency.USD, Side.B, BigDecimal.valueOf(1000), 1000,
+                        "portfolio1", Action.NEW, "Account1", "Strategy1", "User1", LocalDateTime.MIN, LocalDate.MIN)
+        );
+
+        doReturn(true).when(tradeJournalService).isEnabled();
+        doThrow(new TradeInputException("Trade Test dates must be in years 1 to 9999"))
+                .when(tradeJournalService).appendTrades(any());
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(newTrades)))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().json("{\"error\":\"Trade Test dates must be in years 1 to 9999\"}"));
+    }
+
+    @Test
+    public void bulkIngestCsv_Success() throws Exception {
+        doReturn(new BulkIngestResult(1, 1, false, List.of(new BulkIngestBatch(1, 1, 1, List.of(new RejectedRow(3, "Bad price"))))))
+                .when(bulkIngestService).ingestCsv(any());
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/bulk").contentType(TradeController.CSV_VALUE)
+                        .content("TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate\n"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"accepted\":1,\"rejected\":1,\"journaled\":false,\"batches\":[{\"batch\":1,\"accepted\":1," +
+                        "\"rejected\":1,\"rejectedRows\":[{\"row\":3,\"reason\":\"Bad price\"}]}]}"));
+
+        verify(bulkIngestService).ingestCsv(any());
+        verify(bulkIngestService, times(0)).ingestNdjson(any());
+    }
+
+    @Test
+    public void bulkIngestCsv_MissingHeaders() throws Exception {
+        doThrow(new TradeInputException("Csv does not start with the expected headers"))
+                .when(bulkIngestService).ingestCsv(any());
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/bulk").contentType(TradeController.CSV_VALUE)
+                        .content("T1,BBG1\n"))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().json("{\"error\":\"Csv does not start with the expected headers\"}"));
+    }
+
     @Test
     public void postNewTrades_FailOnNull() throws Exception {
         List<Trade> newTrades = List.of(
@@ -108,14 +206,130 @@ public class TradeControllerTest {
                 Optional.empty()
         );
 
-        doReturn(Map.of("Test",List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE))))
-                .when(tradeAggregationService).aggregateTrades(any(), eq(request));
+        doReturn(new PnLAggregationResult(Map.of("Test",List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE))), Optional.of("job1")))
+                .when(tradeAggregationService).aggregateTradesWithOutput(any(), eq(request));
 
         mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/aggregate").contentType(MediaType.APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(request)))
                 .andExpect(status().isOk())
+                .andExpect(header().string(TradeController.OUTPUT_JOB_HEADER, "job1"))
                 .andExpect(content().json("{\"Test\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":1}]}"));
 
-        verify(tradeAggregationService).aggregateTrades(any(), eq(request));
+        verify(tradeAggregationService).aggregateTradesWithOutput(any(), eq(request));
+    }
+
+    @Test
+    public void pnlAggregationInCurrencies_Success() throws Exception {
+        PnLAggregationRequest request = new PnLAggregationRequest(
+                Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.empty(), Optional.empty());
+
+        doReturn(Map.of(
+                Currency.USD, Map.of("Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE))),
+                Currency.EUR, Map.of("Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.TEN)))))
+                .when(tradeAggregationService).aggregateTradesInCurrencies(any(), eq(request), eq(Set.of(Currency.USD, Currency.EUR)));
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/aggregate/currencies").contentType(MediaType.APPLICATION_JSON)
+                        .param("currencies", "USD", "EUR")
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"USD\":{\"Test\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":1}]}," +
+                        "\"EUR\":{\"Test\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":10}]}}"));
+
+        verify(tradeAggregationService, times(0)).aggregateTradesWithOutput(any(), any());
+    }
+
+    @Test
+    public void pnlAggregationBatch_Success() throws Exception {
+        List<PnLAggregationRequest> requests = List.of(
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD), Optional.empty()),
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(PORTFOLIO))), Optional.empty(), Optional.empty()));
+
+        doReturn(List.of(
+                Map.of("Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE))),
+                Map.of("Test,USD", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.TEN)))))
+                .when(tradeAggregationService).aggregateTradesBatch(any(), eq(requests));
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/aggregate/batch").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(requests)))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[{\"Test\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":1}]}," +
+                        "{\"Test,USD\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":10}]}]"));
+
+        verify(tradeAggregationService, times(0)).aggregateTradesWithOutput(any(), any());
+    }
+
+    @Test
+    public void pnlAggregationRollup_Success() throws Exception {
+        PnLAggregationRequest request = new PnLAggregationRequest(Optional.empty(), Optional.of(Currency.USD), Optional.empty());
+        List<TreeSet<AggregateField>> levels =
+                List.of(new TreeSet<>(List.of(BBG_CODE)), new TreeSet<>(List.of(PORTFOLIO, STRATEGY)));
+
+        Map<String, Map<String, List<PnLPosition>>> rolledUp = new LinkedHashMap<>();
+        rolledUp.put("BBG_CODE", Map.of("Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE))));
+        rolledUp.put("PORTFOLIO,STRATEGY", Map.of("Test,Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.TEN))));
+        doReturn(rolledUp).when(rollupService).aggregateRollup(any(), eq(request), eq(levels));
+
+        mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/aggregate/rollup").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new PnLRollupRequest(request, levels))))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"BBG_CODE\":{\"Test\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":1}]}," +
+                        "\"PORTFOLIO,STRATEGY\":{\"Test,Test\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":10}]}}"));
+
+        verify(tradeAggregationService, times(0)).aggregateTradesWithOutput(any(), any());
+    }
+
+    @Test
+    public void pnlAggregationStream_Success() throws Exception {
+        PnLAggregationRequest request = new PnLAggregationRequest(
+                Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD), Optional.empty());
+
+        doAnswer(invocation -> {
+            PnLSeriesConsumer consumer = invocation.getArgument(2);
+            consumer.accept("Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE)));
+            consumer.accept("Test2", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.TEN)));
+            return null;
+        }).when(tradeAggregationService).streamAggregation(any(), eq(request), any());
+
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/aggregate/stream").contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(TradeController.NDJSON_VALUE))
+                .andExpect(content().string(
+                        "{\"key\":\"Test\",\"positions\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":1}]}\n" +
+                        "{\"key\":\"Test2\",\"positions\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":10}]}\n"));
+
+        verify(tradeAggregationService, times(0)).aggregateTradesWithOutput(any(), any());
+    }
+
+    @Test
+    public void pnlAggregationOutputStatus_Success() throws Exception {
+        doReturn(Optional.of(new AggregationOutputJob("job1", OutputJobStatus.COMPLETED, 2, LocalDateTime.MIN, LocalDateTime.MIN, null)))
+                .when(aggregationOutputService).getJob("job1");
+
+        mvc.perform(MockMvcRequestBuilders.get("/api/v1/trade/aggregate/output/job1"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"jobId\":\"job1\",\"status\":\"COMPLETED\",\"groups\":2}"));
+    }
+
+    @Test
+    public void pnlAggregationOutputStatus_UnknownJob() throws Exception {
+        doReturn(Optional.empty()).when(aggregationOutputService).getJob("unknown");
+
+        mvc.perform(MockMvcRequestBuilders.get("/api/v1/trade/aggregate/output/unknown"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void ingestionStatus_Success() throws Exception {
+        doReturn(new FileIngestionStatus(1, 2, 300, 40, 5)).when(fileWatcherService).getStatus();
+
+        mvc.perform(MockMvcRequestBuilders.get("/api/v1/trade/ingestion"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"pendingFiles\":1,\"queuedFiles\":2,\"oldestQueuedLagMillis\":300," +
+                        "\"lastIngestLagMillis\":40,\"filesIngested\":5}"));
     }
 }
@@ -4,9 +4,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.tobycc.ghcoTrading.file.CSVParser;
 import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
 import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLSeries;
+import com.tobycc.ghcoTrading.model.VisualisationPage;
 import com.tobycc.ghcoTrading.model.enums.Currency;
 import com.tobycc.ghcoTrading.service.TradeAggregationService;
 import com.tobycc.ghcoTrading.service.TradeLoadingService;
+import com.tobycc.ghcoTrading.service.VisualisationService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
@@ -24,6 +27,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrl;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -45,6 +49,9 @@ public class TradeVisualiserControllerTest {
     @MockBean
     private TradeLoadingService tradeLoadingService;
 
+    @MockBean
+    private VisualisationService visualisationService;
+
     @Test
     public void pnlAggregationAndVisualisation_RedirectSuccess() throws Exception {
         PnLAggregationRequest request = new PnLAggregationRequest(
@@ -55,13 +62,34 @@ public class TradeVisualiserControllerTest {
 
         doReturn(Map.of("Test",List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE))))
                 .when(tradeAggregationService).aggregateTrades(any(), eq(request));
+        doReturn("v1").when(visualisationService).put(any());
 
         mvc.perform(MockMvcRequestBuilders.post("/api/v1/trade/aggregateAndVisualise").contentType(MediaType.APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(request)))
                 .andExpect(status().is3xxRedirection())
-                .andExpect(redirectedUrl("/api/v1/trade/visualise?title=%20Currency%20converted%20to%20USD%20-%20No%20TradeFilters"));
+                .andExpect(redirectedUrl("/api/v1/trade/visualise?id=v1&title=%20Currency%20converted%20to%20USD%20-%20No%20TradeFilters"));
 
         verify(tradeAggregationService).aggregateTrades(any(), eq(request));
+        verify(visualisationService).put(eq(Map.of("Test",List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE)))));
     }
 
+    @Test
+    public void visualisationData_Success() throws Exception {
+        doReturn(Optional.of(new VisualisationPage("v1", 1, 10, 11,
+                List.of(new PnLSeries("Test", List.of(new PnLPosition(LocalDateTime.MIN, BigDecimal.ONE)))))))
+                .when(visualisationService).getPage("v1", 1, 10, 500);
+
+        mvc.perform(MockMvcRequestBuilders.get("/api/v1/trade/visualise/v1/data?page=1&size=10&points=500"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"id\":\"v1\",\"page\":1,\"size\":10,\"seriesCount\":11,\"series\":" +
+                        "[{\"key\":\"Test\",\"positions\":[{\"dateTime\":\"-999999999-01-01T00:00:00\",\"position\":1}]}]}"));
+    }
+
+    @Test
+    public void visualisationData_Expired() throws Exception {
+        doReturn(Optional.empty()).when(visualisationService).getPage(eq("v1"), eq(0), eq(20), eq(1000));
+
+        mvc.perform(MockMvcRequestBuilders.get("/api/v1/trade/visualise/v1/data"))
+                .andExpect(status().isNotFound());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package com.tobycc.ghcoTrading.file;
+
+import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import com.tobycc.ghcoTrading.service.TradeLoadingService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Drives the watcher against a real temporary input directory
+ */
+class FileWatcherServiceTest {
+
+    private static final String FIRST_HALF = CSVParser.EXPECTED_HEADERS + "\n";
+    private static final String SECOND_HALF = "T1,BBG1,USD,B,10,100,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000000,20100101\n";
+
+    private Path baseDirectory;
+    private Path inputDirectory;
+    private FileProps fileProps;
+    private WatchService watchService;
+    private TradeFileOffsets tradeFileOffsets;
+    private FileWatcherService fileWatcherService;
+    //Size of each file when it was loaded
+    private final Map<String, Long> loadedFiles = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        baseDirectory = Files.createTempDirectory("watcher");
+        inputDirectory = Files.createDirectory(baseDirectory.resolve("input"));
+        Files.writeString(inputDirectory.resolve("existing.csv"), FIRST_HALF);
+
+        fileProps = new FileProps();
+        fileProps.setBaseDirectory(baseDirectory.toString());
+        fileProps.setInputDirectory("input");
+        fileProps.setStableMillis(300);
+        fileProps.setWatchPollMillis(20);
+        fileProps.setTailMode(false);
+        //As read by the startup load
+        tradeFileOffsets = new TradeFileOffsets();
+        tradeFileOffsets.put(inputDirectory.resolve("existing.csv").toString(), FIRST_HALF.length());
+        watchService = FileSystems.getDefault().newWatchService();
+        inputDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Watches with the loading of each file recorded instead of done
+     */
+    private void startRecordingWatcher() {
+        startWatcher(new TradeLoadingService(null, fileProps, storeProps(), List.of(), null, null) {
+            @Override
+            public void loadNewTradesFromFile(String file) {
+                try {
+                    loadedFiles.merge(Path.of(file).getFileName().toString(), Files.size(Path.of(file)), (a, b) -> -1L);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    private void startWatcher(TradeLoadingService tradeLoadingService) {
+        fileWatcherService = new FileWatcherService(tradeLoadingService, tradeFileOffsets, fileProps, watchService);
+        fileWatcherService.startWatching();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        fileWatcherService.stopWatching();
+        watchService.close();
+        try (Stream<Path> paths = Files.walk(baseDirectory)) {
+            for(Path path: paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void watch_LoadsEachFileOnceItIsComplete() throws Exception {
+        startRecordingWatcher();
+
+        //Written in two parts, with a pause shorter than the stable period between them
+        Path slowFile = inputDirectory.resolve("slow.csv");
+        try (Writer writer = Files.newBufferedWriter(slowFile)) {
+            writer.write(FIRST_HALF);
+            writer.flush();
+            Thread.sleep(150);
+            writer.write(SECOND_HALF);
+        }
+
+        //Written under a temporary name then renamed into place
+        Path partFile = inputDirectory.resolve("renamed.csv" + FileWatcherService.PART_FILE_SUFFIX);
+        Files.writeString(partFile, FIRST_HALF + SECOND_HALF);
+        Files.move(partFile, inputDirectory.resolve("renamed.csv"), StandardCopyOption.ATOMIC_MOVE);
+
+        long expectedSize = (FIRST_HALF + SECOND_HALF).length();
+        waitFor(() -> loadedFiles.size() == 2);
+        Thread.sleep(500);
+        assertEquals(Map.of("slow.csv", expectedSize, "renamed.csv", expectedSize), loadedFiles);
+        assertEquals(2, fileWatcherService.getStatus().filesIngested());
+        assertEquals(0, fileWatcherService.getStatus().queuedFiles());
+        assertEquals(0, fileWatcherService.getStatus().pendingFiles());
+    }
+
+    @Test
+    public void watch_ReloadsAFileOnlyWhenItChanges() throws Exception {
+        startRecordingWatcher();
+
+        //Loaded on startup, so an event that leaves it unchanged is ignored, and only the appended version is loaded
+        Path existing = inputDirectory.resolve("existing.csv");
+        Files.setLastModifiedTime(existing, Files.getLastModifiedTime(existing));
+        Files.writeString(existing, SECOND_HALF, StandardOpenOption.APPEND);
+
+        waitFor(() -> loadedFiles.size() == 1);
+        Thread.sleep(500);
+        assertEquals(Map.of("existing.csv", (long) (FIRST_HALF + SECOND_HALF).length()), loadedFiles);
+    }
+
+    @Test
+    public void startWatching_LoadsFilesTheStartupLoadDidNotRead() throws Exception {
+        //Dropped after the startup load listed the directory, and appended to after it was read
+        Files.writeString(inputDirectory.resolve("late.csv"), FIRST_HALF + SECOND_HALF);
+        Files.writeString(inputDirectory.resolve("existing.csv"), SECOND_HALF, StandardOpenOption.APPEND);
+        Files.writeString(inputDirectory.resolve("unchanged.csv"), FIRST_HALF);
+        tradeFileOffsets.put(inputDirectory.resolve("unchanged.csv").toString(), FIRST_HALF.length());
+        startRecordingWatcher();
+
+        long expectedSize = (FIRST_HALF + SECOND_HALF).length();
+        waitFor(() -> loadedFiles.size() == 2);
+        Thread.sleep(500);
+        assertEquals(Map.of("late.csv", expectedSize, "existing.csv", expectedSize), loadedFiles);
+    }
+
+    @Test
+    public void watch_TailModeLoadsOnlyAppendedRows() throws Exception {
+        fileProps.setTailMode(true);
+        //Size of each batch of trades loaded
+        List<Integer> batches = new CopyOnWriteArrayList<>();
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(new CSVParser(fileProps), fileProps, storeProps(),
+                List.of((book, version, changes) -> batches.add(changes.size())), tradeFileOffsets, null);
+        startWatcher(tradeLoadingService);
+
+        Path existing = inputDirectory.resolve("existing.csv");
+        Files.writeString(existing, SECOND_HALF, StandardOpenOption.APPEND);
+        waitFor(() -> tradeLoadingService.getLoadedTrades().containsKey("T1"));
+        Files.writeString(existing, SECOND_HALF.replace("T1", "T2"), StandardOpenOption.APPEND);
+        waitFor(() -> tradeLoadingService.getLoadedTrades().containsKey("T2"));
+        Thread.sleep(500);
+
+        //Each row was read once, and reading stopped at the end of the file
+        assertEquals(List.of(1, 1), batches);
+        assertEquals(Files.size(existing), tradeFileOffsets.get(existing.toString()));
+    }
+
+    @Test
+    public void watch_TailModeRereadsAReplacedFile() throws Exception {
+        fileProps.setTailMode(true);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(new CSVParser(fileProps), fileProps, storeProps(),
+                List.of(), tradeFileOffsets, null);
+        startWatcher(tradeLoadingService);
+
+        Path existing = inputDirectory.resolve("existing.csv");
+        Files.writeString(existing, SECOND_HALF, StandardOpenOption.APPEND);
+        waitFor(() -> tradeLoadingService.getLoadedTrades().containsKey("T1"));
+        Thread.sleep(500);
+
+        //Replaced by a file of the same size, so only its content shows it is not the file that was read
+        Files.writeString(existing, FIRST_HALF + SECOND_HALF.replace("T1", "T3"));
+        waitFor(() -> tradeLoadingService.getLoadedTrades().containsKey("T3"));
+        assertEquals(Set.of("T1", "T3"), tradeLoadingService.getLoadedTrades().keySet());
+        assertEquals(Files.size(existing), tradeFileOffsets.get(existing.toString()));
+    }
+
+    private static StoreProps storeProps() {
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        return storeProps;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while(!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+}
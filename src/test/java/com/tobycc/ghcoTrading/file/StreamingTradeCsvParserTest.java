@@ -0,0 +1,145 @@
+package com.tobycc.ghcoTrading.file;
+
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingTradeCsvParserTest {
+
+    private static final String HEADER = CSVParser.EXPECTED_HEADERS + "\n";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void readTrades_Success() throws IOException {
+        Path file = write(HEADER +
+                "f033fcaf0f164f99886a6bd624900000,BRK.A US Equity,JPY,B,1000,2,portfolio5,NEW,Account1,Strategy6,User5,2010-01-01T09:25:34.894774,20100101\r\n" +
+                "7002f15e8f234a5ca278b21157d00001,\"GOOG, \"\"C\"\" US Equity\",NOK,S,-12.50,+7,portfolio1,AMEND,Account4,Strategy1,User5,2010-01-01T13:28:46.000001,20100102");
+
+        Optional<List<Trade>> trades = new StreamingTradeCsvParser().readTrades(file);
+        assertTrue(trades.isPresent());
+        assertEquals(2, trades.get().size());
+
+        Trade first = trades.get().get(0);
+        assertEquals("f033fcaf0f164f99886a6bd624900000", first.getTradeId());
+        assertEquals("BRK.A US Equity", first.getBbgCode());
+        assertEquals(Currency.JPY, first.getCcy());
+        assertEquals(Side.B, first.getSide());
+        assertEquals(new BigDecimal("1000"), first.getPrice());
+        assertEquals(2, first.getVolume());
+        assertEquals("portfolio5", first.getPortfolio());
+        assertEquals(Action.NEW, first.getAction());
+        assertEquals("Account1", first.getAccount());
+        assertEquals("Strategy6", first.getStrategy());
+        assertEquals("User5", first.getUser());
+        assertEquals(LocalDateTime.parse("2010-01-01T09:25:34.894774"), first.getDateTime());
+        assertEquals(LocalDate.of(2010, 1, 1), first.getDate());
+
+        Trade second = trades.get().get(1);
+        assertEquals("GOOG, \"C\" US Equity", second.getBbgCode());
+        assertEquals(new BigDecimal("-12.50"), second.getPrice());
+        assertEquals(7, second.getVolume());
+        assertEquals(Action.AMEND, second.getAction());
+        assertEquals(LocalDateTime.parse("2010-01-01T13:28:46.000001"), second.getDateTime());
+        //Repeated dimension values share one instance
+        assertSame(first.getUser(), second.getUser());
+    }
+
+    @Test
+    public void readTrades_RowsSpanningBufferRefills() throws IOException {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for(int i = 0; i < 500; i++) {
+            csv.append("id").append(i).append(",AAPL US Equity,USD,S,").append(i).append(".25,").append(i)
+                    .append(",portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:25:34.894774,20100101\n");
+        }
+
+        //A buffer smaller than a single row forces both refills and growth
+        Optional<List<Trade>> trades = new StreamingTradeCsvParser(64).readTrades(write(csv.toString()));
+        assertTrue(trades.isPresent());
+        assertEquals(500, trades.get().size());
+        assertEquals("id499", trades.get().get(499).getTradeId());
+        assertEquals(new BigDecimal("499.25"), trades.get().get(499).getPrice());
+    }
+
+    @Test
+    public void readTrades_FromOffsetReadsOnlyAppendedRows() throws IOException {
+        String row1 = "id1,AAPL US Equity,USD,S,10,1,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:25:34.894774,20100101\n";
+        String row2 = "id2,AAPL US Equity,USD,S,10,2,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:25:34.894774,20100101\n";
+        String partRow3 = "id3,AAPL US Equity,USD,S,10,3,portfolio1";
+        StreamingTradeCsvParser parser = new StreamingTradeCsvParser(64);
+
+        //Nothing is read until the headers are complete
+        Path file = write(HEADER.substring(0, 10));
+        assertEquals(0, parser.readTrades(file, 0, true, t -> fail()));
+
+        Files.writeString(file, HEADER + row1 + partRow3);
+        List<Trade> trades = new ArrayList<>();
+        long offset = parser.readTrades(file, 0, true, trades::add);
+        assertEquals((HEADER + row1).length(), offset);
+        assertEquals(List.of("id1"), trades.stream().map(Trade::getTradeId).toList());
+
+        //The part row is read once it is finished, along with anything after it
+        Files.writeString(file, HEADER + row1 + partRow3 + ",NEW,Account1,Strategy1,User1,2010-01-01T09:25:34.894774,20100101\n" + row2);
+        trades.clear();
+        offset = parser.readTrades(file, offset, true, trades::add);
+        assertEquals(Files.size(file), offset);
+        assertEquals(List.of("id3", "id2"), trades.stream().map(Trade::getTradeId).toList());
+
+        //Unless only complete rows are asked for, a last row without a line ending is read too
+        Files.writeString(file, row1.trim(), StandardOpenOption.APPEND);
+        assertEquals(offset, parser.readTrades(file, offset, true, t -> fail()));
+        trades.clear();
+        assertEquals(Files.size(file), parser.readTrades(file, offset, false, trades::add));
+        assertEquals(List.of("id1"), trades.stream().map(Trade::getTradeId).toList());
+
+        assertEquals(StreamingTradeCsvParser.MISSING_HEADERS, parser.readTrades(write("bad,headers\n" + row1), 0, true, t -> fail()));
+    }
+
+    @Test
+    public void readTrades_UnexpectedHeaders() throws IOException {
+        assertTrue(new StreamingTradeCsvParser().readTrades(write("TradeID,BBGCode\n1,2\n")).isEmpty());
+        assertTrue(new StreamingTradeCsvParser().readTrades(write("")).isEmpty());
+    }
+
+    @Test
+    public void readTrades_Failures() throws IOException {
+        String row = "f033fcaf0f164f99886a6bd624900000,BRK.A US Equity,JPY,B,1000,2,portfolio5,NEW,Account1,Strategy6,User5,2010-01-01T09:25:34.894774,20100101";
+
+        //A "#" present on the end of a ValueDate field
+        TradeCsvFormatException e = assertThrows(TradeCsvFormatException.class,
+                () -> new StreamingTradeCsvParser().readTrades(write(HEADER + row + "\n" + row + "#\n")));
+        assertEquals(3, e.getLineNumber());
+
+        assertThrows(TradeCsvFormatException.class,
+                () -> new StreamingTradeCsvParser().readTrades(write(HEADER + row.replace(",JPY,", ",XXX,"))));
+        assertThrows(TradeCsvFormatException.class,
+                () -> new StreamingTradeCsvParser().readTrades(write(HEADER + row.replace(",portfolio5,", ",,"))));
+        assertThrows(TradeCsvFormatException.class,
+                () -> new StreamingTradeCsvParser().readTrades(write(HEADER + row + ",extra")));
+        assertThrows(TradeCsvFormatException.class,
+                () -> new StreamingTradeCsvParser().readTrades(write(HEADER + row.replace(",1000,", ",1e,"))));
+        assertThrows(TradeCsvFormatException.class,
+                () -> new StreamingTradeCsvParser().readTrades(write(HEADER + row.replace("T09:25", "T25:25"))));
+    }
+
+    private Path write(String content) throws IOException {
+        return Files.writeString(Files.createTempFile(tempDir, "trades", ".csv"), content);
+    }
+}
@@ -0,0 +1,88 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.OutputJobStatus;
+import com.tobycc.ghcoTrading.model.enums.OutputOverflowPolicy;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationOutputServiceTest {
+
+    private static final Map<String, List<PnLPosition>> AGGREGATION =
+            Map.of("BBG1", List.of(new PnLPosition(LocalDateTime.parse("2010-01-01T09:00:00"), BigDecimal.TEN)));
+    private static final PnLAggregationRequest REQUEST = new PnLAggregationRequest(Optional.empty(), Optional.empty(), Optional.empty());
+    private static final PnLAggregationRequest USD_REQUEST = new PnLAggregationRequest(Optional.empty(), Optional.of(Currency.USD), Optional.empty());
+
+    @Test
+    public void submit_RunsInlineWhenNotAsync() {
+        AggregationOutputService aggregationOutputService = new AggregationOutputService(null, null, aggregationProps(false, OutputOverflowPolicy.BLOCK));
+        String jobId = aggregationOutputService.submit(AGGREGATION, REQUEST);
+
+        assertEquals(OutputJobStatus.COMPLETED, aggregationOutputService.getJob(jobId).orElseThrow().status());
+        assertEquals(1, aggregationOutputService.getJob(jobId).orElseThrow().groups());
+        assertTrue(aggregationOutputService.getJob("unknown").isEmpty());
+    }
+
+    @Test
+    public void submit_AppliesOverflowPolicyWhenQueueIsFull() {
+        //The worker is not started, so jobs stay queued
+        AggregationOutputService dropNewest = new AggregationOutputService(null, null, aggregationProps(true, OutputOverflowPolicy.DROP_NEWEST));
+        String queued = dropNewest.submit(AGGREGATION, REQUEST);
+        String dropped = dropNewest.submit(AGGREGATION, REQUEST);
+        assertEquals(OutputJobStatus.QUEUED, dropNewest.getJob(queued).orElseThrow().status());
+        assertEquals(OutputJobStatus.DROPPED, dropNewest.getJob(dropped).orElseThrow().status());
+        assertEquals(1, dropNewest.getQueueDepth());
+
+        AggregationOutputService dropOldest = new AggregationOutputService(null, null, aggregationProps(true, OutputOverflowPolicy.DROP_OLDEST));
+        dropped = dropOldest.submit(AGGREGATION, REQUEST);
+        queued = dropOldest.submit(AGGREGATION, REQUEST);
+        assertEquals(OutputJobStatus.DROPPED, dropOldest.getJob(dropped).orElseThrow().status());
+        assertNotNull(dropOldest.getJob(dropped).orElseThrow().finished());
+        assertEquals(OutputJobStatus.QUEUED, dropOldest.getJob(queued).orElseThrow().status());
+    }
+
+    @Test
+    public void worker_WritesLatestJobOfEachRequestInABatch() throws InterruptedException {
+        AggregationProps aggregationProps = aggregationProps(true, OutputOverflowPolicy.BLOCK);
+        aggregationProps.setOutputQueueCapacity(8);
+        AggregationOutputService aggregationOutputService = new AggregationOutputService(null, null, aggregationProps);
+        String first = aggregationOutputService.submit(AGGREGATION, REQUEST);
+        String other = aggregationOutputService.submit(AGGREGATION, USD_REQUEST);
+        String latest = aggregationOutputService.submit(AGGREGATION, REQUEST);
+
+        aggregationOutputService.startWorker();
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while(aggregationOutputService.getJob(latest).orElseThrow().status() != OutputJobStatus.COMPLETED
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(OutputJobStatus.COMPLETED, aggregationOutputService.getJob(latest).orElseThrow().status());
+            assertEquals(OutputJobStatus.COMPLETED, aggregationOutputService.getJob(other).orElseThrow().status());
+            assertEquals(OutputJobStatus.SUPERSEDED, aggregationOutputService.getJob(first).orElseThrow().status());
+        } finally {
+            aggregationOutputService.stopWorker();
+        }
+    }
+
+    private static AggregationProps aggregationProps(boolean asyncOutput, OutputOverflowPolicy outputOverflowPolicy) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(true);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setAsyncOutput(asyncOutput);
+        aggregationProps.setOutputQueueCapacity(1);
+        aggregationProps.setOutputBatchSize(16);
+        aggregationProps.setOutputOverflowPolicy(outputOverflowPolicy);
+        return aggregationProps;
+    }
+}
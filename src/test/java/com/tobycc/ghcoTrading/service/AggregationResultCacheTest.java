@@ -0,0 +1,126 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationResultCacheTest {
+
+    private static final PnLAggregationRequest ALL = new PnLAggregationRequest(
+            Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD), Optional.empty());
+    private static final PnLAggregationRequest PORTFOLIO1 = portfolioRequest("portfolio1");
+    private static final PnLAggregationRequest PORTFOLIO2 = portfolioRequest("portfolio2");
+
+    private AggregationProps aggregationProps;
+    private AggregationResultCache aggregationResultCache;
+    private TradeAggregationService tradeAggregationService;
+    private TradeLoadingService tradeLoadingService;
+
+    @BeforeEach
+    public void setUp() {
+        aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(true);
+        aggregationProps.setMaxCachedResults(10);
+        aggregationProps.setMaxCachedResultBytes(1_000_000L);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+
+        aggregationResultCache = new AggregationResultCache(aggregationProps);
+        tradeAggregationService = new TradeAggregationService(aggregationProps, null, aggregationResultCache, null, null);
+        tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(aggregationResultCache), null, null);
+    }
+
+    @Test
+    public void aggregateTrades_ReusesResultsUntilAnOverlappingIngest() {
+        tradeLoadingService.loadTrades(List.of(
+                trade("T1").minutes(1).build(),
+                trade("T2").bbgCode("GOOG US Equity").portfolio("portfolio2").minutes(2).build()));
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+
+        Map<String, List<PnLPosition>> all = tradeAggregationService.aggregateTrades(book, ALL);
+        Map<String, List<PnLPosition>> portfolio1 = tradeAggregationService.aggregateTrades(book, PORTFOLIO1);
+        Map<String, List<PnLPosition>> portfolio2 = tradeAggregationService.aggregateTrades(book, PORTFOLIO2);
+        assertSame(all, tradeAggregationService.aggregateTrades(book, ALL));
+        assertSame(portfolio1, tradeAggregationService.aggregateTrades(book, PORTFOLIO1));
+        assertEquals(2, aggregationResultCache.getHits());
+        assertEquals(3, aggregationResultCache.getMisses());
+
+        //Only requests that can see the amended trade are recomputed
+        tradeLoadingService.loadTrades(List.of(trade("T1").action(Action.AMEND).minutes(3).build()));
+        assertEquals(2, aggregationResultCache.getInvalidations());
+        assertSame(portfolio2, tradeAggregationService.aggregateTrades(book, PORTFOLIO2));
+        assertNotSame(all, tradeAggregationService.aggregateTrades(book, ALL));
+        assertEquals(recompute(PORTFOLIO1), tradeAggregationService.aggregateTrades(book, PORTFOLIO1));
+
+        //A trade moved out of a portfolio invalidates it through the version it replaced
+        portfolio1 = tradeAggregationService.aggregateTrades(book, PORTFOLIO1);
+        tradeLoadingService.loadTrades(List.of(trade("T1").portfolio("portfolio3").action(Action.AMEND).minutes(4).build()));
+        assertNotSame(portfolio1, tradeAggregationService.aggregateTrades(book, PORTFOLIO1));
+        assertEquals(recompute(PORTFOLIO1), tradeAggregationService.aggregateTrades(book, PORTFOLIO1));
+    }
+
+    @Test
+    public void put_IgnoresResultsOfAnOlderVersion() {
+        tradeLoadingService.loadTrades(List.of(trade("T1").minutes(1).build()));
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+        long version = aggregationResultCache.versionOf(book);
+        assertEquals(tradeLoadingService.getVersion(), version);
+
+        tradeLoadingService.loadTrades(List.of(trade("T2").minutes(2).build()));
+        aggregationResultCache.put(version, ALL, recompute(ALL));
+        assertEquals(0, aggregationResultCache.getCachedResultCount());
+        assertEquals(-1, aggregationResultCache.versionOf(new HashMap<>(book)));
+    }
+
+    @Test
+    public void put_EvictsLeastRecentlyUsed() {
+        aggregationProps.setMaxCachedResults(2);
+        tradeLoadingService.loadTrades(List.of(trade("T1").minutes(1).build()));
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+
+        Map<String, List<PnLPosition>> all = tradeAggregationService.aggregateTrades(book, ALL);
+        tradeAggregationService.aggregateTrades(book, PORTFOLIO1);
+        tradeAggregationService.aggregateTrades(book, ALL);
+        tradeAggregationService.aggregateTrades(book, PORTFOLIO2);
+        assertEquals(2, aggregationResultCache.getCachedResultCount());
+        assertEquals(1, aggregationResultCache.getEvictions());
+        assertSame(all, tradeAggregationService.aggregateTrades(book, ALL));
+
+        //Results over the memory bound are never cached
+        aggregationProps.setMaxCachedResultBytes(1L);
+        aggregationResultCache.clear();
+        tradeAggregationService.aggregateTrades(book, ALL);
+        assertEquals(0, aggregationResultCache.getCachedResultCount());
+        assertEquals(0, aggregationResultCache.getCachedBytes());
+    }
+
+    private Map<String, List<PnLPosition>> recompute(PnLAggregationRequest request) {
+        return tradeAggregationService.processPnlAggregation(
+                tradeAggregationService.groupTrades(tradeLoadingService.getLoadedTrades(), request), request);
+    }
+
+    private static PnLAggregationRequest portfolioRequest(String portfolio) {
+        return new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.empty(),
+                Optional.of(Set.of(new TradeFilter(Optional.empty(), Optional.empty(), Optional.of(portfolio),
+                        Optional.empty(), Optional.empty(), Optional.empty()))));
+    }
+}
@@ -0,0 +1,138 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tobycc.ghcoTrading.config.JacksonConfig;
+import com.tobycc.ghcoTrading.file.TradeInputException;
+import com.tobycc.ghcoTrading.model.BulkIngestBatch;
+import com.tobycc.ghcoTrading.model.BulkIngestResult;
+import com.tobycc.ghcoTrading.model.RejectedRow;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkIngestServiceTest {
+
+    private static final String HEADER =
+            "TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate\n";
+
+    private final ObjectMapper objectMapper = new JacksonConfig().objectMapper();
+    private FileProps fileProps;
+    private TradeLoadingService tradeLoadingService;
+    private BulkIngestService bulkIngestService;
+    //Size of each batch of trades loaded
+    private final List<Integer> batches = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        fileProps = new FileProps();
+        fileProps.setJournal(false);
+        fileProps.setBulkBatchSize(2);
+        fileProps.setBulkMaxRejectedRows(100);
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        tradeLoadingService = new TradeLoadingService(null, fileProps, storeProps,
+                List.of((book, version, changes) -> batches.add(changes.size())), null, null);
+        bulkIngestService = new BulkIngestService(tradeLoadingService, new TradeJournalService(null, tradeLoadingService, null, fileProps),
+                Validation.buildDefaultValidatorFactory().getValidator(), objectMapper, fileProps);
+    }
+
+    @Test
+    public void ingestCsv_LoadsValidRowsInBatchesAndRejectsTheRest() throws IOException {
+        BulkIngestResult result = bulkIngestService.ingestCsv(body(HEADER +
+                "T1,BBG1,USD,B,10.5,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n" +
+                "T2,BBG1,USD,B,ten,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n" +
+                "T3,BBG1,USD,S,11,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n" +
+                "T1,BBG1,USD,B,12,10,portfolio2,AMEND,Account1,Strategy1,User1,2010-01-01T09:01:00.000001,20100101\n" +
+                "T4,BBG1,XXX,B,13,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101"));
+
+        assertEquals(3, result.accepted());
+        assertEquals(2, result.rejected());
+        assertFalse(result.journaled());
+        assertEquals(3, result.batches().size());
+        assertBatch(result.batches().get(0), 1, 1, 3);
+        assertBatch(result.batches().get(1), 2, 2);
+        assertBatch(result.batches().get(2), 3, 0, 6);
+        assertTrue(result.batches().get(2).rejectedRows().get(0).reason().contains("Currency"));
+
+        //Loaded a batch at a time
+        assertEquals(List.of(1, 2), batches);
+        assertEquals(Set.of("T1", "T3"), tradeLoadingService.getLoadedTrades().keySet());
+        assertEquals("portfolio2", tradeLoadingService.getLoadedTrades().get("T1").getPortfolio());
+    }
+
+    @Test
+    public void ingestNdjson_LoadsValidLinesAndRejectsTheRest() throws IOException {
+        fileProps.setBulkBatchSize(10);
+        BulkIngestResult result = bulkIngestService.ingestNdjson(body(
+                objectMapper.writeValueAsString(trade("T1").bbgCode("BBG1").build()) + "\n" +
+                "\n" +
+                objectMapper.writeValueAsString(trade("T2").bbgCode(null).build()) + "\n" +
+                "{\"tradeId\": \"T3\",\n" +
+                objectMapper.writeValueAsString(trade("T4").bbgCode("BBG1").build())));
+
+        assertEquals(2, result.accepted());
+        assertEquals(2, result.rejected());
+        assertEquals(1, result.batches().size());
+        assertBatch(result.batches().get(0), 1, 2, 3, 4);
+        assertEquals("bbgCode must not be empty", result.batches().get(0).rejectedRows().get(0).reason());
+        assertEquals(Set.of("T1", "T4"), tradeLoadingService.getLoadedTrades().keySet());
+    }
+
+    @Test
+    public void ingestCsv_ListsOnlyTheFirstRejectedRowsButCountsThemAll() throws IOException {
+        fileProps.setBulkBatchSize(3);
+        fileProps.setBulkMaxRejectedRows(4);
+        StringBuilder csv = new StringBuilder(HEADER);
+        for(int i = 0; i < 10; i++) {
+            csv.append("B").append(i).append(",BBG1,USD,B,ten,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n");
+        }
+        csv.append("T1,BBG1,USD,B,10.5,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n");
+        BulkIngestResult result = bulkIngestService.ingestCsv(body(csv.toString()));
+
+        assertEquals(1, result.accepted());
+        assertEquals(10, result.rejected());
+        assertEquals(4, result.batches().size());
+        assertBatch(result.batches().get(0), 1, 0, 2, 3, 4);
+        assertEquals(3, result.batches().get(1).rejected());
+        assertArrayEquals(new long[]{5}, result.batches().get(1).rejectedRows().stream().mapToLong(RejectedRow::row).toArray());
+        assertEquals(3, result.batches().get(2).rejected());
+        assertTrue(result.batches().get(2).rejectedRows().isEmpty());
+        assertEquals(1, result.batches().get(3).accepted());
+        assertEquals(1, result.batches().get(3).rejected());
+        assertEquals(Set.of("T1"), tradeLoadingService.getLoadedTrades().keySet());
+    }
+
+    @Test
+    public void ingestCsv_RejectsCsvWithoutHeaders() {
+        assertThrows(TradeInputException.class, () -> bulkIngestService.ingestCsv(body(
+                "T1,BBG1,USD,B,10.5,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n")));
+        assertTrue(tradeLoadingService.getLoadedTrades().isEmpty());
+    }
+
+    private static void assertBatch(BulkIngestBatch batch, int number, int accepted, long... rejectedRows) {
+        assertEquals(number, batch.batch());
+        assertEquals(accepted, batch.accepted());
+        assertEquals(rejectedRows.length, batch.rejected());
+        assertArrayEquals(rejectedRows, batch.rejectedRows().stream().mapToLong(RejectedRow::row).toArray());
+    }
+
+    private static InputStream body(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,128 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLWindow;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.randomTrade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.CURRENCY;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.PORTFOLIO;
+import static com.tobycc.ghcoTrading.model.enums.Currency.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CurrencyPnlAccumulatorTest {
+
+    private static final LocalDateTime DAY1 = LocalDateTime.parse("2010-01-01T00:00:00");
+    private static final LocalDateTime DAY2 = LocalDateTime.parse("2010-01-02T00:00:00");
+    private static final Set<Currency> TARGETS = Set.of(USD, EUR, GBP);
+
+    @TempDir
+    Path directory;
+
+    private AggregationResultCache aggregationResultCache;
+    private TradeAggregationService tradeAggregationService;
+    private Map<String, Trade> book;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        //GBP and JPY rates change on the second day
+        Path ratesFile = directory.resolve("fx-rates.csv");
+        Files.writeString(ratesFile, FxRatesTest.allRates(DAY1) + DAY2 + ",GBP,USD,1.5\n" + DAY2 + ",JPY,EUR,0.0075\n"
+                + DAY2 + ",GBP,EUR,1.25\n");
+        FxService.setRates(FxRates.load(ratesFile));
+
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(true);
+        aggregationProps.setMaxCachedResults(50);
+        aggregationProps.setMaxCachedResultBytes(10_000_000L);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        aggregationResultCache = new AggregationResultCache(aggregationProps);
+        tradeAggregationService = new TradeAggregationService(aggregationProps, null, aggregationResultCache, null, null);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(aggregationResultCache), null, null);
+
+        Random random = new Random(22);
+        List<Trade> trades = new ArrayList<>();
+        for(int i = 0; i < 400; i++) {
+            trades.add(randomTrade(random, "T" + i).portfolio("portfolio" + random.nextInt(3))
+                    .at(DAY1.plusMinutes(random.nextInt(3 * 24 * 60))).build());
+        }
+        tradeLoadingService.loadTrades(trades);
+        book = tradeLoadingService.getLoadedTrades();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FxService.setRates(FxRates.of(FxService.FX_MAP));
+    }
+
+    @Test
+    public void aggregateTradesInCurrencies_MatchesConvertingEachTrade() {
+        //Portfolio groups mix currencies, and every group crosses the change of rates, as do the two day buckets
+        List<PnLAggregationRequest> requests = List.of(
+                request(List.of(PORTFOLIO), Optional.empty(), Optional.empty()),
+                request(List.of(BBG_CODE, PORTFOLIO), Optional.empty(), Optional.empty()),
+                request(List.of(PORTFOLIO), Optional.of(Duration.ofHours(1)), Optional.empty()),
+                request(List.of(PORTFOLIO), Optional.of(Duration.ofDays(2)), Optional.empty()),
+                request(List.of(BBG_CODE, CURRENCY), Optional.of(Duration.ofHours(6)), Optional.empty()),
+                request(List.of(PORTFOLIO), Optional.empty(), Optional.of(PnLWindow.between(DAY1.plusHours(20), DAY2.plusHours(20)))),
+                request(List.of(PORTFOLIO), Optional.empty(), Optional.of(PnLWindow.asOf(DAY2.plusHours(12)))));
+
+        for(PnLAggregationRequest request: requests) {
+            Map<Currency, Map<String, List<PnLPosition>>> converted = tradeAggregationService.aggregateTradesInCurrencies(book, request, TARGETS);
+            assertEquals(TARGETS, converted.keySet());
+            aggregationResultCache.clear();
+            for(Currency target: TARGETS) {
+                //Equal to the scale, as BigDecimal sums and products are exact
+                assertEquals(convertEachTrade(request.convertedInto(target)), converted.get(target), request + " into " + target);
+            }
+        }
+    }
+
+    @Test
+    public void aggregateTradesInCurrencies_SharesTheResultCache() {
+        PnLAggregationRequest request = request(List.of(BBG_CODE), Optional.empty(), Optional.empty());
+        Map<String, List<PnLPosition>> inUsd = tradeAggregationService.aggregateTrades(book, request.convertedInto(USD));
+
+        Map<Currency, Map<String, List<PnLPosition>>> converted = tradeAggregationService.aggregateTradesInCurrencies(book, request, TARGETS);
+        assertSame(inUsd, converted.get(USD));
+        assertEquals(3, aggregationResultCache.getCachedResultCount());
+        assertSame(converted.get(EUR), tradeAggregationService.aggregateTrades(book, request.convertedInto(EUR)));
+
+        assertThrows(IllegalArgumentException.class, () -> tradeAggregationService.aggregateTradesInCurrencies(book, request, Set.of()));
+    }
+
+    private Map<String, List<PnLPosition>> convertEachTrade(PnLAggregationRequest request) {
+        return tradeAggregationService.processPnlAggregation(tradeAggregationService.groupTrades(book, request), request);
+    }
+
+    private static PnLAggregationRequest request(List<AggregateField> fields,
+                                                 Optional<Duration> bucket, Optional<PnLWindow> window) {
+        return new PnLAggregationRequest(Optional.of(new TreeSet<>(fields)), Optional.empty(), Optional.empty(), bucket,
+                Optional.empty(), window);
+    }
+}
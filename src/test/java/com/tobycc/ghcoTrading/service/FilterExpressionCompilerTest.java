@@ -0,0 +1,171 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.FilterExpression;
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static com.tobycc.ghcoTrading.model.FilterExpression.*;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FilterExpressionCompilerTest {
+
+    private static final List<FilterExpression> EXPRESSIONS = List.of(
+            and(in(FilterField.PORTFOLIO, "portfolio1", "portfolio2"), not(eq(FilterField.USER, "User1")),
+                    range(FilterField.PRICE, "100.5", "150")),
+            or(eq(FilterField.BBG_CODE, "BBG3"), and(eq(FilterField.CURRENCY, "EUR"), range(FilterField.VOLUME, "50", null))),
+            not(or(in(FilterField.SIDE, "B"), in(FilterField.STRATEGY, "Strategy1", "Strategy-unknown"),
+                    range(FilterField.DATE_TIME, null, "2010-01-01T12:00:00"))),
+            or(in(FilterField.USER, "User2"), in(FilterField.USER, "User3"), eq(FilterField.PRICE, "120.25"),
+                    in(FilterField.VOLUME, "10", "20"), eq(FilterField.DATE_TIME, "2010-01-01T09:30:00")),
+            and(not(eq(FilterField.ACCOUNT, "Account1")), not(eq(FilterField.ACCOUNT, "Account2")), in(FilterField.BBG_CODE, "BBG-unknown")));
+
+    @Test
+    public void compile_MatchesEvaluatingTheExpression() {
+        List<Trade> trades = trades(2_000);
+        ColumnarTradeStore store = new ColumnarTradeStore();
+        trades.forEach(t -> store.put(t.getTradeId(), t));
+
+        for(FilterExpression expression: EXPRESSIONS) {
+            Predicate<Trade> compiled = FilterExpressionCompiler.compile(expression, FilterStatistics.ESTIMATED);
+            IntPredicate bound = FilterExpressionCompiler.bind(expression, store, FilterStatistics.ESTIMATED);
+            int matching = 0;
+            for(Trade trade: trades) {
+                boolean expected = evaluate(expression, trade);
+                assertEquals(expected, compiled.test(trade), expression + " " + trade.getTradeId());
+                matching += expected ? 1 : 0;
+            }
+            for(int slot = store.nextLiveSlot(0); slot >= 0; slot = store.nextLiveSlot(slot + 1)) {
+                assertEquals(evaluate(expression, store.trade(slot)), bound.test(slot), expression + " slot " + slot);
+            }
+            //Every expression but the last picks out some of the trades
+            assertTrue(expression == EXPRESSIONS.get(4) ? matching == 0 : matching > 0 && matching < trades.size(), expression.toString());
+        }
+    }
+
+    @Test
+    public void groupTrades_AppliesTheWhereExpressionOnTopOfTheFilters() {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(false);
+        TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps, null, null, null, null);
+
+        Map<String, Trade> book = new HashMap<>();
+        trades(500).forEach(t -> book.put(t.getTradeId(), t));
+        ColumnarTradeStore store = new ColumnarTradeStore();
+        book.forEach(store::put);
+        TradeFilter portfolio1 = new TradeFilter(Optional.empty(), Optional.empty(), Optional.of("portfolio1"),
+                Optional.empty(), Optional.empty(), Optional.empty());
+        FilterExpression where = EXPRESSIONS.get(1);
+        PnLAggregationRequest request = new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(BBG_CODE))),
+                Optional.of(Currency.USD), Optional.of(Set.of(portfolio1)), Optional.empty(), Optional.of(where));
+
+        Map<String, Trade> expectedBook = new HashMap<>();
+        book.values().stream().filter(t -> portfolio1.filter(t) && evaluate(where, t)).forEach(t -> expectedBook.put(t.getTradeId(), t));
+        PnLAggregationRequest unfiltered = new PnLAggregationRequest(request.aggregationFields(), request.convertIntoCurrency(), Optional.empty());
+        assertFalse(expectedBook.isEmpty());
+        assertEquals(tradeAggregationService.groupTrades(expectedBook, unfiltered), tradeAggregationService.groupTrades(book, request));
+        assertEquals(tradeAggregationService.aggregateTrades(expectedBook, unfiltered), tradeAggregationService.aggregateTrades(store, request));
+    }
+
+    @Test
+    public void bind_ClampsPricesNoStoredPriceCanReach() {
+        List<Trade> trades = new ArrayList<>(trades(50));
+        trades.add(trade("Tiny").bbgCode("BBG1").price(new BigDecimal(BigInteger.ONE, Byte.MAX_VALUE).toString()).build());
+        trades.add(trade("Huge").bbgCode("BBG1").price(new BigDecimal(BigInteger.valueOf(Long.MAX_VALUE), Byte.MIN_VALUE).toString()).build());
+        ColumnarTradeStore store = new ColumnarTradeStore();
+        trades.forEach(t -> store.put(t.getTradeId(), t));
+
+        //Unclamped, these would be rescaled by powers of ten of up to a billion digits
+        List<FilterExpression> expressions = List.of(range(FilterField.PRICE, "1e-999999999", "1e999999999"),
+                range(FilterField.PRICE, "-1e999999999", "-1e-999999999"), range(FilterField.PRICE, "1e-128", null),
+                range(FilterField.PRICE, null, "9.3e146"), in(FilterField.PRICE, "1e999999999", "-1e-999999999", "100"));
+        for(FilterExpression expression: expressions) {
+            IntPredicate bound = assertTimeoutPreemptively(Duration.ofSeconds(5),
+                    () -> FilterExpressionCompiler.bind(expression, store, FilterStatistics.ESTIMATED));
+            for(int slot = store.nextLiveSlot(0); slot >= 0; slot = store.nextLiveSlot(slot + 1)) {
+                assertEquals(evaluate(expression, store.trade(slot)), bound.test(slot), expression + " slot " + slot);
+            }
+        }
+    }
+
+    @Test
+    public void filterExpression_RejectsMalformedExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> eq(FilterField.CURRENCY, "XYZ"));
+        assertThrows(IllegalArgumentException.class, () -> range(FilterField.USER, "a", "b"));
+        assertThrows(IllegalArgumentException.class, () -> range(FilterField.PRICE, null, null));
+        assertThrows(IllegalArgumentException.class, () -> range(FilterField.VOLUME, "ten", null));
+        assertThrows(IllegalArgumentException.class, FilterExpression::and);
+        assertThrows(IllegalArgumentException.class, () -> in(FilterField.USER));
+    }
+
+    /**
+     * The expression evaluated as written, to check the compiled predicates against
+     */
+    private static boolean evaluate(FilterExpression expression, Trade t) {
+        return switch (expression.op()) {
+            case AND -> expression.terms().get().stream().allMatch(term -> evaluate(term, t));
+            case OR -> expression.terms().get().stream().anyMatch(term -> evaluate(term, t));
+            case NOT -> !evaluate(expression.terms().get().get(0), t);
+            case EQ, IN -> expression.values().get().stream().anyMatch(value -> equal(expression.field().get(), value, t));
+            case RANGE -> {
+                FilterField field = expression.field().get();
+                yield expression.from().map(from -> compare(field, from, t) >= 0).orElse(true) &&
+                        expression.to().map(to -> compare(field, to, t) < 0).orElse(true);
+            }
+        };
+    }
+
+    private static boolean equal(FilterField field, String value, Trade t) {
+        return switch (field) {
+            case SIDE -> t.getSide().name().equals(value);
+            case PRICE, VOLUME, DATE_TIME -> compare(field, value, t) == 0;
+            default -> field.aggregateField().fieldValue(t).equals(value);
+        };
+    }
+
+    /**
+     * @return the trade's field compared to the value
+     */
+    private static int compare(FilterField field, String value, Trade t) {
+        return switch (field) {
+            case PRICE -> t.getPrice().compareTo(new BigDecimal(value));
+            case VOLUME -> Integer.compare(t.getVolume(), Integer.parseInt(value));
+            default -> t.getDateTime().compareTo(LocalDateTime.parse(value));
+        };
+    }
+
+    private static List<Trade> trades(int count) {
+        Random random = new Random(7);
+        String[] prices = { "100", "100.5", "120.25", "120.250", "149.999", "150", "99.99" };
+        List<Trade> trades = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            trades.add(trade("T" + i).bbgCode("BBG" + random.nextInt(5)).ccy(Currency.values()[random.nextInt(3)])
+                    .side(random.nextBoolean() ? Side.B : Side.S).price(prices[random.nextInt(prices.length)])
+                    .volume(10 * (1 + random.nextInt(10))).portfolio("portfolio" + random.nextInt(3))
+                    .account("Account" + random.nextInt(3)).strategy("Strategy" + random.nextInt(3)).user("User" + random.nextInt(4))
+                    .minutes(i).build());
+        }
+        return trades;
+    }
+}
@@ -0,0 +1,225 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FixedPointPnlCalculatorTest {
+
+    private static final int SCALE = 8;
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000001");
+
+    @Test
+    public void multiplyAndRound_MatchesBigDecimal() {
+        Random random = new Random(3);
+        for(int i = 0; i < 10_000; i++) {
+            long a = random.nextLong() >> random.nextInt(64);
+            long b = random.nextLong() >> (random.nextInt(40) + 24);
+            long divisor = (long) Math.pow(10, random.nextInt(19));
+            BigDecimal expected = new BigDecimal(a).multiply(new BigDecimal(b))
+                    .divide(new BigDecimal(divisor), 0, RoundingMode.HALF_EVEN);
+            if(expected.toBigInteger().bitLength() < 64) {
+                assertEquals(expected.longValueExact(), FixedPointPnlCalculator.multiplyAndRound(a, b, divisor));
+            } else {
+                assertThrows(ArithmeticException.class, () -> FixedPointPnlCalculator.multiplyAndRound(a, b, divisor));
+            }
+        }
+        assertEquals(2, FixedPointPnlCalculator.multiplyAndRound(5, 1, 2));
+        assertEquals(-2, FixedPointPnlCalculator.multiplyAndRound(-5, 1, 2));
+        assertEquals(4, FixedPointPnlCalculator.multiplyAndRound(7, 1, 2));
+    }
+
+    @Test
+    public void aggregate_MatchesBigDecimalToScale() {
+        List<Trade> trades = new ArrayList<>();
+        Random random = new Random(5);
+        for(int i = 0; i < 1000; i++) {
+            trades.add(trade("T" + i).bbgCode("BBG" + random.nextInt(3))
+                    .ccy(Currency.values()[random.nextInt(Currency.values().length)]).side(random.nextBoolean() ? Side.B : Side.S)
+                    .price(BigDecimal.valueOf(random.nextInt(10_000_000), random.nextInt(5))).volume(1 + random.nextInt(100_000))
+                    .at(START.plusMinutes(i)).build());
+        }
+        Map<String, Trade> book = new HashMap<>();
+        trades.forEach(t -> book.put(t.getTradeId(), t));
+
+        TradeAggregationService bigDecimal = new TradeAggregationService(aggregationProps(false), null, null, null, null);
+        TradeAggregationService fixedPoint = new TradeAggregationService(aggregationProps(true), null, null, null, null);
+        for(Optional<Currency> convertInto: List.of(Optional.<Currency>empty(), Optional.of(Currency.USD), Optional.of(Currency.KRW))) {
+            PnLAggregationRequest request = new PnLAggregationRequest(
+                    Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))), convertInto, Optional.empty());
+            Map<String, List<PnLPosition>> expected = bigDecimal.aggregateTrades(book, request);
+            Map<String, List<PnLPosition>> actual = fixedPoint.aggregateTrades(book, request);
+            assertEquals(expected.keySet(), actual.keySet());
+
+            expected.forEach((key, positions) -> {
+                //Each converted trade is rounded to the scale, so a position can be off by half a unit per trade
+                BigDecimal tolerance = BigDecimal.valueOf(positions.size(), SCALE).divide(BigDecimal.valueOf(2));
+                for(int i = 0; i < positions.size(); i++) {
+                    PnLPosition position = actual.get(key).get(i);
+                    assertEquals(positions.get(i).dateTime(), position.dateTime());
+                    BigDecimal difference = positions.get(i).position().subtract(position.position()).abs();
+                    if(convertInto.isEmpty()) {
+                        assertEquals(0, difference.signum());
+                    } else {
+                        assertTrue(difference.compareTo(tolerance) <= 0, key + " " + i + " off by " + difference);
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void aggregate_OverflowFallsBackToBigDecimal() {
+        Map<String, Trade> book = new HashMap<>();
+        book.put("T1", trade("T1").bbgCode("BBG1").side(Side.S).price("90000000000").volume(Integer.MAX_VALUE).at(START).build());
+        book.put("T2", trade("T2").bbgCode("BBG1").side(Side.S).price(BigDecimal.ONE).volume(1).at(START.plusMinutes(1)).build());
+        PnLAggregationRequest request = new PnLAggregationRequest(
+                Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))), Optional.empty(), Optional.empty());
+
+        List<PnLPosition> positions = new TradeAggregationService(aggregationProps(true), null, null, null, null)
+                .aggregateTrades(book, request).get("BBG1,USD");
+        assertEquals(new BigDecimal("193273528230000000001"), positions.get(1).position());
+    }
+
+    @Test
+    public void aggregate_KrwBookStaysOnFixedPoint() {
+        //Positions reach over 2e11 KRW, past the 9.2e10 a long holds at scale 8, but each trade's pnl fits in one
+        Map<String, Trade> book = new HashMap<>();
+        Map<String, Trade> columnar = new ColumnarTradeStore(16);
+        Random random = new Random(19);
+        for(int i = 0; i < 1000; i++) {
+            Trade trade = trade("T" + i).ccy(i % 10 == 0 ? Currency.USD : Currency.KRW).side(random.nextInt(4) == 0 ? Side.B : Side.S)
+                    .price(i % 10 == 0 ? "1000.25" : "150000").volume(1 + random.nextInt(10_000)).at(START.plusMinutes(i)).build();
+            book.put(trade.getTradeId(), trade);
+            columnar.put(trade.getTradeId(), trade);
+        }
+
+        TradeAggregationService bigDecimal = new TradeAggregationService(aggregationProps(false), null, null, null, null);
+        TradeAggregationService fixedPoint = new TradeAggregationService(aggregationProps(true), null, null, null, null);
+        for(Optional<Duration> bucket: List.of(Optional.<Duration>empty(), Optional.of(Duration.ofHours(1)))) {
+            PnLAggregationRequest request = new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))),
+                    Optional.of(Currency.KRW), Optional.empty(), bucket);
+            List<PnLPosition> expected = bigDecimal.aggregateTrades(book, request).get("AAPL US Equity");
+            assertTrue(expected.get(expected.size() - 1).position().compareTo(new BigDecimal("2e11")) > 0);
+            for(Map<String, Trade> trades: List.of(book, columnar)) {
+                List<PnLPosition> actual = fixedPoint.aggregateTrades(trades, request).get("AAPL US Equity");
+                if(bucket.isEmpty()) {
+                    assertInstanceOf(FixedPointPnlCalculator.FixedPointSeries.class, actual);
+                }
+                assertEquals(expected.size(), actual.size());
+                //Only the USD trades are converted, each rounded to the scale
+                BigDecimal tolerance = BigDecimal.valueOf(expected.size(), SCALE);
+                for(int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).dateTime(), actual.get(i).dateTime());
+                    assertTrue(expected.get(i).position().subtract(actual.get(i).position()).abs().compareTo(tolerance) <= 0);
+                    if(bucket.isPresent()) {
+                        assertTrue(expected.get(i).high().subtract(actual.get(i).high()).abs().compareTo(tolerance) <= 0);
+                        assertTrue(expected.get(i).low().subtract(actual.get(i).low()).abs().compareTo(tolerance) <= 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void toBigDecimal_ReadsBothLongs() {
+        Random random = new Random(23);
+        for(int i = 0; i < 1000; i++) {
+            long upper = random.nextLong() >> random.nextInt(64);
+            long lower = random.nextLong();
+            BigDecimal expected = new BigDecimal(BigInteger.valueOf(upper).shiftLeft(64).add(new BigInteger(Long.toUnsignedString(lower))), 3);
+            assertEquals(expected, FixedPointPnlCalculator.toBigDecimal(upper, lower, 3));
+
+            long otherUpper = random.nextLong() >> random.nextInt(64);
+            long otherLower = random.nextLong();
+            BigDecimal other = FixedPointPnlCalculator.toBigDecimal(otherUpper, otherLower, 3);
+            assertEquals(Integer.signum(expected.compareTo(other)),
+                    Integer.signum(FixedPointPnlCalculator.compare(upper, lower, otherUpper, otherLower)));
+        }
+    }
+
+    @Test
+    public void aggregate_BucketedSummarisesEachBucket() {
+        List<Trade> trades = new ArrayList<>();
+        Random random = new Random(9);
+        for(int i = 0; i < 1000; i++) {
+            trades.add(trade("T" + i).bbgCode("BBG" + random.nextInt(3)).side(random.nextBoolean() ? Side.B : Side.S)
+                    .price(BigDecimal.valueOf(random.nextInt(10_000_000), random.nextInt(5))).volume(1 + random.nextInt(100_000))
+                    .at(START.plusMinutes(i)).build());
+        }
+        Map<String, Trade> book = new HashMap<>();
+        Map<String, Trade> columnar = new ColumnarTradeStore(16);
+        trades.forEach(t -> {
+            book.put(t.getTradeId(), t);
+            columnar.put(t.getTradeId(), t);
+        });
+
+        PnLAggregationRequest perTrade = new PnLAggregationRequest(
+                Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))), Optional.of(Currency.USD), Optional.empty());
+        PnLAggregationRequest hourly = new PnLAggregationRequest(perTrade.aggregationFields(), perTrade.convertIntoCurrency(),
+                perTrade.filters(), Optional.of(Duration.ofHours(1)));
+        Map<String, List<PnLPosition>> positions = new TradeAggregationService(aggregationProps(false), null, null, null, null)
+                .aggregateTrades(book, perTrade);
+
+        //Each bucket closes on the last position within its hour, with the high, low and number of those positions
+        Map<String, List<PnLPosition>> expected = new HashMap<>();
+        positions.forEach((key, series) -> {
+            Map<LocalDateTime, List<BigDecimal>> hours = new TreeMap<>();
+            series.forEach(p -> hours.computeIfAbsent(p.dateTime().truncatedTo(ChronoUnit.HOURS), h -> new ArrayList<>()).add(p.position()));
+            expected.put(key, hours.entrySet().stream().map(e -> new PnLPosition(e.getKey(), e.getValue().get(e.getValue().size() - 1),
+                    Collections.max(e.getValue()), Collections.min(e.getValue()), e.getValue().size())).toList());
+        });
+        assertEquals(17, expected.get("BBG1").size());
+
+        for(boolean fixedPoint: List.of(false, true)) {
+            TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps(fixedPoint), null, null, null, null);
+            for(Map<String, Trade> store: List.of(book, columnar)) {
+                Map<String, List<PnLPosition>> actual = tradeAggregationService.aggregateTrades(store, hourly);
+                assertEquals(expected.keySet(), actual.keySet());
+                //Compared by value, as fixed point positions are at its scale
+                expected.forEach((key, buckets) -> {
+                    assertEquals(buckets.size(), actual.get(key).size());
+                    for(int i = 0; i < buckets.size(); i++) {
+                        PnLPosition bucket = actual.get(key).get(i);
+                        assertEquals(buckets.get(i).dateTime(), bucket.dateTime());
+                        assertEquals(0, buckets.get(i).position().compareTo(bucket.position()));
+                        assertEquals(0, buckets.get(i).high().compareTo(bucket.high()));
+                        assertEquals(0, buckets.get(i).low().compareTo(bucket.low()));
+                        assertEquals(buckets.get(i).trades(), bucket.trades());
+                    }
+                });
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> new PnLAggregationRequest(Optional.empty(), Optional.empty(),
+                Optional.empty(), Optional.of(Duration.ofMillis(1500))));
+    }
+
+    private static AggregationProps aggregationProps(boolean fixedPoint) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(fixedPoint);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(false);
+        aggregationProps.setFixedPointScale(SCALE);
+        return aggregationProps;
+    }
+}
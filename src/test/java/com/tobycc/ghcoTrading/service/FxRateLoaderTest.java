@@ -0,0 +1,136 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FxRateLoaderTest {
+
+    private static final LocalDateTime DAY1 = LocalDateTime.parse("2010-01-01T00:00:00");
+    private static final LocalDateTime DAY2 = LocalDateTime.parse("2010-01-02T00:00:00");
+
+    private static final PnLAggregationRequest IN_USD = new PnLAggregationRequest(
+            Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD), Optional.empty());
+
+    @TempDir
+    Path baseDirectory;
+
+    private Path ratesFile;
+    private AggregationResultCache aggregationResultCache;
+    private FxRateLoader fxRateLoader;
+    private TradeLoadingService tradeLoadingService;
+    //Aggregating through the result cache, the incremental engine and in fixed point respectively
+    private TradeAggregationService cached;
+    private TradeAggregationService incremental;
+    private TradeAggregationService fixedPoint;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        ratesFile = baseDirectory.resolve("fx-rates.csv");
+        FileProps fileProps = new FileProps();
+        fileProps.setBaseDirectory(baseDirectory.toString());
+        fileProps.setFxRates(true);
+        fileProps.setFxRatesFile("fx-rates.csv");
+        fileProps.setFxReloadIntervalSeconds(60);
+
+        AggregationProps cachedProps = aggregationProps(true, false, false);
+        AggregationProps incrementalProps = aggregationProps(false, true, false);
+        aggregationResultCache = new AggregationResultCache(cachedProps);
+        IncrementalAggregationService incrementalAggregationService = new IncrementalAggregationService(incrementalProps);
+        cached = new TradeAggregationService(cachedProps, null, aggregationResultCache, null, null);
+        incremental = new TradeAggregationService(incrementalProps, incrementalAggregationService, null, null, null);
+        fixedPoint = new TradeAggregationService(aggregationProps(false, false, true), null, null, null, null);
+        fxRateLoader = new FxRateLoader(fileProps, aggregationResultCache);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        tradeLoadingService = new TradeLoadingService(null, null, storeProps,
+                List.of(aggregationResultCache, incrementalAggregationService), null, null);
+        //Sold 1000 GBP on each day
+        tradeLoadingService.loadTrades(List.of(
+                trade("T1").bbgCode("VOD LN Equity").ccy(Currency.GBP).side(Side.S).price("100").at(DAY1.plusHours(9)).build(),
+                trade("T2").bbgCode("VOD LN Equity").ccy(Currency.GBP).side(Side.S).price("100").at(DAY2.plusHours(9)).build()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FxService.setRates(FxRates.of(FxService.FX_MAP));
+    }
+
+    @Test
+    public void reload_ConvertsEachTradeAtTheRateOfItsTime() throws IOException {
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+        assertPositions(List.of("1214.049", "2428.098"), cached.aggregateTrades(book, IN_USD));
+        assertPositions(List.of("1214.049", "2428.098"), incremental.aggregateTrades(book, IN_USD));
+        Map<String, List<PnLPosition>> before = cached.aggregateTrades(book, IN_USD);
+        assertEquals(1, aggregationResultCache.getCachedResultCount());
+
+        Files.writeString(ratesFile, FxRatesTest.allRates(DAY1).replace("GBP,USD,1.214049", "GBP,USD,1.5")
+                + DAY2 + ",GBP,USD,2\n");
+        assertTrue(fxRateLoader.reload());
+        assertFalse(fxRateLoader.reload());
+
+        assertEquals(0, aggregationResultCache.getCachedResultCount());
+        assertNotSame(before, cached.aggregateTrades(book, IN_USD));
+        assertPositions(List.of("1500", "3500"), cached.aggregateTrades(book, IN_USD));
+        assertPositions(List.of("1500", "3500"), incremental.aggregateTrades(book, IN_USD));
+        assertPositions(List.of("1500", "3500"), fixedPoint.aggregateTrades(book, IN_USD));
+    }
+
+    @Test
+    public void reload_KeepsTheRatesInUseWhenTheFileIsInvalid() throws IOException {
+        Files.writeString(ratesFile, FxRatesTest.allRates(DAY1));
+        assertTrue(fxRateLoader.reload());
+        FxRates loaded = FxService.getRates();
+
+        Files.writeString(ratesFile, DAY1 + ",GBP,USD,1.5\n");
+        Files.setLastModifiedTime(ratesFile, FileTime.fromMillis(Files.getLastModifiedTime(ratesFile).toMillis() + 1000));
+        assertThrows(IllegalArgumentException.class, () -> fxRateLoader.reload());
+        assertSame(loaded, FxService.getRates());
+    }
+
+    private static void assertPositions(List<String> expected, Map<String, List<PnLPosition>> aggregated) {
+        List<PnLPosition> series = aggregated.values().iterator().next();
+        assertEquals(expected.size(), series.size());
+        for(int i = 0; i < expected.size(); i++) {
+            assertEquals(0, new BigDecimal(expected.get(i)).compareTo(series.get(i).position()),
+                    expected.get(i) + " != " + series.get(i).position());
+        }
+    }
+
+    private static AggregationProps aggregationProps(boolean resultCache, boolean incremental, boolean fixedPoint) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(incremental);
+        aggregationProps.setMaxIncrementalAggregations(10);
+        aggregationProps.setFixedPoint(fixedPoint);
+        aggregationProps.setFixedPointScale(8);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(resultCache);
+        aggregationProps.setMaxCachedResults(10);
+        aggregationProps.setMaxCachedResultBytes(1_000_000L);
+        return aggregationProps;
+    }
+}
@@ -0,0 +1,106 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static com.tobycc.ghcoTrading.model.enums.Currency.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FxRatesTest {
+
+    private static final LocalDateTime DAY1 = LocalDateTime.parse("2010-01-01T00:00:00");
+    private static final LocalDateTime DAY2 = LocalDateTime.parse("2010-01-02T00:00:00");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void of_HoldsTheRatesForAllTime() {
+        FxRates fxRates = FxRates.of(FxService.FX_MAP);
+
+        assertEquals(1, fxRates.getSliceCount());
+        assertEquals(0, fxRates.slice(LocalDateTime.MIN));
+        assertEquals(0, fxRates.slice(Long.MAX_VALUE));
+        assertEquals(new BigDecimal("1.214049"), fxRates.rate(0, GBP, USD));
+        assertEquals(BigDecimal.ONE, fxRates.rate(0, USD, USD));
+        assertEquals(new BigDecimal("1.214049").setScale(fxRates.getRateScale()).unscaledValue().longValueExact(),
+                fxRates.unscaledRate(0, GBP, USD));
+    }
+
+    @Test
+    public void load_ResolvesEachTimeToTheRatesThenInForce() throws IOException {
+        Path file = directory.resolve("fx-rates.csv");
+        Files.writeString(file, "validFrom,from,to,rate\n" + allRates(DAY1) + DAY2 + ",GBP,USD,2\n");
+        FxRates fxRates = FxRates.load(file);
+
+        assertEquals(2, fxRates.getSliceCount());
+        //Times before the first slice take its rates
+        assertEquals(0, fxRates.slice(DAY1.minusYears(1)));
+        assertEquals(0, fxRates.slice(DAY1));
+        assertEquals(0, fxRates.slice(DAY2.minusNanos(1000)));
+        assertEquals(1, fxRates.slice(DAY2));
+        assertEquals(1, fxRates.slice(ColumnarTradeStore.toEpochMicros(DAY2.plusYears(1))));
+
+        assertEquals(new BigDecimal("1.214049"), fxRates.rate(0, GBP, USD));
+        assertEquals(new BigDecimal("2"), fxRates.rate(1, GBP, USD));
+        //Pairs without a row keep their earlier rate
+        assertEquals(fxRates.rate(0, EUR, JPY), fxRates.rate(1, EUR, JPY));
+        assertEquals(new BigDecimal("2").setScale(fxRates.getRateScale()).unscaledValue().longValueExact(),
+                fxRates.unscaledRate(1, GBP, USD));
+    }
+
+    @Test
+    public void load_RejectsAnInvalidHistory() throws IOException {
+        Path file = directory.resolve("fx-rates.csv");
+
+        //The earliest time must give every pair
+        Files.writeString(file, DAY1 + ",GBP,USD,1.2\n" + allRates(DAY2));
+        assertThrows(IllegalArgumentException.class, () -> FxRates.load(file));
+
+        Files.writeString(file, allRates(DAY1) + DAY2 + ",GBP,USD,-1\n");
+        assertThrows(IllegalArgumentException.class, () -> FxRates.load(file));
+
+        Files.writeString(file, allRates(DAY1) + DAY2 + ",GBP,XXX,1\n");
+        assertThrows(IllegalArgumentException.class, () -> FxRates.load(file));
+
+        Files.writeString(file, allRates(DAY1) + DAY2 + ",GBP,USD\n");
+        assertThrows(IllegalArgumentException.class, () -> FxRates.load(file));
+
+        Files.writeString(file, "");
+        assertThrows(IllegalArgumentException.class, () -> FxRates.load(file));
+    }
+
+    @Test
+    public void unscaledRate_ThrowsWhenTheRatesDoNotFitFixedPoint() throws IOException {
+        Path file = directory.resolve("fx-rates.csv");
+        Files.writeString(file, allRates(DAY1) + DAY2 + ",GBP,USD,1.0000000000000000001\n");
+        FxRates fxRates = FxRates.load(file);
+
+        assertEquals(new BigDecimal("1.0000000000000000001"), fxRates.rate(1, GBP, USD));
+        assertThrows(ArithmeticException.class, () -> fxRates.unscaledRate(1, GBP, USD));
+    }
+
+    /**
+     * Rows giving every pair its static rate from the given time
+     */
+    static String allRates(LocalDateTime validFrom) {
+        StringBuilder rows = new StringBuilder();
+        for(Currency from: Currency.values()) {
+            for(Currency to: Currency.values()) {
+                if(from != to) {
+                    rows.append(validFrom).append(',').append(from).append(',').append(to).append(',')
+                            .append(FxService.FX_MAP.get(new FxService.FxPair(from, to)).toPlainString()).append('\n');
+                }
+            }
+        }
+        return rows.toString();
+    }
+}
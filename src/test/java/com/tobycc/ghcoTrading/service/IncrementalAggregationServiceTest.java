@@ -0,0 +1,105 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.USER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the standing aggregation engine always agrees with a full recompute of the same book
+ */
+class IncrementalAggregationServiceTest {
+
+    private IncrementalAggregationService incrementalAggregationService;
+    private TradeAggregationService tradeAggregationService;
+    private TradeLoadingService tradeLoadingService;
+
+    @BeforeEach
+    public void setUp() {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(true);
+        aggregationProps.setMaxIncrementalAggregations(2);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(false);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+
+        incrementalAggregationService = new IncrementalAggregationService(aggregationProps);
+        tradeAggregationService = new TradeAggregationService(aggregationProps, incrementalAggregationService, null, null, null);
+        tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(incrementalAggregationService), null, null);
+    }
+
+    @Test
+    public void aggregate_matchesFullRecomputeAfterEachIngest() {
+        PnLAggregationRequest byBbgCode = new PnLAggregationRequest(
+                Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD), Optional.empty());
+        PnLAggregationRequest byUserFiltered = new PnLAggregationRequest(
+                Optional.of(new TreeSet<>(List.of(USER))), Optional.empty(),
+                Optional.of(Set.of(new TradeFilter(Optional.empty(), Optional.empty(), Optional.of("portfolio1"),
+                        Optional.empty(), Optional.empty(), Optional.empty()))));
+
+        tradeLoadingService.loadTrades(List.of(
+                trade("T1").side(Side.S).minutes(1).build(),
+                trade("T2").ccy(Currency.EUR).volume(20).portfolio("portfolio2").user("User2").minutes(2).build(),
+                trade("T3").bbgCode("GOOG US Equity").side(Side.S).volume(30).minutes(3).build()
+        ));
+        assertMatchesFullRecompute(byBbgCode);
+        assertMatchesFullRecompute(byUserFiltered);
+        assertEquals(2, incrementalAggregationService.getRegisteredAggregationCount());
+
+        //Appended trade, back-dated trade, amend moving a trade to another group and a cancel
+        tradeLoadingService.loadTrades(List.of(
+                trade("T4").ccy(Currency.GBP).side(Side.S).volume(40).user("User2").minutes(4).build(),
+                trade("T5").bbgCode("GOOG US Equity").volume(50).build(),
+                trade("T1").bbgCode("GOOG US Equity").side(Side.S).volume(15).action(Action.AMEND).user("User3")
+                        .minutes(5).build(),
+                trade("T2").ccy(Currency.EUR).volume(20).portfolio("portfolio2").action(Action.CANCEL).user("User2")
+                        .minutes(6).build()
+        ));
+        assertMatchesFullRecompute(byBbgCode);
+        assertMatchesFullRecompute(byUserFiltered);
+
+        //Series already handed out are unaffected by later ingests
+        List<PnLPosition> before = tradeAggregationService.aggregateTrades(tradeLoadingService.getLoadedTrades(), byBbgCode)
+                .get("GOOG US Equity");
+        List<PnLPosition> copy = new ArrayList<>(before);
+        tradeLoadingService.loadTrades(List.of(
+                trade("T6").bbgCode("GOOG US Equity").side(Side.S).volume(60).minutes(7).build()));
+        assertEquals(copy, before);
+        assertMatchesFullRecompute(byBbgCode);
+    }
+
+    @Test
+    public void aggregate_fallsBackForUntrackedTrades() {
+        tradeLoadingService.loadTrades(List.of(
+                trade("T1").side(Side.S).minutes(1).build()));
+
+        assertTrue(incrementalAggregationService.aggregate(new HashMap<>(tradeLoadingService.getLoadedTrades()),
+                new PnLAggregationRequest(Optional.empty(), Optional.empty(), Optional.empty())).isEmpty());
+        assertEquals(0, incrementalAggregationService.getRegisteredAggregationCount());
+    }
+
+    private void assertMatchesFullRecompute(PnLAggregationRequest request) {
+        Map<String, List<PnLPosition>> expected = tradeAggregationService.processPnlAggregation(
+                tradeAggregationService.groupTrades(tradeLoadingService.getLoadedTrades(), request), request);
+        assertEquals(expected, tradeAggregationService.aggregateTrades(tradeLoadingService.getLoadedTrades(), request));
+    }
+}
@@ -0,0 +1,116 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLWindow;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PnLWindowsTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000000");
+
+    @Test
+    public void narrow_FindsThePositionAsOfATime() {
+        //Positions 1, 3, 6, ... at 09:00, 09:10, 09:20, ...
+        List<PnLPosition> series = series(10);
+
+        assertEquals(List.of(), PnLWindows.narrow(series, PnLWindow.asOf(START.minusSeconds(1)), Optional.empty()));
+        assertEquals(List.of(new PnLPosition(START, BigDecimal.valueOf(1))),
+                PnLWindows.narrow(series, PnLWindow.asOf(START), Optional.empty()));
+        assertEquals(List.of(new PnLPosition(START.plusMinutes(25), BigDecimal.valueOf(6))),
+                PnLWindows.narrow(series, PnLWindow.asOf(START.plusMinutes(25)), Optional.empty()));
+        assertEquals(List.of(new PnLPosition(START.plusDays(1), BigDecimal.valueOf(55))),
+                PnLWindows.narrow(series, PnLWindow.asOf(START.plusDays(1)), Optional.empty()));
+    }
+
+    @Test
+    public void narrow_KeepsThePositionsWithinAWindow() {
+        List<PnLPosition> series = series(10);
+
+        assertEquals(series.subList(2, 5), PnLWindows.narrow(series, PnLWindow.between(START.plusMinutes(20), START.plusMinutes(50)), Optional.empty()));
+        assertEquals(series.subList(2, 6), PnLWindows.narrow(series, PnLWindow.between(START.plusMinutes(15), START.plusMinutes(51)), Optional.empty()));
+        assertEquals(series.subList(0, 3), PnLWindows.narrow(series, PnLWindow.between(null, START.plusMinutes(21)), Optional.empty()));
+        assertEquals(series.subList(8, 10), PnLWindows.narrow(series, PnLWindow.between(START.plusMinutes(80), null), Optional.empty()));
+        assertEquals(List.of(), PnLWindows.narrow(series, PnLWindow.between(START.plusMinutes(1), START.plusMinutes(2)), Optional.empty()));
+
+        //Bucketed within the window only
+        List<PnLPosition> buckets = PnLWindows.narrow(series, PnLWindow.between(START.plusMinutes(20), START.plusMinutes(60)), Optional.of(Duration.ofMinutes(30)));
+        assertEquals(List.of(
+                new PnLPosition(START, BigDecimal.valueOf(6), BigDecimal.valueOf(6), BigDecimal.valueOf(6), 1),
+                new PnLPosition(START.plusMinutes(30), BigDecimal.valueOf(21), BigDecimal.valueOf(21), BigDecimal.valueOf(10), 3)), buckets);
+
+        assertThrows(IllegalArgumentException.class, () -> PnLWindow.between(START, START));
+        assertThrows(IllegalArgumentException.class, () -> new PnLWindow(Optional.of(START), Optional.of(START), Optional.empty()));
+    }
+
+    @Test
+    public void aggregateTrades_NarrowsTheCachedFullSeries() {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(true);
+        aggregationProps.setMaxCachedResults(10);
+        aggregationProps.setMaxCachedResultBytes(1_000_000L);
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        AggregationResultCache aggregationResultCache = new AggregationResultCache(aggregationProps);
+        TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps, null, aggregationResultCache, null, null);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(aggregationResultCache), null, null);
+
+        List<Trade> trades = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            trades.add(trade("T" + i).bbgCode("BBG" + (i % 2)).side(Side.S).price("100").volume(1 + i).minutes(i).build());
+        }
+        tradeLoadingService.loadTrades(trades);
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+
+        PnLAggregationRequest full = new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.empty(), Optional.empty());
+        Map<String, List<PnLPosition>> series = tradeAggregationService.aggregateTrades(book, full);
+        PnLWindow asOf = PnLWindow.asOf(START.plusMinutes(4));
+        PnLWindow window = PnLWindow.between(START.plusMinutes(5), START.plusMinutes(10));
+
+        Map<String, List<PnLPosition>> positionsAsOf = tradeAggregationService.aggregateTrades(book, windowed(full, asOf));
+        assertEquals(2, positionsAsOf.size());
+        positionsAsOf.forEach((key, positions) -> assertEquals(PnLWindows.narrow(series.get(key), asOf, Optional.empty()), positions));
+        Map<String, List<PnLPosition>> positionsWithin = tradeAggregationService.aggregateTrades(book, windowed(full, window));
+        positionsWithin.forEach((key, positions) -> assertEquals(PnLWindows.narrow(series.get(key), window, Optional.empty()), positions));
+        assertEquals(5, positionsWithin.values().stream().mapToInt(List::size).sum());
+        //Every window is narrowed from the one cached series
+        assertEquals(1, aggregationResultCache.getCachedResultCount());
+        assertEquals(2, aggregationResultCache.getHits());
+    }
+
+    private static PnLAggregationRequest windowed(PnLAggregationRequest request, PnLWindow window) {
+        return new PnLAggregationRequest(request.aggregationFields(), request.convertIntoCurrency(), request.filters(),
+                Optional.empty(), Optional.empty(), Optional.of(window));
+    }
+
+    /**
+     * Cumulative positions 1, 1+2, 1+2+3, ... ten minutes apart
+     */
+    private static List<PnLPosition> series(int size) {
+        List<PnLPosition> series = new ArrayList<>();
+        long position = 0;
+        for(int i = 0; i < size; i++) {
+            position += i + 1;
+            series.add(new PnLPosition(START.plusMinutes(10L * i), BigDecimal.valueOf(position)));
+        }
+        return series;
+    }
+}
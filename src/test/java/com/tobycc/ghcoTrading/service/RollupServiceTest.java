@@ -0,0 +1,118 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLWindow;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.randomTrade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RollupServiceTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000000");
+    private static final List<TreeSet<AggregateField>> LEVELS = List.of(
+            new TreeSet<>(List.of(BBG_CODE)), new TreeSet<>(List.of(PORTFOLIO, STRATEGY)), new TreeSet<>(List.of(USER)));
+
+    private TradeAggregationService tradeAggregationService;
+    private RollupService rollupService;
+    private TradeLoadingService tradeLoadingService;
+    private final Random random = new Random(24);
+
+    @BeforeEach
+    public void setUp() {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(false);
+        aggregationProps.setMaxRollupCubes(2);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        tradeAggregationService = new TradeAggregationService(aggregationProps, null, null, null, null);
+        rollupService = new RollupService(aggregationProps, tradeAggregationService);
+        tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(rollupService), null, null);
+        tradeLoadingService.loadTrades(trades(0, 300));
+    }
+
+    @Test
+    public void aggregateRollup_MatchesRegroupingEachLevel() {
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+        List<PnLAggregationRequest> requests = List.of(
+                request(Optional.of(Currency.USD), Optional.empty(), Optional.empty()),
+                request(Optional.empty(), Optional.empty(), Optional.empty()),
+                request(Optional.of(Currency.EUR), Optional.of(Duration.ofMinutes(30)), Optional.empty()),
+                request(Optional.of(Currency.USD), Optional.empty(), Optional.of(PnLWindow.between(START.plusMinutes(100), START.plusMinutes(200)))),
+                request(Optional.of(Currency.USD), Optional.empty(), Optional.of(PnLWindow.asOf(START.plusMinutes(150)))));
+
+        for(PnLAggregationRequest request: requests) {
+            Map<String, Map<String, List<PnLPosition>>> rolledUp = rollupService.aggregateRollup(book, request, LEVELS);
+            assertEquals(LEVELS.size(), rolledUp.size());
+            Iterator<Map.Entry<String, Map<String, List<PnLPosition>>>> levels = rolledUp.entrySet().iterator();
+            for(TreeSet<AggregateField> level: LEVELS) {
+                PnLAggregationRequest levelRequest = request.groupedOn(level);
+                Map.Entry<String, Map<String, List<PnLPosition>>> rolledUpLevel = levels.next();
+                assertEquals(String.join(",", levelRequest.effectiveAggregationFields().stream().map(Enum::name).toList()),
+                        rolledUpLevel.getKey());
+                //Trade times are distinct, so every position is equal to regrouping the trades
+                assertEquals(tradeAggregationService.aggregateTrades(book, levelRequest), rolledUpLevel.getValue(),
+                        levelRequest.convertForTitle() + " " + level);
+            }
+        }
+    }
+
+    @Test
+    public void aggregateRollup_KeepsCubesUntilAnOverlappingIngest() {
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+        PnLAggregationRequest all = request(Optional.of(Currency.USD), Optional.empty(), Optional.empty());
+        PnLAggregationRequest portfolio1 = new PnLAggregationRequest(Optional.empty(), Optional.of(Currency.USD),
+                Optional.of(Set.of(new TradeFilter(Optional.empty(), Optional.empty(), Optional.of("portfolio1"),
+                        Optional.empty(), Optional.empty(), Optional.empty()))));
+
+        rollupService.aggregateRollup(book, all, LEVELS);
+        //Bucket and window are applied to each level, so share the one cube
+        rollupService.aggregateRollup(book, request(Optional.of(Currency.USD), Optional.of(Duration.ofHours(1)), Optional.empty()), LEVELS);
+        rollupService.aggregateRollup(book, portfolio1, LEVELS);
+        assertEquals(2, rollupService.getCubeCount());
+
+        //Only the cube that can see the new trade is dropped
+        tradeLoadingService.loadTrades(List.of(randomTrade(random, "N1").portfolio("portfolio2").minutes(1000).build()));
+        assertEquals(1, rollupService.getCubeCount());
+        assertEquals(tradeAggregationService.aggregateTrades(book, portfolio1.groupedOn(LEVELS.get(0))),
+                rollupService.aggregateRollup(book, portfolio1, LEVELS).get("BBG_CODE"));
+        assertEquals(tradeAggregationService.aggregateTrades(book, all.groupedOn(LEVELS.get(2))),
+                rollupService.aggregateRollup(book, all, LEVELS).get("USER"));
+        assertEquals(2, rollupService.getCubeCount());
+
+        assertThrows(IllegalArgumentException.class, () -> rollupService.aggregateRollup(book, all, List.of()));
+    }
+
+    private static PnLAggregationRequest request(Optional<Currency> convertIntoCurrency, Optional<Duration> bucket, Optional<PnLWindow> window) {
+        return new PnLAggregationRequest(Optional.empty(), convertIntoCurrency, Optional.empty(), bucket, Optional.empty(), window);
+    }
+
+    private List<Trade> trades(int from, int to) {
+        List<Trade> trades = new ArrayList<>();
+        for(int i = from; i < to; i++) {
+            trades.add(randomTrade(random, "T" + i).portfolio("portfolio" + random.nextInt(3)).strategy("Strategy" + random.nextInt(2))
+                    .user("User" + random.nextInt(3)).minutes(i).build());
+        }
+        return trades;
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import com.tobycc.ghcoTrading.store.ColumnarTradeStore;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.randomTrade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks every way of answering an aggregation sums trades at the same time in the same order, so each gives the same
+ * positions between them and not only the same final position
+ */
+class TiedTradeOrderTest {
+
+    @Test
+    public void aggregateTrades_EveryPathOrdersTiedTradesAlike() {
+        //Few distinct times and TradeIDs loaded out of order, so the load order, slot order and TradeID order all differ
+        Random random = new Random(31);
+        List<Trade> trades = new ArrayList<>();
+        for(int i = 0; i < 1500; i++) {
+            trades.add(randomTrade(random, "T" + random.nextInt(1_000_000)).portfolio("portfolio" + random.nextInt(3))
+                    .user("User" + random.nextInt(2)).minutes(random.nextInt(5)).build());
+        }
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        storeProps.setDimensionIndex(true);
+        IncrementalAggregationService incrementalAggregationService = new IncrementalAggregationService(aggregationProps(true, false));
+        TradeDimensionIndex tradeDimensionIndex = new TradeDimensionIndex(storeProps);
+        TradeAggregationService scanned = new TradeAggregationService(aggregationProps(false, false), null, null, null, null);
+        TradeAggregationService incremental = new TradeAggregationService(aggregationProps(true, false), incrementalAggregationService,
+                null, null, null);
+        TradeAggregationService indexed = new TradeAggregationService(aggregationProps(false, false), null, null, null, tradeDimensionIndex);
+        TradeAggregationService fixedPoint = new TradeAggregationService(aggregationProps(false, true), null, null, null, null);
+        RollupService rollupService = new RollupService(aggregationProps(false, false), scanned);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps,
+                List.of(incrementalAggregationService, tradeDimensionIndex, rollupService), null, null);
+        tradeLoadingService.loadTrades(trades);
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+        Map<String, Trade> columnar = tradeLoadingService.cleanTrades(trades, new ColumnarTradeStore(16));
+
+        List<PnLAggregationRequest> requests = List.of(
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD), Optional.empty()),
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(PORTFOLIO, USER))), Optional.empty(),
+                        Optional.of(Set.of(new TradeFilter(Optional.empty(), Optional.empty(), Optional.of("portfolio1"),
+                                Optional.empty(), Optional.empty(), Optional.of("User1"))))));
+        List<Map<String, List<PnLPosition>>> batched = scanned.aggregateTradesBatch(book, requests);
+        for(int r = 0; r < requests.size(); r++) {
+            PnLAggregationRequest request = requests.get(r);
+            Map<String, List<PnLPosition>> expected = scanned.aggregateTrades(book, request);
+            assertFalse(expected.isEmpty());
+
+            assertEquals(expected, incremental.aggregateTrades(book, request), "incremental");
+            assertEquals(expected, indexed.aggregateTrades(book, request), "dimension index");
+            assertEquals(expected, scanned.aggregateTrades(columnar, request), "columnar");
+            if(request.convertIntoCurrency().isEmpty()) {
+                //Fixed point rounds each FX conversion, so is only exact to the scan without one
+                assertSamePositions(expected, fixedPoint.aggregateTrades(book, request));
+                assertSamePositions(expected, fixedPoint.aggregateTrades(columnar, request));
+            }
+            assertEquals(expected, batched.get(r), "batch");
+            TreeSet<AggregateField> fields = request.aggregationFields().get();
+            assertEquals(expected, rollupService.aggregateRollup(book, request, List.of(fields)).values().iterator().next(), "rollup");
+        }
+    }
+
+    private static void assertSamePositions(Map<String, List<PnLPosition>> expected, Map<String, List<PnLPosition>> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((key, positions) -> {
+            assertEquals(positions.size(), actual.get(key).size());
+            for(int i = 0; i < positions.size(); i++) {
+                assertEquals(positions.get(i).dateTime(), actual.get(key).get(i).dateTime());
+                assertEquals(0, positions.get(i).position().compareTo(actual.get(key).get(i).position()), key + " " + i);
+            }
+        });
+    }
+
+    private static AggregationProps aggregationProps(boolean incremental, boolean fixedPoint) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(incremental);
+        aggregationProps.setMaxIncrementalAggregations(4);
+        aggregationProps.setFixedPoint(fixedPoint);
+        aggregationProps.setFixedPointScale(8);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(false);
+        aggregationProps.setMaxRollupCubes(4);
+        return aggregationProps;
+    }
+}
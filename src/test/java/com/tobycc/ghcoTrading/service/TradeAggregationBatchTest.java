@@ -0,0 +1,126 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.FilterExpression;
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLWindow;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.FilterField;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.randomTrade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TradeAggregationBatchTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00");
+
+    private AggregationResultCache aggregationResultCache;
+    private TradeAggregationService tradeAggregationService;
+    private TradeAggregationService uncachedAggregationService;
+    private Map<String, Trade> book;
+
+    @BeforeEach
+    public void setUp() {
+        aggregationResultCache = new AggregationResultCache(aggregationProps(true));
+        tradeAggregationService = new TradeAggregationService(aggregationProps(true), null, aggregationResultCache, null, null);
+        uncachedAggregationService = new TradeAggregationService(aggregationProps(false), null, null, null, null);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(aggregationResultCache), null, null);
+
+        Random random = new Random(25);
+        List<Trade> trades = new ArrayList<>();
+        for(int i = 0; i < 500; i++) {
+            trades.add(randomTrade(random, "T" + i).portfolio("portfolio" + random.nextInt(3))
+                    .action(i % 17 == 0 ? Action.CANCEL : Action.NEW).strategy("Strategy" + random.nextInt(2))
+                    .user("User" + random.nextInt(3)).minutes(random.nextInt(600)).build());
+        }
+        tradeLoadingService.loadTrades(trades);
+        book = tradeLoadingService.getLoadedTrades();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        tradeAggregationService.shutdownAggregationPool();
+        uncachedAggregationService.shutdownAggregationPool();
+    }
+
+    @Test
+    public void aggregateTradesBatch_MatchesEachRequestOnItsOwn() {
+        Optional<Set<TradeFilter>> portfolio1 = Optional.of(Set.of(new TradeFilter(Optional.empty(), Optional.empty(),
+                Optional.of("portfolio1"), Optional.empty(), Optional.empty(), Optional.empty())));
+        Optional<FilterExpression> notUser1 = Optional.of(FilterExpression.not(FilterExpression.eq(FilterField.USER, "User1")));
+        List<PnLAggregationRequest> requests = List.of(
+                request(List.of(BBG_CODE), Optional.of(Currency.USD), Optional.empty(), Optional.empty(), Optional.empty()),
+                request(List.of(BBG_CODE), Optional.of(Currency.EUR), Optional.empty(), Optional.empty(), Optional.empty()),
+                request(List.of(PORTFOLIO, STRATEGY), Optional.empty(), portfolio1, Optional.empty(), Optional.empty()),
+                request(List.of(USER), Optional.of(Currency.USD), portfolio1, notUser1, Optional.of(Duration.ofMinutes(30))),
+                request(List.of(), Optional.of(Currency.GBP), Optional.empty(), notUser1, Optional.empty()),
+                windowed(request(List.of(BBG_CODE), Optional.of(Currency.USD), Optional.empty(), Optional.empty(), Optional.empty()),
+                        PnLWindow.between(START.plusMinutes(100), START.plusMinutes(300))),
+                windowed(request(List.of(BBG_CODE), Optional.of(Currency.USD), Optional.empty(), Optional.empty(), Optional.empty()),
+                        PnLWindow.asOf(START.plusMinutes(200))));
+
+        List<Map<String, List<PnLPosition>>> batch = tradeAggregationService.aggregateTradesBatch(book, requests);
+        assertEquals(requests.size(), batch.size());
+        for(int i = 0; i < requests.size(); i++) {
+            assertEquals(uncachedAggregationService.aggregateTrades(book, requests.get(i)), batch.get(i),
+                    requests.get(i).convertForTitle());
+        }
+    }
+
+    @Test
+    public void aggregateTradesBatch_SharesTheResultCache() {
+        PnLAggregationRequest byBbgCode = request(List.of(BBG_CODE), Optional.of(Currency.USD), Optional.empty(), Optional.empty(), Optional.empty());
+        PnLAggregationRequest byUser = request(List.of(USER), Optional.of(Currency.USD), Optional.empty(), Optional.empty(), Optional.empty());
+        Map<String, List<PnLPosition>> cached = tradeAggregationService.aggregateTrades(book, byBbgCode);
+
+        //The window is narrowed from the full series already cached, so only the second request is computed and cached
+        List<Map<String, List<PnLPosition>>> batch = tradeAggregationService.aggregateTradesBatch(book, List.of(byBbgCode, byUser,
+                windowed(byBbgCode, PnLWindow.asOf(START.plusMinutes(200)))));
+        assertSame(cached, batch.get(0));
+        assertEquals(2, aggregationResultCache.getCachedResultCount());
+        assertSame(batch.get(1), tradeAggregationService.aggregateTrades(book, byUser));
+
+        assertThrows(IllegalArgumentException.class, () -> tradeAggregationService.aggregateTradesBatch(book, List.of()));
+    }
+
+    private static AggregationProps aggregationProps(boolean resultCache) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(2);
+        aggregationProps.setResultCache(resultCache);
+        aggregationProps.setMaxCachedResults(50);
+        aggregationProps.setMaxCachedResultBytes(10_000_000L);
+        return aggregationProps;
+    }
+
+    private static PnLAggregationRequest request(List<AggregateField> fields, Optional<Currency> convertIntoCurrency,
+                                                 Optional<Set<TradeFilter>> filters, Optional<FilterExpression> where,
+                                                 Optional<Duration> bucket) {
+        return new PnLAggregationRequest(Optional.of(new TreeSet<>(fields)), convertIntoCurrency, filters, bucket, where);
+    }
+
+    private static PnLAggregationRequest windowed(PnLAggregationRequest request, PnLWindow window) {
+        return new PnLAggregationRequest(request.aggregationFields(), request.convertIntoCurrency(), request.filters(),
+                request.bucket(), request.where(), Optional.of(window));
+    }
+}
@@ -0,0 +1,140 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.TradeCheckpointStore;
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeCheckpoint;
+import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toMap;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TradeCheckpointServiceTest {
+
+    private static final String HEADER =
+            "TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate\n";
+
+    @TempDir
+    Path baseDirectory;
+
+    private Path inputDirectory;
+    private FileProps fileProps;
+    //Shared by the last service started and its checkpointing, as they are in the application context
+    private TradeFileOffsets tradeFileOffsets;
+    private TradeCheckpointStore tradeCheckpointStore;
+    //Size of each batch of trades loaded by the last service started
+    private final List<Integer> batches = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        inputDirectory = Files.createDirectory(baseDirectory.resolve("input"));
+        Files.writeString(inputDirectory.resolve("a.csv"), HEADER + row("T1", "NEW", "10.5", 0) + row("T2", "NEW", "11", 1));
+        Files.writeString(inputDirectory.resolve("b.csv"), HEADER + row("T3", "NEW", "-0.125", 2));
+
+        fileProps = new FileProps();
+        fileProps.setBaseDirectory(baseDirectory.toString());
+        fileProps.setInputDirectory("input");
+        fileProps.setParallelLoad(false);
+        fileProps.setLoadThreads(2);
+        fileProps.setTailMode(false);
+        fileProps.setCheckpoint(true);
+        fileProps.setCheckpointFile("trades.checkpoint");
+        fileProps.setCheckpointIntervalSeconds(60);
+        fileProps.setJournal(false);
+        fileProps.setJournalFile("trades.journal");
+    }
+
+    @Test
+    public void loadInitialTrades_LoadsCheckpointThenOnlyWhatWasAdded() throws IOException {
+        TradeCheckpointService checkpointService = checkpointService(start());
+        assertTrue(checkpointService.checkpoint());
+        assertFalse(checkpointService.checkpoint());
+
+        Files.writeString(inputDirectory.resolve("a.csv"), row("T4", "NEW", "12", 3), StandardOpenOption.APPEND);
+        Files.writeString(inputDirectory.resolve("c.csv"), HEADER + row("T1", "AMEND", "9", 4));
+        TradeLoadingService restarted = start();
+
+        //The checkpointed trades in one batch, then just the appended row and the new file
+        assertEquals(List.of(3, 1, 1), batches);
+        assertEquals(describe(fullLoad()), describe(restarted.getLoadedTrades()));
+        assertEquals("9", restarted.getLoadedTrades().get("T1").getPrice().toPlainString());
+    }
+
+    @Test
+    public void loadInitialTrades_IgnoresCheckpointOfAChangedFile() throws IOException {
+        checkpointService(start()).checkpoint();
+
+        Files.writeString(inputDirectory.resolve("a.csv"), HEADER + row("T1", "NEW", "20", 0) + row("T2", "NEW", "11", 1));
+        TradeLoadingService restarted = start();
+
+        //Every file parsed again
+        assertEquals(List.of(2, 1), batches);
+        assertEquals("20", restarted.getLoadedTrades().get("T1").getPrice().toPlainString());
+    }
+
+    @Test
+    public void read_RoundTripsTradesAndIgnoresCorruptCheckpoints() throws IOException {
+        TradeLoadingService tradeLoadingService = start();
+        checkpointService(tradeLoadingService).checkpoint();
+
+        TradeCheckpoint checkpoint = new TradeCheckpointStore(fileProps).read().orElseThrow();
+        assertEquals(2, checkpoint.files().size());
+        assertEquals(describe(tradeLoadingService.getLoadedTrades()),
+                describe(checkpoint.trades().stream().collect(toMap(Trade::getTradeId, t -> t))));
+
+        Path checkpointFile = baseDirectory.resolve(fileProps.getCheckpointFile());
+        byte[] bytes = Files.readAllBytes(checkpointFile);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(checkpointFile, bytes);
+        assertTrue(new TradeCheckpointStore(fileProps).read().isEmpty());
+    }
+
+    private TradeLoadingService start() {
+        batches.clear();
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        tradeFileOffsets = new TradeFileOffsets();
+        tradeCheckpointStore = new TradeCheckpointStore(fileProps);
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(new CSVParser(fileProps), fileProps, storeProps,
+                List.of((book, version, changes) -> batches.add(changes.size())), tradeFileOffsets, tradeCheckpointStore);
+        tradeLoadingService.loadInitialTrades();
+        return tradeLoadingService;
+    }
+
+    private TradeCheckpointService checkpointService(TradeLoadingService tradeLoadingService) {
+        return new TradeCheckpointService(tradeLoadingService, tradeCheckpointStore, tradeFileOffsets, fileProps);
+    }
+
+    private Map<String, Trade> fullLoad() {
+        fileProps.setCheckpoint(false);
+        try {
+            return start().getLoadedTrades();
+        } finally {
+            fileProps.setCheckpoint(true);
+        }
+    }
+
+    private static Map<String, String> describe(Map<String, Trade> trades) {
+        return trades.values().stream().collect(toMap(Trade::getTradeId,
+                t -> t.getAction() + "," + t.getDateTime() + "," + t.getPrice() + "," + t.getVolume() + "," + t.getCcy() + ","
+                        + t.getBbgCode() + "," + t.getPortfolio() + "," + t.getDate()));
+    }
+
+    private static String row(String id, String action, String price, int minute) {
+        return id + ",BBG1,USD,B," + price + ",10,portfolio1," + action + ",Account1,Strategy1,User1,2010-01-01T09:0"
+                + minute + ":00.000001,20100101\n";
+    }
+}
@@ -0,0 +1,100 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static com.tobycc.ghcoTrading.model.enums.AggregateField.BBG_CODE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TradeDimensionIndexTest {
+
+    private TradeDimensionIndex tradeDimensionIndex;
+    private TradeAggregationService indexed;
+    private TradeAggregationService scanned;
+    private TradeLoadingService tradeLoadingService;
+
+    @BeforeEach
+    public void setUp() {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(1);
+        aggregationProps.setResultCache(false);
+
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        storeProps.setDimensionIndex(true);
+
+        tradeDimensionIndex = new TradeDimensionIndex(storeProps);
+        indexed = new TradeAggregationService(aggregationProps, null, null, null, tradeDimensionIndex);
+        scanned = new TradeAggregationService(aggregationProps, null, null, null, null);
+        tradeLoadingService = new TradeLoadingService(null, null, storeProps, List.of(tradeDimensionIndex), null, null);
+    }
+
+    @Test
+    public void groupTrades_MatchesScanningAcrossIngests() {
+        List<Trade> trades = new ArrayList<>();
+        for(int i = 0; i < 500; i++) {
+            trades.add(trade("T" + i).bbgCode("BBG" + (i % 7)).ccy(i % 2 == 0 ? Currency.USD : Currency.EUR)
+                    .portfolio("portfolio" + (i % 3)).user("User" + (i % 5)).minutes(i).build());
+        }
+        tradeLoadingService.loadTrades(trades);
+        Map<String, Trade> book = tradeLoadingService.getLoadedTrades();
+        assertEquals(500, tradeDimensionIndex.getIndexedTradeCount());
+
+        List<PnLAggregationRequest> requests = List.of(
+                request(filter("BBG1", null, null, null)),
+                request(filter("BBG1", Currency.USD, "portfolio2", null), filter(null, null, null, "User4")),
+                request(filter(null, Currency.EUR, null, "User3")),
+                request(filter("BBG1", null, "portfolio-unknown", null)),
+                request(filter(null, null, null, null)));
+        assertIndexedMatchesScanned(book, requests);
+
+        //Amended and cancelled trades move between or leave the indexed values
+        tradeLoadingService.loadTrades(List.of(
+                trade("T1").bbgCode("BBG2").portfolio("portfolio2").user("User4").action(Action.AMEND).minutes(600).build(),
+                trade("T8").bbgCode("BBG1").ccy(Currency.EUR).portfolio("portfolio2").action(Action.CANCEL)
+                        .minutes(601).build(),
+                trade("T500").bbgCode("BBG1").portfolio("portfolio2").user("User3").minutes(602).build()));
+        assertEquals(500, tradeDimensionIndex.getIndexedTradeCount());
+        assertIndexedMatchesScanned(book, requests);
+    }
+
+    @Test
+    public void matchingTrades_OnlyAnswersForTheIndexedBook() {
+        tradeLoadingService.loadTrades(List.of(trade("T1").bbgCode("BBG1").minutes(1).build()));
+        Set<TradeFilter> filters = Set.of(filter("BBG1", null, null, null));
+
+        assertEquals(1, tradeDimensionIndex.matchingTrades(tradeLoadingService.getLoadedTrades(), filters).orElseThrow().size());
+        assertTrue(tradeDimensionIndex.matchingTrades(new HashMap<>(tradeLoadingService.getLoadedTrades()), filters).isEmpty());
+    }
+
+    private void assertIndexedMatchesScanned(Map<String, Trade> book, List<PnLAggregationRequest> requests) {
+        for(PnLAggregationRequest request: requests) {
+            assertEquals(scanned.groupTrades(book, request), indexed.groupTrades(book, request), request.toString());
+            assertEquals(scanned.aggregateTrades(book, request), indexed.aggregateTrades(book, request), request.toString());
+        }
+    }
+
+    private static PnLAggregationRequest request(TradeFilter... filters) {
+        return new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(BBG_CODE))), Optional.of(Currency.USD),
+                Optional.of(Set.of(filters)));
+    }
+
+    private static TradeFilter filter(String bbgCode, Currency ccy, String portfolio, String user) {
+        return new TradeFilter(Optional.ofNullable(bbgCode), Optional.ofNullable(ccy), Optional.ofNullable(portfolio),
+                Optional.empty(), Optional.empty(), Optional.ofNullable(user));
+    }
+}
@@ -0,0 +1,205 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.TestTrades;
+import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.TradeCheckpointStore;
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
+import com.tobycc.ghcoTrading.file.TradeInputException;
+import com.tobycc.ghcoTrading.file.TradeJournal;
+import com.tobycc.ghcoTrading.model.IngestedFile;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TradeJournalServiceTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000001");
+
+    @TempDir
+    Path baseDirectory;
+
+    private FileProps fileProps;
+    private TradeFileOffsets tradeFileOffsets;
+    private TradeCheckpointStore tradeCheckpointStore;
+    private TradeLoadingService tradeLoadingService;
+    private TradeJournalService tradeJournalService;
+    //Size of each batch of trades loaded since the last start
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Path inputDirectory = Files.createDirectory(baseDirectory.resolve("input"));
+        Files.writeString(inputDirectory.resolve("a.csv"),
+                "TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate\n" +
+                "T1,BBG1,USD,B,10,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n");
+
+        fileProps = new FileProps();
+        fileProps.setBaseDirectory(baseDirectory.toString());
+        fileProps.setInputDirectory("input");
+        fileProps.setParallelLoad(false);
+        fileProps.setLoadThreads(1);
+        fileProps.setTailMode(false);
+        fileProps.setCheckpoint(false);
+        fileProps.setCheckpointFile("trades.checkpoint");
+        fileProps.setCheckpointIntervalSeconds(60);
+        fileProps.setJournal(true);
+        fileProps.setJournalFile("trades.journal");
+    }
+
+    @Test
+    public void appendTrades_LoadsTradesOnceJournaledAndReplaysThemOnRestart() throws Exception {
+        start();
+        int threads = 8;
+        int postsPerThread = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> posts = new ArrayList<>();
+            for(int t = 0; t < threads; t++) {
+                int thread = t;
+                posts.add(executor.submit(() -> {
+                    for(int i = 0; i < postsPerThread; i++) {
+                        String tradeId = "P" + thread + "_" + i;
+                        assertEquals(List.of(tradeId), tradeJournalService.appendTrades(List.of(posted(tradeId).at(START.plusMinutes(i)).build())));
+                        //Visible as soon as the post returns
+                        assertNotNull(tradeLoadingService.getLoadedTrades().get(tradeId));
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> post: posts) {
+                post.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        //Values needing quotes in the journal, and an AMEND of a trade from the input files
+        tradeJournalService.appendTrades(List.of(posted("Q1").portfolio("port,\"folio\"").build(),
+                posted("T1").portfolio("portfolio2").action(Action.AMEND).at(START.plusMinutes(1)).build()));
+
+        //The trades of every post, in at most one batch a post
+        assertEquals(threads * postsPerThread + 2, batches.stream().skip(1).mapToInt(Integer::intValue).sum());
+        assertTrue(batches.size() - 1 <= threads * postsPerThread + 1);
+        assertEquals("portfolio2", tradeLoadingService.getLoadedTrades().get("T1").getPortfolio());
+        assertEquals("port,\"folio\"", tradeLoadingService.getLoadedTrades().get("Q1").getPortfolio());
+        Map<String, String> beforeRestart = describe(tradeLoadingService.getLoadedTrades());
+
+        tradeJournalService.stopJournal();
+        start();
+        assertEquals(beforeRestart, describe(tradeLoadingService.getLoadedTrades()));
+        tradeJournalService.stopJournal();
+        assertThrows(IllegalStateException.class, () -> tradeJournalService.appendTrades(List.of(posted("P9").build())));
+    }
+
+    @Test
+    public void replayJournal_CutsOffAPartWrittenLastRow() throws IOException {
+        start();
+        tradeJournalService.appendTrades(List.of(posted("P1").build()));
+        tradeJournalService.stopJournal();
+        Path journal = baseDirectory.resolve(fileProps.getJournalFile());
+        Files.writeString(journal, "P2,BBG1,USD,B,1", StandardOpenOption.APPEND);
+
+        start();
+        assertEquals(Set.of("T1", "P1"), tradeLoadingService.getLoadedTrades().keySet());
+        tradeJournalService.appendTrades(List.of(posted("P3").build()));
+        tradeJournalService.stopJournal();
+
+        start();
+        assertEquals(Set.of("T1", "P1", "P3"), tradeLoadingService.getLoadedTrades().keySet());
+        tradeJournalService.stopJournal();
+    }
+
+    @Test
+    public void replayJournal_OnlyReplaysWhatWasJournaledAfterTheCheckpoint() throws IOException {
+        fileProps.setCheckpoint(true);
+        start();
+        for(int i = 0; i < 5; i++) {
+            tradeJournalService.appendTrades(List.of(posted("P" + i).at(START.plusMinutes(i)).build()));
+        }
+        TradeCheckpointService checkpointService = new TradeCheckpointService(tradeLoadingService, tradeCheckpointStore,
+                tradeFileOffsets, fileProps);
+        assertTrue(checkpointService.checkpoint());
+        Path journal = baseDirectory.resolve(fileProps.getJournalFile());
+        long checkpointedOffset = Files.size(journal);
+        //An AMEND of a checkpointed trade, which would be applied twice if its NEW were replayed after it
+        tradeJournalService.appendTrades(List.of(posted("P5").at(START.plusMinutes(5)).build(),
+                posted("P0").portfolio("portfolio2").action(Action.AMEND).at(START.plusMinutes(6)).build()));
+        tradeJournalService.appendTrades(List.of(posted("P6").at(START.plusMinutes(7)).build()));
+        Map<String, String> beforeRestart = describe(tradeLoadingService.getLoadedTrades());
+        tradeJournalService.stopJournal();
+
+        IngestedFile journaled = tradeCheckpointStore.read().orElseThrow().files().stream()
+                .filter(file -> file.file().equals(TradeJournal.journalFile(fileProps).toString())).findFirst().orElseThrow();
+        assertEquals(checkpointedOffset, journaled.offset());
+
+        start();
+        //The checkpoint in one batch, then only the rows journaled after it
+        assertEquals(List.of(6, 3), batches);
+        assertEquals(beforeRestart, describe(tradeLoadingService.getLoadedTrades()));
+        assertEquals("portfolio2", tradeLoadingService.getLoadedTrades().get("P0").getPortfolio());
+        tradeJournalService.stopJournal();
+
+        //Without the checkpoint the whole journal is replayed, to the same trades
+        fileProps.setCheckpoint(false);
+        start();
+        assertEquals(List.of(1, 8), batches);
+        assertEquals(beforeRestart, describe(tradeLoadingService.getLoadedTrades()));
+        tradeJournalService.stopJournal();
+    }
+
+    @Test
+    public void appendTrades_RejectsTradesTheJournalCannotHold() throws IOException {
+        start();
+        Trade nanos = trade("P1").bbgCode("BBG1").at(START.plusNanos(1)).build();
+        assertThrows(TradeInputException.class,
+                () -> tradeJournalService.appendTrades(List.of(posted("P2").build(), nanos)));
+        assertEquals(Set.of("T1"), tradeLoadingService.getLoadedTrades().keySet());
+        tradeJournalService.stopJournal();
+
+        start();
+        assertEquals(Set.of("T1"), tradeLoadingService.getLoadedTrades().keySet());
+        tradeJournalService.stopJournal();
+    }
+
+    private void start() throws IOException {
+        batches.clear();
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(false);
+        tradeFileOffsets = new TradeFileOffsets();
+        tradeCheckpointStore = new TradeCheckpointStore(fileProps);
+        tradeLoadingService = new TradeLoadingService(new CSVParser(fileProps), fileProps, storeProps,
+                List.of((book, version, changes) -> batches.add(changes.size())), tradeFileOffsets, tradeCheckpointStore);
+        tradeLoadingService.loadInitialTrades();
+        tradeJournalService = new TradeJournalService(new TradeJournal(fileProps), tradeLoadingService, tradeFileOffsets, fileProps);
+        tradeJournalService.replayJournal();
+    }
+
+    private static Map<String, String> describe(Map<String, Trade> trades) {
+        return trades.values().stream().collect(toMap(Trade::getTradeId,
+                t -> t.getAction() + "," + t.getDateTime() + "," + t.getPrice() + "," + t.getPortfolio()));
+    }
+
+    /**
+     * A trade with a price whose trailing zero the journal must keep, and a time with microseconds
+     */
+    private static TestTrades.Builder posted(String id) {
+        return trade(id).bbgCode("BBG1").price("10.50").at(START);
+    }
+}
@@ -1,25 +1,35 @@
 package com.tobycc.ghcoTrading.service;
 
+import com.tobycc.ghcoTrading.file.CSVParser;
+import com.tobycc.ghcoTrading.file.TradeFileOffsets;
 import com.tobycc.ghcoTrading.model.Trade;
 import com.tobycc.ghcoTrading.model.enums.Action;
 import com.tobycc.ghcoTrading.model.enums.Currency;
 import com.tobycc.ghcoTrading.model.enums.Side;
 import com.tobycc.ghcoTrading.props.FileProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.test.context.ActiveProfiles;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static java.util.stream.Collectors.toMap;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 @SpringBootTest
 @EnableConfigurationProperties
@@ -33,12 +43,61 @@ class TradeLoadingServiceTest {
     @Autowired
     private FileProps fileProps;
 
+    @Autowired
+    private StoreProps storeProps;
+
+    @Autowired
+    private CSVParser csvParser;
+
     @Test
     @Order(1)
     public void loadInitialTrades_Success() {
         assertEquals(6, tradeLoadingService.getLoadedTrades().keySet().size());
     }
 
+    @Test
+    public void loadInitialTrades_ParallelMatchesSequential(@TempDir Path baseDirectory) throws IOException {
+        //Versions of the same trades spread over several files, along with a bad row
+        Path inputDirectory = Files.createDirectory(baseDirectory.resolve("input"));
+        String header = "TradeID,BBGCode,Currency,Side,Price,Volume,Portfolio,Action,Account,Strategy,User,TradeTimeUTC,ValueDate\n";
+        Files.writeString(inputDirectory.resolve("a.csv"), header +
+                "T1,BBG1,USD,B,10,10,portfolio1,NEW,Account1,Strategy1,User1,2010-01-01T09:00:00.000001,20100101\n" +
+                "T2,BBG2,GBP,S,20,5,portfolio2,NEW,Account1,Strategy1,User2,2010-01-01T09:01:00.000001,20100101\n");
+        Files.writeString(inputDirectory.resolve("b.csv"), header +
+                "T1,BBG1,USD,B,11,10,portfolio1,AMEND,Account1,Strategy1,User3,2010-01-01T09:05:00.000001,20100101\n" +
+                "T3,BBG3,EUR,B,30,1,portfolio1,NEW,Account2,Strategy2,User1,2010-01-01T09:02:00.000001,20100101\n");
+        Files.writeString(inputDirectory.resolve("c.csv"), header +
+                "T2,BBG2,GBP,S,20,5,portfolio2,CANCEL,Account1,Strategy1,User2,2010-01-01T09:06:00.000001,20100101\n" +
+                "T1,BBG1,USD,B,12,10,portfolio1,AMEND,Account1,Strategy1,User4,2010-01-01T09:03:00.000001,20100101\n" +
+                "T4,BBG4,USD,X,40,1,portfolio1,NEW,Account2,Strategy2,User1,2010-01-01T09:04:00.000001,20100101\n");
+
+        FileProps testFilesProps = new FileProps();
+        testFilesProps.setBaseDirectory(baseDirectory.toString());
+        testFilesProps.setInputDirectory("input");
+        testFilesProps.setLoadThreads(4);
+        testFilesProps.setTailMode(false);
+        testFilesProps.setCheckpoint(false);
+
+        testFilesProps.setParallelLoad(false);
+        TradeLoadingService sequential = new TradeLoadingService(csvParser, testFilesProps, storeProps, Collections.emptyList(),
+                new TradeFileOffsets(), null);
+        sequential.loadInitialTrades();
+
+        testFilesProps.setParallelLoad(true);
+        TradeLoadingService parallel = new TradeLoadingService(csvParser, testFilesProps, storeProps, Collections.emptyList(),
+                new TradeFileOffsets(), null);
+        parallel.loadInitialTrades();
+
+        //Same version of every trade is kept, whichever way the files were loaded
+        assertFalse(sequential.getLoadedTrades().isEmpty());
+        assertEquals(describe(sequential.getLoadedTrades()), describe(parallel.getLoadedTrades()));
+    }
+
+    private static Map<String, String> describe(Map<String, Trade> trades) {
+        return trades.values().stream().collect(toMap(Trade::getTradeId,
+                t -> t.getAction() + "," + t.getDateTime() + "," + t.getPrice() + "," + t.getVolume() + "," + t.getUser()));
+    }
+
     @Test
     public void loadNewTradesFromFile_Success() {
         assertEquals(Action.NEW, tradeLoadingService.getLoadedTrades().get("94de9256c1444388a569e9a8f8c00002").getAction());
@@ -0,0 +1,68 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeChange;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static org.junit.jupiter.api.Assertions.*;
+
+class VersionedRequestCacheTest {
+
+    private static final PnLAggregationRequest ALL = new PnLAggregationRequest(Optional.empty(), Optional.of(Currency.USD),
+            Optional.empty()).normalise();
+    private static final PnLAggregationRequest PORTFOLIO1 = portfolioRequest("portfolio1");
+    private static final PnLAggregationRequest PORTFOLIO2 = portfolioRequest("portfolio2");
+
+    @Test
+    public void onTradesChanged_DropsOnlyValuesTheChangesCanAffect() {
+        VersionedRequestCache<String> cache = new VersionedRequestCache<>();
+        Map<String, Trade> book = new HashMap<>();
+        assertEquals(List.of(), cache.onTradesChanged(book, 1, List.of()));
+        cache.put(1, ALL, "all");
+        cache.put(1, PORTFOLIO1, "portfolio1");
+        cache.put(1, PORTFOLIO2, "portfolio2");
+
+        //A trade amended out of portfolio1 is caught through the version it replaced
+        Trade before = trade("T1").portfolio("portfolio1").build();
+        Trade after = trade("T1").portfolio("portfolio3").action(Action.AMEND).minutes(1).build();
+        assertEquals(Set.of("all", "portfolio1"), new HashSet<>(cache.onTradesChanged(book, 2, List.of(new TradeChange(before, after)))));
+        assertEquals("portfolio2", cache.get(book, PORTFOLIO2));
+        assertNull(cache.get(book, PORTFOLIO1));
+        assertNull(cache.get(new HashMap<>(book), PORTFOLIO2));
+
+        //Values of an older version are refused, and a different book drops every value
+        assertFalse(cache.isCurrent(1));
+        assertThrows(IllegalStateException.class, () -> cache.put(1, ALL, "all"));
+        assertEquals(2, cache.versionOf(book));
+        assertEquals(List.of("portfolio2"), cache.onTradesChanged(new HashMap<>(), 3, List.of()));
+        assertEquals(-1, cache.versionOf(book));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void removeLeastRecentlyUsed_RemovesInAccessOrder() {
+        VersionedRequestCache<String> cache = new VersionedRequestCache<>();
+        Map<String, Trade> book = new HashMap<>();
+        cache.onTradesChanged(book, 1, List.of());
+        cache.put(1, ALL, "all");
+        cache.put(1, PORTFOLIO1, "portfolio1");
+        cache.get(book, ALL);
+
+        assertEquals("portfolio1", cache.removeLeastRecentlyUsed());
+        assertEquals("all", cache.removeLeastRecentlyUsed());
+        assertNull(cache.removeLeastRecentlyUsed());
+    }
+
+    private static PnLAggregationRequest portfolioRequest(String portfolio) {
+        return new PnLAggregationRequest(Optional.empty(), Optional.of(Currency.USD), Optional.of(Set.of(new TradeFilter(
+                Optional.empty(), Optional.empty(), Optional.of(portfolio), Optional.empty(), Optional.empty(), Optional.empty()))))
+                .normalise();
+    }
+}
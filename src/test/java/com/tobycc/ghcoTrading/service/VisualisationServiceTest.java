@@ -0,0 +1,89 @@
+package com.tobycc.ghcoTrading.service;
+
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.PnLSeries;
+import com.tobycc.ghcoTrading.model.VisualisationPage;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VisualisationServiceTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000001");
+
+    @Test
+    public void getPage_PagesThroughSeriesInKeyOrder() {
+        VisualisationService visualisationService = new VisualisationService(aggregationProps(600, 4));
+        Map<String, List<PnLPosition>> aggregation = new HashMap<>();
+        for(int i = 0; i < 5; i++) {
+            aggregation.put("BBG" + i, series(i + 1));
+        }
+        String id = visualisationService.put(aggregation);
+
+        VisualisationPage first = visualisationService.getPage(id, 0, 2, 1000).orElseThrow();
+        assertEquals(5, first.seriesCount());
+        assertEquals(List.of("BBG0", "BBG1"), first.series().stream().map(PnLSeries::key).toList());
+        assertEquals(aggregation.get("BBG1"), first.series().get(1).positions());
+        VisualisationPage last = visualisationService.getPage(id, 2, 2, 1000).orElseThrow();
+        assertEquals(List.of("BBG4"), last.series().stream().map(PnLSeries::key).toList());
+        assertTrue(visualisationService.getPage(id, 3, 2, 1000).orElseThrow().series().isEmpty());
+        assertTrue(visualisationService.getPage("unknown", 0, 2, 1000).isEmpty());
+    }
+
+    @Test
+    public void put_KeepsEachAggregationUnderItsOwnIdUntilEvicted() {
+        VisualisationService visualisationService = new VisualisationService(aggregationProps(600, 2));
+        String first = visualisationService.put(Map.of("A", series(1)));
+        String second = visualisationService.put(Map.of("B", series(1)));
+        assertNotEquals(first, second);
+        assertEquals("A", visualisationService.getPage(first, 0, 10, 10).orElseThrow().series().get(0).key());
+
+        //The least recently read is dropped first
+        String third = visualisationService.put(Map.of("C", series(1)));
+        assertTrue(visualisationService.getPage(second, 0, 10, 10).isEmpty());
+        assertTrue(visualisationService.getPage(first, 0, 10, 10).isPresent());
+        assertTrue(visualisationService.getPage(third, 0, 10, 10).isPresent());
+
+        VisualisationService expiring = new VisualisationService(aggregationProps(0, 2));
+        String expired = expiring.put(Map.of("A", series(1)));
+        assertTrue(expiring.getPage(expired, 0, 10, 10).isEmpty());
+        assertEquals(0, expiring.getVisualisationCount());
+    }
+
+    @Test
+    public void downsample_KeepsEndsAndPeaks() {
+        List<PnLPosition> positions = new ArrayList<>(series(10_000));
+        //A spike the downsampled series should not lose
+        positions.set(5_000, new PnLPosition(positions.get(5_000).dateTime(), BigDecimal.valueOf(1_000_000)));
+
+        List<PnLPosition> sampled = VisualisationService.downsample(positions, 100);
+        assertEquals(100, sampled.size());
+        assertEquals(positions.get(0), sampled.get(0));
+        assertEquals(positions.get(positions.size() - 1), sampled.get(99));
+        assertTrue(sampled.contains(positions.get(5_000)));
+        for(int i = 1; i < sampled.size(); i++) {
+            assertTrue(sampled.get(i - 1).dateTime().isBefore(sampled.get(i).dateTime()));
+        }
+        assertSame(positions, VisualisationService.downsample(positions, 10_000));
+    }
+
+    private static List<PnLPosition> series(int size) {
+        List<PnLPosition> positions = new ArrayList<>(size);
+        for(int i = 0; i < size; i++) {
+            positions.add(new PnLPosition(START.plusSeconds(i), BigDecimal.valueOf((long) (Math.sin(i / 100.0) * 1000))));
+        }
+        return positions;
+    }
+
+    private static AggregationProps aggregationProps(int ttlSeconds, int maxVisualisations) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setVisualisationTtlSeconds(ttlSeconds);
+        aggregationProps.setMaxVisualisations(maxVisualisations);
+        return aggregationProps;
+    }
+}
@@ -0,0 +1,289 @@
+package com.tobycc.ghcoTrading.store;
+
+import com.tobycc.ghcoTrading.model.PnLAggregationRequest;
+import com.tobycc.ghcoTrading.model.PnLPosition;
+import com.tobycc.ghcoTrading.model.Trade;
+import com.tobycc.ghcoTrading.model.TradeFilter;
+import com.tobycc.ghcoTrading.model.enums.Action;
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import com.tobycc.ghcoTrading.model.enums.Side;
+import com.tobycc.ghcoTrading.props.AggregationProps;
+import com.tobycc.ghcoTrading.props.StoreProps;
+import com.tobycc.ghcoTrading.service.TradeAggregationService;
+import com.tobycc.ghcoTrading.service.TradeLoadingService;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ColumnarTradeStoreTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2010-01-01T09:00:00.000001");
+
+    @Test
+    public void put_RoundTripsTrades() {
+        ColumnarTradeStore store = new ColumnarTradeStore(16);
+        Trade trade = trade("T1").ccy(Currency.JPY).price("-12.50").at(START).build();
+        assertNull(store.put("T1", trade));
+
+        Trade stored = store.get("T1");
+        assertEquals(describe(trade), describe(stored));
+        assertEquals(new BigDecimal("-12.50"), stored.getPrice());
+        assertSame(stored.getBbgCode(), store.get("T1").getBbgCode());
+        assertEquals(1, store.size());
+
+        //An amend overwrites the slot
+        Trade amend = trade("T1").bbgCode("GOOG US Equity").side(Side.S).price("7").portfolio("portfolio2")
+                .action(Action.AMEND).user("User2").at(START.plusMinutes(5)).build();
+        assertEquals(describe(trade), describe(store.put("T1", amend)));
+        assertEquals(describe(amend), describe(store.get("T1")));
+        assertEquals(1, store.liveCount());
+    }
+
+    @Test
+    public void put_CancelledTradesAreNotLive() {
+        ColumnarTradeStore store = new ColumnarTradeStore(16);
+        store.put("T1", trade("T1").price("10").at(START).build());
+        store.put("T2", trade("T2").price("10").at(START.plusMinutes(1)).build());
+        store.put("T1", trade("T1").price("10").action(Action.CANCEL).at(START.plusMinutes(2)).build());
+
+        assertEquals(2, store.size());
+        assertEquals(1, store.liveCount());
+        assertEquals(Action.CANCEL, store.get("T1").getAction());
+        assertEquals(Set.of("T1", "T2"), store.keySet());
+
+        //The freed slot is reused by the next new trade
+        store.put("T3", trade("T3").price("10").at(START.plusMinutes(3)).build());
+        assertEquals(2, store.liveCount());
+        assertEquals("T3", store.tradeId(store.nextLiveSlot(0)));
+        assertTrue(store.containsKey("T3"));
+
+        assertEquals(Action.CANCEL, store.remove("T1").getAction());
+        assertNull(store.get("T1"));
+    }
+
+    @Test
+    public void put_RejectsUnrepresentableTrades() {
+        ColumnarTradeStore store = new ColumnarTradeStore(16);
+        Trade subMicros = new Trade("T1", "AAPL US Equity", Currency.USD, Side.B, BigDecimal.TEN, 1, "portfolio1",
+                Action.NEW, "Account1", "Strategy1", "User1", START.plusNanos(1), LocalDate.of(2010, 1, 1));
+        Trade hugePrice = trade("T2").price("123456789012345678901234567890").at(START).build();
+
+        assertThrows(IllegalArgumentException.class, () -> store.put("T1", subMicros));
+        assertThrows(IllegalArgumentException.class, () -> store.put("T2", hugePrice));
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void loadTrades_LeavesOutTradesTheStoreCannotHold() {
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps(true), List.of(), null, null);
+        Trade subMicros = new Trade("T2", "AAPL US Equity", Currency.USD, Side.B, BigDecimal.TEN, 1, "portfolio1",
+                Action.NEW, "Account1", "Strategy1", "User1", START.plusNanos(1), LocalDate.of(2010, 1, 1));
+        tradeLoadingService.loadTrades(List.of(trade("T1").at(START).build(), subMicros, trade("T3").at(START).build()));
+
+        //The trades either side of the one left out are loaded, and the store is not left mid batch
+        assertEquals(Set.of("T1", "T3"), tradeLoadingService.getLoadedTrades().keySet());
+        tradeLoadingService.loadTrades(List.of(trade("T4").at(START).build()));
+        assertEquals(3, tradeLoadingService.getLoadedTrades().size());
+    }
+
+    @Test
+    public void aggregateColumnar_MatchesObjectAggregation() {
+        List<Trade> rawTrades = new ArrayList<>();
+        Random random = new Random(7);
+        for(int i = 0; i < 2000; i++) {
+            rawTrades.add(trade("T" + random.nextInt(1500)).bbgCode("BBG" + random.nextInt(5))
+                    .ccy(Currency.values()[random.nextInt(3)]).side(random.nextBoolean() ? Side.B : Side.S)
+                    .price((1 + random.nextInt(10_000)) + "." + random.nextInt(100)).portfolio("portfolio" + random.nextInt(4))
+                    .action(Action.values()[random.nextInt(3)]).user("User" + random.nextInt(3))
+                    .at(START.plusMinutes(random.nextInt(600))).build());
+        }
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps(false), List.of(), null, null);
+        Map<String, Trade> objects = tradeLoadingService.cleanTrades(rawTrades, new HashMap<>());
+        Map<String, Trade> columnar = tradeLoadingService.cleanTrades(rawTrades, new ColumnarTradeStore(16));
+        assertEquals(objects.size(), columnar.size());
+
+        TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps(1), null, null, null, null);
+        List<PnLAggregationRequest> requests = List.of(
+                new PnLAggregationRequest(Optional.empty(), Optional.empty(), Optional.empty()),
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))), Optional.of(Currency.USD), Optional.empty()),
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.PORTFOLIO, AggregateField.USER))), Optional.empty(),
+                        Optional.of(Set.of(
+                                new TradeFilter(Optional.of("BBG1"), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty()),
+                                new TradeFilter(Optional.empty(), Optional.of(Currency.EUR), Optional.of("portfolio2"), Optional.empty(), Optional.empty(), Optional.empty()),
+                                new TradeFilter(Optional.of("unknown"), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty())))));
+
+        for(PnLAggregationRequest request: requests) {
+            Map<String, List<PnLPosition>> expected = tradeAggregationService.processPnlAggregation(
+                    tradeAggregationService.groupTrades(objects, request), request);
+            Map<String, List<PnLPosition>> actual = tradeAggregationService.aggregateTrades(columnar, request);
+            assertFalse(actual.isEmpty());
+            //Equal timestamps are ordered by TradeID on both paths, so every position matches
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void aggregateTrades_ParallelMatchesSequential() {
+        List<Trade> rawTrades = new ArrayList<>();
+        Random random = new Random(11);
+        for(int i = 0; i < 5000; i++) {
+            //Few distinct minutes, so that groups hold many trades with equal times whose order must be kept
+            rawTrades.add(trade("T" + random.nextInt(4000)).bbgCode("BBG" + random.nextInt(20))
+                    .ccy(Currency.values()[random.nextInt(3)]).side(random.nextBoolean() ? Side.B : Side.S)
+                    .price((1 + random.nextInt(10_000)) + "." + random.nextInt(100)).portfolio("portfolio" + random.nextInt(4))
+                    .action(Action.values()[random.nextInt(3)]).user("User" + random.nextInt(3))
+                    .at(START.plusMinutes(random.nextInt(30))).build());
+        }
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps(false), List.of(), null, null);
+        Map<String, Trade> objects = tradeLoadingService.cleanTrades(rawTrades, new HashMap<>());
+        Map<String, Trade> columnar = tradeLoadingService.cleanTrades(rawTrades, new ColumnarTradeStore(16));
+
+        TradeAggregationService sequential = new TradeAggregationService(aggregationProps(1), null, null, null, null);
+        TradeAggregationService parallel = new TradeAggregationService(aggregationProps(3), null, null, null, null);
+        try {
+            List<PnLAggregationRequest> requests = List.of(
+                    new PnLAggregationRequest(Optional.empty(), Optional.empty(), Optional.empty()),
+                    new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))), Optional.of(Currency.USD), Optional.empty()),
+                    new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.PORTFOLIO))), Optional.empty(),
+                            Optional.of(Set.of(new TradeFilter(Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(),
+                                    Optional.empty(), Optional.of("User1"))))));
+            for(PnLAggregationRequest request: requests) {
+                for(Map<String, Trade> trades: List.of(objects, columnar)) {
+                    Map<String, List<PnLPosition>> expected = sequential.aggregateTrades(trades, request);
+                    assertFalse(expected.isEmpty());
+                    assertEquals(expected, parallel.aggregateTrades(trades, request));
+                }
+                assertEquals(sequential.groupTrades(objects, request), parallel.groupTrades(objects, request));
+            }
+        } finally {
+            parallel.shutdownAggregationPool();
+        }
+    }
+
+    @Test
+    public void streamAggregation_MatchesAggregateTrades() throws IOException {
+        List<Trade> rawTrades = new ArrayList<>();
+        Random random = new Random(13);
+        for(int i = 0; i < 2000; i++) {
+            rawTrades.add(trade("T" + random.nextInt(1500)).bbgCode("BBG" + random.nextInt(5))
+                    .ccy(Currency.values()[random.nextInt(3)]).side(random.nextBoolean() ? Side.B : Side.S)
+                    .price((1 + random.nextInt(10_000)) + "." + random.nextInt(100)).portfolio("portfolio" + random.nextInt(4))
+                    .action(Action.values()[random.nextInt(3)]).user("User" + random.nextInt(3))
+                    .at(START.plusMinutes(random.nextInt(600))).build());
+        }
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps(false), List.of(), null, null);
+        Map<String, Trade> objects = tradeLoadingService.cleanTrades(rawTrades, new HashMap<>());
+        Map<String, Trade> columnar = tradeLoadingService.cleanTrades(rawTrades, new ColumnarTradeStore(16));
+
+        TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps(1), null, null, null, null);
+        List<PnLAggregationRequest> requests = List.of(
+                new PnLAggregationRequest(Optional.empty(), Optional.empty(), Optional.empty()),
+                new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.PORTFOLIO))), Optional.of(Currency.USD),
+                        Optional.of(Set.of(new TradeFilter(Optional.of("BBG1"), Optional.empty(), Optional.empty(), Optional.empty(),
+                                Optional.empty(), Optional.empty())))));
+        for(PnLAggregationRequest request: requests) {
+            for(Map<String, Trade> trades: List.of(objects, columnar)) {
+                Map<String, List<PnLPosition>> streamed = new HashMap<>();
+                tradeAggregationService.streamAggregation(trades, request, (key, positions) ->
+                        assertNull(streamed.put(key, positions)));
+                assertFalse(streamed.isEmpty());
+                assertEquals(tradeAggregationService.aggregateTrades(trades, request), streamed);
+            }
+        }
+    }
+
+    @Test
+    public void streamAggregation_LoadingDoesNotWaitOnTheConsumer() throws Exception {
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps(true), List.of(), null, null);
+        tradeLoadingService.loadTrades(List.of(trade("T1").at(START).build(), trade("T2").bbgCode("BBG2").at(START).build()));
+        TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps(1), null, null, null, null);
+        PnLAggregationRequest request = new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))),
+                Optional.empty(), Optional.empty());
+
+        //A consumer stalled on its first group, until a load on another thread has finished
+        List<String> streamed = new ArrayList<>();
+        tradeAggregationService.streamAggregation(tradeLoadingService.getLoadedTrades(), request, (key, positions) -> {
+            if(streamed.isEmpty()) {
+                Thread loader = new Thread(() -> tradeLoadingService.loadTrades(List.of(trade("T3").at(START.plusMinutes(1)).build())));
+                loader.start();
+                try {
+                    loader.join(5_000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                assertFalse(loader.isAlive(), "Loading waited on the consumer");
+            }
+            streamed.add(key);
+        });
+        assertEquals(2, streamed.size());
+        assertEquals(3, tradeLoadingService.getLoadedTrades().size());
+    }
+
+    @Test
+    public void loadTrades_ReadersNeverSeeHalfABatch() throws Exception {
+        TradeLoadingService tradeLoadingService = new TradeLoadingService(null, null, storeProps(true), List.of(), null, null);
+        Map<String, Trade> store = tradeLoadingService.getLoadedTrades();
+        TradeAggregationService tradeAggregationService = new TradeAggregationService(aggregationProps(1), null, null, null, null);
+        PnLAggregationRequest request = new PnLAggregationRequest(Optional.of(new TreeSet<>(List.of(AggregateField.BBG_CODE))),
+                Optional.empty(), Optional.empty());
+
+        //Each batch adds a hundred trades and amends a hundred others, so every whole batch leaves a multiple of a hundred live trades
+        Thread writer = new Thread(() -> {
+            Random random = new Random(17);
+            for(int batch = 0; batch < 100; batch++) {
+                List<Trade> trades = new ArrayList<>();
+                for(int i = 0; i < 100; i++) {
+                    trades.add(trade("T" + (batch * 100 + i)).at(START.plusSeconds(batch)).build());
+                    if(batch > 0) {
+                        trades.add(trade("T" + random.nextInt(batch * 100)).action(Action.AMEND).price("11")
+                                .at(START.plusSeconds(batch)).build());
+                    }
+                }
+                tradeLoadingService.loadTrades(trades);
+            }
+        });
+        writer.start();
+        for(int reads = 0; writer.isAlive() || reads == 0; reads++) {
+            assertEquals(0, store.size() % 100);
+            if(reads % 100 == 0) {
+                List<PnLPosition> series = tradeAggregationService.aggregateTrades(store, request)
+                        .getOrDefault("AAPL US Equity", List.of());
+                assertEquals(0, series.size() % 100);
+                store.values().forEach(trade -> assertNotNull(trade.getTradeId()));
+            }
+        }
+        writer.join();
+        assertEquals(10_000, store.size());
+    }
+
+    private static String describe(Trade t) {
+        return String.join(",", t.getTradeId(), t.getBbgCode(), t.getCcy().name(), t.getSide().name(),
+                t.getPrice().toString(), t.getVolume().toString(), t.getPortfolio(), t.getAction().name(), t.getAccount(),
+                t.getStrategy(), t.getUser(), t.getDateTime().toString(), t.getDate().toString());
+    }
+
+    private static StoreProps storeProps(boolean columnar) {
+        StoreProps storeProps = new StoreProps();
+        storeProps.setColumnar(columnar);
+        return storeProps;
+    }
+
+    private static AggregationProps aggregationProps(int parallelism) {
+        AggregationProps aggregationProps = new AggregationProps();
+        aggregationProps.setOutputToConsole(false);
+        aggregationProps.setOutputToCsv(false);
+        aggregationProps.setIncremental(false);
+        aggregationProps.setFixedPoint(false);
+        aggregationProps.setParallelism(parallelism);
+        aggregationProps.setResultCache(false);
+        return aggregationProps;
+    }
+}
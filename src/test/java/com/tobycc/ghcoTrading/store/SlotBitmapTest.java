@@ -0,0 +1,82 @@
+package com.tobycc.ghcoTrading.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlotBitmapTest {
+
+    @Test
+    public void add_KeepsSparseAndDenseChunksInOrder() {
+        SlotBitmap bitmap = new SlotBitmap();
+        assertTrue(bitmap.add(70_000));
+        assertTrue(bitmap.add(3));
+        assertFalse(bitmap.add(3));
+        //Enough values in the first chunk to be held as a bitmap
+        for(int i = 0; i < 10_000; i += 2) {
+            bitmap.add(i);
+        }
+        assertEquals(5_002, bitmap.cardinality());
+        assertTrue(bitmap.contains(3));
+        assertTrue(bitmap.contains(9_998));
+        assertFalse(bitmap.contains(9_999));
+        assertTrue(bitmap.contains(70_000));
+
+        int[] values = bitmap.toArray();
+        assertEquals(0, values[0]);
+        assertEquals(70_000, values[values.length - 1]);
+        for(int i = 1; i < values.length; i++) {
+            assertTrue(values[i - 1] < values[i]);
+        }
+
+        //Shrinking back below the bitmap threshold keeps every value
+        for(int i = 0; i < 10_000; i += 4) {
+            assertTrue(bitmap.remove(i));
+        }
+        assertFalse(bitmap.remove(0));
+        assertEquals(2_502, bitmap.cardinality());
+        assertTrue(bitmap.contains(2));
+        assertFalse(bitmap.contains(4));
+        assertThrows(IllegalArgumentException.class, () -> bitmap.add(-1));
+    }
+
+    @Test
+    public void andOr_MatchBitSets() {
+        Random random = new Random(42);
+        for(int density: new int[]{ 50, 5_000, 100_000 }) {
+            BitSet expectedLeft = new BitSet();
+            BitSet expectedRight = new BitSet();
+            SlotBitmap left = new SlotBitmap();
+            SlotBitmap right = new SlotBitmap();
+            for(int i = 0; i < density; i++) {
+                int l = random.nextInt(200_000);
+                int r = random.nextInt(200_000);
+                expectedLeft.set(l);
+                expectedRight.set(r);
+                left.add(l);
+                right.add(r);
+            }
+
+            BitSet expectedAnd = (BitSet) expectedLeft.clone();
+            expectedAnd.and(expectedRight);
+            BitSet expectedOr = (BitSet) expectedLeft.clone();
+            expectedOr.or(expectedRight);
+            assertEquals(expectedAnd, toBitSet(left.and(right)));
+            assertEquals(expectedAnd.cardinality(), left.and(right).cardinality());
+            assertEquals(expectedOr, toBitSet(left.or(right)));
+            assertEquals(expectedOr.cardinality(), left.or(right).cardinality());
+            //Neither side is changed
+            assertEquals(expectedLeft, toBitSet(left));
+            assertEquals(expectedRight, toBitSet(right));
+        }
+    }
+
+    private static BitSet toBitSet(SlotBitmap bitmap) {
+        BitSet bitSet = new BitSet();
+        bitmap.forEach(bitSet::set);
+        return bitSet;
+    }
+}
@@ -0,0 +1,35 @@
+package com.tobycc.ghcoTrading.store;
+
+import com.tobycc.ghcoTrading.model.enums.AggregateField;
+import com.tobycc.ghcoTrading.model.enums.Currency;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class TradeGroupIndexerTest {
+
+    @Test
+    public void index_GroupsOnTheAggregationFields() {
+        TradeGroupIndexer indexer = new TradeGroupIndexer(new TreeSet<>(List.of(AggregateField.BBG_CODE, AggregateField.CURRENCY)));
+
+        assertEquals(0, indexer.index(trade("T1").build()));
+        assertEquals(0, indexer.index(trade("T1").user("User2").build()));
+        assertEquals(1, indexer.index(trade("T1").ccy(Currency.EUR).build()));
+        assertEquals(2, indexer.index(trade("T1").bbgCode("GOOG US Equity").build()));
+        assertEquals(1, indexer.index(trade("T1").ccy(Currency.EUR).user("User3").build()));
+    }
+
+    @Test
+    public void index_NoFieldsGroupsOnAllOfThem() {
+        TradeGroupIndexer indexer = new TradeGroupIndexer(EnumSet.noneOf(AggregateField.class));
+
+        assertNotEquals(indexer.index(trade("T1").build()),
+                indexer.index(trade("T1").user("User2").build()));
+    }
+}
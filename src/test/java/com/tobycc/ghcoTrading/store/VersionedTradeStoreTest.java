@@ -0,0 +1,143 @@
+package com.tobycc.ghcoTrading.store;
+
+import com.tobycc.ghcoTrading.model.enums.Action;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.tobycc.ghcoTrading.TestTrades.trade;
+import static org.junit.jupiter.api.Assertions.*;
+
+class VersionedTradeStoreTest {
+
+    @Test
+    public void snapshot_SeesOnlyCommittedBatches() {
+        VersionedTradeStore store = new VersionedTradeStore();
+        store.beginBatch(1);
+        store.put("T1", trade("T1").build());
+        store.put("T2", trade("T2").minutes(1).build());
+        store.commit();
+
+        try (VersionedTradeStore.Snapshot snapshot = store.snapshot()) {
+            store.beginBatch(2);
+            store.put("T1", trade("T1").portfolio("portfolio2").action(Action.AMEND).minutes(2).build());
+            store.remove("T2");
+            store.put("T3", trade("T3").minutes(3).build());
+
+            //The writer sees its own batch straight away, snapshots only once it is committed
+            assertEquals("portfolio2", store.get("T1").getPortfolio());
+            assertEquals(Set.of("T1", "T3"), store.keySet());
+            assertEquals(2, store.size());
+            assertEquals(Set.of("T1", "T2"), snapshot.keySet());
+            try (VersionedTradeStore.Snapshot uncommitted = store.snapshot()) {
+                assertEquals(1, uncommitted.version());
+                assertNull(uncommitted.get("T3"));
+            }
+
+            store.commit();
+            assertEquals(1, snapshot.version());
+            assertEquals("portfolio1", snapshot.get("T1").getPortfolio());
+            assertNotNull(snapshot.get("T2"));
+            assertEquals(2, snapshot.size());
+            try (VersionedTradeStore.Snapshot latest = store.snapshot()) {
+                assertEquals(2, latest.version());
+                assertEquals(Set.of("T1", "T3"), latest.keySet());
+                assertEquals("portfolio2", latest.get("T1").getPortfolio());
+            }
+        }
+    }
+
+    @Test
+    public void beginBatch_PrunesVersionsOnceNoSnapshotNeedsThem() {
+        VersionedTradeStore store = new VersionedTradeStore();
+        store.put("T1", trade("T1").build());
+        store.put("T2", trade("T2").minutes(1).build());
+        assertEquals(2, store.retainedVersionCount());
+
+        VersionedTradeStore.Snapshot snapshot = store.snapshot();
+        store.put("T1", trade("T1").action(Action.AMEND).minutes(2).build());
+        store.remove("T2");
+        assertEquals(4, store.retainedVersionCount());
+
+        //Nothing is pruned while the snapshot is open, however many batches are written
+        store.put("T3", trade("T3").minutes(3).build());
+        assertEquals(5, store.retainedVersionCount());
+        assertEquals(Set.of("T1", "T2"), snapshot.keySet());
+
+        //Once it is closed, only the last committed version of each trade is kept, alongside the one being written
+        snapshot.close();
+        store.put("T3", trade("T3").action(Action.AMEND).minutes(4).build());
+        assertEquals(3, store.retainedVersionCount());
+        assertEquals(Set.of("T1", "T3"), store.keySet());
+    }
+
+    @Test
+    public void beginBatch_RejectsOverlappingOrOldBatches() {
+        VersionedTradeStore store = new VersionedTradeStore();
+        store.beginBatch(1);
+        assertThrows(IllegalStateException.class, () -> store.beginBatch(2));
+        store.commit();
+        assertThrows(IllegalArgumentException.class, () -> store.beginBatch(1));
+        assertThrows(IllegalStateException.class, store::commit);
+    }
+
+    @Test
+    public void snapshot_IsConsistentWhileBatchesAreWritten() throws Exception {
+        //Every batch rewrites every trade with its own version as the volume, so a consistent snapshot holds one volume
+        int tradeCount = 2_000;
+        VersionedTradeStore store = new VersionedTradeStore();
+        store.beginBatch(1);
+        for(int i = 0; i < tradeCount; i++) {
+            store.put("T" + i, trade("T" + i).volume(1).build());
+        }
+        store.commit();
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<Long> writer = executor.submit(() -> {
+                long version = 1;
+                while(writing.get()) {
+                    store.beginBatch(++version);
+                    for(int i = 0; i < tradeCount; i++) {
+                        store.put("T" + i, trade("T" + i).volume((int) version).build());
+                    }
+                    store.commit();
+                }
+                return version;
+            });
+
+            List<Future<Integer>> readers = new ArrayList<>();
+            for(int r = 0; r < 2; r++) {
+                readers.add(executor.submit(() -> {
+                    int snapshots = 0;
+                    long deadline = System.currentTimeMillis() + 500;
+                    while(System.currentTimeMillis() < deadline) {
+                        try (VersionedTradeStore.Snapshot snapshot = store.snapshot()) {
+                            Set<Integer> volumes = new HashSet<>();
+                            snapshot.values().forEach(t -> volumes.add(t.getVolume()));
+                            assertEquals(Set.of((int) snapshot.version()), volumes);
+                            assertEquals(tradeCount, snapshot.size());
+                        }
+                        snapshots++;
+                    }
+                    return snapshots;
+                }));
+            }
+            for(Future<Integer> reader: readers) {
+                assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+            }
+            writing.set(false);
+            assertTrue(writer.get(10, TimeUnit.SECONDS) > 1);
+        } finally {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+
+        //Once every snapshot is closed, the next batch prunes back to one version a trade, besides the one it writes
+        store.put("T0", trade("T0").volume(0).build());
+        assertEquals(tradeCount + 1, store.retainedVersionCount());
+    }
+}